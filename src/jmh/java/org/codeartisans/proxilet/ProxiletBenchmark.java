@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-request CPU and allocation cost of the proxy hot paths.
+ *
+ * Run with {@code mvn -Pjmh verify}, the gc profiler reports allocation rates as {@code gc.alloc.rate.norm}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ProxiletBenchmark
+{
+
+    private static final String GWT_RPC_PAYLOAD = "7|0|7|http://localhost:8080/app/|29F4EA1240F157649C12466F01F46F60|"
+                                                  + "com.example.client.GreetingService|greetServer|java.lang.String/2004016611|";
+
+    private Proxilet proxilet;
+
+    private Upstream upstream;
+
+    private RouteTable routeTable;
+
+    private HttpServletRequest getRequest;
+
+    private HttpServletRequest gwtRequest;
+
+    private HttpServletRequest formRequest;
+
+    private List<Header> responseHeaders;
+
+    private byte[] gzippedBody;
+
+    @Setup
+    public void setUp()
+            throws ServletException, IOException
+    {
+        Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put( "targetHost", "backend.example.com" );
+        initParameters.put( "targetPort", "8080" );
+        initParameters.put( "jmxEnabled", "false" );
+        proxilet = new Proxilet();
+        proxilet.init( Stubs.servletConfig( initParameters ) );
+        upstream = new Upstream( "backend.example.com", 8080, false );
+        // A proxy fronting a few dozen services
+        UpstreamGroup group = new UpstreamGroup( Arrays.asList( upstream ), UpstreamSelectors.forName( UpstreamSelectors.ROUND_ROBIN ), 0, 0 );
+        List<Route> routes = new ArrayList<Route>();
+        for ( String service : new String[]{ "accounts", "billing", "catalog", "orders", "products", "search", "users" } ) {
+            routes.add( new Route( null, "/app/" + service, "/" + service, group, "" ) );
+            routes.add( new Route( null, "/app/" + service + "/admin", "/admin/" + service, group, "" ) );
+            routes.add( new Route( "admin.example.com", "/app/" + service, "/internal/" + service, group, "" ) );
+        }
+        routes.add( new Route( null, "", "", group, "" ) );
+        routeTable = new RouteTable( routes );
+
+        getRequest = browserHeaders( new Stubs.RequestBuilder( "GET", "/app/products/42/reviews" ) ).build();
+
+        StringBuilder gwtBody = new StringBuilder( GWT_RPC_PAYLOAD );
+        for ( int idx = 0; idx < 64; idx++ ) {
+            gwtBody.append( "Lorem ipsum dolor sit amet, consectetur adipiscing elit" ).append( idx );
+        }
+        gwtBody.append( "|1|2|3|4|1|5|6|" );
+        gwtRequest = browserHeaders( new Stubs.RequestBuilder( "POST", "/app/greet" ) ).
+                body( "text/x-gwt-rpc; charset=utf-8", "UTF-8", gwtBody.toString().getBytes( "UTF-8" ) ).
+                build();
+
+        formRequest = browserHeaders( new Stubs.RequestBuilder( "POST", "/app/login" ) ).
+                body( "application/x-www-form-urlencoded", "UTF-8", new byte[ 0 ] ).
+                parameter( "username", "j.doe@example.com" ).
+                parameter( "password", "s3cr3t & p@ssw0rd" ).
+                parameter( "remember", "on" ).
+                parameter( "redirect", "/app/products/42/reviews?sort=recent&page=2" ).
+                parameter( "locale", "fr_FR" ).
+                parameter( "roles", "reader", "writer", "reviewer" ).
+                parameter( "comment", "Très bien, à revoir en détail" ).
+                build();
+
+        responseHeaders = new ArrayList<Header>();
+        responseHeaders.add( new Header( "Date", "Sat, 17 Oct 2026 10:00:00 GMT" ) );
+        responseHeaders.add( new Header( "Server", "Apache" ) );
+        responseHeaders.add( new Header( "Content-Type", "application/json;charset=UTF-8" ) );
+        responseHeaders.add( new Header( "Cache-Control", "private, max-age=0" ) );
+        responseHeaders.add( new Header( "Vary", "Accept-Encoding" ) );
+        responseHeaders.add( new Header( "Set-Cookie", "JSESSIONID=0123456789ABCDEF; Path=/app" ) );
+        responseHeaders.add( new Header( "Content-Encoding", "gzip" ) );
+        responseHeaders.add( new Header( "Transfer-Encoding", "chunked" ) );
+
+        StringBuilder json = new StringBuilder( "[" );
+        for ( int idx = 0; idx < 256; idx++ ) {
+            json.append( idx == 0 ? "" : "," ).
+                    append( "{\"id\":" ).append( idx ).
+                    append( ",\"title\":\"Review " ).append( idx ).
+                    append( "\",\"rating\":" ).append( idx % 5 ).
+                    append( ",\"body\":\"Lorem ipsum dolor sit amet, consectetur adipiscing elit.\"}" );
+        }
+        json.append( "]" );
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream( gzipped );
+        gzip.write( json.toString().getBytes( "UTF-8" ) );
+        gzip.close();
+        gzippedBody = gzipped.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        proxilet.destroy();
+    }
+
+    /**
+     * Route matching and upstream URL rewriting.
+     */
+    @Benchmark
+    public String getProxyURL()
+    {
+        return proxilet.getProxyURL( getRequest, routeTable.match( getRequest ), upstream );
+    }
+
+    @Benchmark
+    public HttpMethod setProxyRequestHeaders()
+    {
+        GetMethod method = new GetMethod();
+        proxilet.setProxyRequestHeaders( getRequest, method, upstream );
+        return method;
+    }
+
+    @Benchmark
+    public boolean isBodyParameterGzipped()
+    {
+        return proxilet.isBodyParameterGzipped( responseHeaders );
+    }
+
+    @Benchmark
+    public void ungzip()
+            throws IOException
+    {
+        proxilet.ungzip( new ByteArrayInputStream( gzippedBody ), NullOutputStream.NULL_OUTPUT_STREAM );
+    }
+
+    /**
+     * GWT-RPC request, the client URL is rewritten while the body is streamed.
+     */
+    @Benchmark
+    public HttpMethod handleContentPost()
+            throws IOException, ServletException
+    {
+        PostMethod method = new PostMethod();
+        proxilet.handleContentPost( method, gwtRequest, upstream );
+        method.getRequestEntity().writeRequest( NullOutputStream.NULL_OUTPUT_STREAM );
+        return method;
+    }
+
+    /**
+     * Form request, the parameters are re-encoded into the upstream request body.
+     */
+    @Benchmark
+    public HttpMethod handleStandardPost()
+            throws IOException
+    {
+        PostMethod method = new PostMethod();
+        proxilet.handleStandardPost( method, formRequest );
+        method.getRequestEntity().writeRequest( NullOutputStream.NULL_OUTPUT_STREAM );
+        return method;
+    }
+
+    private static Stubs.RequestBuilder browserHeaders( Stubs.RequestBuilder builder )
+    {
+        return builder.
+                header( "Host", "localhost:8080" ).
+                header( "User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:60.0) Gecko/20100101 Firefox/60.0" ).
+                header( "Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8" ).
+                header( "Accept-Language", "fr-FR", "fr;q=0.8", "en-US;q=0.5" ).
+                header( "Accept-Encoding", "gzip, deflate" ).
+                header( "Referer", "http://localhost:8080/app/products/42" ).
+                header( "Cookie", "JSESSIONID=0123456789ABCDEF; theme=dark" ).
+                header( "Connection", "keep-alive" ).
+                header( "Cache-Control", "max-age=0" );
+    }
+
+}
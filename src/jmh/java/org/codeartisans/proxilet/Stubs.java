@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Minimal servlet API stubs, so that benchmarks measure the proxy code rather than a container.
+ */
+final class Stubs
+{
+
+    static ServletConfig servletConfig( final Map<String, String> initParameters )
+    {
+        return ( ServletConfig ) Proxy.newProxyInstance( Stubs.class.getClassLoader(), new Class<?>[]{ ServletConfig.class },
+                                                         new InvocationHandler()
+        {
+
+            @Override
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                String name = method.getName();
+                if ( "getInitParameter".equals( name ) ) {
+                    return initParameters.get( ( String ) args[0] );
+                } else if ( "getInitParameterNames".equals( name ) ) {
+                    return Collections.enumeration( initParameters.keySet() );
+                } else if ( "getServletName".equals( name ) ) {
+                    return "benchmark";
+                }
+                return null;
+            }
+
+        } );
+    }
+
+    /**
+     * Builds immutable request stubs, the body is served from a fresh stream on each getInputStream() call.
+     */
+    static final class RequestBuilder
+    {
+
+        private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+        private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+
+        private final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+
+        private byte[] body = new byte[ 0 ];
+
+        RequestBuilder( String method, String requestUri )
+        {
+            values.put( "getMethod", method );
+            values.put( "getRequestURI", requestUri );
+            values.put( "getContextPath", "" );
+            values.put( "getServerName", "localhost" );
+            values.put( "getLocalName", "127.0.0.1" );
+            values.put( "getLocalPort", 8080 );
+            values.put( "getContentLength", -1 );
+        }
+
+        RequestBuilder header( String name, String... headerValues )
+        {
+            headers.put( name, Arrays.asList( headerValues ) );
+            return this;
+        }
+
+        RequestBuilder parameter( String name, String... parameterValues )
+        {
+            parameters.put( name, parameterValues );
+            return this;
+        }
+
+        RequestBuilder body( String contentType, String encoding, byte[] content )
+        {
+            values.put( "getContentType", contentType );
+            values.put( "getCharacterEncoding", encoding );
+            values.put( "getContentLength", content.length );
+            header( "Content-Type", contentType );
+            header( "Content-Length", String.valueOf( content.length ) );
+            body = content;
+            return this;
+        }
+
+        HttpServletRequest build()
+        {
+            final Map<String, Object> requestValues = new LinkedHashMap<String, Object>( values );
+            final Map<String, List<String>> requestHeaders = new LinkedHashMap<String, List<String>>( headers );
+            final Map<String, String[]> requestParameters = Collections.unmodifiableMap( new LinkedHashMap<String, String[]>( parameters ) );
+            final byte[] requestBody = body;
+            return ( HttpServletRequest ) Proxy.newProxyInstance( Stubs.class.getClassLoader(), new Class<?>[]{ HttpServletRequest.class },
+                                                                  new InvocationHandler()
+            {
+
+                @Override
+                public Object invoke( Object proxy, Method method, Object[] args )
+                {
+                    String name = method.getName();
+                    if ( "getHeaderNames".equals( name ) ) {
+                        return Collections.enumeration( requestHeaders.keySet() );
+                    } else if ( "getHeaders".equals( name ) ) {
+                        List<String> headerValues = requestHeaders.get( ( String ) args[0] );
+                        return Collections.enumeration( headerValues == null ? Collections.<String>emptyList() : headerValues );
+                    } else if ( "getHeader".equals( name ) ) {
+                        List<String> headerValues = requestHeaders.get( ( String ) args[0] );
+                        return headerValues == null ? null : headerValues.get( 0 );
+                    } else if ( "getParameterMap".equals( name ) ) {
+                        return requestParameters;
+                    } else if ( "getInputStream".equals( name ) ) {
+                        return new BodyInputStream( requestBody );
+                    }
+                    return requestValues.get( name );
+                }
+
+            } );
+        }
+
+    }
+
+    private static final class BodyInputStream
+            extends ServletInputStream
+    {
+
+        private final ByteArrayInputStream in;
+
+        private BodyInputStream( byte[] body )
+        {
+            this.in = new ByteArrayInputStream( body );
+        }
+
+        @Override
+        public int read()
+        {
+            return in.read();
+        }
+
+        @Override
+        public int read( byte[] buffer, int offset, int length )
+                throws IOException
+        {
+            return in.read( buffer, offset, length );
+        }
+
+    }
+
+    private Stubs()
+    {
+    }
+
+}
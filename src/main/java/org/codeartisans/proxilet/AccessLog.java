@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access log written as JSON lines by a background thread, so that request threads never wait on log I/O.
+ *
+ * Requests are recorded into a preallocated ring of entries: a slot is claimed with a CAS and published with a volatile
+ * write, without locking nor allocating. When the ring is full, entries are dropped and counted rather than blocking
+ * the request. The writer thread drains the ring in batches to a file rolled over by size.
+ */
+final class AccessLog
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( AccessLog.class );
+
+    /**
+     * Entries written between two flushes at most, the file is also flushed whenever the ring is drained.
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 10 );
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Entry[] ring;
+
+    private final int mask;
+
+    /**
+     * Next sequence to claim, by request threads.
+     */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /**
+     * Next sequence to drain, written by the writer thread only. Slots below it are free.
+     */
+    private volatile long drained;
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final File file;
+
+    private final long maxFileSize;
+
+    private final int maxFiles;
+
+    private final Thread writerThread;
+
+    private volatile boolean running = true;
+
+    private CountingOutputStream fileOut;
+
+    private Writer writer;
+
+    private long fileSize;
+
+    /**
+     * @param file          The log file, rolled over to file.1, file.2 and so on
+     * @param bufferSize    Entries the ring holds, rounded up to a power of two
+     * @param maxFileSize   Size after which the file is rolled over, in bytes, 0 disables rolling
+     * @param maxFiles      Rolled over files kept
+     * @throws IOException  If the log file cannot be opened
+     */
+    AccessLog( File file, int bufferSize, long maxFileSize, int maxFiles )
+            throws IOException
+    {
+        int capacity = Integer.highestOneBit( Math.max( 2, bufferSize ) - 1 ) << 1;
+        this.ring = new Entry[ capacity ];
+        for ( int idx = 0; idx < capacity; idx++ ) {
+            ring[idx] = new Entry();
+        }
+        this.mask = capacity - 1;
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        open();
+        writerThread = new DaemonThreadFactory( "proxilet-access-log" ).newThread( new Runnable()
+        {
+
+            @Override
+            public void run()
+            {
+                drainLoop();
+            }
+
+        } );
+        writerThread.start();
+    }
+
+    /**
+     * Record a request, without blocking. The entry is dropped if the ring is full.
+     */
+    void log( long time, String remoteAddress, String method, String uri, String query, Route route, Upstream upstream,
+              int status, long bytesIn, long bytesOut, long duration, long timeToFirstByte, long bodyTransfer )
+    {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if ( sequence - drained >= ring.length ) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while ( !claimed.compareAndSet( sequence, sequence + 1 ) );
+        Entry entry = ring[( int ) sequence & mask];
+        entry.time = time;
+        entry.remoteAddress = remoteAddress;
+        entry.method = method;
+        entry.uri = uri;
+        entry.query = query;
+        entry.route = route;
+        entry.upstream = upstream;
+        entry.status = status;
+        entry.bytesIn = bytesIn;
+        entry.bytesOut = bytesOut;
+        entry.duration = duration;
+        entry.timeToFirstByte = timeToFirstByte;
+        entry.bodyTransfer = bodyTransfer;
+        // Publishes the fields written above to the writer thread
+        entry.published = sequence;
+    }
+
+    /**
+     * @return number of entries written to the log file
+     */
+    long getWritten()
+    {
+        return written.get();
+    }
+
+    /**
+     * @return number of entries dropped because the ring was full
+     */
+    long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Write the entries already published and close the log file.
+     */
+    void close()
+    {
+        running = false;
+        LockSupport.unpark( writerThread );
+        try {
+            writerThread.join( TimeUnit.SECONDS.toMillis( 5 ) );
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop()
+    {
+        StringBuilder line = new StringBuilder( 256 );
+        SimpleDateFormat timeFormat = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US );
+        timeFormat.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+        try {
+            while ( true ) {
+                // Read before draining so that entries published before close are written
+                boolean stopping = !running;
+                int count = drain( line, timeFormat );
+                if ( count < BATCH_SIZE ) {
+                    writer.flush();
+                    if ( count == 0 ) {
+                        if ( stopping ) {
+                            break;
+                        }
+                        LockSupport.parkNanos( IDLE_PARK_NANOS );
+                    }
+                }
+            }
+        } catch ( IOException ex ) {
+            LOGGER.error( "Unable to write access log " + file + ", access logging stopped", ex );
+        } finally {
+            try {
+                writer.close();
+            } catch ( IOException ex ) {
+                LOGGER.warn( "Unable to close access log {}: {}", file, ex.getMessage() );
+            }
+        }
+    }
+
+    private int drain( StringBuilder line, SimpleDateFormat timeFormat )
+            throws IOException
+    {
+        int count = 0;
+        long next = drained;
+        while ( count < BATCH_SIZE ) {
+            Entry entry = ring[( int ) next & mask];
+            if ( entry.published != next ) {
+                break;
+            }
+            line.setLength( 0 );
+            format( entry, line, timeFormat );
+            entry.clear();
+            // Frees the slot
+            drained = ++next;
+            writer.append( line );
+            count++;
+            written.incrementAndGet();
+            if ( maxFileSize > 0 && fileSize + fileOut.getByteCount() >= maxFileSize ) {
+                roll();
+            }
+        }
+        return count;
+    }
+
+    private static void format( Entry entry, StringBuilder line, SimpleDateFormat timeFormat )
+    {
+        line.append( "{\"time\":\"" ).append( timeFormat.format( new Date( entry.time ) ) ).append( '"' );
+        appendString( line, "remote", entry.remoteAddress );
+        appendString( line, "method", entry.method );
+        appendString( line, "uri", entry.query == null ? entry.uri : entry.uri + '?' + entry.query );
+        if ( entry.route != null ) {
+            appendString( line, "route", entry.route.getHost() == null ? entry.route.getPathPrefix()
+                                                                         : entry.route.getHost() + entry.route.getPathPrefix() );
+        }
+        if ( entry.upstream != null ) {
+            appendString( line, "upstream", entry.upstream.getBaseUrl() );
+        }
+        line.append( ",\"status\":" ).append( entry.status );
+        line.append( ",\"bytesIn\":" ).append( entry.bytesIn );
+        line.append( ",\"bytesOut\":" ).append( entry.bytesOut );
+        appendMillis( line, "duration", entry.duration );
+        appendMillis( line, "timeToFirstByte", entry.timeToFirstByte );
+        appendMillis( line, "bodyTransfer", entry.bodyTransfer );
+        line.append( "}\n" );
+    }
+
+    private static void appendString( StringBuilder line, String name, String value )
+    {
+        if ( value == null ) {
+            return;
+        }
+        line.append( ",\"" ).append( name ).append( "\":\"" );
+        for ( int idx = 0; idx < value.length(); idx++ ) {
+            char current = value.charAt( idx );
+            if ( current == '"' || current == '\\' ) {
+                line.append( '\\' ).append( current );
+            } else if ( current < 0x20 ) {
+                line.append( "\\u00" ).append( Character.forDigit( current >> 4, 16 ) ).append( Character.forDigit( current & 0xF, 16 ) );
+            } else {
+                line.append( current );
+            }
+        }
+        line.append( '"' );
+    }
+
+    /**
+     * Append a duration in milliseconds with microseconds precision, omitted if negative.
+     */
+    private static void appendMillis( StringBuilder line, String name, long nanos )
+    {
+        if ( nanos < 0 ) {
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros( nanos );
+        long fraction = micros % 1000;
+        line.append( ",\"" ).append( name ).append( "\":" ).append( micros / 1000 ).append( '.' );
+        if ( fraction < 100 ) {
+            line.append( fraction < 10 ? "00" : "0" );
+        }
+        line.append( fraction );
+    }
+
+    private void open()
+            throws IOException
+    {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if ( directory != null && !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException( "Unable to create access log directory " + directory );
+        }
+        fileSize = file.length();
+        fileOut = new CountingOutputStream( new BufferedOutputStream( new FileOutputStream( file, true ), WRITE_BUFFER_SIZE ) );
+        writer = new OutputStreamWriter( fileOut, "UTF-8" );
+    }
+
+    private void roll()
+            throws IOException
+    {
+        writer.close();
+        if ( maxFiles > 0 ) {
+            new File( file.getPath() + "." + maxFiles ).delete();
+            for ( int idx = maxFiles - 1; idx > 0; idx-- ) {
+                File rolled = new File( file.getPath() + "." + idx );
+                if ( rolled.exists() ) {
+                    rolled.renameTo( new File( file.getPath() + "." + ( idx + 1 ) ) );
+                }
+            }
+            file.renameTo( new File( file.getPath() + ".1" ) );
+        } else {
+            file.delete();
+        }
+        open();
+    }
+
+    /**
+     * Slot of the ring, reused for every lap.
+     */
+    private static final class Entry
+    {
+
+        /**
+         * Sequence of the entry held, written last by the request thread.
+         */
+        private volatile long published = -1;
+
+        private long time;
+
+        private String remoteAddress;
+
+        private String method;
+
+        private String uri;
+
+        private String query;
+
+        private Route route;
+
+        private Upstream upstream;
+
+        private int status;
+
+        private long bytesIn;
+
+        private long bytesOut;
+
+        private long duration;
+
+        private long timeToFirstByte;
+
+        private long bodyTransfer;
+
+        private void clear()
+        {
+            remoteAddress = null;
+            method = null;
+            uri = null;
+            query = null;
+            route = null;
+            upstream = null;
+        }
+
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Incremental transformation of a request or response body, created by a {@link ProxyFilter} for a single body.
+ */
+public interface BodyFilter
+{
+
+    /**
+     * Transform the next chunk of the body. Bytes may be held back until a later chunk, for instance the start of a
+     * pattern spanning chunks.
+     *
+     * @param bytes         the chunk, not to be kept after the call
+     * @param offset        start of the chunk in bytes
+     * @param length        length of the chunk
+     * @param out           where the transformed bytes are written, the same stream for all chunks of the body
+     * @throws IOException  if writing fails
+     */
+    void filter( byte[] bytes, int offset, int length, OutputStream out )
+            throws IOException;
+
+    /**
+     * Write the bytes held back, once the whole body has been filtered.
+     *
+     * @param out           where the transformed bytes are written
+     * @throws IOException  if writing fails
+     */
+    void finish( OutputStream out )
+            throws IOException;
+
+}
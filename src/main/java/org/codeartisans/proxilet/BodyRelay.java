@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relays bodies from an InputStream to an OutputStream through pooled buffers. Bodies known to be short go through
+ * small buffers, so that they do not hold a full size buffer each.
+ *
+ * Bytes are accumulated while the source has more of them immediately available, so that the destination gets large
+ * writes when the source is fast and prompt ones when it stalls. Flushing is left to the destination, eg. when the
+ * container response buffer is full or the response complete, unless:
+ * <ul>
+ *     <li>a flush size is set, the destination is then flushed once the unflushed bytes reach it;</li>
+ *     <li>a flush interval is set, bytes then never stay unflushed longer than it: the destination is flushed when
+ *         the source stalls, as waiting for it is unbounded, and at least once per interval otherwise.</li>
+ * </ul>
+ */
+final class BodyRelay
+{
+
+    private final BufferPool bufferPool;
+
+    private final BufferPool smallBufferPool;
+
+    private final long flushSize;
+
+    private final long flushIntervalNanos;
+
+    /**
+     * @param bufferPool        pool of the relay buffers
+     * @param flushSize         unflushed bytes triggering a flush, 0 disables size based flushing
+     * @param flushInterval     maximum time bytes stay unflushed, in milliseconds, 0 disables time based flushing
+     */
+    BodyRelay( BufferPool bufferPool, long flushSize, long flushInterval )
+    {
+        this( bufferPool, null, flushSize, flushInterval );
+    }
+
+    /**
+     * @param bufferPool        pool of the relay buffers
+     * @param smallBufferPool   pool of the buffers of bodies whose length fits in them, may be null
+     * @param flushSize         unflushed bytes triggering a flush, 0 disables size based flushing
+     * @param flushInterval     maximum time bytes stay unflushed, in milliseconds, 0 disables time based flushing
+     */
+    BodyRelay( BufferPool bufferPool, BufferPool smallBufferPool, long flushSize, long flushInterval )
+    {
+        this.bufferPool = bufferPool;
+        this.smallBufferPool = smallBufferPool;
+        this.flushSize = flushSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos( flushInterval );
+    }
+
+    /**
+     * @return number of buffers allocated by both pools, steady once they are warm
+     */
+    long getAllocations()
+    {
+        return bufferPool.getAllocations() + ( smallBufferPool == null ? 0 : smallBufferPool.getAllocations() );
+    }
+
+    /**
+     * @return number of idle buffers in both pools
+     */
+    int getPooled()
+    {
+        return bufferPool.getPooled() + ( smallBufferPool == null ? 0 : smallBufferPool.getPooled() );
+    }
+
+    /**
+     * Relay the remaining content of the given stream, of unknown length.
+     *
+     * @see #relay(InputStream, OutputStream, long)
+     */
+    long relay( InputStream in, OutputStream out )
+            throws IOException
+    {
+        return relay( in, out, -1 );
+    }
+
+    /**
+     * Relay the remaining content of the given stream, neither stream is closed nor finally flushed.
+     *
+     * @param length        the expected length of the content, eg. its Content-Length, -1 if unknown
+     * @return              the number of bytes relayed
+     * @throws IOException  If reading or writing fails
+     */
+    long relay( InputStream in, OutputStream out, long length )
+            throws IOException
+    {
+        BufferPool pool = smallBufferPool != null && length >= 0 && length <= smallBufferPool.getBufferSize()
+                          ? smallBufferPool : bufferPool;
+        byte[] buffer = pool.acquire();
+        try {
+            long total = 0;
+            long unflushed = 0;
+            long unflushedSince = 0;
+            int filled = 0;
+            int read;
+            while ( ( read = in.read( buffer, filled, buffer.length - filled ) ) != -1 ) {
+                filled += read;
+                boolean stalled = in.available() <= 0;
+                if ( filled == 0 || ( filled < buffer.length && !stalled ) ) {
+                    continue;
+                }
+                out.write( buffer, 0, filled );
+                total += filled;
+                if ( unflushed == 0 && flushIntervalNanos > 0 ) {
+                    unflushedSince = System.nanoTime();
+                }
+                unflushed += filled;
+                filled = 0;
+                if ( ( flushSize > 0 && unflushed >= flushSize )
+                     || ( flushIntervalNanos > 0 && ( stalled || System.nanoTime() - unflushedSince >= flushIntervalNanos ) ) ) {
+                    out.flush();
+                    unflushed = 0;
+                }
+            }
+            if ( filled > 0 ) {
+                out.write( buffer, 0, filled );
+                total += filled;
+            }
+            return total;
+        } finally {
+            pool.release( buffer );
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of fixed size byte buffers, reused across requests.
+ *
+ * The pool never blocks: when it is empty a buffer is allocated, when it is full a released buffer is left to the
+ * garbage collector. Its array backed queue does not allocate either.
+ */
+final class BufferPool
+{
+
+    private final int bufferSize;
+
+    private final BlockingQueue<byte[]> buffers;
+
+    private final AtomicLong allocations = new AtomicLong();
+
+    /**
+     * @param bufferSize    size of the pooled buffers, in bytes
+     * @param maxPooled     maximum number of idle buffers kept
+     */
+    BufferPool( int bufferSize, int maxPooled )
+    {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<byte[]>( Math.max( 1, maxPooled ) );
+    }
+
+    int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    byte[] acquire()
+    {
+        byte[] buffer = buffers.poll();
+        if ( buffer == null ) {
+            allocations.incrementAndGet();
+            buffer = new byte[ bufferSize ];
+        }
+        return buffer;
+    }
+
+    void release( byte[] buffer )
+    {
+        if ( buffer.length == bufferSize ) {
+            buffers.offer( buffer );
+        }
+    }
+
+    /**
+     * @return number of buffers allocated since the pool creation, steady once the pool is warm
+     */
+    long getAllocations()
+    {
+        return allocations.get();
+    }
+
+    /**
+     * @return number of idle buffers in the pool
+     */
+    int getPooled()
+    {
+        return buffers.size();
+    }
+
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.Enumeration;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+
+/**
+ * HTTP caching rules applied by the proxy, acting as a shared cache.
+ *
+ * Only explicit freshness information (s-maxage, max-age, Expires) makes a response fresh, responses carrying only
+ * validators (ETag, Last-Modified) are stored stale and revalidated with conditional requests.
+ */
+final class CachePolicy
+{
+
+    static final String HEADER_CACHE_CONTROL = "Cache-Control";
+
+    static final String HEADER_PRAGMA = "Pragma";
+
+    static final String HEADER_EXPIRES = "Expires";
+
+    static final String HEADER_DATE = "Date";
+
+    static final String HEADER_AGE = "Age";
+
+    static final String HEADER_ETAG = "ETag";
+
+    static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    static final String HEADER_VARY = "Vary";
+
+    static final String HEADER_SET_COOKIE = "Set-Cookie";
+
+    static final String HEADER_AUTHORIZATION = "Authorization";
+
+    static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    /**
+     * Request headers upstream responses commonly depend on, identical requests must have identical values.
+     */
+    private static final String[] COALESCING_HEADERS = new String[]{
+        "Accept", "Accept-Encoding", "Accept-Language", HEADER_AUTHORIZATION, "Cookie"
+    };
+
+    private static final String NO_STORE = "no-store";
+
+    private static final String NO_CACHE = "no-cache";
+
+    /**
+     * Tells whether the response to the given request may be looked up in and stored into the cache.
+     *
+     * @param httpServletRequest    The client request
+     * @return                      true if the request may use the cache
+     */
+    static boolean isCacheableRequest( HttpServletRequest httpServletRequest )
+    {
+        return "GET".equals( httpServletRequest.getMethod() )
+               && directive( httpServletRequest.getHeader( HEADER_CACHE_CONTROL ), NO_STORE ) == null;
+    }
+
+    /**
+     * Tells whether the client asks for a cached response to be revalidated before being used.
+     *
+     * @param httpServletRequest    The client request
+     * @return                      true if cached responses must be revalidated
+     */
+    static boolean isRevalidationRequested( HttpServletRequest httpServletRequest )
+    {
+        String cacheControl = httpServletRequest.getHeader( HEADER_CACHE_CONTROL );
+        String pragma = httpServletRequest.getHeader( HEADER_PRAGMA );
+        return directive( cacheControl, NO_CACHE ) != null
+               || "0".equals( directive( cacheControl, "max-age" ) )
+               || ( cacheControl == null && pragma != null && pragma.contains( NO_CACHE ) );
+    }
+
+    /**
+     * @param httpServletRequest    The client request
+     * @return                      true if the client request is conditional
+     */
+    static boolean isConditionalRequest( HttpServletRequest httpServletRequest )
+    {
+        return httpServletRequest.getHeader( HEADER_IF_NONE_MATCH ) != null
+               || httpServletRequest.getHeader( HEADER_IF_MODIFIED_SINCE ) != null;
+    }
+
+    /**
+     * Tells whether an upstream response may be stored in a shared cache.
+     *
+     * @param statusCode            The upstream response status code
+     * @param headers               The upstream response headers
+     * @param httpServletRequest    The client request
+     * @return                      true if the response may be stored
+     */
+    static boolean isStorable( int statusCode, Header[] headers, HttpServletRequest httpServletRequest )
+    {
+        if ( statusCode != 200 && statusCode != 203 ) {
+            return false;
+        }
+        String cacheControl = header( headers, HEADER_CACHE_CONTROL );
+        if ( directive( cacheControl, NO_STORE ) != null || directive( cacheControl, "private" ) != null ) {
+            return false;
+        }
+        if ( header( headers, HEADER_SET_COOKIE ) != null ) {
+            return false;
+        }
+        String vary = header( headers, HEADER_VARY );
+        if ( vary != null && vary.contains( "*" ) ) {
+            return false;
+        }
+        if ( httpServletRequest.getHeader( HEADER_AUTHORIZATION ) != null
+             && directive( cacheControl, "public" ) == null
+             && directive( cacheControl, "s-maxage" ) == null
+             && directive( cacheControl, "must-revalidate" ) == null ) {
+            return false;
+        }
+        // Worth storing only if it can be served fresh or revalidated
+        return freshnessLifetime( headers ) > 0
+               || header( headers, HEADER_ETAG ) != null
+               || header( headers, HEADER_LAST_MODIFIED ) != null;
+    }
+
+    /**
+     * Tells whether a response can be shared with identical concurrent requests.
+     *
+     * @param headers   The response headers
+     * @return          true if the response is not specific to the requesting client
+     */
+    static boolean isShareable( Header[] headers )
+    {
+        String cacheControl = header( headers, HEADER_CACHE_CONTROL );
+        return directive( cacheControl, NO_STORE ) == null
+               && directive( cacheControl, "private" ) == null
+               && header( headers, HEADER_SET_COOKIE ) == null;
+    }
+
+    /**
+     * Build the key identifying identical requests, the request headers a response commonly depends on are part of it.
+     *
+     * @param cacheKey              The cache key of the request
+     * @param httpServletRequest    The client request
+     * @return                      The coalescing key
+     */
+    static String coalescingKey( String cacheKey, HttpServletRequest httpServletRequest )
+    {
+        return cacheKey + variantKey( httpServletRequest, COALESCING_HEADERS );
+    }
+
+    /**
+     * Compute the freshness lifetime of a response from its headers.
+     *
+     * @param headers   The response headers
+     * @return          The freshness lifetime in milliseconds, 0 if stale from the start
+     */
+    static long freshnessLifetime( Header[] headers )
+    {
+        String cacheControl = header( headers, HEADER_CACHE_CONTROL );
+        if ( directive( cacheControl, NO_CACHE ) != null ) {
+            return 0;
+        }
+        long seconds = seconds( directive( cacheControl, "s-maxage" ) );
+        if ( seconds < 0 ) {
+            seconds = seconds( directive( cacheControl, "max-age" ) );
+        }
+        if ( seconds >= 0 ) {
+            return seconds * 1000;
+        }
+        String expires = header( headers, HEADER_EXPIRES );
+        if ( expires != null ) {
+            String date = header( headers, HEADER_DATE );
+            try {
+                long base = date == null ? System.currentTimeMillis() : DateUtil.parseDate( date ).getTime();
+                return Math.max( 0, DateUtil.parseDate( expires ).getTime() - base );
+            } catch ( DateParseException ex ) {
+                // Invalid dates mean already expired
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param headers   The response headers
+     * @return          The Age header value in milliseconds, 0 if absent
+     */
+    static long initialAge( Header[] headers )
+    {
+        return Math.max( 0, seconds( header( headers, HEADER_AGE ) ) ) * 1000;
+    }
+
+    /**
+     * @param headers   The response headers
+     * @return          The names of the request headers the response varies on, or null if none
+     */
+    static String[] varyNames( Header[] headers )
+    {
+        String vary = header( headers, HEADER_VARY );
+        if ( vary == null || vary.trim().length() == 0 ) {
+            return null;
+        }
+        String[] names = vary.split( "," );
+        for ( int idx = 0; idx < names.length; idx++ ) {
+            names[idx] = names[idx].trim();
+        }
+        return names;
+    }
+
+    /**
+     * Build the secondary cache key of a request, from the values of the request headers a response varies on.
+     *
+     * @param httpServletRequest    The client request
+     * @param varyNames             The request header names
+     * @return                      The secondary cache key
+     */
+    @SuppressWarnings( "unchecked" )
+    static String variantKey( HttpServletRequest httpServletRequest, String[] varyNames )
+    {
+        StringBuilder key = new StringBuilder();
+        for ( String name : varyNames ) {
+            key.append( '\n' ).append( name ).append( ':' );
+            Enumeration<String> values = httpServletRequest.getHeaders( name );
+            while ( values != null && values.hasMoreElements() ) {
+                key.append( values.nextElement() ).append( ',' );
+            }
+        }
+        return key.toString();
+    }
+
+    static String header( Header[] headers, String name )
+    {
+        for ( Header header : headers ) {
+            if ( header.getName().equalsIgnoreCase( name ) ) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a Cache-Control directive.
+     *
+     * @param cacheControl  The Cache-Control header value, may be null
+     * @param name          The directive name
+     * @return              The directive value, an empty String if it has no value, or null if absent
+     */
+    static String directive( String cacheControl, String name )
+    {
+        if ( cacheControl == null ) {
+            return null;
+        }
+        for ( String element : cacheControl.split( "," ) ) {
+            String trimmed = element.trim();
+            if ( trimmed.regionMatches( true, 0, name, 0, name.length() ) ) {
+                String rest = trimmed.substring( name.length() ).trim();
+                if ( rest.length() == 0 ) {
+                    return "";
+                }
+                if ( rest.charAt( 0 ) == '=' ) {
+                    String value = rest.substring( 1 ).trim();
+                    if ( value.length() > 1 && value.charAt( 0 ) == '"' && value.endsWith( "\"" ) ) {
+                        value = value.substring( 1, value.length() - 1 );
+                    }
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static long seconds( String value )
+    {
+        if ( value == null || value.length() == 0 ) {
+            return -1;
+        }
+        try {
+            return Long.parseLong( value.trim() );
+        } catch ( NumberFormatException ex ) {
+            return -1;
+        }
+    }
+
+    private CachePolicy()
+    {
+    }
+
+}
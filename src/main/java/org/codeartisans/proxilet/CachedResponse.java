@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.Header;
+
+/**
+ * An upstream response held by the {@link ResponseCache}, immutable.
+ *
+ * The body is kept as received from the upstream, eventually gzipped, so that it can be replayed through the regular
+ * response path. It is held either in memory or, for entries of the {@link DiskCache} tier, in a file.
+ */
+final class CachedResponse
+{
+
+    /**
+     * Fixed accounting of an entry overhead, in bytes.
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final int statusCode;
+
+    private final Header[] headers;
+
+    private final byte[] body;
+
+    private final File bodyFile;
+
+    private final long bodyLength;
+
+    private final long responseTime;
+
+    private final long initialAge;
+
+    private final long freshnessLifetime;
+
+    private final String[] varyNames;
+
+    CachedResponse( int statusCode, Header[] headers, byte[] body, long responseTime )
+    {
+        this( statusCode, headers, body, null, body.length, responseTime );
+    }
+
+    CachedResponse( int statusCode, Header[] headers, File bodyFile, long bodyLength, long responseTime )
+    {
+        this( statusCode, headers, null, bodyFile, bodyLength, responseTime );
+    }
+
+    private CachedResponse( int statusCode, Header[] headers, byte[] body, File bodyFile, long bodyLength, long responseTime )
+    {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body;
+        this.bodyFile = bodyFile;
+        this.bodyLength = bodyLength;
+        this.responseTime = responseTime;
+        this.initialAge = CachePolicy.initialAge( headers );
+        this.freshnessLifetime = CachePolicy.freshnessLifetime( headers );
+        this.varyNames = CachePolicy.varyNames( headers );
+    }
+
+    private CachedResponse( String[] varyNames )
+    {
+        this.statusCode = 0;
+        this.headers = new Header[ 0 ];
+        this.body = new byte[ 0 ];
+        this.bodyFile = null;
+        this.bodyLength = 0;
+        this.responseTime = 0;
+        this.initialAge = 0;
+        this.freshnessLifetime = 0;
+        this.varyNames = varyNames;
+    }
+
+    /**
+     * Create the entry stored under the primary key of responses that vary on request headers, it records the header
+     * names to look the actual response up.
+     *
+     * @param varyNames     The request header names
+     * @return              The variants index entry
+     */
+    static CachedResponse variantsIndex( String[] varyNames )
+    {
+        return new CachedResponse( varyNames );
+    }
+
+    boolean isVariantsIndex()
+    {
+        return statusCode == 0;
+    }
+
+    int getStatusCode()
+    {
+        return statusCode;
+    }
+
+    Header[] getHeaders()
+    {
+        return headers;
+    }
+
+    /**
+     * @return the body held in memory, null if held on disk
+     */
+    byte[] getBody()
+    {
+        return body;
+    }
+
+    /**
+     * @return the file holding the body, null if held in memory
+     */
+    File getBodyFile()
+    {
+        return bodyFile;
+    }
+
+    long getBodyLength()
+    {
+        return bodyLength;
+    }
+
+    boolean isOnDisk()
+    {
+        return bodyFile != null;
+    }
+
+    long getResponseTime()
+    {
+        return responseTime;
+    }
+
+    /**
+     * @return a stream over the body, disk held bodies can be sent by {@link FileBodyInputStream#transferFileTo}
+     * @throws IOException if the body file cannot be opened
+     */
+    InputStream openBody()
+            throws IOException
+    {
+        return bodyFile == null ? new ByteArrayInputStream( body ) : new FileBodyInputStream( bodyFile );
+    }
+
+    String[] getVaryNames()
+    {
+        return varyNames;
+    }
+
+    String getETag()
+    {
+        return CachePolicy.header( headers, CachePolicy.HEADER_ETAG );
+    }
+
+    String getLastModified()
+    {
+        return CachePolicy.header( headers, CachePolicy.HEADER_LAST_MODIFIED );
+    }
+
+    boolean hasValidators()
+    {
+        return getETag() != null || getLastModified() != null;
+    }
+
+    long getCurrentAge( long now )
+    {
+        return initialAge + Math.max( 0, now - responseTime );
+    }
+
+    boolean isFresh( long now )
+    {
+        return getCurrentAge( now ) < freshnessLifetime;
+    }
+
+    long getWeight()
+    {
+        return ENTRY_OVERHEAD + bodyLength;
+    }
+
+    /**
+     * @param now   Current time in milliseconds
+     * @return      The stored headers with an up to date Age header
+     */
+    Header[] getHeadersWithAge( long now )
+    {
+        Header[] result = new Header[ headers.length + 1 ];
+        int count = 0;
+        for ( Header header : headers ) {
+            if ( !header.getName().equalsIgnoreCase( CachePolicy.HEADER_AGE ) ) {
+                result[count++] = header;
+            }
+        }
+        result[count++] = new Header( CachePolicy.HEADER_AGE, String.valueOf( getCurrentAge( now ) / 1000 ) );
+        if ( count < result.length ) {
+            Header[] trimmed = new Header[ count ];
+            System.arraycopy( result, 0, trimmed, 0, count );
+            return trimmed;
+        }
+        return result;
+    }
+
+    /**
+     * Create the entry resulting of a successful revalidation, headers of the 304 response replace the stored ones.
+     *
+     * @param notModifiedHeaders    The 304 response headers
+     * @param now                   Current time in milliseconds
+     * @return                      The revalidated entry
+     */
+    CachedResponse revalidated( Header[] notModifiedHeaders, long now )
+    {
+        List<Header> merged = new ArrayList<Header>( headers.length + notModifiedHeaders.length );
+        for ( Header header : headers ) {
+            if ( isFramingHeader( header.getName() ) || CachePolicy.header( notModifiedHeaders, header.getName() ) == null ) {
+                merged.add( header );
+            }
+        }
+        for ( Header header : notModifiedHeaders ) {
+            if ( !isFramingHeader( header.getName() ) ) {
+                merged.add( header );
+            }
+        }
+        return new CachedResponse( statusCode, merged.toArray( new Header[ merged.size() ] ), body, bodyFile, bodyLength, now );
+    }
+
+    /**
+     * @param movedBodyFile     The new location of the body file
+     * @return                  The same entry with its body file moved
+     */
+    CachedResponse movedTo( File movedBodyFile )
+    {
+        return new CachedResponse( statusCode, headers, null, movedBodyFile, bodyLength, responseTime );
+    }
+
+    private static boolean isFramingHeader( String name )
+    {
+        return name.equalsIgnoreCase( "Content-Length" ) || name.equalsIgnoreCase( "Transfer-Encoding" );
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * InputStream that keeps a copy of the bytes read through it, up to a limit.
+ *
+ * Used to capture an upstream response body while it is relayed to the client, so that it can be stored afterwards.
+ * When given a {@link DiskCache}, content exceeding the in-memory limit is spilled to a temporary file of the cache
+ * directory instead, up to the disk cache entry size limit.
+ */
+final class CapturingInputStream
+        extends FilterInputStream
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( CapturingInputStream.class );
+
+    private final long limit;
+
+    private final DiskCache diskCache;
+
+    private ByteArrayOutputStream captured;
+
+    private File spillFile;
+
+    private OutputStream spilled;
+
+    private long spilledLength;
+
+    private boolean complete;
+
+    CapturingInputStream( InputStream in, long limit, long expectedLength )
+    {
+        this( in, limit, expectedLength, null );
+    }
+
+    CapturingInputStream( InputStream in, long limit, long expectedLength, DiskCache diskCache )
+    {
+        super( in );
+        this.limit = limit;
+        this.diskCache = diskCache;
+        if ( expectedLength > limit && diskCache != null ) {
+            spill( expectedLength );
+        } else {
+            this.captured = new ByteArrayOutputStream( expectedLength > 0 && expectedLength <= limit ? ( int ) expectedLength : 4096 );
+        }
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        int read = super.read();
+        if ( read == -1 ) {
+            complete = true;
+        } else {
+            capture( new byte[]{ ( byte ) read }, 0, 1 );
+        }
+        return read;
+    }
+
+    @Override
+    public int read( byte[] bytes, int offset, int length )
+            throws IOException
+    {
+        int read = super.read( bytes, offset, length );
+        if ( read == -1 ) {
+            complete = true;
+        } else {
+            capture( bytes, offset, read );
+        }
+        return read;
+    }
+
+    @Override
+    public long skip( long count )
+            throws IOException
+    {
+        // Skipped bytes cannot be captured
+        captured = null;
+        discard();
+        return super.skip( count );
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    /**
+     * @return the whole content read through this stream, or null if it exceeded the limit or was not read to its end
+     */
+    byte[] getCaptured()
+    {
+        return complete && captured != null ? captured.toByteArray() : null;
+    }
+
+    /**
+     * @return the temporary file holding the whole content read through this stream, or null if it was not spilled to
+     *         disk, exceeded the disk limit or was not read to its end
+     */
+    File getSpilled()
+    {
+        if ( !complete || spilled == null ) {
+            return null;
+        }
+        try {
+            spilled.close();
+            spilled = null;
+            return spillFile;
+        } catch ( IOException ex ) {
+            LOGGER.warn( "Unable to write cache file {}: {}", spillFile, ex.getMessage() );
+            discard();
+            return null;
+        }
+    }
+
+    long getSpilledLength()
+    {
+        return spilledLength;
+    }
+
+    /**
+     * Delete the spilled content, if any was not handed over to the disk cache.
+     */
+    void discard()
+    {
+        if ( spilled != null ) {
+            try {
+                spilled.close();
+            } catch ( IOException ignored ) {
+                // Deleted below anyway
+            }
+            spilled = null;
+        }
+        if ( spillFile != null ) {
+            diskCache.deleteTempFile( spillFile );
+            spillFile = null;
+        }
+    }
+
+    private void capture( byte[] bytes, int offset, int length )
+    {
+        if ( captured != null ) {
+            captured.write( bytes, offset, length );
+            if ( captured.size() > limit ) {
+                if ( diskCache != null ) {
+                    byte[] content = captured.toByteArray();
+                    captured = null;
+                    spill( -1 );
+                    write( content, 0, content.length );
+                } else {
+                    captured = null;
+                }
+            }
+        } else if ( spilled != null ) {
+            write( bytes, offset, length );
+        }
+    }
+
+    private void spill( long expectedLength )
+    {
+        if ( expectedLength > diskCache.getMaxEntrySize() ) {
+            return;
+        }
+        try {
+            spillFile = diskCache.createTempFile();
+            spilled = new FileOutputStream( spillFile );
+        } catch ( IOException ex ) {
+            LOGGER.warn( "Unable to create cache file: {}", ex.getMessage() );
+            discard();
+        }
+    }
+
+    private void write( byte[] bytes, int offset, int length )
+    {
+        if ( spilled == null ) {
+            return;
+        }
+        spilledLength += length;
+        if ( spilledLength > diskCache.getMaxEntrySize() ) {
+            discard();
+            return;
+        }
+        try {
+            spilled.write( bytes, offset, length );
+        } catch ( IOException ex ) {
+            // Caching is best effort, the client response is not affected
+            LOGGER.warn( "Unable to write cache file {}: {}", spillFile, ex.getMessage() );
+            discard();
+        }
+    }
+
+}
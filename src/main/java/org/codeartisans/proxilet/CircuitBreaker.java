@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker of an {@link Upstream}.
+ *
+ * While closed, outcomes are counted over tumbling windows of calls. The circuit opens when the failure rate or the
+ * slow call rate of a window reaches its threshold; calls are then rejected until the open time elapses. The circuit
+ * then lets a few probe calls through (half-open) and closes if they all succeed, or opens again otherwise.
+ *
+ * All state is updated without locking, window counts are approximate under contention.
+ */
+final class CircuitBreaker
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( CircuitBreaker.class );
+
+    enum State
+    {
+
+        CLOSED, OPEN, HALF_OPEN
+
+    }
+
+    private final String name;
+
+    private final int failureRateThreshold;
+
+    private final int slowCallRateThreshold;
+
+    private final long slowCallNanos;
+
+    private final int windowSize;
+
+    private final long openNanos;
+
+    private final int halfOpenCalls;
+
+    private final AtomicReference<State> state = new AtomicReference<State>( State.CLOSED );
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final AtomicInteger slowCalls = new AtomicInteger();
+
+    private final AtomicInteger halfOpenPermits = new AtomicInteger();
+
+    private volatile long stateSince = System.nanoTime();
+
+    /**
+     * @param name                      Name used in logs
+     * @param failureRateThreshold      Failure percentage of a window opening the circuit, 0 to ignore failures
+     * @param slowCallRateThreshold     Slow call percentage of a window opening the circuit, 0 to ignore slow calls
+     * @param slowCallDuration          Duration from which a call is slow, in milliseconds
+     * @param windowSize                Number of calls per window
+     * @param openTime                  Time the circuit stays open before probing, in milliseconds
+     * @param halfOpenCalls             Number of probe calls
+     */
+    CircuitBreaker( String name, int failureRateThreshold, int slowCallRateThreshold, long slowCallDuration,
+                    int windowSize, long openTime, int halfOpenCalls )
+    {
+        this.name = name;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos( slowCallDuration );
+        this.windowSize = Math.max( 1, windowSize );
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos( openTime );
+        this.halfOpenCalls = Math.max( 1, halfOpenCalls );
+    }
+
+    State getState()
+    {
+        return state.get();
+    }
+
+    /**
+     * @return true if a call would be permitted, without acquiring a permission
+     */
+    boolean isCallPermitted()
+    {
+        switch ( state.get() ) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.nanoTime() - stateSince >= openNanos;
+            default:
+                return halfOpenPermits.get() > 0 || System.nanoTime() - stateSince >= openNanos;
+        }
+    }
+
+    /**
+     * Acquire the permission to make a call, half-open probe calls are limited.
+     *
+     * @return true if the call is permitted
+     */
+    boolean tryAcquirePermission()
+    {
+        State current = state.get();
+        if ( current == State.CLOSED ) {
+            return true;
+        }
+        long sinceNanos = System.nanoTime() - stateSince;
+        if ( current == State.OPEN ) {
+            if ( sinceNanos < openNanos ) {
+                return false;
+            }
+            transition( State.OPEN, State.HALF_OPEN );
+        } else if ( halfOpenPermits.get() <= 0 && sinceNanos >= openNanos ) {
+            // Probes that never reported back, start a new round
+            transition( State.HALF_OPEN, State.HALF_OPEN );
+        }
+        return state.get() != State.HALF_OPEN || halfOpenPermits.decrementAndGet() >= 0;
+    }
+
+    /**
+     * Give back a permission acquired for a call that was not made, so that it does not hold a half-open probe slot.
+     */
+    void releasePermission()
+    {
+        if ( state.get() != State.HALF_OPEN ) {
+            return;
+        }
+        int current;
+        do {
+            current = halfOpenPermits.get();
+            if ( current >= halfOpenCalls ) {
+                return;
+            }
+            // Rejected acquisitions leave the count below zero
+        } while ( !halfOpenPermits.compareAndSet( current, Math.max( 0, current ) + 1 ) );
+    }
+
+    void onSuccess( long latencyNanos )
+    {
+        record( false, slowCallRateThreshold > 0 && latencyNanos >= slowCallNanos );
+    }
+
+    void onFailure()
+    {
+        record( true, false );
+    }
+
+    private void record( boolean failure, boolean slow )
+    {
+        State current = state.get();
+        if ( current == State.OPEN ) {
+            return;
+        }
+        int count = calls.incrementAndGet();
+        int failed = failure ? failures.incrementAndGet() : failures.get();
+        int slowed = slow ? slowCalls.incrementAndGet() : slowCalls.get();
+        if ( current == State.HALF_OPEN ) {
+            if ( ( failure && failureRateThreshold > 0 ) || slow ) {
+                transition( State.HALF_OPEN, State.OPEN );
+            } else if ( count >= halfOpenCalls ) {
+                transition( State.HALF_OPEN, State.CLOSED );
+            }
+        } else if ( count == windowSize ) {
+            if ( ( failureRateThreshold > 0 && failed * 100 >= failureRateThreshold * count )
+                 || ( slowCallRateThreshold > 0 && slowed * 100 >= slowCallRateThreshold * count ) ) {
+                transition( State.CLOSED, State.OPEN );
+            } else {
+                resetWindow();
+            }
+        }
+    }
+
+    private void transition( State from, State to )
+    {
+        if ( state.compareAndSet( from, to ) ) {
+            stateSince = System.nanoTime();
+            resetWindow();
+            halfOpenPermits.set( halfOpenCalls );
+            if ( from != to ) {
+                LOGGER.warn( "Circuit of upstream {} is now {}", name, to );
+            }
+        }
+    }
+
+    private void resetWindow()
+    {
+        calls.set( 0 );
+        failures.set( 0 );
+        slowCalls.set( 0 );
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive in-flight limit of an {@link Upstream}.
+ *
+ * The limit follows the gradient between the long-term and the current round-trip times: it grows while latency stays
+ * within the tolerance of its long-term average and shrinks as soon as requests start queueing upstream. Failures
+ * shrink it multiplicatively. Requests over the limit wait in a short bounded queue and are rejected when it is full
+ * or when their wait times out, so that excess load is shed early instead of degrading every request.
+ *
+ * Admission and samples are lock-free, only queued requests take a lock to wait for a release.
+ */
+final class ConcurrencyLimiter
+{
+
+    /**
+     * Weight of a sample in the long-term round-trip time.
+     */
+    private static final double LONG_RTT_WEIGHT = 0.05;
+
+    /**
+     * Weight of a new limit estimate in the limit.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Limit decrease factor on failures.
+     */
+    private static final double BACKOFF = 0.9;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double tolerance;
+
+    private final int maxQueued;
+
+    private final long queueTimeoutNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong limitBits;
+
+    private final AtomicLong longRttBits = new AtomicLong( Double.doubleToLongBits( 0 ) );
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition released = lock.newCondition();
+
+    /**
+     * @param initialLimit  Initial in-flight limit
+     * @param minLimit      Minimum in-flight limit
+     * @param maxLimit      Maximum in-flight limit
+     * @param tolerance     Ratio by which the round-trip time may exceed its long-term average before the limit shrinks
+     * @param maxQueued     Maximum number of requests waiting for an in-flight slot, 0 rejects immediately
+     * @param queueTimeout  Maximum wait for an in-flight slot, in milliseconds
+     */
+    ConcurrencyLimiter( int initialLimit, int minLimit, int maxLimit, double tolerance, int maxQueued, long queueTimeout )
+    {
+        this.minLimit = Math.max( 1, minLimit );
+        this.maxLimit = Math.max( this.minLimit, maxLimit );
+        this.tolerance = Math.max( 1, tolerance );
+        this.maxQueued = maxQueued;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos( queueTimeout );
+        this.limitBits = new AtomicLong( Double.doubleToLongBits( clamp( initialLimit ) ) );
+    }
+
+    /**
+     * @return the current in-flight limit
+     */
+    int getLimit()
+    {
+        return ( int ) Double.longBitsToDouble( limitBits.get() );
+    }
+
+    int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    /**
+     * @return number of requests waiting for an in-flight slot
+     */
+    int getQueued()
+    {
+        return queued.get();
+    }
+
+    /**
+     * Acquire an in-flight slot, waiting in the queue if the limit is reached.
+     *
+     * @return true if the request is admitted, it must then be {@link #release() released}
+     */
+    boolean tryAcquire()
+    {
+        if ( tryIncrement() ) {
+            return true;
+        }
+        if ( queued.incrementAndGet() > maxQueued ) {
+            queued.decrementAndGet();
+            return false;
+        }
+        lock.lock();
+        try {
+            long remaining = queueTimeoutNanos;
+            while ( !tryIncrement() ) {
+                if ( remaining <= 0 ) {
+                    return false;
+                }
+                remaining = released.awaitNanos( remaining );
+            }
+            return true;
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            queued.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Acquire an in-flight slot only if one is free right away, for optional requests such as hedges.
+     *
+     * @return true if the request is admitted, it must then be {@link #release() released}
+     */
+    boolean tryAcquireNow()
+    {
+        return tryIncrement();
+    }
+
+    void release()
+    {
+        inFlight.decrementAndGet();
+        if ( queued.get() > 0 ) {
+            lock.lock();
+            try {
+                released.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Adjust the limit after a successful request.
+     *
+     * @param rttNanos  round-trip time of the request, to its response headers
+     */
+    void onSuccess( long rttNanos )
+    {
+        if ( rttNanos <= 0 ) {
+            return;
+        }
+        double longRtt = updateLongRtt( rttNanos );
+        double gradient = Math.max( 0.5, Math.min( 1.0, tolerance * longRtt / rttNanos ) );
+        long currentBits;
+        long updatedBits;
+        do {
+            currentBits = limitBits.get();
+            double current = Double.longBitsToDouble( currentBits );
+            if ( gradient >= 1.0 && inFlight.get() < current / 2 ) {
+                // Under used, nothing tells the upstream could take more
+                return;
+            }
+            // The square root leaves room for a few requests queueing upstream
+            double estimate = current * gradient + Math.sqrt( current );
+            double updated = clamp( current * ( 1 - SMOOTHING ) + estimate * SMOOTHING );
+            updatedBits = Double.doubleToLongBits( updated );
+        } while ( !limitBits.compareAndSet( currentBits, updatedBits ) );
+    }
+
+    /**
+     * Shrink the limit after a failed request, timeouts and errors included.
+     */
+    void onDropped()
+    {
+        long currentBits;
+        long updatedBits;
+        do {
+            currentBits = limitBits.get();
+            updatedBits = Double.doubleToLongBits( clamp( Double.longBitsToDouble( currentBits ) * BACKOFF ) );
+        } while ( !limitBits.compareAndSet( currentBits, updatedBits ) );
+    }
+
+    private boolean tryIncrement()
+    {
+        int limit = getLimit();
+        int current;
+        do {
+            current = inFlight.get();
+            if ( current >= limit ) {
+                return false;
+            }
+        } while ( !inFlight.compareAndSet( current, current + 1 ) );
+        return true;
+    }
+
+    private double updateLongRtt( long rttNanos )
+    {
+        long currentBits;
+        double updated;
+        do {
+            currentBits = longRttBits.get();
+            double current = Double.longBitsToDouble( currentBits );
+            updated = current == 0 ? rttNanos : current * ( 1 - LONG_RTT_WEIGHT ) + rttNanos * LONG_RTT_WEIGHT;
+        } while ( !longRttBits.compareAndSet( currentBits, Double.doubleToLongBits( updated ) ) );
+        return updated;
+    }
+
+    private double clamp( double limit )
+    {
+        return Math.max( minLimit, Math.min( maxLimit, limit ) );
+    }
+
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SecureProtocolSocketFactory whose SSLContext is built once, from the servlet configuration.
+ *
+ * Server certificates are verified against a given truststore, against the JVM default one, or not at all. Only
+ * modern protocols and cipher suites are enabled by default. The client session cache is sized so that reconnections
+ * to upstreams resume their TLS sessions with abbreviated handshakes, sessions being looked up by upstream host and
+ * port. Sockets are connected in plain first, then layered with TLS.
+ */
+final class ConfigurableSSLProtocolSocketFactory
+        implements SecureProtocolSocketFactory
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( ConfigurableSSLProtocolSocketFactory.class );
+
+    /**
+     * Protocols enabled by default, in preference order, when supported.
+     */
+    private static final String[] MODERN_PROTOCOLS = new String[]{ "TLSv1.3", "TLSv1.2" };
+
+    /**
+     * Cipher suite name fragments of weak suites, never enabled by default.
+     */
+    private static final String[] WEAK_CIPHER_SUITES = new String[]{
+        "_NULL_", "_anon_", "_EXPORT_", "_RC4_", "_DES_", "_3DES_", "_MD5"
+    };
+
+    /**
+     * SSLParameters#setEndpointIdentificationAlgorithm, null before Java 7.
+     */
+    private static final Method SET_ENDPOINT_IDENTIFICATION_ALGORITHM = endpointIdentificationSetter();
+
+    private final SSLSocketFactory socketFactory;
+
+    private final X509TrustManager trustManager;
+
+    private final String[] protocols;
+
+    private final String[] cipherSuites;
+
+    private final boolean verifyHostname;
+
+    /**
+     * @param trustStore            truststore file, null to use the JVM default one or to trust all certificates
+     * @param trustStorePassword    truststore password, may be null
+     * @param trustStoreType        truststore type, null for the JVM default one
+     * @param trustAll              true to trust any certificate when no truststore is given
+     * @param verifyHostname        true to check that verified certificates match the upstream host
+     * @param protocols             enabled protocols, null for the supported modern ones
+     * @param cipherSuites          enabled cipher suites, null for the JVM default ones without the weak ones
+     * @param sessionCacheSize      maximum number of cached client sessions, 0 for no limit
+     * @param sessionTimeout        cached client sessions lifetime, in seconds, 0 for no limit
+     */
+    ConfigurableSSLProtocolSocketFactory( File trustStore, String trustStorePassword, String trustStoreType,
+                                          boolean trustAll, boolean verifyHostname, String[] protocols,
+                                          String[] cipherSuites, int sessionCacheSize, int sessionTimeout )
+            throws GeneralSecurityException, IOException
+    {
+        TrustManager[] trustManagers;
+        if ( trustStore != null ) {
+            KeyStore keyStore = KeyStore.getInstance( trustStoreType == null ? KeyStore.getDefaultType() : trustStoreType );
+            InputStream in = new FileInputStream( trustStore );
+            try {
+                keyStore.load( in, trustStorePassword == null ? null : trustStorePassword.toCharArray() );
+            } finally {
+                in.close();
+            }
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance( TrustManagerFactory.getDefaultAlgorithm() );
+            trustManagerFactory.init( keyStore );
+            trustManagers = trustManagerFactory.getTrustManagers();
+        } else if ( trustAll ) {
+            LOGGER.warn( "Upstream TLS certificates are not verified, set the 'tlsTrustStore' init-param or 'tlsTrustAll' to false" );
+            trustManagers = new TrustManager[]{ new TrustAllManager() };
+        } else {
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance( TrustManagerFactory.getDefaultAlgorithm() );
+            trustManagerFactory.init( ( KeyStore ) null );
+            trustManagers = trustManagerFactory.getTrustManagers();
+        }
+        this.trustManager = x509TrustManager( trustManagers );
+        this.verifyHostname = verifyHostname && ( trustStore != null || !trustAll );
+        if ( this.verifyHostname && SET_ENDPOINT_IDENTIFICATION_ALGORITHM == null ) {
+            LOGGER.warn( "Upstream TLS certificates are not checked against the upstream host, this requires Java 7 or later" );
+        }
+
+        SSLContext context = SSLContext.getInstance( "TLS" );
+        context.init( null, trustManagers, null );
+        SSLSessionContext sessionContext = context.getClientSessionContext();
+        sessionContext.setSessionCacheSize( sessionCacheSize );
+        sessionContext.setSessionTimeout( sessionTimeout );
+        this.socketFactory = context.getSocketFactory();
+
+        SSLParameters supported = context.getSupportedSSLParameters();
+        SSLParameters defaults = context.getDefaultSSLParameters();
+        this.protocols = protocols != null ? protocols : modernProtocols( supported.getProtocols(), defaults.getProtocols() );
+        this.cipherSuites = cipherSuites != null ? cipherSuites : strongCipherSuites( defaults.getCipherSuites() );
+        LOGGER.debug( "Upstream TLS protocols: {}", Arrays.asList( this.protocols ) );
+    }
+
+    private static X509TrustManager x509TrustManager( TrustManager[] trustManagers )
+            throws GeneralSecurityException
+    {
+        for ( TrustManager trustManager : trustManagers ) {
+            if ( trustManager instanceof X509TrustManager ) {
+                return ( X509TrustManager ) trustManager;
+            }
+        }
+        throw new GeneralSecurityException( "No X509TrustManager in " + Arrays.asList( trustManagers ) );
+    }
+
+    private static String[] modernProtocols( String[] supported, String[] defaults )
+    {
+        List<String> supportedList = Arrays.asList( supported );
+        List<String> modern = new ArrayList<String>();
+        for ( String protocol : MODERN_PROTOCOLS ) {
+            if ( supportedList.contains( protocol ) ) {
+                modern.add( protocol );
+            }
+        }
+        if ( modern.isEmpty() ) {
+            // Older runtime, keep its defaults but SSL ones
+            for ( String protocol : defaults ) {
+                if ( !protocol.startsWith( "SSL" ) ) {
+                    modern.add( protocol );
+                }
+            }
+        }
+        return modern.toArray( new String[ modern.size() ] );
+    }
+
+    private static String[] strongCipherSuites( String[] defaults )
+    {
+        List<String> strong = new ArrayList<String>();
+        for ( String cipherSuite : defaults ) {
+            boolean weak = false;
+            for ( String fragment : WEAK_CIPHER_SUITES ) {
+                if ( cipherSuite.contains( fragment ) ) {
+                    weak = true;
+                    break;
+                }
+            }
+            if ( !weak ) {
+                strong.add( cipherSuite );
+            }
+        }
+        return strong.toArray( new String[ strong.size() ] );
+    }
+
+    /**
+     * @return the socket factory of the shared SSLContext, without the protocols and cipher suites configuration
+     */
+    SSLSocketFactory getSocketFactory()
+    {
+        return socketFactory;
+    }
+
+    X509TrustManager getTrustManager()
+    {
+        return trustManager;
+    }
+
+    /**
+     * @return true if upstream certificates must match upstream host names
+     */
+    boolean isHostnameVerified()
+    {
+        return verifyHostname;
+    }
+
+    /**
+     * @return protocols enabled on created sockets
+     */
+    String[] getProtocols()
+    {
+        return protocols.clone();
+    }
+
+    /**
+     * @return cipher suites enabled on created sockets
+     */
+    String[] getCipherSuites()
+    {
+        return cipherSuites.clone();
+    }
+
+    @Override
+    public Socket createSocket( String host, int port, InetAddress localAddress, int localPort )
+            throws IOException, UnknownHostException
+    {
+        return configure( socketFactory.createSocket( host, port, localAddress, localPort ) );
+    }
+
+    @Override
+    public Socket createSocket( String host, int port, InetAddress localAddress, int localPort, HttpConnectionParams params )
+            throws IOException, UnknownHostException, ConnectTimeoutException
+    {
+        int timeout = params == null ? 0 : params.getConnectionTimeout();
+        Socket socket = new Socket();
+        try {
+            if ( localAddress != null ) {
+                socket.bind( new InetSocketAddress( localAddress, localPort ) );
+            }
+            socket.connect( new InetSocketAddress( host, port ), timeout );
+        } catch ( SocketTimeoutException ex ) {
+            socket.close();
+            throw new ConnectTimeoutException( "Connect to " + host + ":" + port + " timed out" );
+        } catch ( IOException ex ) {
+            socket.close();
+            throw ex;
+        }
+        return createSocket( socket, host, port, true );
+    }
+
+    @Override
+    public Socket createSocket( String host, int port )
+            throws IOException, UnknownHostException
+    {
+        return configure( socketFactory.createSocket( host, port ) );
+    }
+
+    /**
+     * Layer TLS over a connected socket, the host and port identify the session to resume.
+     */
+    @Override
+    public Socket createSocket( Socket socket, String host, int port, boolean autoClose )
+            throws IOException, UnknownHostException
+    {
+        return configure( socketFactory.createSocket( socket, host, port, autoClose ) );
+    }
+
+    private Socket configure( Socket socket )
+    {
+        SSLSocket sslSocket = ( SSLSocket ) socket;
+        sslSocket.setEnabledProtocols( protocols );
+        sslSocket.setEnabledCipherSuites( cipherSuites );
+        if ( verifyHostname ) {
+            SSLParameters parameters = sslSocket.getSSLParameters();
+            enableEndpointIdentification( parameters );
+            sslSocket.setSSLParameters( parameters );
+        }
+        return sslSocket;
+    }
+
+    /**
+     * Hostname verification is done by JSSE during the handshake on Java 7 and later, and skipped before.
+     */
+    private static void enableEndpointIdentification( SSLParameters parameters )
+    {
+        if ( SET_ENDPOINT_IDENTIFICATION_ALGORITHM == null ) {
+            return;
+        }
+        try {
+            SET_ENDPOINT_IDENTIFICATION_ALGORITHM.invoke( parameters, "HTTPS" );
+        } catch ( Exception ex ) {
+            throw new IllegalStateException( "Unable to enable upstream TLS hostname verification", ex );
+        }
+    }
+
+    private static Method endpointIdentificationSetter()
+    {
+        try {
+            return SSLParameters.class.getMethod( "setEndpointIdentificationAlgorithm", String.class );
+        } catch ( NoSuchMethodException ex ) {
+            return null;
+        }
+    }
+
+    private static final class TrustAllManager
+            implements X509TrustManager
+    {
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return new X509Certificate[ 0 ];
+        }
+
+        @Override
+        public void checkClientTrusted( X509Certificate[] certs, String authType )
+        {
+        }
+
+        @Override
+        public void checkServerTrusted( X509Certificate[] certs, String authType )
+        {
+        }
+
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ThreadFactory creating named daemon threads, so that proxy background work never prevents the container from
+ * shutting down.
+ */
+final class DaemonThreadFactory
+        implements ThreadFactory
+{
+
+    private final String namePrefix;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    DaemonThreadFactory( String namePrefix )
+    {
+        this.namePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread( Runnable runnable )
+    {
+        Thread thread = new Thread( runnable, namePrefix + "-" + count.incrementAndGet() );
+        thread.setDaemon( true );
+        return thread;
+    }
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.httpclient.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk tier of the {@link ResponseCache}, holding responses too large to be kept on the heap.
+ *
+ * Each entry is made of a data file holding the body as received from the upstream and of a small metadata file
+ * holding the key, status and headers. Only metadata files are read to rebuild the index at startup. Entries are
+ * evicted in least recently used order once the disk budget is exceeded.
+ */
+final class DiskCache
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( DiskCache.class );
+
+    private static final int META_MAGIC = 0x50584331;
+
+    private static final String META_SUFFIX = ".meta";
+
+    private static final String DATA_SUFFIX = ".data";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String TEMP_PREFIX = "proxilet";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+
+    private final long maxSize;
+
+    private final long maxEntrySize;
+
+    private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>( 16, 0.75f, true );
+
+    private long size;
+
+    /**
+     * @param directory     Directory holding the cache files, created if needed
+     * @param maxSize       Maximum total size of the cached bodies, in bytes
+     * @param maxEntrySize  Maximum size of a single cached body, in bytes
+     */
+    DiskCache( File directory, long maxSize, long maxEntrySize )
+    {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    long getMaxEntrySize()
+    {
+        return maxEntrySize;
+    }
+
+    /**
+     * Rebuild the index from the metadata files found in the cache directory, removing leftovers.
+     *
+     * @throws IOException if the cache directory cannot be created
+     */
+    synchronized void open()
+            throws IOException
+    {
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException( "Unable to create cache directory " + directory );
+        }
+        File[] metaFiles = listFiles( META_SUFFIX );
+        // Oldest first so that the access order roughly matches the previous run
+        Arrays.sort( metaFiles, new Comparator<File>()
+        {
+
+            @Override
+            public int compare( File left, File right )
+            {
+                long diff = left.lastModified() - right.lastModified();
+                return diff < 0 ? -1 : ( diff > 0 ? 1 : 0 );
+            }
+
+        } );
+        Set<String> referenced = new HashSet<String>();
+        for ( File metaFile : metaFiles ) {
+            try {
+                String[] key = new String[ 1 ];
+                CachedResponse response = readMeta( metaFile, key );
+                if ( response.getBodyFile().length() != response.getBodyLength() ) {
+                    throw new IOException( "Truncated data file " + response.getBodyFile() );
+                }
+                entries.put( key[0], response );
+                size += response.getBodyLength();
+                referenced.add( response.getBodyFile().getName() );
+            } catch ( IOException ex ) {
+                LOGGER.debug( "Dropping unreadable cache entry {}: {}", metaFile, ex.getMessage() );
+                delete( metaFile );
+            }
+        }
+        for ( File dataFile : listFiles( DATA_SUFFIX ) ) {
+            if ( !referenced.contains( dataFile.getName() ) ) {
+                delete( dataFile );
+            }
+        }
+        for ( File tempFile : listFiles( TEMP_SUFFIX ) ) {
+            delete( tempFile );
+        }
+        evict( null );
+        LOGGER.info( "Disk cache {} opened with {} entries, {} bytes", new Object[]{ directory, entries.size(), size } );
+    }
+
+    /**
+     * @return a new temporary file in the cache directory, to be handed to {@link #put} once written
+     * @throws IOException if the file cannot be created
+     */
+    File createTempFile()
+            throws IOException
+    {
+        return File.createTempFile( TEMP_PREFIX, TEMP_SUFFIX, directory );
+    }
+
+    synchronized CachedResponse get( String key )
+    {
+        CachedResponse response = entries.get( key );
+        if ( response != null && !response.getBodyFile().exists() ) {
+            // Removed behind our back
+            remove( key );
+            return null;
+        }
+        return response;
+    }
+
+    /**
+     * Store a response whose body is held by a temporary file of this cache or by one of its data files.
+     *
+     * @param key       The cache key
+     * @param response  The response to store
+     */
+    synchronized void put( String key, CachedResponse response )
+    {
+        File bodyFile = response.getBodyFile();
+        if ( response.getBodyLength() > maxEntrySize ) {
+            deleteTempFile( bodyFile );
+            return;
+        }
+        String baseName = hash( key );
+        try {
+            if ( bodyFile.getName().endsWith( TEMP_SUFFIX ) ) {
+                String tempName = bodyFile.getName();
+                File dataFile = new File( directory, tempName.substring( 0, tempName.length() - TEMP_SUFFIX.length() ) + DATA_SUFFIX );
+                if ( !bodyFile.renameTo( dataFile ) ) {
+                    throw new IOException( "Unable to rename " + bodyFile + " to " + dataFile );
+                }
+                response = response.movedTo( dataFile );
+            }
+            writeMeta( new File( directory, baseName + META_SUFFIX ), key, response );
+        } catch ( IOException ex ) {
+            LOGGER.warn( "Unable to store cache entry for {}: {}", key, ex.getMessage() );
+            deleteTempFile( bodyFile );
+            if ( response.getBodyFile() != bodyFile ) {
+                delete( response.getBodyFile() );
+            }
+            return;
+        }
+        CachedResponse previous = entries.put( key, response );
+        if ( previous != null ) {
+            size -= previous.getBodyLength();
+            if ( !previous.getBodyFile().equals( response.getBodyFile() ) ) {
+                delete( previous.getBodyFile() );
+            }
+        }
+        size += response.getBodyLength();
+        evict( key );
+    }
+
+    synchronized void remove( String key )
+    {
+        CachedResponse previous = entries.remove( key );
+        if ( previous != null ) {
+            size -= previous.getBodyLength();
+            deleteFiles( key, previous );
+        }
+    }
+
+    synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Delete the given file if it is a temporary file that was not handed over to this cache.
+     */
+    void deleteTempFile( File file )
+    {
+        if ( file != null && file.getName().endsWith( TEMP_SUFFIX ) && file.exists() ) {
+            delete( file );
+        }
+    }
+
+    private void evict( String keptKey )
+    {
+        Iterator<Map.Entry<String, CachedResponse>> iterator = entries.entrySet().iterator();
+        while ( size > maxSize && iterator.hasNext() ) {
+            Map.Entry<String, CachedResponse> eldest = iterator.next();
+            if ( eldest.getKey().equals( keptKey ) ) {
+                continue;
+            }
+            iterator.remove();
+            size -= eldest.getValue().getBodyLength();
+            deleteFiles( eldest.getKey(), eldest.getValue() );
+        }
+    }
+
+    private void deleteFiles( String key, CachedResponse response )
+    {
+        // On POSIX systems bodies being sent remain readable once deleted
+        delete( new File( directory, hash( key ) + META_SUFFIX ) );
+        delete( response.getBodyFile() );
+    }
+
+    private void writeMeta( File metaFile, String key, CachedResponse response )
+            throws IOException
+    {
+        File tempFile = createTempFile();
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile ) ) );
+        try {
+            out.writeInt( META_MAGIC );
+            out.writeUTF( key );
+            out.writeUTF( response.getBodyFile().getName() );
+            out.writeLong( response.getBodyLength() );
+            out.writeInt( response.getStatusCode() );
+            out.writeLong( response.getResponseTime() );
+            Header[] headers = response.getHeaders();
+            out.writeInt( headers.length );
+            for ( Header header : headers ) {
+                out.writeUTF( header.getName() );
+                out.writeUTF( header.getValue() );
+            }
+        } finally {
+            out.close();
+        }
+        if ( !tempFile.renameTo( metaFile ) ) {
+            // Windows does not rename over an existing file
+            delete( metaFile );
+            if ( !tempFile.renameTo( metaFile ) ) {
+                delete( tempFile );
+                throw new IOException( "Unable to rename " + tempFile + " to " + metaFile );
+            }
+        }
+    }
+
+    private CachedResponse readMeta( File metaFile, String[] key )
+            throws IOException
+    {
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( metaFile ) ) );
+        try {
+            if ( in.readInt() != META_MAGIC ) {
+                throw new IOException( "Not a cache metadata file" );
+            }
+            key[0] = in.readUTF();
+            File dataFile = new File( directory, in.readUTF() );
+            long bodyLength = in.readLong();
+            int statusCode = in.readInt();
+            long responseTime = in.readLong();
+            int headerCount = in.readInt();
+            List<Header> headers = new ArrayList<Header>( headerCount );
+            for ( int idx = 0; idx < headerCount; idx++ ) {
+                headers.add( new Header( in.readUTF(), in.readUTF() ) );
+            }
+            return new CachedResponse( statusCode, headers.toArray( new Header[ headers.size() ] ), dataFile, bodyLength, responseTime );
+        } finally {
+            in.close();
+        }
+    }
+
+    private File[] listFiles( String suffix )
+    {
+        List<File> files = new ArrayList<File>();
+        File[] children = directory.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                if ( child.getName().endsWith( suffix ) ) {
+                    files.add( child );
+                }
+            }
+        }
+        return files.toArray( new File[ files.size() ] );
+    }
+
+    private static void delete( File file )
+    {
+        if ( !file.delete() && file.exists() ) {
+            LOGGER.warn( "Unable to delete cache file {}", file );
+        }
+    }
+
+    private static String hash( String key )
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( key.getBytes( "UTF-8" ) );
+            char[] hex = new char[ digest.length * 2 ];
+            for ( int idx = 0; idx < digest.length; idx++ ) {
+                hex[idx * 2] = HEX[( digest[idx] >> 4 ) & 0x0f];
+                hex[idx * 2 + 1] = HEX[digest[idx] & 0x0f];
+            }
+            return new String( hex );
+        } catch ( NoSuchAlgorithmException ex ) {
+            throw new IllegalStateException( ex );
+        } catch ( UnsupportedEncodingException ex ) {
+            throw new IllegalStateException( ex );
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * InputStream over a file held by the {@link DiskCache}, that can also be sent using {@link FileChannel#transferTo}.
+ */
+final class FileBodyInputStream
+        extends FilterInputStream
+{
+
+    private final FileChannel channel;
+
+    FileBodyInputStream( File file )
+            throws FileNotFoundException
+    {
+        this( new FileInputStream( file ) );
+    }
+
+    private FileBodyInputStream( FileInputStream in )
+    {
+        super( in );
+        this.channel = in.getChannel();
+    }
+
+    /**
+     * Send the remaining content to the given stream without copying it through the Java heap when the stream allows it.
+     *
+     * @param out           The destination stream
+     * @throws IOException  If reading the file or writing to the stream fails
+     */
+    void transferFileTo( OutputStream out )
+            throws IOException
+    {
+        WritableByteChannel target = Channels.newChannel( out );
+        long position = channel.position();
+        long size = channel.size();
+        while ( position < size ) {
+            position += channel.transferTo( position, size - position, target );
+        }
+        channel.position( position );
+        out.flush();
+    }
+
+}
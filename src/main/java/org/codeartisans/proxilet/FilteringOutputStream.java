@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * OutputStream feeding the bytes written to it through a {@link BodyFilter}.
+ *
+ * Call {@link #finish()} or {@link #close()} once all the content has been written so that bytes held back by the
+ * filter are emitted, finishing cascades to the filtering streams this one writes to.
+ */
+final class FilteringOutputStream
+        extends FilterOutputStream
+{
+
+    private final BodyFilter filter;
+
+    FilteringOutputStream( OutputStream out, BodyFilter filter )
+    {
+        super( out );
+        this.filter = filter;
+    }
+
+    /**
+     * @param out       The stream the filtered body is written to
+     * @param filters   The body filters, in the order they apply
+     * @return          The stream to write the body to, out itself if there are no filters
+     */
+    static OutputStream wrap( OutputStream out, List<BodyFilter> filters )
+    {
+        OutputStream filtered = out;
+        for ( int idx = filters.size() - 1; idx >= 0; idx-- ) {
+            filtered = new FilteringOutputStream( filtered, filters.get( idx ) );
+        }
+        return filtered;
+    }
+
+    @Override
+    public void write( int b )
+            throws IOException
+    {
+        write( new byte[]{ ( byte ) b }, 0, 1 );
+    }
+
+    @Override
+    public void write( byte[] bytes, int offset, int length )
+            throws IOException
+    {
+        filter.filter( bytes, offset, length, out );
+    }
+
+    /**
+     * Write bytes held back by the filters, without closing the underlying stream.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void finish()
+            throws IOException
+    {
+        filter.finish( out );
+        if ( out instanceof FilteringOutputStream ) {
+            ( ( FilteringOutputStream ) out ).finish();
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        finish();
+        super.close();
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * Rewrites the client host into the upstream host in GWT-RPC request bodies, on the fly.
+ *
+ * Hack to trickle main server gwt rpc servlet, this avoids warnings like the following :
+ * "ERROR: The module path requested, /testmodule/, is not in the same web application as this servlet"
+ * or
+ * "WARNING: Failed to get the SerializationPolicy '29F4EA1240F157649C12466F01F46F60' for module 'http://localhost:8888/testmodule/'"
+ *
+ * Actually it avoids a NullPointerException in server logging :
+ * See http://code.google.com/p/google-web-toolkit/issues/detail?id=3624
+ */
+final class GwtRpcFilter
+        implements ProxyFilter
+{
+
+    private static final String DEFAULT_CHARACTER_ENCODING = "ISO-8859-1";
+
+    private final String mimeType;
+
+    private final String prefixPath;
+
+    /**
+     * @param mimeType      Content type of the rewritten request bodies
+     * @param prefixPath    Path prefix of the upstream GWT module
+     */
+    GwtRpcFilter( String mimeType, String prefixPath )
+    {
+        this.mimeType = mimeType;
+        this.prefixPath = prefixPath;
+    }
+
+    @Override
+    public BodyFilter filterRequest( HttpServletRequest clientRequest, Upstream upstream, HttpMethod upstreamRequest )
+            throws IOException
+    {
+        String contentType = clientRequest.getContentType();
+        if ( contentType == null || !contentType.startsWith( mimeType ) ) {
+            return null;
+        }
+        String clientHost = clientRequest.getLocalName();
+        if ( clientHost.equals( "127.0.0.1" ) || clientHost.equals( "0:0:0:0:0:0:0:1" ) ) {
+            clientHost = "localhost";
+        }
+        int clientPort = clientRequest.getLocalPort();
+        String clientUrl = clientHost + ( ( clientPort != 80 ) ? ":" + clientPort : "" );
+        String serverUrl = upstream.getAuthority() + prefixPath;
+        // Replace more completely if destination server is https :
+        if ( upstream.isSsl() ) {
+            clientUrl = "http://" + clientUrl;
+            serverUrl = "https://" + serverUrl;
+        }
+        String encoding = clientRequest.getCharacterEncoding();
+        String charset = encoding == null ? DEFAULT_CHARACTER_ENCODING : encoding;
+        try {
+            return new ReplacingBodyFilter( clientUrl.getBytes( charset ), serverUrl.getBytes( charset ) );
+        } catch ( UnsupportedEncodingException ex ) {
+            throw new IOException( "Unsupported GWT-RPC request encoding: " + charset, ex );
+        }
+    }
+
+    @Override
+    public BodyFilter filterResponse( HttpServletRequest clientRequest, Upstream upstream, int statusCode,
+                                      List<Header> responseHeaders )
+    {
+        return null;
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.httpclient.Header;
+
+/**
+ * Header forwarding rules applied by the proxy.
+ *
+ * Hop-by-hop headers, and the headers the Connection header nominates, describe a single connection and are never
+ * forwarded, see RFC 7230 section 6.1. Header names are matched case insensitively against sets built once, without
+ * allocating.
+ */
+final class HeaderPolicy
+{
+
+    static final String HEADER_CONNECTION = "Connection";
+
+    /**
+     * Hop-by-hop headers, including the obsolete Proxy-Connection.
+     */
+    private static final Set<String> HOP_BY_HOP = caseInsensitiveSet(
+            HEADER_CONNECTION, "Keep-Alive", "Proxy-Authenticate", "Proxy-Authorization", "Proxy-Connection", "TE",
+            "Trailer", "Transfer-Encoding", "Upgrade" );
+
+    /**
+     * Request headers never copied as is, Content-Length is set by the request entity and Host is rewritten.
+     */
+    private static final Set<String> NOT_FORWARDED_REQUEST = caseInsensitiveSet( "Content-Length", "Host" );
+
+    /**
+     * Connection options that are not header names.
+     */
+    private static final Set<String> CONNECTION_OPTIONS = caseInsensitiveSet( "close", "keep-alive" );
+
+    static boolean isHopByHop( String name )
+    {
+        return HOP_BY_HOP.contains( name );
+    }
+
+    /**
+     * @param name                  the request header name
+     * @param connectionHeaders     headers nominated by the Connection header, may be null
+     * @return                      true if the request header is copied to the upstream request
+     */
+    static boolean isForwardedRequestHeader( String name, Set<String> connectionHeaders )
+    {
+        return !HOP_BY_HOP.contains( name ) && !NOT_FORWARDED_REQUEST.contains( name )
+               && ( connectionHeaders == null || !connectionHeaders.contains( name ) );
+    }
+
+    /**
+     * @param name                  the response header name
+     * @param connectionHeaders     headers nominated by the Connection header, may be null
+     * @return                      true if the response header is copied to the client response
+     */
+    static boolean isForwardedResponseHeader( String name, Set<String> connectionHeaders )
+    {
+        return !HOP_BY_HOP.contains( name ) && ( connectionHeaders == null || !connectionHeaders.contains( name ) );
+    }
+
+    /**
+     * @param values    the Connection header values, may be null
+     * @return          the header names nominated by the Connection header, null if none, which is the common case
+     */
+    static Set<String> connectionHeaders( Enumeration<String> values )
+    {
+        Set<String> names = null;
+        while ( values != null && values.hasMoreElements() ) {
+            names = addConnectionHeaders( names, values.nextElement() );
+        }
+        return names;
+    }
+
+    /**
+     * @param headers   the response headers
+     * @return          the header names nominated by the Connection header, null if none, which is the common case
+     */
+    static Set<String> connectionHeaders( Header[] headers )
+    {
+        Set<String> names = null;
+        for ( Header header : headers ) {
+            if ( header.getName().equalsIgnoreCase( HEADER_CONNECTION ) ) {
+                names = addConnectionHeaders( names, header.getValue() );
+            }
+        }
+        return names;
+    }
+
+    private static Set<String> addConnectionHeaders( Set<String> names, String value )
+    {
+        if ( value == null || CONNECTION_OPTIONS.contains( value.trim() ) ) {
+            return names;
+        }
+        for ( String token : value.split( "," ) ) {
+            String name = token.trim();
+            if ( name.length() > 0 && !CONNECTION_OPTIONS.contains( name ) ) {
+                if ( names == null ) {
+                    names = new TreeSet<String>( String.CASE_INSENSITIVE_ORDER );
+                }
+                names.add( name );
+            }
+        }
+        return names;
+    }
+
+    private static Set<String> caseInsensitiveSet( String... names )
+    {
+        Set<String> set = new TreeSet<String>( String.CASE_INSENSITIVE_ORDER );
+        set.addAll( Arrays.asList( names ) );
+        return Collections.unmodifiableSet( set );
+    }
+
+    private HeaderPolicy()
+    {
+    }
+
+}
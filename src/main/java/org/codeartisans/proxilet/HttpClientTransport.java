@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * HTTP/1.x transport, upstream requests are executed by a pooled commons-httpclient {@link HttpClient} against the
+ * upstream host configuration.
+ */
+final class HttpClientTransport
+        implements UpstreamTransport
+{
+
+    private final HttpClient httpClient;
+
+    HttpClientTransport( HttpClient httpClient )
+    {
+        this.httpClient = httpClient;
+    }
+
+    @Override
+    public UpstreamCall newCall( final Upstream upstream, final HttpMethod request )
+    {
+        return new UpstreamCall()
+        {
+
+            @Override
+            public int execute()
+                    throws IOException
+            {
+                return httpClient.executeMethod( upstream.getHostConfiguration(), request );
+            }
+
+            @Override
+            public Header[] getResponseHeaders()
+            {
+                return request.getResponseHeaders();
+            }
+
+            @Override
+            public InputStream getResponseBody()
+                    throws IOException
+            {
+                return request.getResponseBodyAsStream();
+            }
+
+            @Override
+            public void abort()
+            {
+                request.abort();
+            }
+
+            @Override
+            public void release()
+            {
+                request.releaseConnection();
+            }
+
+        };
+    }
+
+    /**
+     * The connection manager is owned by the servlet.
+     */
+    @Override
+    public void shutdown()
+    {
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+
+/**
+ * Pooled connection manager recording the time spent waiting for a connection and the connections leased.
+ */
+final class InstrumentedConnectionManager
+        extends MultiThreadedHttpConnectionManager
+{
+
+    private final LatencyHistogram poolWait;
+
+    private final AtomicInteger leased = new AtomicInteger();
+
+    InstrumentedConnectionManager( LatencyHistogram poolWait )
+    {
+        this.poolWait = poolWait;
+    }
+
+    @Override
+    public HttpConnection getConnectionWithTimeout( HostConfiguration hostConfiguration, long timeout )
+            throws ConnectionPoolTimeoutException
+    {
+        long start = System.nanoTime();
+        try {
+            HttpConnection connection = super.getConnectionWithTimeout( hostConfiguration, timeout );
+            leased.incrementAndGet();
+            return connection;
+        } finally {
+            poolWait.record( System.nanoTime() - start );
+        }
+    }
+
+    @Override
+    public void releaseConnection( HttpConnection connection )
+    {
+        leased.decrementAndGet();
+        super.releaseConnection( connection );
+    }
+
+    /**
+     * @return number of connections currently leased to requests
+     */
+    int getLeasedConnections()
+    {
+        return leased.get();
+    }
+
+}
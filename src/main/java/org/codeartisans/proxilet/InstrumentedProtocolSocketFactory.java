@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+
+/**
+ * ProtocolSocketFactory recording connect and TLS handshake times.
+ *
+ * Sockets are connected in plain first, then layered with TLS by the secure delegate and handshaken eagerly, so that
+ * both phases are measured separately.
+ */
+class InstrumentedProtocolSocketFactory
+        implements ProtocolSocketFactory
+{
+
+    private final ProtocolSocketFactory delegate;
+
+    private final ProxiletMetrics metrics;
+
+    /**
+     * @param delegate  The actual socket factory, may be secure
+     * @param metrics   The metrics to record into
+     * @return          An instrumented socket factory, secure if the delegate is
+     */
+    static ProtocolSocketFactory wrap( ProtocolSocketFactory delegate, ProxiletMetrics metrics )
+    {
+        if ( delegate instanceof SecureProtocolSocketFactory ) {
+            return new Secure( ( SecureProtocolSocketFactory ) delegate, metrics );
+        }
+        return new InstrumentedProtocolSocketFactory( delegate, metrics );
+    }
+
+    private InstrumentedProtocolSocketFactory( ProtocolSocketFactory delegate, ProxiletMetrics metrics )
+    {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Socket createSocket( String host, int port, InetAddress localAddress, int localPort )
+            throws IOException, UnknownHostException
+    {
+        return delegate.createSocket( host, port, localAddress, localPort );
+    }
+
+    @Override
+    public Socket createSocket( String host, int port )
+            throws IOException, UnknownHostException
+    {
+        return delegate.createSocket( host, port );
+    }
+
+    @Override
+    public Socket createSocket( String host, int port, InetAddress localAddress, int localPort, HttpConnectionParams params )
+            throws IOException, UnknownHostException, ConnectTimeoutException
+    {
+        int timeout = params == null ? 0 : params.getConnectionTimeout();
+        Socket socket = new Socket();
+        long start = System.nanoTime();
+        try {
+            if ( localAddress != null ) {
+                socket.bind( new InetSocketAddress( localAddress, localPort ) );
+            }
+            socket.connect( new InetSocketAddress( host, port ), timeout );
+        } catch ( SocketTimeoutException ex ) {
+            socket.close();
+            throw new ConnectTimeoutException( "Connect to " + host + ":" + port + " timed out" );
+        } catch ( IOException ex ) {
+            socket.close();
+            throw ex;
+        }
+        metrics.connect.record( System.nanoTime() - start );
+        return layer( socket, host, port, params );
+    }
+
+    /**
+     * Layer the connected socket, plain sockets are returned as is.
+     */
+    Socket layer( Socket socket, String host, int port, HttpConnectionParams params )
+            throws IOException
+    {
+        return socket;
+    }
+
+    private static final class Secure
+            extends InstrumentedProtocolSocketFactory
+            implements SecureProtocolSocketFactory
+    {
+
+        private final SecureProtocolSocketFactory secureDelegate;
+
+        private final ProxiletMetrics metrics;
+
+        private Secure( SecureProtocolSocketFactory delegate, ProxiletMetrics metrics )
+        {
+            super( delegate, metrics );
+            this.secureDelegate = delegate;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Socket createSocket( Socket socket, String host, int port, boolean autoClose )
+                throws IOException, UnknownHostException
+        {
+            return secureDelegate.createSocket( socket, host, port, autoClose );
+        }
+
+        @Override
+        Socket layer( Socket socket, String host, int port, HttpConnectionParams params )
+                throws IOException
+        {
+            long start = System.nanoTime();
+            try {
+                Socket layered = secureDelegate.createSocket( socket, host, port, true );
+                if ( layered instanceof SSLSocket ) {
+                    // Bound the handshake like any read
+                    layered.setSoTimeout( params == null ? 0 : params.getSoTimeout() );
+                    ( ( SSLSocket ) layered ).startHandshake();
+                }
+                metrics.tlsHandshake.record( System.nanoTime() - start );
+                return layered;
+            } catch ( IOException ex ) {
+                socket.close();
+                throw ex;
+            }
+        }
+
+    }
+
+}
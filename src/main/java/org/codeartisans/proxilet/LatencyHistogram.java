@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets.
+ *
+ * Values are recorded in microseconds into power of two ranges split in four linear sub-buckets, so that percentiles
+ * are reported with a relative error below 25% whatever their magnitude, in constant memory.
+ */
+final class LatencyHistogram
+        implements LatencyHistogramMBean
+{
+
+    private static final int SUB_BUCKET_BITS = 2;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = ( 64 - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sumMicros = new AtomicLong();
+
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void record( long nanos )
+    {
+        long micros = Math.max( 0, TimeUnit.NANOSECONDS.toMicros( nanos ) );
+        buckets.incrementAndGet( bucketIndex( micros ) );
+        count.incrementAndGet();
+        sumMicros.addAndGet( micros );
+        long max;
+        while ( micros > ( max = maxMicros.get() ) && !maxMicros.compareAndSet( max, micros ) ) {
+            // Retry until the max is updated or superseded
+        }
+    }
+
+    @Override
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    @Override
+    public double getMean()
+    {
+        long total = count.get();
+        return total == 0 ? 0 : sumMicros.get() / 1000d / total;
+    }
+
+    @Override
+    public double getMax()
+    {
+        return maxMicros.get() / 1000d;
+    }
+
+    @Override
+    public double get50thPercentile()
+    {
+        return getPercentile( 0.50 );
+    }
+
+    @Override
+    public double get90thPercentile()
+    {
+        return getPercentile( 0.90 );
+    }
+
+    @Override
+    public double get99thPercentile()
+    {
+        return getPercentile( 0.99 );
+    }
+
+    @Override
+    public double get999thPercentile()
+    {
+        return getPercentile( 0.999 );
+    }
+
+    /**
+     * @param quantile  The quantile, between 0 and 1
+     * @return          The value at the given quantile, in milliseconds
+     */
+    double getPercentile( double quantile )
+    {
+        long[] snapshot = new long[ BUCKETS ];
+        long total = 0;
+        for ( int idx = 0; idx < BUCKETS; idx++ ) {
+            snapshot[idx] = buckets.get( idx );
+            total += snapshot[idx];
+        }
+        if ( total == 0 ) {
+            return 0;
+        }
+        long rank = Math.max( 1, ( long ) Math.ceil( quantile * total ) );
+        long seen = 0;
+        for ( int idx = 0; idx < BUCKETS; idx++ ) {
+            seen += snapshot[idx];
+            if ( seen >= rank ) {
+                return Math.min( bucketUpperBound( idx ), maxMicros.get() ) / 1000d;
+            }
+        }
+        return maxMicros.get() / 1000d;
+    }
+
+    @Override
+    public void reset()
+    {
+        for ( int idx = 0; idx < BUCKETS; idx++ ) {
+            buckets.set( idx, 0 );
+        }
+        count.set( 0 );
+        sumMicros.set( 0 );
+        maxMicros.set( 0 );
+    }
+
+    static int bucketIndex( long micros )
+    {
+        if ( micros < SUB_BUCKETS ) {
+            return ( int ) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( micros );
+        int subBucket = ( int ) ( micros >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+        return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound( int index )
+    {
+        if ( index < SUB_BUCKETS ) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ( ( SUB_BUCKETS + subBucket + 1 ) << ( exponent - SUB_BUCKET_BITS ) ) - 1;
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+/**
+ * JMX view of a {@link LatencyHistogram}, values are in milliseconds.
+ */
+public interface LatencyHistogramMBean
+{
+
+    long getCount();
+
+    double getMean();
+
+    double getMax();
+
+    double get50thPercentile();
+
+    double get90thPercentile();
+
+    double get99thPercentile();
+
+    double get999thPercentile();
+
+    void reset();
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * Rewrites absolute Location and Content-Location response headers pointing at the upstream so that they point at the
+ * proxy, whatever the response status.
+ */
+final class LocationFilter
+        implements ProxyFilter
+{
+
+    private static final String HEADER_LOCATION = "Location";
+
+    private static final String HEADER_CONTENT_LOCATION = "Content-Location";
+
+    private final String proxyPath;
+
+    /**
+     * @param proxyPath     Path on the upstream the proxy context path maps to
+     */
+    LocationFilter( String proxyPath )
+    {
+        this.proxyPath = proxyPath;
+    }
+
+    @Override
+    public BodyFilter filterRequest( HttpServletRequest clientRequest, Upstream upstream, HttpMethod upstreamRequest )
+    {
+        return null;
+    }
+
+    @Override
+    public BodyFilter filterResponse( HttpServletRequest clientRequest, Upstream upstream, int statusCode,
+                                      List<Header> responseHeaders )
+    {
+        String upstreamUrl = null;
+        for ( int idx = 0; idx < responseHeaders.size(); idx++ ) {
+            Header header = responseHeaders.get( idx );
+            if ( header.getName().equalsIgnoreCase( HEADER_LOCATION )
+                 || header.getName().equalsIgnoreCase( HEADER_CONTENT_LOCATION ) ) {
+                if ( upstreamUrl == null ) {
+                    upstreamUrl = upstream.getBaseUrl() + proxyPath;
+                }
+                if ( header.getValue().startsWith( upstreamUrl ) ) {
+                    // Headers may be shared with the cache, they are replaced rather than changed
+                    responseHeaders.set( idx, new Header( header.getName(), proxyUrl( clientRequest )
+                                                                            + header.getValue().substring( upstreamUrl.length() ) ) );
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String proxyUrl( HttpServletRequest clientRequest )
+    {
+        StringBuilder proxyUrl = new StringBuilder( clientRequest.getScheme() ).append( "://" );
+        proxyUrl.append( clientRequest.getServerName() );
+        int port = clientRequest.getServerPort();
+        if ( !( port == 80 && "http".equals( clientRequest.getScheme() ) )
+             && !( port == 443 && "https".equals( clientRequest.getScheme() ) ) ) {
+            proxyUrl.append( ':' ).append( port );
+        }
+        return proxyUrl.append( clientRequest.getContextPath() ).toString();
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSession;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.ConnectionSpec;
+import okhttp3.Credentials;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * HTTP/2 transport, upstream requests are multiplexed over a few connections per upstream by an OkHttp client.
+ *
+ * TLS upstreams negotiate h2 with ALPN, falling back to HTTP/1.1 when they or the runtime do not support it. Cleartext
+ * upstreams are spoken to in h2c with prior knowledge, they must support it. Requires Java 7 and OkHttp 3.12 on the
+ * classpath.
+ */
+final class OkHttpTransport
+        implements UpstreamTransport
+{
+
+    private final OkHttpClient tlsClient;
+
+    private final OkHttpClient cleartextClient;
+
+    private final String credentials;
+
+    /**
+     * @param connectTimeout    connect timeout, in milliseconds, 0 means no timeout
+     * @param readTimeout       read and write timeout, in milliseconds, 0 means no timeout
+     * @param maxIdle           maximum number of idle connections kept, HTTP/2 ones carrying concurrent requests
+     * @param keepAlive         idle connections lifetime, in milliseconds
+     * @param sslSocketFactory  TLS configuration, null if no upstream uses TLS
+     * @param targetCredentials user:password sent preemptively to upstreams, may be null
+     * @param metrics           where connect and TLS handshake times are recorded
+     */
+    OkHttpTransport( int connectTimeout, int readTimeout, int maxIdle, long keepAlive,
+                     ConfigurableSSLProtocolSocketFactory sslSocketFactory, String targetCredentials,
+                     ProxiletMetrics metrics )
+    {
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectTimeout( connectTimeout, TimeUnit.MILLISECONDS )
+                .readTimeout( readTimeout, TimeUnit.MILLISECONDS )
+                .writeTimeout( readTimeout, TimeUnit.MILLISECONDS )
+                .connectionPool( new ConnectionPool( maxIdle, keepAlive, TimeUnit.MILLISECONDS ) )
+                .eventListenerFactory( new MetricsEventListenerFactory( metrics ) )
+                .followRedirects( false )
+                .followSslRedirects( false )
+                .retryOnConnectionFailure( false )
+                .protocols( Arrays.asList( Protocol.HTTP_2, Protocol.HTTP_1_1 ) );
+        if ( sslSocketFactory != null ) {
+            ConnectionSpec tls = new ConnectionSpec.Builder( ConnectionSpec.MODERN_TLS )
+                    .tlsVersions( sslSocketFactory.getProtocols() )
+                    .cipherSuites( sslSocketFactory.getCipherSuites() )
+                    .build();
+            builder.sslSocketFactory( sslSocketFactory.getSocketFactory(), sslSocketFactory.getTrustManager() )
+                    .connectionSpecs( Arrays.asList( tls, ConnectionSpec.CLEARTEXT ) );
+            if ( !sslSocketFactory.isHostnameVerified() ) {
+                builder.hostnameVerifier( new HostnameVerifier()
+                {
+
+                    @Override
+                    public boolean verify( String hostname, SSLSession session )
+                    {
+                        return true;
+                    }
+
+                } );
+            }
+        }
+        this.tlsClient = builder.build();
+        // Shares the connection pool and the dispatcher
+        this.cleartextClient = tlsClient.newBuilder().protocols( Arrays.asList( Protocol.H2_PRIOR_KNOWLEDGE ) ).build();
+        if ( targetCredentials != null ) {
+            String[] creds = targetCredentials.split( ":" );
+            this.credentials = Credentials.basic( creds[0], creds[1] );
+        } else {
+            this.credentials = null;
+        }
+    }
+
+    @Override
+    public UpstreamCall newCall( Upstream upstream, HttpMethod request )
+    {
+        return new OkHttpCall( upstream.isSsl() ? tlsClient : cleartextClient, upstream, request );
+    }
+
+    @Override
+    public void shutdown()
+    {
+        tlsClient.dispatcher().executorService().shutdown();
+        tlsClient.connectionPool().evictAll();
+    }
+
+    private final class OkHttpCall
+            implements UpstreamCall
+    {
+
+        private final OkHttpClient client;
+
+        private final Upstream upstream;
+
+        private final HttpMethod request;
+
+        private volatile Call call;
+
+        private volatile boolean aborted;
+
+        private Response response;
+
+        private OkHttpCall( OkHttpClient client, Upstream upstream, HttpMethod request )
+        {
+            this.client = client;
+            this.upstream = upstream;
+            this.request = request;
+        }
+
+        @Override
+        public int execute()
+                throws IOException
+        {
+            Call newCall;
+            try {
+                newCall = client.newCall( toRequest() );
+            } catch ( IllegalArgumentException ex ) {
+                // Header names or values OkHttp refuses to send
+                throw new IOException( "Invalid upstream request: " + ex.getMessage(), ex );
+            }
+            int soTimeout = request.getParams().getSoTimeout();
+            if ( soTimeout > 0 ) {
+                newCall.timeout().timeout( soTimeout, TimeUnit.MILLISECONDS );
+            }
+            call = newCall;
+            if ( aborted ) {
+                newCall.cancel();
+            }
+            response = newCall.execute();
+            return response.code();
+        }
+
+        private Request toRequest()
+        {
+            String query = request.getQueryString();
+            Request.Builder builder = new Request.Builder()
+                    .url( upstream.getBaseUrl() + request.getPath() + ( query == null ? "" : "?" + query ) );
+            for ( Header header : request.getRequestHeaders() ) {
+                // The authority is the URL one, the body framing is the transport one
+                if ( !"Host".equalsIgnoreCase( header.getName() ) && !"Content-Length".equalsIgnoreCase( header.getName() ) ) {
+                    builder.addHeader( header.getName(), header.getValue() );
+                }
+            }
+            if ( credentials != null && request.getRequestHeader( "Authorization" ) == null ) {
+                builder.header( "Authorization", credentials );
+            }
+            RequestBody body = null;
+            if ( request instanceof EntityEnclosingMethod ) {
+                RequestEntity entity = ( ( EntityEnclosingMethod ) request ).getRequestEntity();
+                if ( entity != null ) {
+                    body = new EntityRequestBody( entity );
+                }
+            }
+            String method = request.getName();
+            if ( body == null && ( "POST".equals( method ) || "PUT".equals( method ) || "PATCH".equals( method ) ) ) {
+                body = RequestBody.create( null, new byte[ 0 ] );
+            }
+            return builder.method( method, body ).build();
+        }
+
+        @Override
+        public Header[] getResponseHeaders()
+        {
+            Headers headers = response.headers();
+            Header[] result = new Header[ headers.size() ];
+            for ( int idx = 0; idx < result.length; idx++ ) {
+                result[idx] = new Header( headers.name( idx ), headers.value( idx ) );
+            }
+            return result;
+        }
+
+        @Override
+        public InputStream getResponseBody()
+        {
+            int code = response.code();
+            if ( "HEAD".equals( request.getName() ) || code < 200 || code == 204 || code == 304 || response.body() == null ) {
+                return null;
+            }
+            return response.body().byteStream();
+        }
+
+        @Override
+        public void abort()
+        {
+            aborted = true;
+            Call current = call;
+            if ( current != null ) {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public void release()
+        {
+            if ( response != null ) {
+                // Resets the stream if the body was not entirely read
+                response.close();
+            }
+        }
+
+    }
+
+    /**
+     * Request body written by a commons-httpclient request entity, streamed as it is read from the client request.
+     */
+    private static final class EntityRequestBody
+            extends RequestBody
+    {
+
+        private final RequestEntity entity;
+
+        private final MediaType contentType;
+
+        private EntityRequestBody( RequestEntity entity )
+        {
+            this.entity = entity;
+            this.contentType = entity.getContentType() == null ? null : MediaType.parse( entity.getContentType() );
+        }
+
+        @Override
+        public MediaType contentType()
+        {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength()
+        {
+            return entity.getContentLength();
+        }
+
+        @Override
+        public void writeTo( BufferedSink sink )
+                throws IOException
+        {
+            entity.writeRequest( sink.outputStream() );
+        }
+
+    }
+
+    /**
+     * Records connect and TLS handshake times, one listener per call.
+     */
+    private static final class MetricsEventListenerFactory
+            implements EventListener.Factory
+    {
+
+        private final ProxiletMetrics metrics;
+
+        private MetricsEventListenerFactory( ProxiletMetrics metrics )
+        {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public EventListener create( Call call )
+        {
+            return new EventListener()
+            {
+
+                private long connectStart;
+
+                private long secureConnectStart;
+
+                private long secureConnectTime;
+
+                @Override
+                public void connectStart( Call call, InetSocketAddress address, Proxy proxy )
+                {
+                    connectStart = System.nanoTime();
+                    secureConnectTime = 0;
+                }
+
+                @Override
+                public void secureConnectStart( Call call )
+                {
+                    secureConnectStart = System.nanoTime();
+                }
+
+                @Override
+                public void secureConnectEnd( Call call, Handshake handshake )
+                {
+                    secureConnectTime = System.nanoTime() - secureConnectStart;
+                    metrics.tlsHandshake.record( secureConnectTime );
+                }
+
+                @Override
+                public void connectEnd( Call call, InetSocketAddress address, Proxy proxy, Protocol protocol )
+                {
+                    // TLS is negotiated within the OkHttp connect phase
+                    metrics.connect.record( System.nanoTime() - connectStart - secureConnectTime );
+                }
+
+            };
+        }
+
+    }
+
+}
@@ -17,45 +17,68 @@
  */
 package org.codeartisans.proxilet;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
 import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.StringRequestEntity;
-import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
-import org.apache.commons.httpclient.methods.multipart.FilePart;
-import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
-import org.apache.commons.httpclient.methods.multipart.Part;
-import org.apache.commons.httpclient.methods.multipart.StringPart;
+import org.apache.commons.httpclient.methods.TraceMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.protocol.Protocol;
-import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -77,19 +100,28 @@ public class Proxilet
 
     private static final Logger LOGGER = LoggerFactory.getLogger( Proxilet.class );
 
-    static {
-        // TODO Put a boolean init parameter for this
-        System.setProperty( "sun.security.ssl.allowUnsafeRenegotiation", "true" );
-        // So that any server connection is accepted : (port number is only the default one)
-        Protocol easyhttps = new Protocol( "https", ( ProtocolSocketFactory ) new EasySSLProtocolSocketFactory(), 443 );
-        Protocol.registerProtocol( "https", easyhttps );
-    }
+    /**
+     * Size of the compressed input buffer of gzip inflation.
+     */
+    private static final int INFLATER_INPUT_SIZE = 8 * 1024;
+
+    private static final long serialVersionUID = 1L;
 
-    private static final Protocol SSL_PROTOCOL = new Protocol( "https", ( ProtocolSocketFactory ) new EasySSLProtocolSocketFactory(), 443 );
+    private static final String METHOD_GET = "GET";
 
-    private static final int FOUR_KB = 4196;
+    private static final String METHOD_HEAD = "HEAD";
 
-    private static final long serialVersionUID = 1L;
+    private static final String METHOD_POST = "POST";
+
+    private static final String METHOD_TRACE = "TRACE";
+
+    private static final String TRANSPORT_HTTP1 = "http1";
+
+    private static final String TRANSPORT_H2 = "h2";
+
+    private static final String FILTER_GWT_RPC = "gwt-rpc";
+
+    private static final String FILTER_LOCATION = "location";
 
     private static final String HEADER_LOCATION = "Location";
 
@@ -99,15 +131,38 @@ public class Proxilet
 
     private static final String HEADER_HOST = "Host";
 
-    private static final File FILE_UPLOAD_TEMP_DIRECTORY = new File( System.getProperty( "java.io.tmpdir" ) );
-    // Target host params
+    private static final String HEADER_TRANSFER_ENCODING = "Transfer-Encoding";
+
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    private static final String HEADER_SERVER_TIMING = "Server-Timing";
 
-    private String targetHost;
+    private static final long HEDGE_DELAY_REFRESH = TimeUnit.SECONDS.toNanos( 1 );
 
-    private int targetPort = 80;
+    /**
+     * How long an async timeout or error waits for the aborted worker to answer, in milliseconds.
+     */
+    private static final long ASYNC_ABORT_GRACE = 1000;
+
+    // Target host params
 
     private boolean targetSsl;
 
+    /**
+     * Routes from the 'routes' init-param, followed by the legacy 'sourcePath' route to the 'targets' or 'targetHost'
+     * and 'targetPort' endpoints, if any.
+     */
+    private RouteTable routeTable;
+
+    /**
+     * Every distinct upstream of the route table, health checked as a whole.
+     */
+    private UpstreamGroup allUpstreams;
+
     private String targetCredentials; // format is user:password
 
     /**
@@ -131,20 +186,287 @@ public class Proxilet
      */
     private boolean removePrefix = false;
 
-    private int maxFileUploadSize = 5 * 1024 * 1024; // Defaults to 5MB
+    private long maxFileUploadSize = -1; // Defaults to no limit
+
+    /**
+     * Setting that allows relaying multipart POST bodies verbatim, with their original boundary, instead of
+     * re-encoding each part.
+     */
+    private boolean preserveMultipartBoundary = false;
 
     private boolean followRedirects;
 
+    private String filterNames = FILTER_GWT_RPC; // Comma separated gwt-rpc, location or ProxyFilter class names
+
+    /**
+     * Stages requests and responses go through.
+     */
+    private ProxyFilterChain filterChain;
+
+    // Upstream connection pool params
+
+    private int maxTotalConnections = 200;
+
+    private int maxConnectionsPerHost = 20;
+
+    private long idleConnectionTimeout = 60 * 1000; // Defaults to 1 minute, 0 disables eviction
+
+    private boolean staleCheckingEnabled = true;
+
+    private String transportName = TRANSPORT_HTTP1; // http1, h2 or the class name of a custom UpstreamTransport
+
+    // Upstream TLS params
+
+    private String tlsTrustStore;
+
+    private String tlsTrustStorePassword;
+
+    private String tlsTrustStoreType;
+
+    private boolean tlsTrustAll = true; // Defaults to not verifying certificates, unless a truststore is set
+
+    private boolean tlsVerifyHostname = true;
+
+    private String[] tlsProtocols; // Defaults to the supported ones among TLSv1.3 and TLSv1.2
+
+    private String[] tlsCipherSuites; // Defaults to the JVM default ones without the weak ones
+
+    private int tlsSessionCacheSize = 1024;
+
+    private int tlsSessionTimeout = 24 * 60 * 60; // Defaults to 1 day, in seconds
+
+    private boolean allowUnsafeRenegotiation = false;
+
+    /**
+     * Socket factory of https upstreams, created on first use at init.
+     */
+    private ConfigurableSSLProtocolSocketFactory sslSocketFactory;
+
+    // Body relay params
+
+    private int relayBufferSize = 32 * 1024;
+
+    private int relayBufferPoolSize = -1; // Defaults to maxTotalConnections
+
+    private int relaySmallBufferSize = 4 * 1024; // Bodies up to this Content-Length use small buffers, 0 disables them
+
+    private long relayFlushSize = 0; // 0 leaves flushing to the container
+
+    private long relayFlushInterval = 0; // 0 leaves flushing to the container
+
+    /**
+     * Relays response bodies through pooled buffers.
+     */
+    private BodyRelay bodyRelay;
+
+    // Response compression params
+
+    private boolean compressionEnabled = false;
+
+    private String[] compressionTypes; // Defaults to textual types, mimeType and forwardTypes
+
+    private long compressionMinSize = 1024;
+
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private int compressionPoolSize = -1; // Defaults to the relay buffer pool size
+
+    /**
+     * Compresses identity responses for clients accepting it, null if disabled.
+     */
+    private ResponseCompressor responseCompressor;
+
+    // Upstream timeouts params
+
+    private int connectTimeout = 10 * 1000; // Defaults to 10 seconds, 0 means no timeout
+
+    private int readTimeout = 60 * 1000; // Defaults to 1 minute, 0 means no timeout
+
+    private long poolTimeout = 10 * 1000; // Defaults to 10 seconds, 0 means no timeout
+
+    private long requestTimeout = 0; // Total deadline of upstream exchanges, defaults to none
+
+    /**
+     * Aborts upstream exchanges exceeding the request timeout, null if there is none.
+     */
+    private ScheduledThreadPoolExecutor deadlineScheduler;
+
+    /**
+     * Servlet-lifetime pooled connection manager, shared by all proxied requests so that upstream connections are
+     * kept alive and reused.
+     */
+    private InstrumentedConnectionManager connectionManager;
+
+    private IdleConnectionTimeoutThread idleConnectionTimeoutThread;
+
+    /**
+     * Exchanges with upstreams, over the pooled connection manager unless another transport is configured.
+     */
+    private UpstreamTransport transport;
+
+    // Instrumentation params
+
+    private boolean jmxEnabled = true;
+
+    private final ProxiletMetrics metrics = new ProxiletMetrics();
+
+    // Load balancing params
+
+    private String balancer = UpstreamSelectors.ROUND_ROBIN;
+
+    private int ejectionThreshold = 5; // Consecutive failures, 0 disables ejection
+
+    private long ejectionTime = 30 * 1000; // Defaults to 30 seconds
+
+    private String healthCheckPath; // Active health checks are disabled by default
+
+    private long healthCheckInterval = 10 * 1000; // Defaults to 10 seconds
+
+    // Circuit breaker params
+
+    private boolean circuitBreakerEnabled = false;
+
+    private int circuitBreakerFailureRate = 50; // Percentage, 0 ignores failures
+
+    private int circuitBreakerSlowCallRate = 0; // Percentage, 0 ignores slow calls
+
+    private long circuitBreakerSlowCallDuration = 5 * 1000; // Defaults to 5 seconds
+
+    private int circuitBreakerWindowSize = 20; // Calls
+
+    private long circuitBreakerOpenTime = 30 * 1000; // Defaults to 30 seconds
+
+    private int circuitBreakerHalfOpenCalls = 3;
+
+    // Adaptive concurrency limit params
+
+    private boolean concurrencyLimitEnabled = false;
+
+    private int concurrencyLimitInitial = 20;
+
+    private int concurrencyLimitMax = 200;
+
+    private double concurrencyLimitTolerance = 2.0; // Round-trip time increase ratio tolerated before shrinking
+
+    private int concurrencyLimitQueueSize = 10;
+
+    private long concurrencyLimitQueueTimeout = 50; // Milliseconds
+
+    // Hedging and retries params
+
+    private boolean hedgingEnabled = false;
+
+    private double hedgePercentile = 95; // Time to first byte percentile after which GETs and HEADs are hedged
+
+    private long hedgeMinDelay = 10; // Milliseconds
+
+    private int hedgeThreads = -1; // Defaults to maxTotalConnections
+
+    private int connectRetries = 0; // Retries of GETs and HEADs failing to connect, on another upstream
+
+    /**
+     * Runs the attempts of hedged requests, null if hedging is disabled.
+     */
+    private ThreadPoolExecutor hedgeExecutor;
+
+    private volatile long hedgeDelay;
+
+    private volatile long hedgeDelayUpdate;
+
+    // Response cache params
+
+    private boolean cacheEnabled = false;
+
+    private long cacheMaxSize = 64 * 1024 * 1024; // Defaults to 64MB
+
+    private long cacheMaxEntrySize = 1024 * 1024; // Defaults to 1MB
+
+    private File cacheDirectory = new File( System.getProperty( "java.io.tmpdir" ), "proxilet-cache" );
+
+    private long cacheDiskMaxSize = 0; // Defaults to no disk tier
+
+    private long cacheDiskMaxEntrySize = -1; // Defaults to cacheDiskMaxSize
+
+    /**
+     * In-memory response cache, null if caching is disabled.
+     */
+    private ResponseCache responseCache;
+
+    // Request coalescing params
+
+    private boolean coalescingEnabled = false;
+
+    private long coalescingTimeout = 10000; // Defaults to 10 seconds
+
+    /**
+     * Single-flight coordination of identical concurrent GETs, null if coalescing is disabled.
+     */
+    private RequestCoalescer requestCoalescer;
+
+    // Access log params
+
+    private String accessLogFile; // Access logging is disabled by default
+
+    private int accessLogBufferSize = 8192; // Entries
+
+    private long accessLogMaxFileSize = 100 * 1024 * 1024; // Defaults to 100MB, 0 disables rolling
+
+    private int accessLogMaxFiles = 5;
+
+    /**
+     * Asynchronous access log, null if access logging is disabled.
+     */
+    private AccessLog accessLog;
+
+    // Tracing params
+
+    private int traceSampling; // One request in this many is traced, 0 disables tracing
+
+    private boolean traceServerTiming = false; // Server-Timing headers are not sent by default
+
+    private int traceSlowest = 20; // Slowest traces retained
+
+    private long traceWindow = 60 * 1000; // Defaults to 1 minute
+
+    /**
+     * Samples requests to trace, null if tracing is disabled.
+     */
+    private RequestTracer requestTracer;
+
+    // Asynchronous mode params
+
+    private boolean asyncEnabled = false;
+
+    private long asyncTimeout = 30 * 1000; // Defaults to 30 seconds
+
+    private int asyncThreads = 64;
+
+    private int asyncQueueSize = 1024;
+
+    /**
+     * Worker pool carrying upstream exchanges of asynchronous requests, null if asynchronous mode is disabled.
+     */
+    private ThreadPoolExecutor asyncExecutor;
+
     @Override
     public void init( ServletConfig servletConfig )
+            throws ServletException
     {
+        super.init( servletConfig );
+
+        // Get the routes, one per line or separated by semicolons
+        String stringRoutes = servletConfig.getInitParameter( "routes" );
+        // Get the proxy hosts, as a comma separated list of host[:port]
+        String stringTargets = servletConfig.getInitParameter( "targets" );
         // Get the proxy host
         String stringProxyHostNew = servletConfig.getInitParameter( "targetHost" );
-        if ( stringProxyHostNew == null || stringProxyHostNew.length() == 0 ) {
-            throw new IllegalArgumentException( "Proxy host not set, please set init-param 'targetHost' in web.xml" );
+        if ( ( stringRoutes == null || stringRoutes.trim().length() == 0 )
+             && ( stringTargets == null || stringTargets.length() == 0 )
+             && ( stringProxyHostNew == null || stringProxyHostNew.length() == 0 ) ) {
+            throw new IllegalArgumentException( "Proxy host not set, please set init-param 'targetHost', 'targets' or 'routes' in web.xml" );
         }
-        targetHost = stringProxyHostNew;
         // Get the proxy port if specified
+        int targetPort = 80;
         String stringProxyPortNew = servletConfig.getInitParameter( "targetPort" );
         if ( stringProxyPortNew != null && stringProxyPortNew.length() > 0 ) {
             targetPort = Integer.parseInt( stringProxyPortNew );
@@ -175,280 +497,1642 @@ public class Proxilet
         if ( strMimeType != null && strMimeType.length() > 0 ) {
             stringMimeType = strMimeType;
         }
-
-        String strForwardTypes = servletConfig.getInitParameter( "forwardTypes" );
-        if ( strForwardTypes != null && strForwardTypes.length() > 0 ) {
-            stringForwardTypes = strForwardTypes.split( "," );
+
+        String strFilters = servletConfig.getInitParameter( "filters" );
+        if ( strFilters != null && strFilters.length() > 0 ) {
+            filterNames = strFilters;
+        }
+
+        String strForwardTypes = servletConfig.getInitParameter( "forwardTypes" );
+        if ( strForwardTypes != null && strForwardTypes.length() > 0 ) {
+            stringForwardTypes = strForwardTypes.split( "," );
+        }
+
+        String strRemovePrexif = servletConfig.getInitParameter( "removePrefix" );
+        if ( strRemovePrexif != null && strRemovePrexif.length() > 0 ) {
+            removePrefix = Boolean.valueOf( strRemovePrexif );
+        }
+
+        // Get the maximum file upload size if specified
+        String stringMaxFileUploadSize = servletConfig.getInitParameter( "maxFileUploadSize" );
+        if ( stringMaxFileUploadSize != null && stringMaxFileUploadSize.length() > 0 ) {
+            maxFileUploadSize = Long.parseLong( stringMaxFileUploadSize );
+        }
+
+        String strPreserveMultipartBoundary = servletConfig.getInitParameter( "preserveMultipartBoundary" );
+        if ( strPreserveMultipartBoundary != null && strPreserveMultipartBoundary.length() > 0 ) {
+            preserveMultipartBoundary = Boolean.valueOf( strPreserveMultipartBoundary );
+        }
+
+        String strSourcePath = servletConfig.getInitParameter( "sourcePath" );
+        if ( strSourcePath != null && strSourcePath.length() > 0 ) {
+            stringSourcePath = strSourcePath;
+        }
+
+        String strDestinationPath = servletConfig.getInitParameter( "destinationPath" );
+        if ( strDestinationPath != null && strDestinationPath.length() > 0 ) {
+            stringDestinationPath = strDestinationPath;
+        }
+
+        String strMaxTotalConnections = servletConfig.getInitParameter( "maxTotalConnections" );
+        if ( strMaxTotalConnections != null && strMaxTotalConnections.length() > 0 ) {
+            maxTotalConnections = Integer.parseInt( strMaxTotalConnections );
+        }
+
+        String strMaxConnectionsPerHost = servletConfig.getInitParameter( "maxConnectionsPerHost" );
+        if ( strMaxConnectionsPerHost != null && strMaxConnectionsPerHost.length() > 0 ) {
+            maxConnectionsPerHost = Integer.parseInt( strMaxConnectionsPerHost );
+        }
+
+        String strIdleConnectionTimeout = servletConfig.getInitParameter( "idleConnectionTimeout" );
+        if ( strIdleConnectionTimeout != null && strIdleConnectionTimeout.length() > 0 ) {
+            idleConnectionTimeout = Long.parseLong( strIdleConnectionTimeout );
+        }
+
+        String strStaleCheckingEnabled = servletConfig.getInitParameter( "staleCheckingEnabled" );
+        if ( strStaleCheckingEnabled != null && strStaleCheckingEnabled.length() > 0 ) {
+            staleCheckingEnabled = Boolean.valueOf( strStaleCheckingEnabled );
+        }
+
+        String strTransport = servletConfig.getInitParameter( "transport" );
+        if ( strTransport != null && strTransport.length() > 0 ) {
+            transportName = strTransport.trim();
+        }
+
+        String strTlsTrustStore = servletConfig.getInitParameter( "tlsTrustStore" );
+        if ( strTlsTrustStore != null && strTlsTrustStore.length() > 0 ) {
+            tlsTrustStore = strTlsTrustStore;
+        }
+
+        String strTlsTrustStorePassword = servletConfig.getInitParameter( "tlsTrustStorePassword" );
+        if ( strTlsTrustStorePassword != null && strTlsTrustStorePassword.length() > 0 ) {
+            tlsTrustStorePassword = strTlsTrustStorePassword;
+        }
+
+        String strTlsTrustStoreType = servletConfig.getInitParameter( "tlsTrustStoreType" );
+        if ( strTlsTrustStoreType != null && strTlsTrustStoreType.length() > 0 ) {
+            tlsTrustStoreType = strTlsTrustStoreType;
+        }
+
+        String strTlsTrustAll = servletConfig.getInitParameter( "tlsTrustAll" );
+        if ( strTlsTrustAll != null && strTlsTrustAll.length() > 0 ) {
+            tlsTrustAll = Boolean.valueOf( strTlsTrustAll );
+        }
+
+        String strTlsVerifyHostname = servletConfig.getInitParameter( "tlsVerifyHostname" );
+        if ( strTlsVerifyHostname != null && strTlsVerifyHostname.length() > 0 ) {
+            tlsVerifyHostname = Boolean.valueOf( strTlsVerifyHostname );
+        }
+
+        String strTlsProtocols = servletConfig.getInitParameter( "tlsProtocols" );
+        if ( strTlsProtocols != null && strTlsProtocols.length() > 0 ) {
+            tlsProtocols = strTlsProtocols.trim().split( "[,\\s]+" );
+        }
+
+        String strTlsCipherSuites = servletConfig.getInitParameter( "tlsCipherSuites" );
+        if ( strTlsCipherSuites != null && strTlsCipherSuites.length() > 0 ) {
+            tlsCipherSuites = strTlsCipherSuites.trim().split( "[,\\s]+" );
+        }
+
+        String strTlsSessionCacheSize = servletConfig.getInitParameter( "tlsSessionCacheSize" );
+        if ( strTlsSessionCacheSize != null && strTlsSessionCacheSize.length() > 0 ) {
+            tlsSessionCacheSize = Integer.parseInt( strTlsSessionCacheSize );
+        }
+
+        String strTlsSessionTimeout = servletConfig.getInitParameter( "tlsSessionTimeout" );
+        if ( strTlsSessionTimeout != null && strTlsSessionTimeout.length() > 0 ) {
+            tlsSessionTimeout = Integer.parseInt( strTlsSessionTimeout );
+        }
+
+        String strAllowUnsafeRenegotiation = servletConfig.getInitParameter( "allowUnsafeRenegotiation" );
+        if ( strAllowUnsafeRenegotiation != null && strAllowUnsafeRenegotiation.length() > 0 ) {
+            allowUnsafeRenegotiation = Boolean.valueOf( strAllowUnsafeRenegotiation );
+        }
+        if ( allowUnsafeRenegotiation ) {
+            // JVM wide, and only effective if set before the first TLS handshake of the JVM
+            System.setProperty( "sun.security.ssl.allowUnsafeRenegotiation", "true" );
+        }
+
+        String strCompression = servletConfig.getInitParameter( "compression" );
+        if ( strCompression != null && strCompression.length() > 0 ) {
+            compressionEnabled = Boolean.valueOf( strCompression );
+        }
+
+        String strCompressionTypes = servletConfig.getInitParameter( "compressionTypes" );
+        if ( strCompressionTypes != null && strCompressionTypes.length() > 0 ) {
+            compressionTypes = strCompressionTypes.trim().toLowerCase( Locale.US ).split( "[,\\s]+" );
+        }
+
+        String strCompressionMinSize = servletConfig.getInitParameter( "compressionMinSize" );
+        if ( strCompressionMinSize != null && strCompressionMinSize.length() > 0 ) {
+            compressionMinSize = Long.parseLong( strCompressionMinSize );
+        }
+
+        String strCompressionLevel = servletConfig.getInitParameter( "compressionLevel" );
+        if ( strCompressionLevel != null && strCompressionLevel.length() > 0 ) {
+            compressionLevel = Integer.parseInt( strCompressionLevel );
+        }
+
+        String strCompressionPoolSize = servletConfig.getInitParameter( "compressionPoolSize" );
+        if ( strCompressionPoolSize != null && strCompressionPoolSize.length() > 0 ) {
+            compressionPoolSize = Integer.parseInt( strCompressionPoolSize );
+        }
+
+        String strRelayBufferSize = servletConfig.getInitParameter( "relayBufferSize" );
+        if ( strRelayBufferSize != null && strRelayBufferSize.length() > 0 ) {
+            relayBufferSize = Integer.parseInt( strRelayBufferSize );
+        }
+
+        String strRelayBufferPoolSize = servletConfig.getInitParameter( "relayBufferPoolSize" );
+        if ( strRelayBufferPoolSize != null && strRelayBufferPoolSize.length() > 0 ) {
+            relayBufferPoolSize = Integer.parseInt( strRelayBufferPoolSize );
+        }
+
+        String strRelaySmallBufferSize = servletConfig.getInitParameter( "relaySmallBufferSize" );
+        if ( strRelaySmallBufferSize != null && strRelaySmallBufferSize.length() > 0 ) {
+            relaySmallBufferSize = Integer.parseInt( strRelaySmallBufferSize );
+        }
+
+        String strRelayFlushSize = servletConfig.getInitParameter( "relayFlushSize" );
+        if ( strRelayFlushSize != null && strRelayFlushSize.length() > 0 ) {
+            relayFlushSize = Long.parseLong( strRelayFlushSize );
+        }
+
+        String strRelayFlushInterval = servletConfig.getInitParameter( "relayFlushInterval" );
+        if ( strRelayFlushInterval != null && strRelayFlushInterval.length() > 0 ) {
+            relayFlushInterval = Long.parseLong( strRelayFlushInterval );
+        }
+
+        String strCacheEnabled = servletConfig.getInitParameter( "cacheEnabled" );
+        if ( strCacheEnabled != null && strCacheEnabled.length() > 0 ) {
+            cacheEnabled = Boolean.valueOf( strCacheEnabled );
+        }
+
+        String strCacheMaxSize = servletConfig.getInitParameter( "cacheMaxSize" );
+        if ( strCacheMaxSize != null && strCacheMaxSize.length() > 0 ) {
+            cacheMaxSize = Long.parseLong( strCacheMaxSize );
+        }
+
+        String strCacheMaxEntrySize = servletConfig.getInitParameter( "cacheMaxEntrySize" );
+        if ( strCacheMaxEntrySize != null && strCacheMaxEntrySize.length() > 0 ) {
+            cacheMaxEntrySize = Long.parseLong( strCacheMaxEntrySize );
+        }
+
+        String strCacheDirectory = servletConfig.getInitParameter( "cacheDirectory" );
+        if ( strCacheDirectory != null && strCacheDirectory.length() > 0 ) {
+            cacheDirectory = new File( strCacheDirectory );
+        }
+
+        String strCacheDiskMaxSize = servletConfig.getInitParameter( "cacheDiskMaxSize" );
+        if ( strCacheDiskMaxSize != null && strCacheDiskMaxSize.length() > 0 ) {
+            cacheDiskMaxSize = Long.parseLong( strCacheDiskMaxSize );
+        }
+
+        String strCacheDiskMaxEntrySize = servletConfig.getInitParameter( "cacheDiskMaxEntrySize" );
+        if ( strCacheDiskMaxEntrySize != null && strCacheDiskMaxEntrySize.length() > 0 ) {
+            cacheDiskMaxEntrySize = Long.parseLong( strCacheDiskMaxEntrySize );
+        }
+
+        if ( cacheEnabled ) {
+            DiskCache diskCache = null;
+            if ( cacheDiskMaxSize > 0 ) {
+                diskCache = new DiskCache( cacheDirectory, cacheDiskMaxSize,
+                                           cacheDiskMaxEntrySize > 0 ? cacheDiskMaxEntrySize : cacheDiskMaxSize );
+                try {
+                    diskCache.open();
+                } catch ( IOException ex ) {
+                    throw new ServletException( "Unable to open the disk cache: " + ex.getMessage(), ex );
+                }
+            }
+            responseCache = new ResponseCache( cacheMaxSize, cacheMaxEntrySize, diskCache );
+        }
+
+        String strCoalescingEnabled = servletConfig.getInitParameter( "coalescingEnabled" );
+        if ( strCoalescingEnabled != null && strCoalescingEnabled.length() > 0 ) {
+            coalescingEnabled = Boolean.valueOf( strCoalescingEnabled );
+        }
+
+        String strCoalescingTimeout = servletConfig.getInitParameter( "coalescingTimeout" );
+        if ( strCoalescingTimeout != null && strCoalescingTimeout.length() > 0 ) {
+            coalescingTimeout = Long.parseLong( strCoalescingTimeout );
+        }
+
+        if ( coalescingEnabled ) {
+            requestCoalescer = new RequestCoalescer( coalescingTimeout );
+        }
+
+        String strAsyncEnabled = servletConfig.getInitParameter( "asyncEnabled" );
+        if ( strAsyncEnabled != null && strAsyncEnabled.length() > 0 ) {
+            asyncEnabled = Boolean.valueOf( strAsyncEnabled );
+        }
+
+        String strAsyncTimeout = servletConfig.getInitParameter( "asyncTimeout" );
+        if ( strAsyncTimeout != null && strAsyncTimeout.length() > 0 ) {
+            asyncTimeout = Long.parseLong( strAsyncTimeout );
+        }
+
+        String strAsyncThreads = servletConfig.getInitParameter( "asyncThreads" );
+        if ( strAsyncThreads != null && strAsyncThreads.length() > 0 ) {
+            asyncThreads = Integer.parseInt( strAsyncThreads );
+        }
+
+        String strAsyncQueueSize = servletConfig.getInitParameter( "asyncQueueSize" );
+        if ( strAsyncQueueSize != null && strAsyncQueueSize.length() > 0 ) {
+            asyncQueueSize = Integer.parseInt( strAsyncQueueSize );
+        }
+
+        // Get the load balancing params
+        String strBalancer = servletConfig.getInitParameter( "balancer" );
+        if ( strBalancer != null && strBalancer.length() > 0 ) {
+            balancer = strBalancer;
+        }
+
+        String strEjectionThreshold = servletConfig.getInitParameter( "ejectionThreshold" );
+        if ( strEjectionThreshold != null && strEjectionThreshold.length() > 0 ) {
+            ejectionThreshold = Integer.parseInt( strEjectionThreshold );
+        }
+
+        String strEjectionTime = servletConfig.getInitParameter( "ejectionTime" );
+        if ( strEjectionTime != null && strEjectionTime.length() > 0 ) {
+            ejectionTime = Long.parseLong( strEjectionTime );
+        }
+
+        String strHealthCheckPath = servletConfig.getInitParameter( "healthCheckPath" );
+        if ( strHealthCheckPath != null && strHealthCheckPath.length() > 0 ) {
+            healthCheckPath = strHealthCheckPath;
+        }
+
+        String strHealthCheckInterval = servletConfig.getInitParameter( "healthCheckInterval" );
+        if ( strHealthCheckInterval != null && strHealthCheckInterval.length() > 0 ) {
+            healthCheckInterval = Long.parseLong( strHealthCheckInterval );
+        }
+
+        String strJmxEnabled = servletConfig.getInitParameter( "jmxEnabled" );
+        if ( strJmxEnabled != null && strJmxEnabled.length() > 0 ) {
+            jmxEnabled = Boolean.valueOf( strJmxEnabled );
+        }
+
+        String strConnectTimeout = servletConfig.getInitParameter( "connectTimeout" );
+        if ( strConnectTimeout != null && strConnectTimeout.length() > 0 ) {
+            connectTimeout = Integer.parseInt( strConnectTimeout );
+        }
+
+        String strReadTimeout = servletConfig.getInitParameter( "readTimeout" );
+        if ( strReadTimeout != null && strReadTimeout.length() > 0 ) {
+            readTimeout = Integer.parseInt( strReadTimeout );
+        }
+
+        String strPoolTimeout = servletConfig.getInitParameter( "poolTimeout" );
+        if ( strPoolTimeout != null && strPoolTimeout.length() > 0 ) {
+            poolTimeout = Long.parseLong( strPoolTimeout );
+        }
+
+        String strRequestTimeout = servletConfig.getInitParameter( "requestTimeout" );
+        if ( strRequestTimeout != null && strRequestTimeout.length() > 0 ) {
+            requestTimeout = Long.parseLong( strRequestTimeout );
+        }
+
+        String strCircuitBreakerEnabled = servletConfig.getInitParameter( "circuitBreakerEnabled" );
+        if ( strCircuitBreakerEnabled != null && strCircuitBreakerEnabled.length() > 0 ) {
+            circuitBreakerEnabled = Boolean.valueOf( strCircuitBreakerEnabled );
+        }
+
+        String strCircuitBreakerFailureRate = servletConfig.getInitParameter( "circuitBreakerFailureRate" );
+        if ( strCircuitBreakerFailureRate != null && strCircuitBreakerFailureRate.length() > 0 ) {
+            circuitBreakerFailureRate = Integer.parseInt( strCircuitBreakerFailureRate );
+        }
+
+        String strCircuitBreakerSlowCallRate = servletConfig.getInitParameter( "circuitBreakerSlowCallRate" );
+        if ( strCircuitBreakerSlowCallRate != null && strCircuitBreakerSlowCallRate.length() > 0 ) {
+            circuitBreakerSlowCallRate = Integer.parseInt( strCircuitBreakerSlowCallRate );
+        }
+
+        String strCircuitBreakerSlowCallDuration = servletConfig.getInitParameter( "circuitBreakerSlowCallDuration" );
+        if ( strCircuitBreakerSlowCallDuration != null && strCircuitBreakerSlowCallDuration.length() > 0 ) {
+            circuitBreakerSlowCallDuration = Long.parseLong( strCircuitBreakerSlowCallDuration );
+        }
+
+        String strCircuitBreakerWindowSize = servletConfig.getInitParameter( "circuitBreakerWindowSize" );
+        if ( strCircuitBreakerWindowSize != null && strCircuitBreakerWindowSize.length() > 0 ) {
+            circuitBreakerWindowSize = Integer.parseInt( strCircuitBreakerWindowSize );
+        }
+
+        String strCircuitBreakerOpenTime = servletConfig.getInitParameter( "circuitBreakerOpenTime" );
+        if ( strCircuitBreakerOpenTime != null && strCircuitBreakerOpenTime.length() > 0 ) {
+            circuitBreakerOpenTime = Long.parseLong( strCircuitBreakerOpenTime );
+        }
+
+        String strCircuitBreakerHalfOpenCalls = servletConfig.getInitParameter( "circuitBreakerHalfOpenCalls" );
+        if ( strCircuitBreakerHalfOpenCalls != null && strCircuitBreakerHalfOpenCalls.length() > 0 ) {
+            circuitBreakerHalfOpenCalls = Integer.parseInt( strCircuitBreakerHalfOpenCalls );
+        }
+
+        String strConcurrencyLimitEnabled = servletConfig.getInitParameter( "concurrencyLimitEnabled" );
+        if ( strConcurrencyLimitEnabled != null && strConcurrencyLimitEnabled.length() > 0 ) {
+            concurrencyLimitEnabled = Boolean.valueOf( strConcurrencyLimitEnabled );
+        }
+
+        String strConcurrencyLimitInitial = servletConfig.getInitParameter( "concurrencyLimitInitial" );
+        if ( strConcurrencyLimitInitial != null && strConcurrencyLimitInitial.length() > 0 ) {
+            concurrencyLimitInitial = Integer.parseInt( strConcurrencyLimitInitial );
+        }
+
+        String strConcurrencyLimitMax = servletConfig.getInitParameter( "concurrencyLimitMax" );
+        if ( strConcurrencyLimitMax != null && strConcurrencyLimitMax.length() > 0 ) {
+            concurrencyLimitMax = Integer.parseInt( strConcurrencyLimitMax );
+        }
+
+        String strConcurrencyLimitTolerance = servletConfig.getInitParameter( "concurrencyLimitTolerance" );
+        if ( strConcurrencyLimitTolerance != null && strConcurrencyLimitTolerance.length() > 0 ) {
+            concurrencyLimitTolerance = Double.parseDouble( strConcurrencyLimitTolerance );
+        }
+
+        String strConcurrencyLimitQueueSize = servletConfig.getInitParameter( "concurrencyLimitQueueSize" );
+        if ( strConcurrencyLimitQueueSize != null && strConcurrencyLimitQueueSize.length() > 0 ) {
+            concurrencyLimitQueueSize = Integer.parseInt( strConcurrencyLimitQueueSize );
+        }
+
+        String strConcurrencyLimitQueueTimeout = servletConfig.getInitParameter( "concurrencyLimitQueueTimeout" );
+        if ( strConcurrencyLimitQueueTimeout != null && strConcurrencyLimitQueueTimeout.length() > 0 ) {
+            concurrencyLimitQueueTimeout = Long.parseLong( strConcurrencyLimitQueueTimeout );
+        }
+
+        String strAccessLog = servletConfig.getInitParameter( "accessLog" );
+        if ( strAccessLog != null && strAccessLog.length() > 0 ) {
+            accessLogFile = strAccessLog;
+        }
+
+        String strAccessLogBufferSize = servletConfig.getInitParameter( "accessLogBufferSize" );
+        if ( strAccessLogBufferSize != null && strAccessLogBufferSize.length() > 0 ) {
+            accessLogBufferSize = Integer.parseInt( strAccessLogBufferSize );
+        }
+
+        String strAccessLogMaxFileSize = servletConfig.getInitParameter( "accessLogMaxFileSize" );
+        if ( strAccessLogMaxFileSize != null && strAccessLogMaxFileSize.length() > 0 ) {
+            accessLogMaxFileSize = Long.parseLong( strAccessLogMaxFileSize );
+        }
+
+        String strAccessLogMaxFiles = servletConfig.getInitParameter( "accessLogMaxFiles" );
+        if ( strAccessLogMaxFiles != null && strAccessLogMaxFiles.length() > 0 ) {
+            accessLogMaxFiles = Integer.parseInt( strAccessLogMaxFiles );
+        }
+
+        String strTraceSampling = servletConfig.getInitParameter( "traceSampling" );
+        if ( strTraceSampling != null && strTraceSampling.length() > 0 ) {
+            traceSampling = Integer.parseInt( strTraceSampling );
+        }
+
+        String strTraceServerTiming = servletConfig.getInitParameter( "traceServerTiming" );
+        if ( strTraceServerTiming != null && strTraceServerTiming.length() > 0 ) {
+            traceServerTiming = Boolean.parseBoolean( strTraceServerTiming );
+        }
+
+        String strTraceSlowest = servletConfig.getInitParameter( "traceSlowest" );
+        if ( strTraceSlowest != null && strTraceSlowest.length() > 0 ) {
+            traceSlowest = Integer.parseInt( strTraceSlowest );
+        }
+
+        String strTraceWindow = servletConfig.getInitParameter( "traceWindow" );
+        if ( strTraceWindow != null && strTraceWindow.length() > 0 ) {
+            traceWindow = Long.parseLong( strTraceWindow );
+        }
+
+        String strHedgingEnabled = servletConfig.getInitParameter( "hedgingEnabled" );
+        if ( strHedgingEnabled != null && strHedgingEnabled.length() > 0 ) {
+            hedgingEnabled = Boolean.valueOf( strHedgingEnabled );
+        }
+
+        String strHedgePercentile = servletConfig.getInitParameter( "hedgePercentile" );
+        if ( strHedgePercentile != null && strHedgePercentile.length() > 0 ) {
+            hedgePercentile = Double.parseDouble( strHedgePercentile );
+        }
+
+        String strHedgeMinDelay = servletConfig.getInitParameter( "hedgeMinDelay" );
+        if ( strHedgeMinDelay != null && strHedgeMinDelay.length() > 0 ) {
+            hedgeMinDelay = Long.parseLong( strHedgeMinDelay );
+        }
+
+        String strHedgeThreads = servletConfig.getInitParameter( "hedgeThreads" );
+        if ( strHedgeThreads != null && strHedgeThreads.length() > 0 ) {
+            hedgeThreads = Integer.parseInt( strHedgeThreads );
+        }
+
+        String strConnectRetries = servletConfig.getInitParameter( "connectRetries" );
+        if ( strConnectRetries != null && strConnectRetries.length() > 0 ) {
+            connectRetries = Integer.parseInt( strConnectRetries );
+        }
+
+        Map<String, Upstream> upstreams = new LinkedHashMap<String, Upstream>();
+        List<Route> routes = new ArrayList<Route>();
+        if ( stringRoutes != null ) {
+            for ( String stringRoute : stringRoutes.split( "[;\\n]" ) ) {
+                if ( stringRoute.trim().length() > 0 ) {
+                    routes.add( parseRoute( stringRoute.trim(), targetPort, upstreams ) );
+                }
+            }
+        }
+        if ( stringTargets != null && stringTargets.length() > 0 || stringProxyHostNew != null && stringProxyHostNew.length() > 0 ) {
+            UpstreamGroup legacyGroup = createUpstreamGroup( stringTargets != null && stringTargets.length() > 0 ? stringTargets : stringProxyHostNew,
+                                                             targetPort, targetSsl, upstreams );
+            // Legacy paths keep the context path, the source path is only replaced at its start
+            String contextPath = servletConfig.getServletContext() == null ? "" : servletConfig.getServletContext().getContextPath();
+            routes.add( new Route( null, "", stringPrefixPath + contextPath, legacyGroup, "" ) );
+            if ( stringSourcePath.length() > 0 ) {
+                routes.add( new Route( null, stringSourcePath, stringPrefixPath + contextPath + stringDestinationPath, legacyGroup, "" ) );
+            }
+        }
+        routeTable = new RouteTable( routes );
+        allUpstreams = new UpstreamGroup( new ArrayList<Upstream>( upstreams.values() ), UpstreamSelectors.forName( balancer ),
+                                          ejectionThreshold, ejectionTime );
+        LOGGER.debug( "Routes: {}", routeTable.getRoutes() );
+
+        transport = createTransport( servletConfig );
+        filterChain = createFilterChain( servletConfig );
+
+        if ( healthCheckPath != null ) {
+            allUpstreams.startHealthChecks( transport, healthCheckPath, healthCheckInterval );
+        }
+
+        if ( requestTimeout > 0 ) {
+            deadlineScheduler = new ScheduledThreadPoolExecutor( 1, new DaemonThreadFactory( "proxilet-deadline" ) );
+            // Cancelled deadlines stay queued until they expire, purge them regularly
+            deadlineScheduler.scheduleWithFixedDelay( new Runnable()
+            {
+
+                @Override
+                public void run()
+                {
+                    deadlineScheduler.purge();
+                }
+
+            }, 1, 1, TimeUnit.SECONDS );
+        }
+
+        if ( asyncEnabled ) {
+            asyncExecutor = new ThreadPoolExecutor( asyncThreads, asyncThreads, 60, TimeUnit.SECONDS,
+                                                    new ArrayBlockingQueue<Runnable>( asyncQueueSize ),
+                                                    new DaemonThreadFactory( "proxilet-async" ) );
+            asyncExecutor.allowCoreThreadTimeOut( true );
+        }
+
+        if ( hedgingEnabled ) {
+            // Both attempts of a hedged request are handed to this pool, requests go unhedged when it is exhausted
+            int threads = hedgeThreads < 0 ? maxTotalConnections : hedgeThreads;
+            hedgeExecutor = new ThreadPoolExecutor( 0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                                                    new DaemonThreadFactory( "proxilet-hedge" ) );
+            hedgeDelay = TimeUnit.MILLISECONDS.toNanos( hedgeMinDelay );
+            hedgeDelayUpdate = System.nanoTime();
+        }
+
+        // One buffer per concurrent relay at most
+        int maxRelayBuffersPooled = relayBufferPoolSize < 0 ? maxTotalConnections : relayBufferPoolSize;
+        BufferPool relayBufferPool = new BufferPool( relayBufferSize, maxRelayBuffersPooled );
+        BufferPool smallBufferPool = relaySmallBufferSize > 0 && relaySmallBufferSize < relayBufferSize
+                                     ? new BufferPool( relaySmallBufferSize, maxRelayBuffersPooled ) : null;
+        bodyRelay = new BodyRelay( relayBufferPool, smallBufferPool, relayFlushSize, relayFlushInterval );
+
+        if ( compressionEnabled ) {
+            List<String> types = new ArrayList<String>();
+            if ( compressionTypes != null ) {
+                types.addAll( Arrays.asList( compressionTypes ) );
+            } else {
+                types.addAll( Arrays.asList( ResponseCompressor.DEFAULT_TYPES ) );
+                types.add( stringMimeType.toLowerCase( Locale.US ) );
+                if ( stringForwardTypes != null ) {
+                    for ( String forwardType : stringForwardTypes ) {
+                        types.add( forwardType.trim().toLowerCase( Locale.US ) );
+                    }
+                }
+            }
+            // Compressed output goes through the relay buffers, while the input ones are in use
+            responseCompressor = new ResponseCompressor( types.toArray( new String[ types.size() ] ), compressionMinSize,
+                                                         compressionLevel,
+                                                         compressionPoolSize < 0 ? maxRelayBuffersPooled : compressionPoolSize,
+                                                         new BufferPool( relayBufferSize, maxRelayBuffersPooled ) );
+        }
+
+        if ( accessLogFile != null ) {
+            try {
+                accessLog = new AccessLog( new File( accessLogFile ), accessLogBufferSize, accessLogMaxFileSize, accessLogMaxFiles );
+            } catch ( IOException ex ) {
+                throw new IllegalArgumentException( "Unable to open access log '" + accessLogFile + "', please check init-param 'accessLog' in web.xml", ex );
+            }
+        }
+
+        if ( traceSampling > 0 ) {
+            requestTracer = new RequestTracer( traceSampling, traceSlowest, traceWindow );
+        }
+
+        metrics.setResponseCache( responseCache );
+        metrics.setRequestCoalescer( requestCoalescer );
+        metrics.setBodyRelay( bodyRelay );
+        metrics.setAccessLog( accessLog );
+        metrics.setRequestTracer( requestTracer );
+        if ( jmxEnabled ) {
+            metrics.register( servletConfig.getServletName() );
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        if ( idleConnectionTimeoutThread != null ) {
+            idleConnectionTimeoutThread.shutdown();
+            idleConnectionTimeoutThread = null;
+        }
+        if ( transport != null ) {
+            transport.shutdown();
+            transport = null;
+        }
+        if ( connectionManager != null ) {
+            connectionManager.shutdown();
+            connectionManager = null;
+        }
+        if ( allUpstreams != null ) {
+            allUpstreams.shutdown();
+        }
+        if ( asyncExecutor != null ) {
+            asyncExecutor.shutdownNow();
+            asyncExecutor = null;
+        }
+        if ( deadlineScheduler != null ) {
+            deadlineScheduler.shutdownNow();
+            deadlineScheduler = null;
+        }
+        if ( hedgeExecutor != null ) {
+            hedgeExecutor.shutdownNow();
+            hedgeExecutor = null;
+        }
+        if ( accessLog != null ) {
+            accessLog.close();
+            accessLog = null;
+        }
+        metrics.unregister();
+        super.destroy();
+    }
+
+    /**
+     * Proxies any HTTP request, whatever its method.
+     *
+     * @param httpServletRequest    The {@link HttpServletRequest} object passed in by the servlet engine representing the client request to be proxied
+     * @param httpServletResponse   The {@link HttpServletResponse} object by which we can send a proxied response to the client
+     */
+    @Override
+    protected void service( HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse )
+            throws IOException, ServletException
+    {
+        proxy( httpServletRequest, httpServletResponse );
+    }
+
+    /**
+     * Performs an HTTP GET request.
+     *
+     * @param httpServletRequest    The {@link HttpServletRequest} object passed in by the servlet engine representing the client request to be proxied
+     * @param httpServletResponse   The {@link HttpServletResponse} object by which we can send a proxied response to the client
+     */
+    @Override
+    public void doGet( HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse )
+            throws IOException, ServletException
+    {
+        proxy( httpServletRequest, httpServletResponse );
+    }
+
+    /**
+     * Performs an HTTP POST request.
+     *
+     * @param httpServletRequest    The {@link HttpServletRequest} object passed in by the servlet engine representing the client request to be proxied
+     * @param httpServletResponse   The {@link HttpServletResponse} object by which we can send a proxied response to the client
+     */
+    @Override
+    public void doPost( HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse )
+            throws IOException, ServletException
+    {
+        proxy( httpServletRequest, httpServletResponse );
+    }
+
+    /**
+     * Maps the client request to an upstream request of the same method, forwarding its body, if any, as a stream.
+     *
+     * @param httpServletRequest    The {@link HttpServletRequest} object passed in by the servlet engine representing the client request to be proxied
+     * @param httpServletResponse   The {@link HttpServletResponse} object by which we can send a proxied response to the client
+     */
+    private void proxy( HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse )
+            throws IOException, ServletException
+    {
+        long start = System.nanoTime();
+        metrics.requestReceived();
+        String method = httpServletRequest.getMethod();
+        Route route = routeTable.match( httpServletRequest );
+        if ( route == null ) {
+            LOGGER.debug( "No route for {}", httpServletRequest.getRequestURL() );
+            httpServletResponse.sendError( HttpServletResponse.SC_NOT_FOUND );
+            exchangeCompleted( new ProxyExchange( httpServletRequest, httpServletResponse, null, null, start ) );
+            return;
+        }
+        Upstream upstream = route.getUpstreamGroup().select();
+        String destinationUrl = this.getProxyURL( httpServletRequest, route, upstream );
+        LOGGER.trace( "{} {} => {}", new Object[]{ method, httpServletRequest.getRequestURL(), destinationUrl } );
+        ProxyExchange exchange = new ProxyExchange( httpServletRequest, httpServletResponse, route, upstream, start );
+        if ( requestTracer != null ) {
+            exchange.setTrace( requestTracer.sample( httpServletRequest, start ) );
+            // Routing and URL building
+            exchange.mark( "route" );
+        }
+        try {
+            proxy( exchange, destinationUrl );
+        } finally {
+            // Asynchronous exchanges are recorded once completed
+            if ( !exchange.isAsync() ) {
+                exchangeCompleted( exchange );
+            }
+        }
+    }
+
+    /**
+     * Serves the given exchange from the cache, from a coalesced request or from its upstream.
+     *
+     * @param exchange          The exchange, routed to its upstream
+     * @param destinationUrl    The upstream request URL
+     */
+    private void proxy( ProxyExchange exchange, String destinationUrl )
+            throws IOException, ServletException
+    {
+        HttpServletRequest httpServletRequest = exchange.getRequest();
+        HttpServletResponse httpServletResponse = exchange.getResponse();
+        Upstream upstream = exchange.getUpstream();
+        if ( ( responseCache != null || requestCoalescer != null ) && CachePolicy.isCacheableRequest( httpServletRequest ) ) {
+            // Cache entries are shared by the upstreams of a route, the key is the rewritten URL without scheme, host
+            // and port
+            exchange.setCacheKey( exchange.getRoute().getCacheKeyPrefix() + destinationUrl.substring( upstream.getBaseUrl().length() ) );
+            if ( responseCache != null && serveFromCache( exchange ) ) {
+                return;
+            }
+            if ( requestCoalescer != null && !CachePolicy.isConditionalRequest( httpServletRequest ) ) {
+                String coalescingKey = CachePolicy.coalescingKey( exchange.getCacheKey(), httpServletRequest );
+                RequestCoalescer.Flight flight = requestCoalescer.lead( coalescingKey );
+                if ( flight != null ) {
+                    exchange.setFlight( flight );
+                } else {
+                    CachedResponse sharedResponse = followFlight( coalescingKey );
+                    if ( sharedResponse != null ) {
+                        LOGGER.trace( "Coalesced {}", coalescingKey );
+                        sendCachedResponse( exchange, sharedResponse );
+                        return;
+                    }
+                    // Fall back to an independent request, the leader may have cached its response meanwhile
+                    if ( responseCache != null && serveFromCache( exchange ) ) {
+                        return;
+                    }
+                }
+            }
+            // Cache lookup and coalesced flight wait
+            exchange.mark( "cache" );
+        }
+        boolean permitted = false;
+        boolean executing = false;
+        try {
+            permitted = upstream.tryAcquirePermission();
+            if ( !permitted ) {
+                // Fail fast while the upstream circuit is open
+                LOGGER.debug( "Circuit of upstream {} is open, rejecting {}", upstream, httpServletRequest.getRequestURL() );
+                httpServletResponse.setHeader( HEADER_RETRY_AFTER, String.valueOf( Math.max( 1, circuitBreakerOpenTime / 1000 ) ) );
+                httpServletResponse.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+                return;
+            }
+            prepareProxyRequest( exchange, httpServletRequest.getMethod(), destinationUrl );
+            executing = true;
+            // Execute the proxy request
+            this.executeProxyRequest( exchange );
+        } finally {
+            if ( !executing ) {
+                landFlight( exchange, null );
+                if ( permitted ) {
+                    upstream.releasePermission();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the given exchange in the access log and its trace, if enabled.
+     */
+    private void exchangeCompleted( ProxyExchange exchange )
+    {
+        RequestTrace trace = exchange.getTrace();
+        if ( trace != null ) {
+            trace.finish( exchange.getResponse().getStatus(), exchange.getUpstreamCall() == null ? null : exchange.getUpstream() );
+            requestTracer.record( trace );
+        }
+        if ( accessLog != null ) {
+            HttpServletRequest httpServletRequest = exchange.getRequest();
+            // Responses served from the cache or shared by a coalesced request have no upstream call
+            accessLog.log( System.currentTimeMillis(), httpServletRequest.getRemoteAddr(), httpServletRequest.getMethod(),
+                           httpServletRequest.getRequestURI(), httpServletRequest.getQueryString(), exchange.getRoute(),
+                           exchange.getUpstreamCall() == null ? null : exchange.getUpstream(),
+                           exchange.getResponse().getStatus(), exchange.getBytesReceived(), exchange.getBytesSent(),
+                           System.nanoTime() - exchange.getStartTime(), exchange.getTimeToFirstByte(),
+                           exchange.getBodyTransfer() );
+        }
+    }
+
+    /**
+     * Look the response up in the cache and send it if it is fresh. Stale responses that can be revalidated are set
+     * on the exchange.
+     *
+     * @param exchange  The exchange, with its cache key set
+     * @return          true if the response was sent from the cache
+     */
+    private boolean serveFromCache( ProxyExchange exchange )
+            throws IOException, ServletException
+    {
+        HttpServletRequest httpServletRequest = exchange.getRequest();
+        CachedResponse cachedResponse = responseCache.get( exchange.getCacheKey(), httpServletRequest );
+        if ( cachedResponse == null ) {
+            return false;
+        }
+        if ( cachedResponse.isFresh( System.currentTimeMillis() ) && !CachePolicy.isRevalidationRequested( httpServletRequest ) ) {
+            LOGGER.trace( "Cache hit for {}", exchange.getCacheKey() );
+            sendCachedResponse( exchange, cachedResponse );
+            return true;
+        }
+        if ( cachedResponse.hasValidators() && !CachePolicy.isConditionalRequest( httpServletRequest ) ) {
+            exchange.setRevalidatedResponse( cachedResponse );
+        }
+        return false;
+    }
+
+    private CachedResponse followFlight( String coalescingKey )
+    {
+        try {
+            return requestCoalescer.follow( coalescingKey );
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void landFlight( ProxyExchange exchange, CachedResponse response )
+    {
+        if ( exchange.getFlight() != null ) {
+            requestCoalescer.land( exchange.getFlight(), response );
+        }
+    }
+
+    /**
+     * Creates the upstream request of the given exchange, with its headers and body.
+     */
+    private void prepareProxyRequest( ProxyExchange exchange, String method, String destinationUrl )
+            throws IOException, ServletException
+    {
+        HttpServletRequest httpServletRequest = exchange.getRequest();
+        Upstream upstream = exchange.getUpstream();
+        HttpMethod httpMethodProxyRequest = createProxyRequest( exchange, method, upstream, destinationUrl );
+        exchange.mark( "headers" );
+        List<BodyFilter> bodyFilters = filterChain.filterRequest( httpServletRequest, upstream, httpMethodProxyRequest );
+        exchange.setProxyRequest( httpMethodProxyRequest );
+        UpstreamCall call = transport.newCall( upstream, httpMethodProxyRequest );
+        exchange.setUpstreamCall( call );
+        exchange.addUpstreamCall( call );
+        // Forward the request body
+        if ( httpMethodProxyRequest instanceof PostMethod ) {
+            PostMethod postMethodProxyRequest = ( PostMethod ) httpMethodProxyRequest;
+            String contentType = httpServletRequest.getContentType();
+            // Check if this is a mulitpart (file upload) POST
+            if ( ServletFileUpload.isMultipartContent( httpServletRequest ) ) {
+                this.handleMultipartPost( postMethodProxyRequest, httpServletRequest );
+            } else if ( bodyFilters.isEmpty()
+                        && ( contentType == null || PostMethod.FORM_URL_ENCODED_CONTENT_TYPE.equals( contentType ) ) ) {
+                this.handleStandardPost( postMethodProxyRequest, httpServletRequest );
+            } else {
+                // Filtered form bodies are streamed as is rather than parsed
+                this.handleContentPost( postMethodProxyRequest, httpServletRequest, bodyFilters );
+            }
+        } else if ( httpMethodProxyRequest instanceof EntityEnclosingMethod && hasRequestBody( httpServletRequest ) ) {
+            this.handleContentPost( ( EntityEnclosingMethod ) httpMethodProxyRequest, httpServletRequest, bodyFilters );
+        }
+        // Form and multipart parsing, other bodies are streamed during the upstream call
+        exchange.mark( "body" );
+    }
+
+    /**
+     * Creates a request of the given exchange to the given upstream, with the request headers but without body.
+     */
+    private HttpMethod createProxyRequest( ProxyExchange exchange, String method, Upstream upstream, String destinationUrl )
+    {
+        // The request is executed against the upstream host configuration, its URI is relative
+        String requestUri = destinationUrl.substring( upstream.getBaseUrl().length() );
+        HttpMethod httpMethodProxyRequest = createProxyRequest( method, requestUri.length() == 0 ? "/" : requestUri );
+        httpMethodProxyRequest.setFollowRedirects( false );
+        // Forward the request headers
+        setProxyRequestHeaders( exchange.getRequest(), httpMethodProxyRequest, upstream );
+        CachedResponse cachedResponse = exchange.getRevalidatedResponse();
+        if ( cachedResponse != null ) {
+            // Revalidate the stale cached response
+            if ( cachedResponse.getETag() != null ) {
+                httpMethodProxyRequest.setRequestHeader( CachePolicy.HEADER_IF_NONE_MATCH, cachedResponse.getETag() );
+            }
+            if ( cachedResponse.getLastModified() != null ) {
+                httpMethodProxyRequest.setRequestHeader( CachePolicy.HEADER_IF_MODIFIED_SINCE, cachedResponse.getLastModified() );
+            }
+        }
+        return httpMethodProxyRequest;
+    }
+
+    /**
+     * Creates the upstream request for the given method. HEAD is forwarded as a real HEAD, so that no body is
+     * transfered from the target.
+     *
+     * @param method            The client request method
+     * @param destinationUrl    The upstream request URL
+     * @return                  The upstream request
+     */
+    private static HttpMethod createProxyRequest( String method, String destinationUrl )
+    {
+        if ( METHOD_GET.equals( method ) ) {
+            return new GetMethod( destinationUrl );
+        } else if ( METHOD_HEAD.equals( method ) ) {
+            return new HeadMethod( destinationUrl );
+        } else if ( METHOD_POST.equals( method ) ) {
+            return new PostMethod( destinationUrl );
+        } else if ( METHOD_TRACE.equals( method ) ) {
+            return new TraceMethod( destinationUrl );
+        }
+        // PUT, PATCH, DELETE, OPTIONS and any extension method
+        return new EntityEnclosingProxyMethod( method, destinationUrl );
+    }
+
+    private static boolean hasRequestBody( HttpServletRequest httpServletRequest )
+    {
+        return httpServletRequest.getContentLength() > 0 || httpServletRequest.getHeader( HEADER_TRANSFER_ENCODING ) != null;
+    }
+
+    /**
+     * Sets up the given {@link PostMethod} to send the same multipart POST data as was sent in the given
+     * {@link HttpServletRequest}.
+     *
+     * Parts are streamed to the target as they are read, uploaded files are never held in memory nor on disk. If
+     * preserveMultipartBoundary is set, the body is relayed verbatim along with its original boundary.
+     *
+     * @param postMethodProxyRequest    The {@link PostMethod} that we are configuring to send a multipart POST request
+     * @param httpServletRequest    The {@link HttpServletRequest} that contains the mutlipart POST data to be sent via the {@link PostMethod}
+     */
+    private void handleMultipartPost( PostMethod postMethodProxyRequest, HttpServletRequest httpServletRequest )
+            throws IOException, ServletException
+    {
+        if ( preserveMultipartBoundary ) {
+            // The content-type header, with its boundary, has already been copied from the client request
+            postMethodProxyRequest.setRequestEntity( new StreamingRequestEntity( httpServletRequest.getInputStream(),
+                                                                                 httpServletRequest.getContentLength(),
+                                                                                 httpServletRequest.getContentType() ) );
+            return;
+        }
+        // Create a new streaming file upload handler
+        metrics.multipartUploaded();
+        ServletFileUpload servletFileUpload = new ServletFileUpload();
+        if ( maxFileUploadSize > 0 ) {
+            servletFileUpload.setFileSizeMax( maxFileUploadSize );
+        }
+        try {
+            // Multipart items are read lazily, while the proxy request is sent
+            StreamingMultipartRequestEntity multipartRequestEntity = new StreamingMultipartRequestEntity(
+                    servletFileUpload.getItemIterator( httpServletRequest ) );
+            postMethodProxyRequest.setRequestEntity( multipartRequestEntity );
+            // The current content-type header (received from the client) IS of
+            // type "multipart/form-data", but the content-type header also
+            // contains the chunk boundary string of the chunks. Currently, this
+            // header is using the boundary of the client request, since we
+            // blindly copied all headers from the client request to the proxy
+            // request. However, we are creating a new request with a new chunk
+            // boundary string, so it is necessary that we re-set the
+            // content-type string to reflect the new chunk boundary string
+            postMethodProxyRequest.setRequestHeader( HEADER_CONTENT_TYPE, multipartRequestEntity.getContentType() );
+        } catch ( FileUploadException fileUploadException ) {
+            throw new ServletException( fileUploadException );
+        }
+    }
+
+    /**
+     * Sets up the given {@link PostMethod} to send the same standard POST data as was sent in the given
+     * {@link HttpServletRequest}.
+     *
+     * @param postMethodProxyRequest    The {@link PostMethod} that we are configuring to send a standard POST request
+     * @param httpServletRequest        The {@link HttpServletRequest} that contains the POST data to be sent via the {@link PostMethod}
+     */
+    void handleStandardPost( PostMethod postMethodProxyRequest, HttpServletRequest httpServletRequest )
+    {
+        // Get the client POST data as a Map
+        Map<String, String[]> mapPostParameters = httpServletRequest.getParameterMap();
+        // Create a List to hold the NameValuePairs to be passed to the PostMethod
+        List<NameValuePair> listNameValuePairs = new ArrayList<NameValuePair>();
+        // Iterate the parameter names
+        for ( String stringParameterName : mapPostParameters.keySet() ) {
+            // Iterate the values for each parameter name
+            String[] stringArrayParameterValues = mapPostParameters.get( stringParameterName );
+            for ( String stringParamterValue : stringArrayParameterValues ) {
+                // Create a NameValuePair and store in list
+                NameValuePair nameValuePair = new NameValuePair( stringParameterName, stringParamterValue );
+                listNameValuePairs.add( nameValuePair );
+            }
+        }
+        // Set the proxy request POST data
+        postMethodProxyRequest.setRequestBody( listNameValuePairs.toArray( new NameValuePair[]{} ) );
+    }
+
+    /**
+     * Sets up the given {@link EntityEnclosingMethod} to send the same content data (JSON, XML, etc.) as was sent in the
+     * given {@link HttpServletRequest}. The content is streamed to the target, never buffered as a whole.
+     *
+     * @param postMethodProxyRequest    The {@link EntityEnclosingMethod} that we are configuring to send a content request
+     * @param httpServletRequest        The {@link HttpServletRequest} that contains the data to be sent via the {@link EntityEnclosingMethod}
+     * @param bodyFilters               The filters the content goes through on the fly, may be empty
+     */
+    void handleContentPost( EntityEnclosingMethod postMethodProxyRequest, HttpServletRequest httpServletRequest,
+                            List<BodyFilter> bodyFilters )
+            throws IOException
+    {
+        String contentType = httpServletRequest.getContentType();
+        LOGGER.trace( "Content Type: {} Encoding: {}", contentType, httpServletRequest.getCharacterEncoding() );
+        // Set the proxy request data
+        postMethodProxyRequest.setRequestEntity( new StreamingRequestEntity( httpServletRequest.getInputStream(),
+                                                                             httpServletRequest.getContentLength(),
+                                                                             contentType, bodyFilters ) );
+    }
+
+    /**
+     * Parses a route, formatted as {@code [host]/prefix targets [rewrite]} where targets is a comma separated list of
+     * host[:port], optionally prefixed by http:// or https://. The rewrite prefix defaults to the matched prefix.
+     */
+    private Route parseRoute( String stringRoute, int defaultPort, Map<String, Upstream> upstreams )
+    {
+        String[] tokens = stringRoute.split( "\\s+" );
+        if ( tokens.length < 2 || tokens.length > 3 ) {
+            throw new IllegalArgumentException( "Invalid route '" + stringRoute + "', expected '[host]/prefix targets [rewrite]'" );
+        }
+        int slash = tokens[0].indexOf( '/' );
+        String host = slash == 0 ? null : ( slash < 0 ? tokens[0] : tokens[0].substring( 0, slash ) );
+        String pathPrefix = slash < 0 ? "" : tokens[0].substring( slash );
+        String targets = tokens[1];
+        boolean ssl = targetSsl;
+        if ( targets.startsWith( "https://" ) ) {
+            ssl = true;
+            targets = targets.substring( "https://".length() );
+        } else if ( targets.startsWith( "http://" ) ) {
+            ssl = false;
+            targets = targets.substring( "http://".length() );
+        }
+        String rewritePrefix = tokens.length == 3 ? tokens[2] : pathPrefix;
+        if ( "/".equals( rewritePrefix ) && !pathPrefix.endsWith( "/" ) ) {
+            rewritePrefix = "";
+        }
+        return new Route( host, pathPrefix, rewritePrefix, createUpstreamGroup( targets, defaultPort, ssl, upstreams ), tokens[0] + " " );
+    }
+
+    /**
+     * Creates a group of the given comma separated host[:port] targets, upstreams are shared by groups.
+     */
+    private UpstreamGroup createUpstreamGroup( String targets, int defaultPort, boolean ssl, Map<String, Upstream> upstreams )
+    {
+        List<Upstream> group = new ArrayList<Upstream>();
+        for ( String target : targets.split( "[,\\s]+" ) ) {
+            if ( target.length() > 0 ) {
+                int colon = target.lastIndexOf( ':' );
+                Upstream upstream = colon > 0
+                                    ? new Upstream( target.substring( 0, colon ), Integer.parseInt( target.substring( colon + 1 ) ), ssl )
+                                    : new Upstream( target, defaultPort, ssl );
+                Upstream shared = upstreams.get( upstream.getBaseUrl() );
+                if ( shared == null ) {
+                    if ( circuitBreakerEnabled ) {
+                        upstream.setCircuitBreaker( new CircuitBreaker( upstream.toString(), circuitBreakerFailureRate,
+                                                                        circuitBreakerSlowCallRate, circuitBreakerSlowCallDuration,
+                                                                        circuitBreakerWindowSize, circuitBreakerOpenTime,
+                                                                        circuitBreakerHalfOpenCalls ) );
+                    }
+                    if ( concurrencyLimitEnabled ) {
+                        upstream.setConcurrencyLimiter( new ConcurrencyLimiter( concurrencyLimitInitial, 1, concurrencyLimitMax,
+                                                                                concurrencyLimitTolerance, concurrencyLimitQueueSize,
+                                                                                concurrencyLimitQueueTimeout ) );
+                    }
+                    upstream.setHostConfiguration( createHostConfiguration( upstream ) );
+                    upstreams.put( upstream.getBaseUrl(), upstream );
+                    shared = upstream;
+                }
+                group.add( shared );
+            }
+        }
+        return new UpstreamGroup( group, UpstreamSelectors.forName( balancer ), ejectionThreshold, ejectionTime );
+    }
+
+    /**
+     * Upstream requests are executed against a per-upstream host configuration, whose socket factory records connect
+     * and TLS handshake times. Protocols are not registered globally, so other HttpClient users of the JVM are not
+     * affected.
+     */
+    private HostConfiguration createHostConfiguration( Upstream upstream )
+    {
+        Protocol instrumentedProtocol;
+        if ( upstream.isSsl() ) {
+            instrumentedProtocol = new Protocol( "https", InstrumentedProtocolSocketFactory.wrap( getSSLSocketFactory(), metrics ), 443 );
+        } else {
+            Protocol protocol = Protocol.getProtocol( "http" );
+            instrumentedProtocol = new Protocol( protocol.getScheme(),
+                                                 InstrumentedProtocolSocketFactory.wrap( protocol.getSocketFactory(), metrics ),
+                                                 protocol.getDefaultPort() );
+        }
+        HostConfiguration hostConfiguration = new HostConfiguration();
+        hostConfiguration.setHost( upstream.getHost(), upstream.getPort(), instrumentedProtocol );
+        return hostConfiguration;
+    }
+
+    private ConfigurableSSLProtocolSocketFactory getSSLSocketFactory()
+    {
+        if ( sslSocketFactory == null ) {
+            try {
+                sslSocketFactory = new ConfigurableSSLProtocolSocketFactory( tlsTrustStore == null ? null : new File( tlsTrustStore ),
+                                                                             tlsTrustStorePassword, tlsTrustStoreType, tlsTrustAll,
+                                                                             tlsVerifyHostname, tlsProtocols, tlsCipherSuites,
+                                                                             tlsSessionCacheSize, tlsSessionTimeout );
+            } catch ( GeneralSecurityException ex ) {
+                throw new IllegalArgumentException( "Unable to set up upstream TLS: " + ex.getMessage(), ex );
+            } catch ( IOException ex ) {
+                throw new IllegalArgumentException( "Unable to read the upstream TLS truststore: " + ex.getMessage(), ex );
+            }
+        }
+        return sslSocketFactory;
+    }
+
+    /**
+     * Creates the configured upstream transport. The commons-httpclient one is always created, it is only used when
+     * configured.
+     */
+    private UpstreamTransport createTransport( ServletConfig servletConfig )
+    {
+        HttpClient httpClient = createClientWithLogin();
+        if ( TRANSPORT_HTTP1.equals( transportName ) ) {
+            return new HttpClientTransport( httpClient );
+        } else if ( TRANSPORT_H2.equals( transportName ) ) {
+            boolean ssl = false;
+            for ( Upstream upstream : allUpstreams.getUpstreams() ) {
+                ssl |= upstream.isSsl();
+            }
+            // Few multiplexed connections per upstream, kept alive as the pooled ones
+            return new OkHttpTransport( connectTimeout, readTimeout, maxConnectionsPerHost,
+                                        idleConnectionTimeout > 0 ? idleConnectionTimeout : TimeUnit.MINUTES.toMillis( 5 ),
+                                        ssl ? getSSLSocketFactory() : null, targetCredentials, metrics );
+        }
+        try {
+            Class<?> transportClass = Class.forName( transportName, true, Thread.currentThread().getContextClassLoader() );
+            return ( UpstreamTransport ) transportClass.getConstructor( ServletConfig.class ).newInstance( servletConfig );
+        } catch ( Exception ex ) {
+            throw new IllegalArgumentException( "Unable to create upstream transport '" + transportName + "', please check init-param 'transport' in web.xml", ex );
+        }
+    }
+
+    private ProxyFilterChain createFilterChain( ServletConfig servletConfig )
+    {
+        List<ProxyFilter> filters = new ArrayList<ProxyFilter>();
+        for ( String filterName : filterNames.split( "," ) ) {
+            filterName = filterName.trim();
+            if ( filterName.length() == 0 || "none".equals( filterName ) ) {
+                continue;
+            } else if ( FILTER_GWT_RPC.equals( filterName ) ) {
+                filters.add( new GwtRpcFilter( stringMimeType, stringPrefixPath ) );
+            } else if ( FILTER_LOCATION.equals( filterName ) ) {
+                filters.add( new LocationFilter( proxyPath ) );
+            } else {
+                try {
+                    Class<?> filterClass = Class.forName( filterName, true, Thread.currentThread().getContextClassLoader() );
+                    filters.add( ( ProxyFilter ) filterClass.getConstructor( ServletConfig.class ).newInstance( servletConfig ) );
+                } catch ( Exception ex ) {
+                    throw new IllegalArgumentException( "Unable to create proxy filter '" + filterName + "', please check init-param 'filters' in web.xml", ex );
+                }
+            }
+        }
+        return new ProxyFilterChain( filters );
+    }
+
+    private HttpClient createClientWithLogin()
+    {
+        // Create a thread-safe pooled connection manager, shared for the servlet lifetime
+        connectionManager = new InstrumentedConnectionManager( metrics.poolWait );
+        metrics.setConnectionManager( connectionManager );
+        HttpConnectionManagerParams connectionManagerParams = connectionManager.getParams();
+        connectionManagerParams.setMaxTotalConnections( maxTotalConnections );
+        connectionManagerParams.setDefaultMaxConnectionsPerHost( maxConnectionsPerHost );
+        connectionManagerParams.setStaleCheckingEnabled( staleCheckingEnabled );
+        connectionManagerParams.setConnectionTimeout( connectTimeout );
+        connectionManagerParams.setSoTimeout( readTimeout );
+
+        // Evict connections that stayed idle in the pool for too long
+        if ( idleConnectionTimeout > 0 ) {
+            idleConnectionTimeoutThread = new IdleConnectionTimeoutThread();
+            idleConnectionTimeoutThread.setName( "proxilet-idle-connection-evictor" );
+            idleConnectionTimeoutThread.setConnectionTimeout( idleConnectionTimeout );
+            idleConnectionTimeoutThread.setTimeoutInterval( Math.max( 1000, idleConnectionTimeout / 2 ) );
+            idleConnectionTimeoutThread.addConnectionManager( connectionManager );
+            idleConnectionTimeoutThread.start();
+        }
+
+        HttpClient httpClient = new HttpClient( connectionManager );
+        // Bound the wait for a pooled connection
+        httpClient.getParams().setConnectionManagerTimeout( poolTimeout );
+
+        // if login/password authentication is required :
+        if ( targetCredentials != null ) {
+            httpClient.getParams().setAuthenticationPreemptive( true );
+            String[] creds = targetCredentials.split( ":" );
+            Credentials defaultcreds = new UsernamePasswordCredentials( creds[0], creds[1] );
+            for ( Upstream upstream : allUpstreams.getUpstreams() ) {
+                httpClient.getState().setCredentials( new AuthScope( upstream.getHost(), upstream.getPort(), AuthScope.ANY_REALM ), defaultcreds );
+            }
+        }
+        return httpClient;
+    }
+
+    /**
+     * Executes the {@link HttpMethod} of the given exchange and sends the proxy response back to the client via its
+     * {@link HttpServletResponse}.
+     *
+     * @param exchange              The exchange holding the proxy request to be made and the client request and response
+     * @throws IOException          Can be thrown by the {@link HttpClient}.executeMethod
+     * @throws ServletException     Can be thrown to indicate that another error has occurred
+     */
+    private void executeProxyRequest( ProxyExchange exchange )
+            throws IOException, ServletException
+    {
+        HttpServletRequest httpServletRequest = exchange.getRequest();
+        if ( asyncExecutor != null && httpServletRequest.isAsyncSupported() ) {
+            // Release the container thread, the upstream exchange is carried by the proxy worker pool
+            AsyncContext asyncContext = httpServletRequest.startAsync( httpServletRequest, exchange.getResponse() );
+            exchange.setAsync( true );
+            asyncContext.setTimeout( asyncTimeout );
+            AsyncProxyRequest asyncProxyRequest = new AsyncProxyRequest( asyncContext, exchange );
+            asyncContext.addListener( asyncProxyRequest );
+            try {
+                asyncExecutor.execute( asyncProxyRequest );
+            } catch ( RejectedExecutionException ex ) {
+                LOGGER.warn( "Async proxy queue is full, rejecting {}", httpServletRequest.getRequestURL() );
+                asyncProxyRequest.fail( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+            }
+            return;
+        }
+        doExecuteProxyRequest( exchange );
+    }
+
+    /**
+     * Releases what the given exchange holds when its upstream request is not sent: followers of its flight, its
+     * upstream call and its circuit breaker permission.
+     */
+    private void releaseUnsent( ProxyExchange exchange )
+    {
+        landFlight( exchange, null );
+        exchange.getUpstreamCall().release();
+        exchange.getUpstream().releasePermission();
+    }
+
+    private void doExecuteProxyRequest( ProxyExchange exchange )
+            throws IOException, ServletException
+    {
+        Upstream upstream = exchange.getUpstream();
+        ConcurrencyLimiter limiter = upstream.getConcurrencyLimiter();
+        if ( limiter != null && !limiter.tryAcquire() ) {
+            // Shed excess load early, admitted requests keep their latency
+            releaseUnsent( exchange );
+            metrics.requestShed();
+            LOGGER.debug( "Upstream {} is at its concurrency limit of {}, rejecting {}",
+                          new Object[]{ upstream, limiter.getLimit(), exchange.getRequest().getRequestURL() } );
+            exchange.getResponse().setHeader( HEADER_RETRY_AFTER, "1" );
+            exchange.getResponse().sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+            return;
+        }
+        UpstreamAttempt attempt = new UpstreamAttempt( upstream, exchange.getRoute().getUpstreamGroup(),
+                                                       exchange.getUpstreamCall(), limiter, metrics );
+        UpstreamDeadline deadline = null;
+        ScheduledFuture<?> deadlineFuture = null;
+        if ( deadlineScheduler != null ) {
+            deadline = new UpstreamDeadline( exchange );
+            deadlineFuture = deadlineScheduler.schedule( deadline, requestTimeout, TimeUnit.MILLISECONDS );
+        }
+        try {
+            // Execute the request
+            try {
+                attempt = executeAttempts( exchange, attempt );
+            } catch ( IOException ex ) {
+                exchange.mark( "upstream" );
+                sendUpstreamError( exchange, ex, deadline != null && deadline.hasFired() );
+                return;
+            }
+            exchange.mark( "upstream" );
+            // The response may come from a retry or a hedge
+            UpstreamCall call = attempt.getCall();
+            exchange.setUpstream( attempt.getUpstream() );
+            exchange.setUpstreamCall( call );
+            exchange.setTimeToFirstByte( attempt.getTimeToFirstByte() );
+            Header[] headerArrayResponse = call.getResponseHeaders();
+            InputStream upstreamBody = call.getResponseBody();
+            CountingInputStream responseBody = upstreamBody == null ? null : new CountingInputStream( upstreamBody );
+            long transferStart = System.nanoTime();
+            try {
+                relayProxyResponse( exchange, attempt.getStatusCode(), headerArrayResponse, responseBody );
+            } finally {
+                exchange.mark( "relay" );
+                long bodyTransfer = System.nanoTime() - transferStart;
+                metrics.bodyTransfer.record( bodyTransfer );
+                exchange.setBodyTransfer( bodyTransfer );
+                if ( responseBody != null ) {
+                    metrics.bytesReceived( responseBody.getByteCount() );
+                    exchange.setBytesReceived( responseBody.getByteCount() );
+                }
+            }
+        } finally {
+            if ( deadlineFuture != null ) {
+                deadlineFuture.cancel( false );
+            }
+            // Followers of a flight that shared nothing fall back to independent requests
+            landFlight( exchange, null );
+            // Always hand the connection back to the pool, whatever happened
+            attempt.finish();
+        }
+    }
+
+    /**
+     * Executes the given exchange up to the response headers. GETs and HEADs are hedged on another upstream if the
+     * first attempt is slower than the hedge delay, and retried on another upstream if they fail to connect. Other
+     * requests are executed once.
+     *
+     * @param exchange          The exchange
+     * @param first             The first attempt, to the upstream selected for the exchange
+     * @return                  The attempt whose response is to be relayed, all other attempts are finished
+     * @throws IOException      The failure of the last attempt, all attempts are then finished
+     */
+    private UpstreamAttempt executeAttempts( ProxyExchange exchange, UpstreamAttempt first )
+            throws IOException
+    {
+        String method = exchange.getRequest().getMethod();
+        if ( !METHOD_GET.equals( method ) && !METHOD_HEAD.equals( method ) ) {
+            return executeAttempt( first );
+        }
+        UpstreamAttempt attempt = first;
+        for ( int retries = 0; ; retries++ ) {
+            try {
+                return hedgeExecutor == null ? executeAttempt( attempt ) : executeHedged( exchange, attempt );
+            } catch ( IOException ex ) {
+                if ( retries >= connectRetries || !isConnectFailure( ex ) || exchange.isAborted() ) {
+                    throw ex;
+                }
+                UpstreamAttempt retry = newAttempt( exchange, exchange.getRoute().getUpstreamGroup().selectOther( attempt.getUpstream() ) );
+                if ( retry == null ) {
+                    throw ex;
+                }
+                LOGGER.debug( "Upstream {} failed to connect for {}, retrying on {}",
+                              new Object[]{ attempt.getUpstream(), exchange.getRequest().getRequestURL(), retry.getUpstream() } );
+                metrics.requestRetried();
+                attempt = retry;
+            }
+        }
+    }
+
+    private static UpstreamAttempt executeAttempt( UpstreamAttempt attempt )
+            throws IOException
+    {
+        boolean succeeded = false;
+        try {
+            attempt.call();
+            succeeded = true;
+            return attempt;
+        } finally {
+            if ( !succeeded ) {
+                attempt.finish();
+            }
+        }
+    }
+
+    /**
+     * Races a hedge against the given attempt once it has been waiting for longer than the hedge delay, the first
+     * attempt to get response headers wins and the other one is abandoned.
+     */
+    private UpstreamAttempt executeHedged( ProxyExchange exchange, UpstreamAttempt primary )
+            throws IOException
+    {
+        CompletionService<UpstreamAttempt> race = new ExecutorCompletionService<UpstreamAttempt>( hedgeExecutor );
+        try {
+            race.submit( primary );
+        } catch ( RejectedExecutionException ex ) {
+            // All hedging threads are busy, go without
+            return executeAttempt( primary );
+        }
+        List<UpstreamAttempt> attempts = new ArrayList<UpstreamAttempt>( 2 );
+        attempts.add( primary );
+        UpstreamAttempt winner = null;
+        IOException failure = null;
+        try {
+            int pending = 1;
+            Future<UpstreamAttempt> completed = race.poll( hedgeDelay(), TimeUnit.NANOSECONDS );
+            if ( completed == null && !exchange.isAborted() ) {
+                UpstreamAttempt hedge = newAttempt( exchange, exchange.getRoute().getUpstreamGroup().selectOther( primary.getUpstream() ) );
+                if ( hedge != null ) {
+                    try {
+                        race.submit( hedge );
+                        attempts.add( hedge );
+                        pending++;
+                        metrics.requestHedged();
+                        LOGGER.trace( "Hedging {} on {}", exchange.getRequest().getRequestURL(), hedge.getUpstream() );
+                    } catch ( RejectedExecutionException ex ) {
+                        hedge.finish();
+                    }
+                }
+            }
+            while ( winner == null && pending > 0 ) {
+                if ( completed == null ) {
+                    completed = race.take();
+                }
+                pending--;
+                try {
+                    winner = completed.get();
+                } catch ( ExecutionException ex ) {
+                    failure = upstreamFailure( ex );
+                }
+                completed = null;
+            }
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            failure = new InterruptedIOException( "Interrupted while waiting for upstream" );
+        } finally {
+            for ( UpstreamAttempt attempt : attempts ) {
+                if ( attempt != winner ) {
+                    attempt.abandon();
+                }
+            }
+        }
+        if ( winner == null ) {
+            throw failure;
         }
+        return winner;
+    }
 
-        String strRemovePrexif = servletConfig.getInitParameter( "removePrefix" );
-        if ( strRemovePrexif != null && strRemovePrexif.length() > 0 ) {
-            removePrefix = Boolean.valueOf( strRemovePrexif );
+    /**
+     * Creates a retry or hedge attempt of the given exchange, if the given upstream can take it right away.
+     *
+     * @return the attempt, or null if there is no upstream or if it is at its limit
+     */
+    private UpstreamAttempt newAttempt( ProxyExchange exchange, Upstream upstream )
+    {
+        if ( upstream == null ) {
+            return null;
         }
-
-        // Get the maximum file upload size if specified
-        String stringMaxFileUploadSize = servletConfig.getInitParameter( "maxFileUploadSize" );
-        if ( stringMaxFileUploadSize != null && stringMaxFileUploadSize.length() > 0 ) {
-            maxFileUploadSize = Integer.parseInt( stringMaxFileUploadSize );
+        HttpServletRequest httpServletRequest = exchange.getRequest();
+        HttpMethod httpMethodProxyRequest = createProxyRequest( exchange, httpServletRequest.getMethod(), upstream,
+                                                                getProxyURL( httpServletRequest, exchange.getRoute(), upstream ) );
+        try {
+            // GETs and HEADs have no body to filter
+            filterChain.filterRequest( httpServletRequest, upstream, httpMethodProxyRequest );
+        } catch ( IOException ex ) {
+            LOGGER.debug( "Unable to filter {} for {}: {}", new Object[]{ httpServletRequest.getRequestURL(), upstream, ex.getMessage() } );
+            return null;
         }
-
-        String strSourcePath = servletConfig.getInitParameter( "sourcePath" );
-        if ( strSourcePath != null && strSourcePath.length() > 0 ) {
-            stringSourcePath = strSourcePath;
+        if ( !upstream.tryAcquirePermission() ) {
+            return null;
         }
-
-        String strDestinationPath = servletConfig.getInitParameter( "destinationPath" );
-        if ( strDestinationPath != null && strDestinationPath.length() > 0 ) {
-            stringDestinationPath = strDestinationPath;
+        ConcurrencyLimiter limiter = upstream.getConcurrencyLimiter();
+        if ( limiter != null && !limiter.tryAcquireNow() ) {
+            upstream.releasePermission();
+            return null;
         }
-
+        UpstreamCall call = transport.newCall( upstream, httpMethodProxyRequest );
+        exchange.addUpstreamCall( call );
+        return new UpstreamAttempt( upstream, exchange.getRoute().getUpstreamGroup(), call, limiter, metrics );
     }
 
     /**
-     * Performs an HTTP GET request.
-     *
-     * @param httpServletRequest    The {@link HttpServletRequest} object passed in by the servlet engine representing the client request to be proxied
-     * @param httpServletResponse   The {@link HttpServletResponse} object by which we can send a proxied response to the client
+     * @return the time after which GETs and HEADs are hedged, in nanoseconds, refreshed from the time to first byte
+     *         distribution every second
      */
-    @Override
-    public void doGet( HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse )
-            throws IOException, ServletException
+    private long hedgeDelay()
     {
-        // Create a GET request
-        String destinationUrl = this.getProxyURL( httpServletRequest );
-        LOGGER.trace( "GET {} => {}", httpServletRequest.getRequestURL(), destinationUrl );
-        GetMethod getMethodProxyRequest = new GetMethod( destinationUrl );
-        // Forward the request headers
-        setProxyRequestHeaders( httpServletRequest, getMethodProxyRequest );
-        // Execute the proxy request
-        this.executeProxyRequest( getMethodProxyRequest, httpServletRequest, httpServletResponse );
+        long now = System.nanoTime();
+        if ( now - hedgeDelayUpdate >= HEDGE_DELAY_REFRESH ) {
+            hedgeDelayUpdate = now;
+            long percentile = ( long ) ( metrics.timeToFirstByte.getPercentile( hedgePercentile / 100 ) * 1000000 );
+            hedgeDelay = Math.max( TimeUnit.MILLISECONDS.toNanos( hedgeMinDelay ), percentile );
+        }
+        return hedgeDelay;
     }
 
     /**
-     * Performs an HTTP POST request.
-     *
-     * @param httpServletRequest    The {@link HttpServletRequest} object passed in by the servlet engine representing the client request to be proxied
-     * @param httpServletResponse   The {@link HttpServletResponse} object by which we can send a proxied response to the client
+     * @return true if the given failure happened before the request was sent, pool timeouts excluded
      */
-    @Override
-    public void doPost( HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse )
-            throws IOException, ServletException
+    private static boolean isConnectFailure( IOException ex )
     {
-        // Create a standard POST request
-        String contentType = httpServletRequest.getContentType();
-        String destinationUrl = this.getProxyURL( httpServletRequest );
-        LOGGER.trace( "POST {} => {} ({})" + httpServletRequest.getRequestURL(), destinationUrl, contentType );
-        PostMethod postMethodProxyRequest = new PostMethod( destinationUrl );
-        // Forward the request headers
-        setProxyRequestHeaders( httpServletRequest, postMethodProxyRequest );
-        // Check if this is a mulitpart (file upload) POST
-        if ( ServletFileUpload.isMultipartContent( httpServletRequest ) ) {
-            this.handleMultipartPost( postMethodProxyRequest, httpServletRequest );
-        } else {
-            if ( contentType == null || PostMethod.FORM_URL_ENCODED_CONTENT_TYPE.equals( contentType ) ) {
-                this.handleStandardPost( postMethodProxyRequest, httpServletRequest );
-            } else {
-                this.handleContentPost( postMethodProxyRequest, httpServletRequest );
-            }
+        return ex instanceof ConnectException || ex instanceof NoRouteToHostException
+               || ex instanceof ConnectTimeoutException && !( ex instanceof ConnectionPoolTimeoutException );
+    }
+
+    private static IOException upstreamFailure( ExecutionException ex )
+    {
+        Throwable cause = ex.getCause();
+        if ( cause instanceof IOException ) {
+            return ( IOException ) cause;
+        } else if ( cause instanceof RuntimeException ) {
+            throw ( RuntimeException ) cause;
+        } else if ( cause instanceof Error ) {
+            throw ( Error ) cause;
         }
-        // Execute the proxy request
-        this.executeProxyRequest( postMethodProxyRequest, httpServletRequest, httpServletResponse );
+        return new IOException( cause );
     }
 
     /**
-     * Sets up the given {@link PostMethod} to send the same multipart POST data as was sent in the given
-     * {@link HttpServletRequest}.
-     *
-     * @param postMethodProxyRequest    The {@link PostMethod} that we are configuring to send a multipart POST request
-     * @param httpServletRequest    The {@link HttpServletRequest} that contains the mutlipart POST data to be sent via the {@link PostMethod}
+     * Relays the upstream response to the client, storing it in the cache or sharing it with coalesced requests when
+     * possible.
      */
-    @SuppressWarnings( "unchecked" )
-    private void handleMultipartPost( PostMethod postMethodProxyRequest, HttpServletRequest httpServletRequest )
-            throws ServletException
+    private void relayProxyResponse( ProxyExchange exchange, int intProxyResponseCode, Header[] headerArrayResponse,
+                                     InputStream responseBody )
+            throws IOException, ServletException
     {
-        // Create a factory for disk-based file items
-        DiskFileItemFactory diskFileItemFactory = new DiskFileItemFactory();
-        // Set factory constraints
-        diskFileItemFactory.setSizeThreshold( maxFileUploadSize );
-        diskFileItemFactory.setRepository( FILE_UPLOAD_TEMP_DIRECTORY );
-        // Create a new file upload handler
-        ServletFileUpload servletFileUpload = new ServletFileUpload( diskFileItemFactory );
-        // Parse the request
+        if ( exchange.getCacheKey() == null ) {
+            sendProxyResponse( exchange, intProxyResponseCode, headerArrayResponse, responseBody );
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        CachedResponse revalidatedResponse = exchange.getRevalidatedResponse();
+        if ( revalidatedResponse != null && intProxyResponseCode == HttpServletResponse.SC_NOT_MODIFIED ) {
+            // The stale cached response is still valid
+            CachedResponse refreshed = revalidatedResponse.revalidated( headerArrayResponse, now );
+            responseCache.put( exchange.getCacheKey(), exchange.getRequest(), refreshed );
+            landFlight( exchange, refreshed );
+            sendCachedResponse( exchange, refreshed );
+            return;
+        }
+        boolean storable = responseCache != null
+                           && CachePolicy.isStorable( intProxyResponseCode, headerArrayResponse, exchange.getRequest() );
+        boolean shareable = exchange.getFlight() != null && CachePolicy.isShareable( headerArrayResponse );
+        if ( responseBody == null || !( storable || shareable ) ) {
+            if ( revalidatedResponse != null ) {
+                responseCache.remove( exchange.getCacheKey() );
+            }
+            landFlight( exchange, null );
+            sendProxyResponse( exchange, intProxyResponseCode, headerArrayResponse, responseBody );
+            return;
+        }
+        // Capture the response body while relaying it, and store or share it if it was entirely read
+        // Responses varying on request headers are only held in memory
+        DiskCache diskCache = storable && CachePolicy.varyNames( headerArrayResponse ) == null
+                              ? responseCache.getDiskCache()
+                              : null;
+        CapturingInputStream capturingBody = new CapturingInputStream( responseBody, cacheMaxEntrySize,
+                                                                       getResponseContentLength( headerArrayResponse ),
+                                                                       diskCache );
         try {
-            // Get the multipart items as a list
-            List<FileItem> listFileItems = ( List<FileItem> ) servletFileUpload.parseRequest( httpServletRequest );
-            // Create a list to hold all of the parts
-            List<Part> listParts = new ArrayList<Part>();
-            // Iterate the multipart items list
-            for ( FileItem fileItemCurrent : listFileItems ) {
-                // If the current item is a form field, then create a string part
-                if ( fileItemCurrent.isFormField() ) {
-                    StringPart stringPart = new StringPart( fileItemCurrent.getFieldName(), // The field name
-                                                            fileItemCurrent.getString() // The field value
-                            );
-                    // Add the part to the list
-                    listParts.add( stringPart );
-                } else {
-                    // The item is a file upload, so we create a FilePart
-                    FilePart filePart = new FilePart( fileItemCurrent.getFieldName(), // The field name
-                                                      new ByteArrayPartSource( fileItemCurrent.getName(), // The uploaded file name
-                                                                               fileItemCurrent.get() // The uploaded file contents
-                            ) );
-                    // Add the part to the list
-                    listParts.add( filePart );
+            sendProxyResponse( exchange, intProxyResponseCode, headerArrayResponse, capturingBody );
+            byte[] captured = capturingBody.getCaptured();
+            File spilled = capturingBody.getSpilled();
+            if ( captured != null ) {
+                CachedResponse response = new CachedResponse( intProxyResponseCode, headerArrayResponse, captured, now );
+                if ( storable ) {
+                    responseCache.put( exchange.getCacheKey(), exchange.getRequest(), response );
                 }
+                if ( shareable ) {
+                    landFlight( exchange, response );
+                }
+            } else if ( spilled != null ) {
+                responseCache.put( exchange.getCacheKey(), exchange.getRequest(),
+                                   new CachedResponse( intProxyResponseCode, headerArrayResponse, spilled,
+                                                       capturingBody.getSpilledLength(), now ) );
+            } else if ( revalidatedResponse != null ) {
+                responseCache.remove( exchange.getCacheKey() );
             }
-            MultipartRequestEntity multipartRequestEntity = new MultipartRequestEntity(
-                    listParts.toArray( new Part[]{} ), postMethodProxyRequest.getParams() );
-            postMethodProxyRequest.setRequestEntity( multipartRequestEntity );
-            // The current content-type header (received from the client) IS of
-            // type "multipart/form-data", but the content-type header also
-            // contains the chunk boundary string of the chunks. Currently, this
-            // header is using the boundary of the client request, since we
-            // blindly copied all headers from the client request to the proxy
-            // request. However, we are creating a new request with a new chunk
-            // boundary string, so it is necessary that we re-set the
-            // content-type string to reflect the new chunk boundary string
-            postMethodProxyRequest.setRequestHeader( HEADER_CONTENT_TYPE, multipartRequestEntity.getContentType() );
-        } catch ( FileUploadException fileUploadException ) {
-            throw new ServletException( fileUploadException );
+        } finally {
+            capturingBody.discard();
         }
     }
 
     /**
-     * Sets up the given {@link PostMethod} to send the same standard POST data as was sent in the given
-     * {@link HttpServletRequest}.
+     * Answers 503 when no pooled connection could be acquired in time and 504 when the upstream timed out, other
+     * failures are rethrown.
      *
-     * @param postMethodProxyRequest    The {@link PostMethod} that we are configuring to send a standard POST request
-     * @param httpServletRequest        The {@link HttpServletRequest} that contains the POST data to be sent via the {@link PostMethod}
+     * @param exchange          The exchange holding the client response
+     * @param ex                The upstream request failure
+     * @param deadlineExceeded  true if the upstream request was aborted by the request timeout
+     * @throws IOException      The failure, if not a timeout or if the response is already committed
      */
-    @SuppressWarnings( "unchecked" )
-    private void handleStandardPost( PostMethod postMethodProxyRequest, HttpServletRequest httpServletRequest )
+    private void sendUpstreamError( ProxyExchange exchange, IOException ex, boolean deadlineExceeded )
+            throws IOException
     {
-        // Get the client POST data as a Map
-        Map<String, String[]> mapPostParameters = ( Map<String, String[]> ) httpServletRequest.getParameterMap();
-        // Create a List to hold the NameValuePairs to be passed to the PostMethod
-        List<NameValuePair> listNameValuePairs = new ArrayList<NameValuePair>();
-        // Iterate the parameter names
-        for ( String stringParameterName : mapPostParameters.keySet() ) {
-            // Iterate the values for each parameter name
-            String[] stringArrayParameterValues = mapPostParameters.get( stringParameterName );
-            for ( String stringParamterValue : stringArrayParameterValues ) {
-                // Create a NameValuePair and store in list
-                NameValuePair nameValuePair = new NameValuePair( stringParameterName, stringParamterValue );
-                listNameValuePairs.add( nameValuePair );
-            }
+        HttpServletResponse httpServletResponse = exchange.getResponse();
+        if ( exchange.isAbandoned() ) {
+            // Failure caused by the abort, the client response is already completed
+            return;
         }
-        // Set the proxy request POST data
-        postMethodProxyRequest.setRequestBody( listNameValuePairs.toArray( new NameValuePair[]{} ) );
+        int status;
+        if ( ex instanceof ConnectionPoolTimeoutException ) {
+            status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        } else if ( deadlineExceeded || ex instanceof InterruptedIOException ) {
+            // Connect and read timeouts
+            status = HttpServletResponse.SC_GATEWAY_TIMEOUT;
+        } else {
+            throw ex;
+        }
+        if ( httpServletResponse.isCommitted() ) {
+            throw ex;
+        }
+        LOGGER.warn( "Upstream {} failed for {}: {}",
+                     new Object[]{ exchange.getUpstream(), exchange.getRequest().getRequestURL(), ex.getMessage() } );
+        httpServletResponse.sendError( status );
     }
 
     /**
-     * Sets up the given {@link PostMethod} to send the same content POST data (JSON, XML, etc.) as was sent in the
-     * given {@link HttpServletRequest}.
+     * Sends a cached response back to the client, answering 304 if it matches the client conditional request.
      *
-     * @param postMethodProxyRequest    The {@link PostMethod} that we are configuring to send a standard POST request
-     * @param httpServletRequest        The {@link HttpServletRequest} that contains the POST data to be sent via the {@link PostMethod}
+     * @param exchange          The exchange holding the client request and response
+     * @param cachedResponse    The cached response
      */
-    private void handleContentPost( PostMethod postMethodProxyRequest, HttpServletRequest httpServletRequest )
+    private void sendCachedResponse( ProxyExchange exchange, CachedResponse cachedResponse )
             throws IOException, ServletException
     {
-        StringBuilder content = new StringBuilder();
-        BufferedReader reader = httpServletRequest.getReader();
-        for ( ;; ) {
-            String line = reader.readLine();
-            if ( line == null ) {
-                break;
-            }
-            content.append( line );
+        exchange.mark( "cache" );
+        HttpServletRequest httpServletRequest = exchange.getRequest();
+        HttpServletResponse httpServletResponse = exchange.getResponse();
+        String ifNoneMatch = httpServletRequest.getHeader( CachePolicy.HEADER_IF_NONE_MATCH );
+        String ifModifiedSince = httpServletRequest.getHeader( CachePolicy.HEADER_IF_MODIFIED_SINCE );
+        boolean notModified;
+        if ( ifNoneMatch != null ) {
+            String etag = cachedResponse.getETag();
+            notModified = etag != null && ( ifNoneMatch.trim().equals( "*" ) || ifNoneMatch.contains( etag ) );
+        } else {
+            notModified = ifModifiedSince != null && ifModifiedSince.equals( cachedResponse.getLastModified() );
         }
-
-        String contentType = httpServletRequest.getContentType();
-        String postContent = content.toString();
-
-        // Hack to trickle main server gwt rpc servlet
-        // this avoids warnings like the following :
-        // "ERROR: The module path requested, /testmodule/, is not in the same web application as this servlet"
-        // or
-        // "WARNING: Failed to get the SerializationPolicy '29F4EA1240F157649C12466F01F46F60' for module 'http://localhost:8888/testmodule/'"
-        //
-        // Actually it avoids a NullPointerException in server logging :
-        // See http://code.google.com/p/google-web-toolkit/issues/detail?id=3624
-        if ( contentType.startsWith( this.stringMimeType ) ) {
-            String clientHost = httpServletRequest.getLocalName();
-            if ( clientHost.equals( "127.0.0.1" ) || clientHost.equals( "0:0:0:0:0:0:0:1" ) ) {
-                clientHost = "localhost";
+        if ( notModified ) {
+            setServerTiming( exchange );
+            if ( cachedResponse.getETag() != null ) {
+                httpServletResponse.setHeader( CachePolicy.HEADER_ETAG, cachedResponse.getETag() );
             }
-
-            int clientPort = httpServletRequest.getLocalPort();
-            String clientUrl = clientHost + ( ( clientPort != 80 ) ? ":" + clientPort : "" );
-            String serverUrl = targetHost + ( ( targetPort != 80 ) ? ":" + targetPort : "" ) + stringPrefixPath;
-
-            // Replace more completely if destination server is https :
-            if ( targetSsl ) {
-                clientUrl = "http://" + clientUrl;
-                serverUrl = "https://" + serverUrl;
-            }
-            postContent = postContent.replace( clientUrl, serverUrl );
+            httpServletResponse.setIntHeader( HEADER_CONTENT_LENGTH, 0 );
+            httpServletResponse.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+            return;
         }
-
-        String encoding = httpServletRequest.getCharacterEncoding();
-        LOGGER.trace( "POST Content Type: {} Encoding: {} Content: {}", new Object[]{ contentType, encoding, postContent } );
-        StringRequestEntity entity;
+        InputStream body = cachedResponse.openBody();
         try {
-            entity = new StringRequestEntity( postContent, contentType, encoding );
-        } catch ( UnsupportedEncodingException e ) {
-            throw new ServletException( e );
+            sendProxyResponse( exchange, cachedResponse.getStatusCode(),
+                               cachedResponse.getHeadersWithAge( System.currentTimeMillis() ), body );
+        } finally {
+            body.close();
         }
-        // Set the proxy request POST data
-        postMethodProxyRequest.setRequestEntity( entity );
     }
 
-    private HttpClient createClientWithLogin()
+    /**
+     * Sends the stages of the exchange trace so far as a Server-Timing header, if enabled and the exchange is sampled.
+     * The body relay happens once the headers are sent and is left out.
+     */
+    private void setServerTiming( ProxyExchange exchange )
     {
-        // Create a default HttpClient
-        HttpClient httpClient = new HttpClient();
-        Protocol.registerProtocol( "https", SSL_PROTOCOL );
+        if ( traceServerTiming && exchange.getTrace() != null ) {
+            exchange.getResponse().setHeader( HEADER_SERVER_TIMING, exchange.getTrace().toServerTiming() );
+        }
+    }
 
-        // if login/password authentication is required :
-        if ( targetCredentials != null ) {
-            httpClient.getParams().setAuthenticationPreemptive( true );
-            String[] creds = targetCredentials.split( ":" );
-            Credentials defaultcreds = new UsernamePasswordCredentials( creds[0], creds[1] );
-            httpClient.getState().setCredentials( new AuthScope( targetHost, targetPort, AuthScope.ANY_REALM ), defaultcreds );
+    private static long getResponseContentLength( Header[] headers )
+    {
+        String contentLength = CachePolicy.header( headers, HEADER_CONTENT_LENGTH );
+        if ( contentLength != null ) {
+            try {
+                return Long.parseLong( contentLength.trim() );
+            } catch ( NumberFormatException ex ) {
+                return -1;
+            }
         }
-        return httpClient;
+        return -1;
     }
 
     /**
-     * Executes the {@link HttpMethod} passed in and sends the proxy response back to the client via the given
-     * {@link HttpServletResponse}.
+     * Sends the proxy response back to the client.
      *
-     * @param httpMethodProxyRequest    An object representing the proxy request to be made
-     * @param httpServletResponse       An object by which we can send the proxied response back to the client
-     * @throws IOException              Can be thrown by the {@link HttpClient}.executeMethod
-     * @throws ServletException         Can be thrown to indicate that another error has occurred
+     * @param exchange                  The exchange holding the client request and response
+     * @param intProxyResponseCode      The response status code
+     * @param headerArrayResponse       The response headers
+     * @param responseBody              The response body, as received from the target, may be null
      */
-    private void executeProxyRequest( HttpMethod httpMethodProxyRequest, HttpServletRequest httpServletRequest,
-                                      HttpServletResponse httpServletResponse )
+    private void sendProxyResponse( ProxyExchange exchange, int intProxyResponseCode, Header[] headerArrayResponse,
+                                    InputStream responseBody )
             throws IOException, ServletException
     {
-        // Create a default HttpClient
-        HttpClient httpClient;
-        httpClient = createClientWithLogin();
-        httpMethodProxyRequest.setFollowRedirects( false );
-
-        // Execute the request
-        int intProxyResponseCode = httpClient.executeMethod( httpMethodProxyRequest );
-//        String response = httpMethodProxyRequest.getResponseBodyAsString();
-
+        HttpServletRequest httpServletRequest = exchange.getRequest();
+        HttpServletResponse httpServletResponse = exchange.getResponse();
+        if ( exchange.isAbandoned() ) {
+            LOGGER.trace( "Client response of {} already completed, dropping the upstream response", httpServletRequest.getRequestURL() );
+            return;
+        }
+        setServerTiming( exchange );
+        // Filter stages may change the headers and transform the body
+        List<Header> filteredHeaders = new ArrayList<Header>( Arrays.asList( headerArrayResponse ) );
+        List<BodyFilter> bodyFilters = filterChain.filterResponse( httpServletRequest, exchange.getUpstream(),
+                                                                   intProxyResponseCode, filteredHeaders );
+        headerArrayResponse = filteredHeaders.toArray( new Header[ filteredHeaders.size() ] );
         // Check if the proxy response is a redirect
         // The following code is adapted from org.tigris.noodle.filters.CheckForRedirect
         // Hooray for open source software
         if ( intProxyResponseCode >= HttpServletResponse.SC_MULTIPLE_CHOICES /* 300 */
              && intProxyResponseCode < HttpServletResponse.SC_NOT_MODIFIED /* 304 */ ) {
             String stringStatusCode = Integer.toString( intProxyResponseCode );
-            String stringLocation = httpMethodProxyRequest.getResponseHeader( HEADER_LOCATION ).getValue();
+            String stringLocation = CachePolicy.header( headerArrayResponse, HEADER_LOCATION );
             if ( stringLocation == null ) {
                 throw new ServletException( "Received status code: " + stringStatusCode + " but no " + HEADER_LOCATION + " header was found in the response" );
             }
@@ -459,7 +2143,7 @@ public class Proxilet
             }
             stringMyHostName += httpServletRequest.getContextPath();
             if ( followRedirects ) {
-                httpServletResponse.sendRedirect( stringLocation.replace( getProxyHostAndPort() + proxyPath, stringMyHostName ) );
+                httpServletResponse.sendRedirect( stringLocation.replace( exchange.getUpstream().getAuthority() + proxyPath, stringMyHostName ) );
                 return;
             }
         } else if ( intProxyResponseCode == HttpServletResponse.SC_NOT_MODIFIED ) {
@@ -477,36 +2161,76 @@ public class Proxilet
         // Pass the response code back to the client
         httpServletResponse.setStatus( intProxyResponseCode );
 
-        // Pass response headers back to the client
-        Header[] headerArrayResponse = httpMethodProxyRequest.getResponseHeaders();
-        for ( Header header : headerArrayResponse ) {
-            if ( header.getName().equals( "Transfer-Encoding" ) && header.getValue().equals( "chunked" )
-                 || header.getName().equals( "Content-Encoding" ) && header.getValue().equals( "gzip" ) ) {
-                // proxy servlet does not support chunked encoding
-            } else {
-                httpServletResponse.setHeader( header.getName(), header.getValue() );
-            }
-        }
-
         List<Header> responseHeaders = Arrays.asList( headerArrayResponse );
 
         // FIXME We should handle both String and bytes response in the same way:
         String response = null;
-        byte[] bodyBytes = null;
 
-        if ( isBodyParameterGzipped( responseHeaders ) ) {
+        // Gzipped bodies are relayed untouched to clients that accept them, and inflated on the fly for the others
+        boolean gzipped = isBodyParameterGzipped( responseHeaders );
+        // Bodies are filtered once decoded, bodies in other codings are left untouched
+        String contentEncoding = CachePolicy.header( headerArrayResponse, HEADER_CONTENT_ENCODING );
+        boolean filtered = !bodyFilters.isEmpty() && responseBody != null && !METHOD_HEAD.equals( httpServletRequest.getMethod() )
+                           && ( gzipped || contentEncoding == null || contentEncoding.trim().equalsIgnoreCase( "identity" ) );
+        boolean inflate = false;
+        if ( gzipped ) {
             LOGGER.trace( "GZipped: true" );
             if ( !followRedirects && intProxyResponseCode == HttpServletResponse.SC_MOVED_TEMPORARILY ) {
-                response = httpMethodProxyRequest.getResponseHeader( HEADER_LOCATION ).getValue();
-                httpServletResponse.setStatus( HttpServletResponse.SC_OK );
-                intProxyResponseCode = HttpServletResponse.SC_OK;
-                httpServletResponse.setHeader( HEADER_LOCATION, response );
-                httpServletResponse.setContentLength( response.length() );
+                response = CachePolicy.header( headerArrayResponse, HEADER_LOCATION );
+            } else {
+                inflate = filtered || !acceptsEncoding( httpServletRequest, "gzip" );
+            }
+        }
+
+        // Identity bodies of compressible types are compressed on the fly for the clients that accept it
+        boolean compressible = false;
+        String compressCoding = null;
+        if ( responseCompressor != null && response == null && !gzipped && responseBody != null
+             && !METHOD_HEAD.equals( httpServletRequest.getMethod() )
+             && responseCompressor.isCompressible( intProxyResponseCode, headerArrayResponse ) ) {
+            compressible = true;
+            if ( acceptsEncoding( httpServletRequest, ResponseCompressor.CODING_GZIP ) ) {
+                compressCoding = ResponseCompressor.CODING_GZIP;
+            } else if ( acceptsEncoding( httpServletRequest, ResponseCompressor.CODING_DEFLATE ) ) {
+                compressCoding = ResponseCompressor.CODING_DEFLATE;
+            }
+        }
+
+        // Pass response headers back to the client
+        Set<String> connectionHeaders = HeaderPolicy.connectionHeaders( headerArrayResponse );
+        for ( Header header : headerArrayResponse ) {
+            if ( !HeaderPolicy.isForwardedResponseHeader( header.getName(), connectionHeaders ) ) {
+                // hop-by-hop header, the container handles the client connection and the body framing
+            } else if ( ( response != null || inflate || compressCoding != null )
+                        && header.getName().equalsIgnoreCase( HEADER_CONTENT_ENCODING )
+                        || ( response != null || inflate || compressCoding != null || filtered )
+                           && header.getName().equalsIgnoreCase( HEADER_CONTENT_LENGTH ) ) {
+                // body is not sent as received, its length is unknown upfront
+            } else if ( ( compressCoding != null || filtered ) && header.getName().equalsIgnoreCase( CachePolicy.HEADER_ETAG )
+                        && !header.getValue().startsWith( "W/" ) ) {
+                // the compressed or filtered representation is not byte for byte the upstream one
+                httpServletResponse.addHeader( header.getName(), "W/" + header.getValue() );
             } else {
-                bodyBytes = ungzip( httpMethodProxyRequest.getResponseBody() );
-                httpServletResponse.setContentLength( bodyBytes.length );
+                httpServletResponse.addHeader( header.getName(), header.getValue() );
+            }
+        }
+        // The coding depends on the client Accept-Encoding when compressing or when inflating for some clients only
+        if ( compressible || gzipped && response == null && !filtered ) {
+            String vary = CachePolicy.header( headerArrayResponse, CachePolicy.HEADER_VARY );
+            if ( vary == null || !vary.toLowerCase( Locale.US ).contains( "accept-encoding" ) ) {
+                httpServletResponse.addHeader( CachePolicy.HEADER_VARY, HEADER_ACCEPT_ENCODING );
             }
         }
+        if ( compressCoding != null ) {
+            httpServletResponse.setHeader( HEADER_CONTENT_ENCODING, compressCoding );
+        }
+
+        if ( response != null ) {
+            httpServletResponse.setStatus( HttpServletResponse.SC_OK );
+            intProxyResponseCode = HttpServletResponse.SC_OK;
+            httpServletResponse.setHeader( HEADER_LOCATION, response );
+            httpServletResponse.setContentLength( response.length() );
+        }
 
         if ( httpServletResponse.getContentType() != null
              && httpServletResponse.getContentType().contains( "text" ) ) {
@@ -518,10 +2242,43 @@ public class Proxilet
         // Send the content to the client
         if ( response != null ) {
             httpServletResponse.getWriter().write( response );
-        } else if ( bodyBytes != null ) {
-            httpServletResponse.getOutputStream().write( bodyBytes );
-        } else {
-            IOUtils.copy( httpMethodProxyRequest.getResponseBodyAsStream(), httpServletResponse.getOutputStream() );
+            metrics.bytesSent( response.length() );
+            exchange.bytesSent( response.length() );
+        } else if ( responseBody != null ) {
+            CountingOutputStream out = new CountingOutputStream( httpServletResponse.getOutputStream() );
+            ResponseCompressor.CompressingOutputStream compressing = null;
+            try {
+                OutputStream target = out;
+                if ( compressCoding != null ) {
+                    compressing = responseCompressor.compress( out, compressCoding );
+                    target = compressing;
+                }
+                if ( filtered ) {
+                    target = FilteringOutputStream.wrap( target, bodyFilters );
+                }
+                if ( inflate ) {
+                    metrics.gzipInflated();
+                    ungzip( responseBody, target );
+                } else if ( target == out && responseBody instanceof FileBodyInputStream ) {
+                    ( ( FileBodyInputStream ) responseBody ).transferFileTo( out );
+                } else {
+                    // Sized as received, the buffer of a short body need not be a full size one
+                    bodyRelay.relay( responseBody, target, getResponseContentLength( headerArrayResponse ) );
+                }
+                if ( target instanceof FilteringOutputStream ) {
+                    ( ( FilteringOutputStream ) target ).finish();
+                }
+                if ( compressing != null ) {
+                    compressing.finish();
+                    metrics.responseCompressed( compressing.getBytesIn(), compressing.getBytesOut() );
+                }
+            } finally {
+                if ( compressing != null ) {
+                    compressing.release();
+                }
+                metrics.bytesSent( out.getByteCount() );
+                exchange.bytesSent( out.getByteCount() );
+            }
         }
     }
 
@@ -531,10 +2288,10 @@ public class Proxilet
      * @param responseHeaders   of response headers
      * @return                  true if the body is gzipped
      */
-    private boolean isBodyParameterGzipped( List<Header> responseHeaders )
+    boolean isBodyParameterGzipped( List<Header> responseHeaders )
     {
         for ( Header header : responseHeaders ) {
-            if ( header.getValue().equals( "gzip" ) ) {
+            if ( header.getName().equalsIgnoreCase( HEADER_CONTENT_ENCODING ) && header.getValue().equals( "gzip" ) ) {
                 return true;
             }
         }
@@ -542,47 +2299,87 @@ public class Proxilet
     }
 
     /**
-     * A highly performant ungzip implementation.
+     * Tells whether the client accepts the given content coding, as per its Accept-Encoding headers. An explicit
+     * mention of the coding takes precedence over the "*" wildcard.
      *
-     * Do not refactor this without taking new timings. See ElementTest in ehcache for timings
+     * @param httpServletRequest    The client request
+     * @param coding                The content coding, eg. gzip
+     * @return                      true if the client accepts the content coding
+     */
+    @SuppressWarnings( "unchecked" )
+    private static boolean acceptsEncoding( HttpServletRequest httpServletRequest, String coding )
+    {
+        Boolean wildcard = null;
+        Enumeration<String> acceptEncodings = httpServletRequest.getHeaders( HEADER_ACCEPT_ENCODING );
+        while ( acceptEncodings != null && acceptEncodings.hasMoreElements() ) {
+            for ( String element : acceptEncodings.nextElement().split( "," ) ) {
+                String[] params = element.split( ";" );
+                String name = params[0].trim();
+                if ( name.equalsIgnoreCase( coding ) || name.equalsIgnoreCase( "x-" + coding ) ) {
+                    return isAccepted( params );
+                } else if ( name.equals( "*" ) && wildcard == null ) {
+                    wildcard = isAccepted( params );
+                }
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+
+    /**
+     * @param params    The Accept-Encoding element split on ';', the coding first
+     * @return          true unless the element quality value is zero or invalid
+     */
+    private static boolean isAccepted( String[] params )
+    {
+        for ( int idx = 1; idx < params.length; idx++ ) {
+            String param = params[idx].trim();
+            if ( param.startsWith( "q=" ) ) {
+                try {
+                    return Float.parseFloat( param.substring( 2 ) ) > 0;
+                } catch ( NumberFormatException ex ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Streaming ungzip, the inflated content is relayed into the given OutputStream through a pooled buffer.
      *
      * @param gzipped       the gzipped content
-     * @return              an ungzipped byte[]
+     * @param out           where to write the ungzipped content
      * @throws IOException  when something bad happens
      */
-    private byte[] ungzip( final byte[] gzipped )
+    void ungzip( final InputStream gzipped, final OutputStream out )
             throws IOException
     {
-        final GZIPInputStream inputStream = new GZIPInputStream( new ByteArrayInputStream( gzipped ) );
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream( gzipped.length );
-        final byte[] buffer = new byte[ FOUR_KB ];
-        int bytesRead = 0;
-        while ( bytesRead != -1 ) {
-            bytesRead = inputStream.read( buffer, 0, FOUR_KB );
-            if ( bytesRead != -1 ) {
-                byteArrayOutputStream.write( buffer, 0, bytesRead );
-            }
+        final GZIPInputStream inputStream = new GZIPInputStream( gzipped, INFLATER_INPUT_SIZE );
+        try {
+            bodyRelay.relay( inputStream, out );
+        } finally {
+            inputStream.close();
         }
-        byte[] ungzipped = byteArrayOutputStream.toByteArray();
-        inputStream.close();
-        byteArrayOutputStream.close();
-        return ungzipped;
     }
 
     /**
-     * Retreives all of the headers from the servlet request and sets them on the proxy request.
+     * Retreives all of the end-to-end headers from the servlet request and adds them to the proxy request, keeping
+     * multi-valued headers. The Host header is rewritten to the upstream one.
      *
      * @param httpServletRequest        The request object representing the client's request to the servlet engine
      * @param httpMethodProxyRequest    The request that we are about to send to the proxy host
+     * @param upstream                  The upstream the request is proxied to
      */
     @SuppressWarnings( "unchecked" )
-    private void setProxyRequestHeaders( HttpServletRequest httpServletRequest, HttpMethod httpMethodProxyRequest )
+    void setProxyRequestHeaders( HttpServletRequest httpServletRequest, HttpMethod httpMethodProxyRequest,
+                                 Upstream upstream )
     {
+        Set<String> connectionHeaders = HeaderPolicy.connectionHeaders( httpServletRequest.getHeaders( HeaderPolicy.HEADER_CONNECTION ) );
         // Get an Enumeration of all of the header names sent by the client
         Enumeration<String> enumerationOfHeaderNames = httpServletRequest.getHeaderNames();
         while ( enumerationOfHeaderNames.hasMoreElements() ) {
             String stringHeaderName = enumerationOfHeaderNames.nextElement();
-            if ( stringHeaderName.equalsIgnoreCase( HEADER_CONTENT_LENGTH ) ) {
+            if ( !HeaderPolicy.isForwardedRequestHeader( stringHeaderName, connectionHeaders ) ) {
                 continue;
             }
             // As per the Java Servlet API 2.5 documentation:
@@ -592,75 +2389,195 @@ public class Proxilet
             // Thus, we get an Enumeration of the header values sent by the client
             Enumeration<String> enumerationOfHeaderValues = httpServletRequest.getHeaders( stringHeaderName );
             while ( enumerationOfHeaderValues.hasMoreElements() ) {
-                String stringHeaderValue = enumerationOfHeaderValues.nextElement();
-                // In case the proxy host is running multiple virtual servers,
-                // rewrite the Host header to ensure that we get content from
-                // the correct virtual server
-                if ( stringHeaderName.equalsIgnoreCase( HEADER_HOST ) ) {
-                    stringHeaderValue = getProxyHostAndPort();
-                }
-                Header header = new Header( stringHeaderName, stringHeaderValue );
-                // Set the same header on the proxy request
-                httpMethodProxyRequest.setRequestHeader( header );
+                httpMethodProxyRequest.addRequestHeader( new Header( stringHeaderName, enumerationOfHeaderValues.nextElement() ) );
             }
         }
+        // In case the proxy host is running multiple virtual servers,
+        // rewrite the Host header to ensure that we get content from
+        // the correct virtual server
+        if ( httpServletRequest.getHeader( HEADER_HOST ) != null ) {
+            httpMethodProxyRequest.addRequestHeader( upstream.getHostHeader() );
+        }
     }
 
     // Accessors
-    private String getProxyURL( HttpServletRequest httpServletRequest )
+    String getProxyURL( HttpServletRequest httpServletRequest, Route route, Upstream upstream )
     {
-        // Set the protocol to HTTP
-        String protocol = ( targetSsl ) ? "https://" : "http://";
-        String stringProxyURL = protocol + this.getProxyHostAndPort();
-//System.out.println("proxyURL 1="+stringProxyURL);
-
-        String uri = httpServletRequest.getRequestURI();
-
+        // Scheme, host and port of the upstream
+        StringBuilder proxyURL = new StringBuilder( upstream.getBaseUrl() );
         if ( !removePrefix ) {
-            if ( uri.contains( this.stringSourcePath ) ) {
-                stringProxyURL += stringPrefixPath + uri.replace( this.stringSourcePath, this.stringDestinationPath );
-            } else {
-                stringProxyURL += stringPrefixPath + uri;
-            }
-        }
-//System.out.println("proxyURL 2="+stringProxyURL);
-
-// LOLO : Ça double le dernier élément du path ?!
-//        stringProxyURL += "/";
-//
-//        // Handle the path given to the servlet
-//        String pathInfo = httpServletRequest.getPathInfo();
-//System.out.println("pathInfo="+pathInfo);
-//        if (pathInfo != null && pathInfo.startsWith("/")) {
-//            if (stringProxyURL != null && stringProxyURL.endsWith("/")) {
-//                // avoid double '/'
-//                stringProxyURL += pathInfo.substring(1);
-//System.out.println("proxyURL 3="+stringProxyURL);
-//            }
-//        } else {
-//            if (pathInfo != null) {
-//                stringProxyURL += httpServletRequest.getPathInfo();
-//System.out.println("proxyURL 4="+stringProxyURL);
-//            } else {
-//                stringProxyURL = stringProxyURL.substring(0, stringProxyURL.length() - 1);
-//System.out.println("proxyURL 5="+stringProxyURL);
-//            }
-//        }
+            route.appendRewrittenPath( proxyURL, httpServletRequest.getRequestURI(), RouteTable.pathStart( httpServletRequest ) );
+        }
         // Handle the query string
         if ( httpServletRequest.getQueryString() != null ) {
-            stringProxyURL += "?" + httpServletRequest.getQueryString();
-//System.out.println("proxyURL 6="+stringProxyURL);
+            proxyURL.append( '?' ).append( httpServletRequest.getQueryString() );
         }
-        return stringProxyURL;
+        return proxyURL.toString();
     }
 
-    private String getProxyHostAndPort()
+    /**
+     * Aborts the upstream requests of an exchange once its deadline is reached.
+     */
+    private static final class UpstreamDeadline
+            implements Runnable
     {
-        if ( targetPort == 80 ) {
-            return targetHost;
-        } else {
-            return targetHost + ":" + targetPort;
+
+        private final ProxyExchange exchange;
+
+        private volatile boolean fired;
+
+        private UpstreamDeadline( ProxyExchange exchange )
+        {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void run()
+        {
+            fired = true;
+            exchange.abort();
+        }
+
+        private boolean hasFired()
+        {
+            return fired;
+        }
+
+    }
+
+    /**
+     * Upstream exchange of a request proxied in asynchronous mode.
+     *
+     * Only one party writes the client response and completes it. While the exchange is queued, that is whatever
+     * happens first between the worker picking it up, an error or the async timeout. Once the worker runs, it is the
+     * worker: on timeout or error the upstream request is aborted and the container thread waits for the worker to
+     * send the error and complete the request, rather than writing concurrently to the response.
+     */
+    private final class AsyncProxyRequest
+            implements Runnable, AsyncListener
+    {
+
+        private static final int QUEUED = 0;
+
+        private static final int RUNNING = 1;
+
+        private static final int DONE = 2;
+
+        private final AsyncContext asyncContext;
+
+        private final ProxyExchange exchange;
+
+        private final AtomicInteger state = new AtomicInteger( QUEUED );
+
+        private final AtomicBoolean completed = new AtomicBoolean( false );
+
+        private final CountDownLatch done = new CountDownLatch( 1 );
+
+        /**
+         * Status the worker sends if the response is not committed, set on timeout or error.
+         */
+        private volatile int failureStatus;
+
+        private AsyncProxyRequest( AsyncContext asyncContext, ProxyExchange exchange )
+        {
+            this.asyncContext = asyncContext;
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void run()
+        {
+            if ( !state.compareAndSet( QUEUED, RUNNING ) ) {
+                // Failed while queued, already answered and released
+                return;
+            }
+            exchange.mark( "queue" );
+            int status = 0;
+            try {
+                doExecuteProxyRequest( exchange );
+            } catch ( Exception ex ) {
+                if ( !exchange.isAborted() ) {
+                    LOGGER.warn( "Unable to proxy {}: {}", new Object[]{ exchange.getRequest().getRequestURL(), ex.getMessage(), ex } );
+                }
+                status = HttpServletResponse.SC_BAD_GATEWAY;
+            } finally {
+                state.set( DONE );
+                try {
+                    send( failureStatus != 0 ? failureStatus : status );
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        @Override
+        public void onTimeout( AsyncEvent event )
+        {
+            LOGGER.warn( "Async proxy request timed out after {}ms", asyncTimeout );
+            fail( HttpServletResponse.SC_GATEWAY_TIMEOUT );
+        }
+
+        @Override
+        public void onError( AsyncEvent event )
+        {
+            fail( HttpServletResponse.SC_BAD_GATEWAY );
+        }
+
+        @Override
+        public void onComplete( AsyncEvent event )
+        {
+            completed.set( true );
+            exchangeCompleted( exchange );
+        }
+
+        @Override
+        public void onStartAsync( AsyncEvent event )
+        {
+        }
+
+        /**
+         * Fail the exchange, answering right away if it is still queued, or once the worker stopped otherwise.
+         */
+        private void fail( int statusCode )
+        {
+            failureStatus = statusCode;
+            exchange.abort();
+            if ( state.compareAndSet( QUEUED, DONE ) ) {
+                releaseUnsent( exchange );
+                send( statusCode );
+                return;
+            }
+            try {
+                // The container completes the request itself if it is not completed once listeners return
+                if ( !done.await( ASYNC_ABORT_GRACE, TimeUnit.MILLISECONDS ) ) {
+                    LOGGER.warn( "Async proxy worker of {} did not stop within {}ms, completing the request",
+                                 exchange.getRequest().getRequestURL(), ASYNC_ABORT_GRACE );
+                    send( 0 );
+                }
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Send the given error status if the response is not committed yet, and complete the request, once.
+         */
+        private void send( int statusCode )
+        {
+            if ( completed.compareAndSet( false, true ) ) {
+                try {
+                    HttpServletResponse httpServletResponse = ( HttpServletResponse ) asyncContext.getResponse();
+                    if ( statusCode != 0 && !httpServletResponse.isCommitted() ) {
+                        httpServletResponse.sendError( statusCode );
+                    }
+                } catch ( Exception ex ) {
+                    LOGGER.trace( "Unable to send error {}: {}", statusCode, ex.getMessage() );
+                } finally {
+                    asyncContext.complete();
+                }
+            }
         }
+
     }
 
 }
@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Proxy instrumentation: per-phase latency histograms, counters and gauges, all recorded without locking.
+ *
+ * Published over JMX under the {@code org.codeartisans.proxilet} domain, one set of MBeans per servlet.
+ */
+final class ProxiletMetrics
+        implements ProxiletMetricsMBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( ProxiletMetrics.class );
+
+    private static final String DOMAIN = "org.codeartisans.proxilet";
+
+    final LatencyHistogram poolWait = new LatencyHistogram();
+
+    final LatencyHistogram connect = new LatencyHistogram();
+
+    final LatencyHistogram tlsHandshake = new LatencyHistogram();
+
+    final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+
+    final LatencyHistogram bodyTransfer = new LatencyHistogram();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLongArray upstreamResponses = new AtomicLongArray( 6 );
+
+    private final AtomicLong upstreamErrors = new AtomicLong();
+
+    private final AtomicLong shedRequests = new AtomicLong();
+
+    private final AtomicLong hedgedRequests = new AtomicLong();
+
+    private final AtomicLong retriedRequests = new AtomicLong();
+
+    private final AtomicLong bytesIn = new AtomicLong();
+
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    private final AtomicLong gzipInflations = new AtomicLong();
+
+    private final AtomicLong multipartUploads = new AtomicLong();
+
+    private final AtomicLong compressedResponses = new AtomicLong();
+
+    private final AtomicLong compressionBytesSaved = new AtomicLong();
+
+    private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+    private volatile InstrumentedConnectionManager connectionManager;
+
+    private volatile ResponseCache responseCache;
+
+    private volatile RequestCoalescer requestCoalescer;
+
+    private volatile BodyRelay bodyRelay;
+
+    private volatile AccessLog accessLog;
+
+    private volatile RequestTracer requestTracer;
+
+    void setConnectionManager( InstrumentedConnectionManager connectionManager )
+    {
+        this.connectionManager = connectionManager;
+    }
+
+    void setResponseCache( ResponseCache responseCache )
+    {
+        this.responseCache = responseCache;
+    }
+
+    void setRequestCoalescer( RequestCoalescer requestCoalescer )
+    {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    void setBodyRelay( BodyRelay bodyRelay )
+    {
+        this.bodyRelay = bodyRelay;
+    }
+
+    void setAccessLog( AccessLog accessLog )
+    {
+        this.accessLog = accessLog;
+    }
+
+    void setRequestTracer( RequestTracer requestTracer )
+    {
+        this.requestTracer = requestTracer;
+    }
+
+    void requestReceived()
+    {
+        requests.incrementAndGet();
+    }
+
+    void upstreamResponded( int status )
+    {
+        int statusClass = status / 100;
+        if ( statusClass > 0 && statusClass < 6 ) {
+            upstreamResponses.incrementAndGet( statusClass );
+        }
+    }
+
+    void upstreamFailed()
+    {
+        upstreamErrors.incrementAndGet();
+    }
+
+    void requestShed()
+    {
+        shedRequests.incrementAndGet();
+    }
+
+    void requestHedged()
+    {
+        hedgedRequests.incrementAndGet();
+    }
+
+    void requestRetried()
+    {
+        retriedRequests.incrementAndGet();
+    }
+
+    void bytesReceived( long count )
+    {
+        bytesIn.addAndGet( count );
+    }
+
+    void bytesSent( long count )
+    {
+        bytesOut.addAndGet( count );
+    }
+
+    void gzipInflated()
+    {
+        gzipInflations.incrementAndGet();
+    }
+
+    void responseCompressed( long uncompressedBytes, long compressedBytes )
+    {
+        compressedResponses.incrementAndGet();
+        compressionBytesSaved.addAndGet( uncompressedBytes - compressedBytes );
+    }
+
+    void multipartUploaded()
+    {
+        multipartUploads.incrementAndGet();
+    }
+
+    @Override
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    @Override
+    public long getUpstreamResponses1xx()
+    {
+        return upstreamResponses.get( 1 );
+    }
+
+    @Override
+    public long getUpstreamResponses2xx()
+    {
+        return upstreamResponses.get( 2 );
+    }
+
+    @Override
+    public long getUpstreamResponses3xx()
+    {
+        return upstreamResponses.get( 3 );
+    }
+
+    @Override
+    public long getUpstreamResponses4xx()
+    {
+        return upstreamResponses.get( 4 );
+    }
+
+    @Override
+    public long getUpstreamResponses5xx()
+    {
+        return upstreamResponses.get( 5 );
+    }
+
+    @Override
+    public long getUpstreamErrors()
+    {
+        return upstreamErrors.get();
+    }
+
+    @Override
+    public long getShedRequests()
+    {
+        return shedRequests.get();
+    }
+
+    @Override
+    public long getHedgedRequests()
+    {
+        return hedgedRequests.get();
+    }
+
+    @Override
+    public long getRetriedRequests()
+    {
+        return retriedRequests.get();
+    }
+
+    @Override
+    public long getBytesIn()
+    {
+        return bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut()
+    {
+        return bytesOut.get();
+    }
+
+    @Override
+    public long getGzipInflations()
+    {
+        return gzipInflations.get();
+    }
+
+    @Override
+    public long getMultipartUploads()
+    {
+        return multipartUploads.get();
+    }
+
+    @Override
+    public long getCompressedResponses()
+    {
+        return compressedResponses.get();
+    }
+
+    @Override
+    public long getCompressionBytesSaved()
+    {
+        return compressionBytesSaved.get();
+    }
+
+    @Override
+    public int getPoolConnectionsInPool()
+    {
+        InstrumentedConnectionManager manager = connectionManager;
+        return manager == null ? 0 : manager.getConnectionsInPool();
+    }
+
+    @Override
+    public int getPoolConnectionsInUse()
+    {
+        InstrumentedConnectionManager manager = connectionManager;
+        return manager == null ? 0 : manager.getLeasedConnections();
+    }
+
+    @Override
+    public int getPoolMaxConnections()
+    {
+        InstrumentedConnectionManager manager = connectionManager;
+        return manager == null ? 0 : manager.getParams().getMaxTotalConnections();
+    }
+
+    @Override
+    public long getCacheHits()
+    {
+        ResponseCache cache = responseCache;
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    @Override
+    public long getCacheMisses()
+    {
+        ResponseCache cache = responseCache;
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    @Override
+    public long getCacheEvictions()
+    {
+        ResponseCache cache = responseCache;
+        return cache == null ? 0 : cache.getEvictions();
+    }
+
+    @Override
+    public long getCoalescedRequests()
+    {
+        RequestCoalescer coalescer = requestCoalescer;
+        return coalescer == null ? 0 : coalescer.getCoalesced();
+    }
+
+    @Override
+    public long getRelayBufferAllocations()
+    {
+        BodyRelay relay = bodyRelay;
+        return relay == null ? 0 : relay.getAllocations();
+    }
+
+    @Override
+    public int getRelayBuffersPooled()
+    {
+        BodyRelay relay = bodyRelay;
+        return relay == null ? 0 : relay.getPooled();
+    }
+
+    @Override
+    public long getAccessLogEntries()
+    {
+        AccessLog log = accessLog;
+        return log == null ? 0 : log.getWritten();
+    }
+
+    @Override
+    public long getAccessLogDrops()
+    {
+        AccessLog log = accessLog;
+        return log == null ? 0 : log.getDropped();
+    }
+
+    @Override
+    public long getTracedRequests()
+    {
+        RequestTracer tracer = requestTracer;
+        return tracer == null ? 0 : tracer.getTraced();
+    }
+
+    @Override
+    public String[] getSlowestTraces()
+    {
+        RequestTracer tracer = requestTracer;
+        if ( tracer == null ) {
+            return new String[ 0 ];
+        }
+        List<RequestTrace> traces = tracer.getSlowest();
+        String[] dump = new String[ traces.size() ];
+        for ( int idx = 0; idx < dump.length; idx++ ) {
+            dump[idx] = traces.get( idx ).toString();
+        }
+        return dump;
+    }
+
+    @Override
+    public void reset()
+    {
+        requests.set( 0 );
+        for ( int idx = 0; idx < upstreamResponses.length(); idx++ ) {
+            upstreamResponses.set( idx, 0 );
+        }
+        upstreamErrors.set( 0 );
+        shedRequests.set( 0 );
+        hedgedRequests.set( 0 );
+        retriedRequests.set( 0 );
+        bytesIn.set( 0 );
+        bytesOut.set( 0 );
+        gzipInflations.set( 0 );
+        multipartUploads.set( 0 );
+        compressedResponses.set( 0 );
+        compressionBytesSaved.set( 0 );
+        poolWait.reset();
+        connect.reset();
+        tlsHandshake.reset();
+        timeToFirstByte.reset();
+        bodyTransfer.reset();
+    }
+
+    /**
+     * Register the MBeans in the platform MBean server, failures are logged and otherwise ignored.
+     *
+     * @param name  Name of the servlet the metrics belong to
+     */
+    synchronized void register( String name )
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String quotedName = ObjectName.quote( name );
+        try {
+            register( server, new ObjectName( DOMAIN + ":type=Proxilet,name=" + quotedName ),
+                      new StandardMBean( this, ProxiletMetricsMBean.class ) );
+            register( server, latencyName( quotedName, "poolWait" ), poolWait );
+            register( server, latencyName( quotedName, "connect" ), connect );
+            register( server, latencyName( quotedName, "tlsHandshake" ), tlsHandshake );
+            register( server, latencyName( quotedName, "timeToFirstByte" ), timeToFirstByte );
+            register( server, latencyName( quotedName, "bodyTransfer" ), bodyTransfer );
+        } catch ( JMException ex ) {
+            LOGGER.warn( "Unable to register metrics MBeans of {}: {}", name, ex.getMessage() );
+        }
+    }
+
+    synchronized void unregister()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for ( ObjectName objectName : registeredNames ) {
+            try {
+                server.unregisterMBean( objectName );
+            } catch ( JMException ex ) {
+                LOGGER.debug( "Unable to unregister MBean {}: {}", objectName, ex.getMessage() );
+            }
+        }
+        registeredNames.clear();
+    }
+
+    private void register( MBeanServer server, ObjectName objectName, LatencyHistogram histogram )
+            throws JMException
+    {
+        register( server, objectName, new StandardMBean( histogram, LatencyHistogramMBean.class ) );
+    }
+
+    private void register( MBeanServer server, ObjectName objectName, StandardMBean mbean )
+            throws JMException
+    {
+        server.registerMBean( mbean, objectName );
+        registeredNames.add( objectName );
+    }
+
+    private static ObjectName latencyName( String quotedName, String phase )
+            throws JMException
+    {
+        return new ObjectName( DOMAIN + ":type=Latency,name=" + quotedName + ",phase=" + phase );
+    }
+
+}
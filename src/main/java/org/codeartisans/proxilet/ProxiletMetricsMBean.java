@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+/**
+ * JMX view of the {@link Proxilet} counters and gauges, per-phase latencies are published as separate
+ * {@link LatencyHistogramMBean}s.
+ */
+public interface ProxiletMetricsMBean
+{
+
+    /**
+     * @return number of client requests
+     */
+    long getRequests();
+
+    long getUpstreamResponses1xx();
+
+    long getUpstreamResponses2xx();
+
+    long getUpstreamResponses3xx();
+
+    long getUpstreamResponses4xx();
+
+    long getUpstreamResponses5xx();
+
+    /**
+     * @return number of upstream requests that failed without a response
+     */
+    long getUpstreamErrors();
+
+    /**
+     * @return number of requests rejected because their upstream was at its concurrency limit
+     */
+    long getShedRequests();
+
+    /**
+     * @return number of hedge requests sent because the first upstream was slow to answer
+     */
+    long getHedgedRequests();
+
+    /**
+     * @return number of requests retried on another upstream after failing to connect
+     */
+    long getRetriedRequests();
+
+    /**
+     * @return number of response body bytes received from upstreams
+     */
+    long getBytesIn();
+
+    /**
+     * @return number of response body bytes sent to clients, cache hits included
+     */
+    long getBytesOut();
+
+    long getGzipInflations();
+
+    long getMultipartUploads();
+
+    /**
+     * @return number of responses compressed by the proxy
+     */
+    long getCompressedResponses();
+
+    /**
+     * @return number of bytes the proxy compression saved, negative if it inflated incompressible bodies
+     */
+    long getCompressionBytesSaved();
+
+    int getPoolConnectionsInPool();
+
+    int getPoolConnectionsInUse();
+
+    int getPoolMaxConnections();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheEvictions();
+
+    long getCoalescedRequests();
+
+    /**
+     * @return number of body relay buffers allocated, steady once the pool is warm
+     */
+    long getRelayBufferAllocations();
+
+    int getRelayBuffersPooled();
+
+    long getAccessLogEntries();
+
+    /**
+     * @return number of access log entries dropped because the writer could not keep up
+     */
+    long getAccessLogDrops();
+
+    long getTracedRequests();
+
+    /**
+     * @return the slowest sampled requests of the tracing window, the slowest first, with the duration of each stage
+     */
+    String[] getSlowestTraces();
+
+    void reset();
+
+}
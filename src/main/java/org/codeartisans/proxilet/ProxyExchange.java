@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * State of a single proxied request, from the client request to the response sent back.
+ */
+final class ProxyExchange
+{
+
+    private final HttpServletRequest httpServletRequest;
+
+    private final HttpServletResponse httpServletResponse;
+
+    private final Route route;
+
+    private Upstream upstream;
+
+    private HttpMethod httpMethodProxyRequest;
+
+    private UpstreamCall upstreamCall;
+
+    private final List<UpstreamCall> upstreamCalls = new CopyOnWriteArrayList<UpstreamCall>();
+
+    private volatile boolean aborted;
+
+    private String cacheKey;
+
+    private CachedResponse revalidatedResponse;
+
+    private RequestCoalescer.Flight flight;
+
+    private final long startTime;
+
+    private long timeToFirstByte = -1;
+
+    private long bodyTransfer = -1;
+
+    private long bytesReceived;
+
+    private long bytesSent;
+
+    private volatile boolean async;
+
+    private RequestTrace trace;
+
+    ProxyExchange( HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, Route route,
+                   Upstream upstream, long startTime )
+    {
+        this.httpServletRequest = httpServletRequest;
+        this.httpServletResponse = httpServletResponse;
+        this.route = route;
+        this.upstream = upstream;
+        this.startTime = startTime;
+    }
+
+    HttpServletRequest getRequest()
+    {
+        return httpServletRequest;
+    }
+
+    HttpServletResponse getResponse()
+    {
+        return httpServletResponse;
+    }
+
+    Route getRoute()
+    {
+        return route;
+    }
+
+    /**
+     * @return the upstream the request is proxied to, the one that answered once a response is relayed
+     */
+    Upstream getUpstream()
+    {
+        return upstream;
+    }
+
+    void setUpstream( Upstream upstream )
+    {
+        this.upstream = upstream;
+    }
+
+    HttpMethod getProxyRequest()
+    {
+        return httpMethodProxyRequest;
+    }
+
+    void setProxyRequest( HttpMethod httpMethodProxyRequest )
+    {
+        this.httpMethodProxyRequest = httpMethodProxyRequest;
+    }
+
+    /**
+     * @return the call carrying the proxy request, through the configured transport, the one whose response is
+     *         relayed when the request was retried or hedged
+     */
+    UpstreamCall getUpstreamCall()
+    {
+        return upstreamCall;
+    }
+
+    void setUpstreamCall( UpstreamCall upstreamCall )
+    {
+        this.upstreamCall = upstreamCall;
+    }
+
+    /**
+     * Register an upstream call made for this exchange, so that it is aborted along with the exchange.
+     */
+    void addUpstreamCall( UpstreamCall call )
+    {
+        upstreamCalls.add( call );
+        if ( aborted ) {
+            call.abort();
+        }
+    }
+
+    /**
+     * Abort all upstream calls of this exchange, including those registered afterwards.
+     */
+    void abort()
+    {
+        aborted = true;
+        for ( UpstreamCall call : upstreamCalls ) {
+            call.abort();
+        }
+    }
+
+    boolean isAborted()
+    {
+        return aborted;
+    }
+
+    /**
+     * @return true if the asynchronous client response was completed on timeout or error, nothing may be written to
+     *         it anymore
+     */
+    boolean isAbandoned()
+    {
+        return async && aborted;
+    }
+
+    /**
+     * @return the key under which the response may be cached or shared, null if the request does not use the cache
+     *         nor coalescing
+     */
+    String getCacheKey()
+    {
+        return cacheKey;
+    }
+
+    void setCacheKey( String cacheKey )
+    {
+        this.cacheKey = cacheKey;
+    }
+
+    /**
+     * @return the stale cached response the upstream request is revalidating, or null
+     */
+    CachedResponse getRevalidatedResponse()
+    {
+        return revalidatedResponse;
+    }
+
+    void setRevalidatedResponse( CachedResponse revalidatedResponse )
+    {
+        this.revalidatedResponse = revalidatedResponse;
+    }
+
+    /**
+     * @return the flight this exchange leads, or null
+     */
+    RequestCoalescer.Flight getFlight()
+    {
+        return flight;
+    }
+
+    void setFlight( RequestCoalescer.Flight flight )
+    {
+        this.flight = flight;
+    }
+
+    /**
+     * @return true if the exchange completes asynchronously, once the servlet returned
+     */
+    boolean isAsync()
+    {
+        return async;
+    }
+
+    void setAsync( boolean async )
+    {
+        this.async = async;
+    }
+
+    /**
+     * @return the trace of this exchange, or null if it is not sampled
+     */
+    RequestTrace getTrace()
+    {
+        return trace;
+    }
+
+    void setTrace( RequestTrace trace )
+    {
+        this.trace = trace;
+    }
+
+    /**
+     * End the given stage of the trace, if this exchange is sampled.
+     */
+    void mark( String stage )
+    {
+        if ( trace != null ) {
+            trace.mark( stage );
+        }
+    }
+
+    /**
+     * @return when the request was received, as per {@link System#nanoTime()}
+     */
+    long getStartTime()
+    {
+        return startTime;
+    }
+
+    /**
+     * @return time to the upstream response headers, in nanoseconds, -1 if the response does not come from upstream
+     */
+    long getTimeToFirstByte()
+    {
+        return timeToFirstByte;
+    }
+
+    void setTimeToFirstByte( long timeToFirstByte )
+    {
+        this.timeToFirstByte = timeToFirstByte;
+    }
+
+    /**
+     * @return time spent relaying the upstream response body, in nanoseconds, -1 if there was none
+     */
+    long getBodyTransfer()
+    {
+        return bodyTransfer;
+    }
+
+    void setBodyTransfer( long bodyTransfer )
+    {
+        this.bodyTransfer = bodyTransfer;
+    }
+
+    /**
+     * @return response body bytes received from upstream
+     */
+    long getBytesReceived()
+    {
+        return bytesReceived;
+    }
+
+    void setBytesReceived( long bytesReceived )
+    {
+        this.bytesReceived = bytesReceived;
+    }
+
+    /**
+     * @return response body bytes sent to the client
+     */
+    long getBytesSent()
+    {
+        return bytesSent;
+    }
+
+    void bytesSent( long count )
+    {
+        bytesSent += count;
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * Stage of the chain proxied requests and responses go through, see the 'filters' init-param.
+ *
+ * Stages see the headers and may change them, they transform bodies by returning a {@link BodyFilter} that is fed the
+ * body as it streams, so that filtering never requires buffering a whole body. Implementations are shared by all
+ * requests and must be thread-safe. A custom stage can be used by adding its class name to the 'filters' init-param,
+ * it must have a public constructor taking the {@link javax.servlet.ServletConfig}.
+ */
+public interface ProxyFilter
+{
+
+    /**
+     * Filter a request before it is sent upstream, once per attempt. Multipart bodies are not filtered.
+     *
+     * @param clientRequest     the client request
+     * @param upstream          the upstream the request is sent to
+     * @param upstreamRequest   the upstream request, whose headers may be changed
+     * @return                  a filter of the request body, or null to leave it untouched
+     * @throws IOException      if the request cannot be filtered
+     */
+    BodyFilter filterRequest( HttpServletRequest clientRequest, Upstream upstream, HttpMethod upstreamRequest )
+            throws IOException;
+
+    /**
+     * Filter a response before it is sent to the client, whether it comes from upstream or from the cache.
+     *
+     * Bodies are filtered without content coding. Once a body is filtered, its Content-Length is dropped and its ETag
+     * weakened.
+     *
+     * @param clientRequest     the client request
+     * @param upstream          the upstream the response comes from
+     * @param statusCode        the response status code
+     * @param responseHeaders   the response headers, may be changed
+     * @return                  a filter of the response body, or null to leave it untouched
+     * @throws IOException      if the response cannot be filtered
+     */
+    BodyFilter filterResponse( HttpServletRequest clientRequest, Upstream upstream, int statusCode,
+                               List<Header> responseHeaders )
+            throws IOException;
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * The configured {@link ProxyFilter} stages, applied in order.
+ */
+final class ProxyFilterChain
+{
+
+    private final ProxyFilter[] filters;
+
+    ProxyFilterChain( List<ProxyFilter> filters )
+    {
+        this.filters = filters.toArray( new ProxyFilter[ filters.size() ] );
+    }
+
+    /**
+     * @return the request body filters, in the order they apply, empty if the body is left untouched
+     */
+    List<BodyFilter> filterRequest( HttpServletRequest clientRequest, Upstream upstream, HttpMethod upstreamRequest )
+            throws IOException
+    {
+        List<BodyFilter> bodyFilters = null;
+        for ( ProxyFilter filter : filters ) {
+            BodyFilter bodyFilter = filter.filterRequest( clientRequest, upstream, upstreamRequest );
+            if ( bodyFilter != null ) {
+                if ( bodyFilters == null ) {
+                    bodyFilters = new ArrayList<BodyFilter>( 2 );
+                }
+                bodyFilters.add( bodyFilter );
+            }
+        }
+        return bodyFilters == null ? Collections.<BodyFilter>emptyList() : bodyFilters;
+    }
+
+    /**
+     * @return the response body filters, in the order they apply, empty if the body is left untouched
+     */
+    List<BodyFilter> filterResponse( HttpServletRequest clientRequest, Upstream upstream, int statusCode,
+                                     List<Header> responseHeaders )
+            throws IOException
+    {
+        List<BodyFilter> bodyFilters = null;
+        for ( ProxyFilter filter : filters ) {
+            BodyFilter bodyFilter = filter.filterResponse( clientRequest, upstream, statusCode, responseHeaders );
+            if ( bodyFilter != null ) {
+                if ( bodyFilters == null ) {
+                    bodyFilters = new ArrayList<BodyFilter>( 2 );
+                }
+                bodyFilters.add( bodyFilter );
+            }
+        }
+        return bodyFilters == null ? Collections.<BodyFilter>emptyList() : bodyFilters;
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * BodyFilter that replaces every occurrence of a byte pattern by another one as bytes flow through it.
+ *
+ * Occurrences are replaced from left to right without overlapping, as {@link String#replace(CharSequence, CharSequence)}
+ * does, and are found even when they span several chunks. Only the bytes of a pending partial match are held back
+ * until {@link #finish(OutputStream)}.
+ */
+final class ReplacingBodyFilter
+        implements BodyFilter
+{
+
+    private final byte[] search;
+
+    private final byte[] replacement;
+
+    /**
+     * Knuth-Morris-Pratt failure function of the searched pattern.
+     */
+    private final int[] failure;
+
+    /**
+     * Length of the searched pattern prefix matched by the last bytes filtered.
+     */
+    private int matched;
+
+    ReplacingBodyFilter( byte[] search, byte[] replacement )
+    {
+        if ( search == null || search.length == 0 ) {
+            throw new IllegalArgumentException( "Searched pattern may not be empty" );
+        }
+        this.search = search;
+        this.replacement = replacement;
+        this.failure = failure( search );
+    }
+
+    @Override
+    public void filter( byte[] bytes, int offset, int length, OutputStream out )
+            throws IOException
+    {
+        int end = offset + length;
+        // Start of the run of bytes known not to be part of any match, not written yet
+        int runStart = offset;
+        for ( int idx = offset; idx < end; idx++ ) {
+            byte current = bytes[idx];
+            if ( matched == 0 ) {
+                if ( current != search[0] ) {
+                    continue;
+                }
+                out.write( bytes, runStart, idx - runStart );
+            }
+            while ( matched > 0 && search[matched] != current ) {
+                // Pending bytes that can no longer be part of a match are released
+                int fallback = failure[matched - 1];
+                out.write( search, 0, matched - fallback );
+                matched = fallback;
+            }
+            if ( search[matched] == current ) {
+                matched++;
+                if ( matched == search.length ) {
+                    out.write( replacement );
+                    matched = 0;
+                }
+                runStart = idx + 1;
+            } else {
+                runStart = idx;
+            }
+        }
+        if ( matched == 0 && runStart < end ) {
+            out.write( bytes, runStart, end - runStart );
+        }
+    }
+
+    /**
+     * Write pending bytes of a partial match, if any.
+     */
+    @Override
+    public void finish( OutputStream out )
+            throws IOException
+    {
+        if ( matched > 0 ) {
+            out.write( search, 0, matched );
+            matched = 0;
+        }
+    }
+
+    private static int[] failure( byte[] pattern )
+    {
+        int[] failure = new int[ pattern.length ];
+        int length = 0;
+        for ( int idx = 1; idx < pattern.length; idx++ ) {
+            while ( length > 0 && pattern[idx] != pattern[length] ) {
+                length = failure[length - 1];
+            }
+            if ( pattern[idx] == pattern[length] ) {
+                length++;
+            }
+            failure[idx] = length;
+        }
+        return failure;
+    }
+
+}
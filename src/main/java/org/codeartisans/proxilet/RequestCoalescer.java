@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight coordination of identical concurrent requests.
+ *
+ * The first request for a key leads a flight and executes the upstream request, identical requests arriving meanwhile
+ * follow it and wait, for a bounded time, for the response it shares. Followers getting no response fall back to
+ * independent requests.
+ */
+final class RequestCoalescer
+{
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    private final long timeoutMillis;
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * @param timeoutMillis     Maximum time followers wait for the leader response
+     */
+    RequestCoalescer( long timeoutMillis )
+    {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Start leading a flight for the given key.
+     *
+     * @param key   The coalescing key
+     * @return      The new flight, to be {@link #land landed} by the caller, or null if a flight is already in progress
+     */
+    Flight lead( String key )
+    {
+        Flight flight = new Flight( key );
+        return flights.putIfAbsent( key, flight ) == null ? flight : null;
+    }
+
+    /**
+     * Follow the flight in progress for the given key.
+     *
+     * @param key   The coalescing key
+     * @return      The response shared by the leader, or null if there was none within the wait timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    CachedResponse follow( String key )
+            throws InterruptedException
+    {
+        Flight flight = flights.get( key );
+        CachedResponse response = null;
+        if ( flight != null && flight.landed.await( timeoutMillis, TimeUnit.MILLISECONDS ) ) {
+            response = flight.response;
+        }
+        if ( response == null ) {
+            fallbacks.incrementAndGet();
+        } else {
+            coalesced.incrementAndGet();
+        }
+        return response;
+    }
+
+    /**
+     * End a flight, releasing its followers. Landing an already landed flight has no effect.
+     *
+     * @param flight    The flight
+     * @param response  The response to share with followers, null if it cannot be shared
+     */
+    void land( Flight flight, CachedResponse response )
+    {
+        if ( flights.remove( flight.key, flight ) ) {
+            flight.response = response;
+            flight.landed.countDown();
+        }
+    }
+
+    /**
+     * @return number of requests that were served a response shared by a leader
+     */
+    long getCoalesced()
+    {
+        return coalesced.get();
+    }
+
+    /**
+     * @return number of followers that fell back to independent requests
+     */
+    long getFallbacks()
+    {
+        return fallbacks.get();
+    }
+
+    static final class Flight
+    {
+
+        private final String key;
+
+        private final CountDownLatch landed = new CountDownLatch( 1 );
+
+        private volatile CachedResponse response;
+
+        private Flight( String key )
+        {
+            this.key = key;
+        }
+
+    }
+
+}
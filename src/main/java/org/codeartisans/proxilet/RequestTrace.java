@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Timeline of a sampled request, as named stages each ending at a mark.
+ *
+ * Stages are marked by the thread carrying the request at the time, the exchange is handed from thread to thread
+ * through executors that publish the marks already made.
+ */
+final class RequestTrace
+{
+
+    private static final int MAX_STAGES = 16;
+
+    private final long time;
+
+    private final long startTime;
+
+    private final String method;
+
+    private final String uri;
+
+    private final String[] stages = new String[ MAX_STAGES ];
+
+    private final long[] marks = new long[ MAX_STAGES ];
+
+    private int stageCount;
+
+    private long duration = -1;
+
+    private int status;
+
+    private Upstream upstream;
+
+    /**
+     * @param httpServletRequest    The traced request
+     * @param startTime             When the request was received, as per {@link System#nanoTime()}
+     */
+    RequestTrace( HttpServletRequest httpServletRequest, long startTime )
+    {
+        this.time = System.currentTimeMillis();
+        this.startTime = startTime;
+        this.method = httpServletRequest.getMethod();
+        String query = httpServletRequest.getQueryString();
+        this.uri = query == null ? httpServletRequest.getRequestURI() : httpServletRequest.getRequestURI() + '?' + query;
+    }
+
+    /**
+     * End the given stage now, it started at the previous mark. Stages past the 16th are ignored.
+     *
+     * @param stage the stage name, a Server-Timing metric name
+     */
+    void mark( String stage )
+    {
+        if ( stageCount < MAX_STAGES ) {
+            stages[stageCount] = stage;
+            marks[stageCount] = System.nanoTime();
+            stageCount++;
+        }
+    }
+
+    void finish( int status, Upstream upstream )
+    {
+        this.duration = System.nanoTime() - startTime;
+        this.status = status;
+        this.upstream = upstream;
+    }
+
+    /**
+     * @return request duration, in nanoseconds, -1 until finished
+     */
+    long getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * @return when the request finished, as per {@link System#nanoTime()}
+     */
+    long getEndTime()
+    {
+        return startTime + duration;
+    }
+
+    /**
+     * @return the stages marked so far as a Server-Timing header value
+     */
+    String toServerTiming()
+    {
+        StringBuilder header = new StringBuilder( 128 );
+        for ( int idx = 0; idx < stageCount; idx++ ) {
+            if ( idx > 0 ) {
+                header.append( ", " );
+            }
+            header.append( stages[idx] ).append( ";dur=" );
+            appendMillis( header, stageDuration( idx ) );
+        }
+        return header.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        SimpleDateFormat timeFormat = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US );
+        timeFormat.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+        StringBuilder line = new StringBuilder( 256 );
+        line.append( timeFormat.format( new Date( time ) ) ).append( ' ' ).append( method ).append( ' ' ).append( uri );
+        line.append( ' ' ).append( status );
+        if ( upstream != null ) {
+            line.append( ' ' ).append( upstream );
+        }
+        line.append( " total=" );
+        appendMillis( line, duration );
+        for ( int idx = 0; idx < stageCount; idx++ ) {
+            line.append( ' ' ).append( stages[idx] ).append( '=' );
+            appendMillis( line, stageDuration( idx ) );
+        }
+        return line.toString();
+    }
+
+    private long stageDuration( int idx )
+    {
+        return marks[idx] - ( idx == 0 ? startTime : marks[idx - 1] );
+    }
+
+    /**
+     * Append a duration in milliseconds with microseconds precision.
+     */
+    private static void appendMillis( StringBuilder builder, long nanos )
+    {
+        long micros = TimeUnit.NANOSECONDS.toMicros( Math.max( 0, nanos ) );
+        long fraction = micros % 1000;
+        builder.append( micros / 1000 ).append( '.' );
+        if ( fraction < 100 ) {
+            builder.append( fraction < 10 ? "00" : "0" );
+        }
+        builder.append( fraction );
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Samples requests to trace and retains the slowest traces of a sliding window, so that tail latency can be looked
+ * into without tracing every request.
+ *
+ * Finished traces faster than the retained ones are discarded without locking, only contenders take the lock.
+ */
+final class RequestTracer
+{
+
+    private static final Comparator<RequestTrace> BY_DURATION = new Comparator<RequestTrace>()
+    {
+
+        @Override
+        public int compare( RequestTrace left, RequestTrace right )
+        {
+            return left.getDuration() < right.getDuration() ? -1 : left.getDuration() == right.getDuration() ? 0 : 1;
+        }
+
+    };
+
+    private final int sampling;
+
+    private final int capacity;
+
+    private final long windowNanos;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong traced = new AtomicLong();
+
+    /**
+     * Retained traces, the fastest first.
+     */
+    private final PriorityQueue<RequestTrace> slowest;
+
+    /**
+     * Duration a trace must exceed to be retained, -1 while there is room.
+     */
+    private volatile long threshold = -1;
+
+    /**
+     * End of the oldest retained trace, as per {@link System#nanoTime()}.
+     */
+    private volatile long oldest;
+
+    /**
+     * @param sampling  One request in this many is traced
+     * @param capacity  Slowest traces retained
+     * @param window    Age after which retained traces are discarded, in milliseconds
+     */
+    RequestTracer( int sampling, int capacity, long window )
+    {
+        this.sampling = Math.max( 1, sampling );
+        this.capacity = Math.max( 1, capacity );
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos( window );
+        this.slowest = new PriorityQueue<RequestTrace>( this.capacity, BY_DURATION );
+        this.oldest = System.nanoTime();
+    }
+
+    /**
+     * @param httpServletRequest    The request
+     * @param startTime             When the request was received, as per {@link System#nanoTime()}
+     * @return                      The trace of the request if it is sampled, null otherwise
+     */
+    RequestTrace sample( HttpServletRequest httpServletRequest, long startTime )
+    {
+        if ( requests.getAndIncrement() % sampling != 0 ) {
+            return null;
+        }
+        traced.incrementAndGet();
+        return new RequestTrace( httpServletRequest, startTime );
+    }
+
+    /**
+     * Retain the given finished trace if it is among the slowest of the window.
+     */
+    void record( RequestTrace trace )
+    {
+        long now = System.nanoTime();
+        if ( trace.getDuration() <= threshold && now - oldest < windowNanos ) {
+            return;
+        }
+        synchronized ( this ) {
+            expire( now );
+            if ( slowest.size() < capacity ) {
+                slowest.add( trace );
+            } else if ( trace.getDuration() > slowest.peek().getDuration() ) {
+                slowest.poll();
+                slowest.add( trace );
+            }
+            update();
+        }
+    }
+
+    /**
+     * @return number of requests traced
+     */
+    long getTraced()
+    {
+        return traced.get();
+    }
+
+    /**
+     * @return the slowest traces of the window, the slowest first
+     */
+    synchronized List<RequestTrace> getSlowest()
+    {
+        expire( System.nanoTime() );
+        update();
+        List<RequestTrace> traces = new ArrayList<RequestTrace>( slowest );
+        Collections.sort( traces, Collections.reverseOrder( BY_DURATION ) );
+        return traces;
+    }
+
+    private void expire( long now )
+    {
+        Iterator<RequestTrace> iterator = slowest.iterator();
+        while ( iterator.hasNext() ) {
+            if ( now - iterator.next().getEndTime() >= windowNanos ) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void update()
+    {
+        threshold = slowest.size() < capacity ? -1 : slowest.peek().getDuration();
+        long oldestEnd = System.nanoTime();
+        for ( RequestTrace retained : slowest ) {
+            if ( retained.getEndTime() - oldestEnd < 0 ) {
+                oldestEnd = retained.getEndTime();
+            }
+        }
+        oldest = oldestEnd;
+    }
+
+}
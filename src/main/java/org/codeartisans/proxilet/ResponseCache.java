@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Bounded, size-weighted, in-memory cache of upstream responses.
+ *
+ * Entries are spread over independently locked segments, each one evicting its least recently used entries once its
+ * share of the total weight is exceeded, so that concurrent requests rarely contend. Responses varying on request
+ * headers are stored under a secondary key built from those headers, the primary key holding a variants index.
+ *
+ * An optional {@link DiskCache} tier holds the responses too large for the heap, it is looked up on memory misses.
+ * Responses varying on request headers are only held in memory.
+ */
+final class ResponseCache
+{
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+
+    private final long maxEntryWeight;
+
+    private final DiskCache diskCache;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxWeight         Maximum total weight, roughly the number of bytes held by the cache
+     * @param maxEntryWeight    Maximum weight of a single entry
+     * @param diskCache         Disk tier for larger entries, may be null
+     */
+    ResponseCache( long maxWeight, long maxEntryWeight, DiskCache diskCache )
+    {
+        this.maxEntryWeight = maxEntryWeight;
+        this.diskCache = diskCache;
+        this.segments = new Segment[ SEGMENTS ];
+        for ( int idx = 0; idx < SEGMENTS; idx++ ) {
+            segments[idx] = new Segment( Math.max( 1, maxWeight / SEGMENTS ) );
+        }
+    }
+
+    long getMaxEntryWeight()
+    {
+        return maxEntryWeight;
+    }
+
+    /**
+     * @return the disk tier, null if there is none
+     */
+    DiskCache getDiskCache()
+    {
+        return diskCache;
+    }
+
+    /**
+     * Look up the response stored for the given key and request.
+     *
+     * @param key                   The primary cache key
+     * @param httpServletRequest    The client request, for responses varying on request headers
+     * @return                      The stored response, or null
+     */
+    CachedResponse get( String key, HttpServletRequest httpServletRequest )
+    {
+        CachedResponse cached = segment( key ).get( key );
+        if ( cached != null && cached.isVariantsIndex() ) {
+            String variantKey = key + CachePolicy.variantKey( httpServletRequest, cached.getVaryNames() );
+            cached = segment( variantKey ).get( variantKey );
+        } else if ( cached == null && diskCache != null ) {
+            cached = diskCache.get( key );
+        }
+        if ( cached == null ) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return cached;
+    }
+
+    /**
+     * Store a response for the given key and request, replacing any previously stored one.
+     *
+     * @param key                   The primary cache key
+     * @param httpServletRequest    The client request, for responses varying on request headers
+     * @param response              The response to store
+     */
+    void put( String key, HttpServletRequest httpServletRequest, CachedResponse response )
+    {
+        if ( response.isOnDisk() ) {
+            if ( diskCache != null ) {
+                segment( key ).remove( key );
+                diskCache.put( key, response );
+            }
+            return;
+        }
+        if ( response.getWeight() > maxEntryWeight ) {
+            return;
+        }
+        if ( diskCache != null ) {
+            diskCache.remove( key );
+        }
+        String[] varyNames = response.getVaryNames();
+        if ( varyNames == null ) {
+            segment( key ).put( key, response );
+        } else {
+            segment( key ).put( key, CachedResponse.variantsIndex( varyNames ) );
+            String variantKey = key + CachePolicy.variantKey( httpServletRequest, varyNames );
+            segment( variantKey ).put( variantKey, response );
+        }
+    }
+
+    void remove( String key )
+    {
+        segment( key ).remove( key );
+        if ( diskCache != null ) {
+            diskCache.remove( key );
+        }
+    }
+
+    long getHits()
+    {
+        return hits.get();
+    }
+
+    long getMisses()
+    {
+        return misses.get();
+    }
+
+    long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    long getWeight()
+    {
+        long weight = 0;
+        for ( Segment segment : segments ) {
+            weight += segment.getWeight();
+        }
+        return weight;
+    }
+
+    private Segment segment( String key )
+    {
+        int hash = key.hashCode();
+        // Spread bits so that keys sharing a long prefix do not collide on low bits
+        hash ^= ( hash >>> 16 );
+        return segments[hash & ( SEGMENTS - 1 )];
+    }
+
+    private final class Segment
+    {
+
+        private final long maxWeight;
+
+        private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>( 16, 0.75f, true );
+
+        private long weight;
+
+        private Segment( long maxWeight )
+        {
+            this.maxWeight = maxWeight;
+        }
+
+        private synchronized CachedResponse get( String key )
+        {
+            return entries.get( key );
+        }
+
+        private synchronized void put( String key, CachedResponse response )
+        {
+            CachedResponse previous = entries.put( key, response );
+            if ( previous != null ) {
+                weight -= previous.getWeight();
+            }
+            weight += response.getWeight();
+            // Evict least recently used entries
+            Iterator<Map.Entry<String, CachedResponse>> iterator = entries.entrySet().iterator();
+            while ( weight > maxWeight && iterator.hasNext() ) {
+                Map.Entry<String, CachedResponse> eldest = iterator.next();
+                if ( eldest.getValue() == response ) {
+                    continue;
+                }
+                weight -= eldest.getValue().getWeight();
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        private synchronized void remove( String key )
+        {
+            CachedResponse previous = entries.remove( key );
+            if ( previous != null ) {
+                weight -= previous.getWeight();
+            }
+        }
+
+        private synchronized long getWeight()
+        {
+            return weight;
+        }
+
+    }
+
+}
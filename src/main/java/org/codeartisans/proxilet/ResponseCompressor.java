@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.commons.httpclient.Header;
+
+/**
+ * Compresses response bodies as they are relayed to clients, with pooled Deflaters.
+ *
+ * Only identity encoded responses of allowed content types and of at least the minimum size are compressed. Bodies of
+ * unknown length are always compressed as their size is not known upfront.
+ */
+final class ResponseCompressor
+{
+
+    static final String CODING_GZIP = "gzip";
+
+    static final String CODING_DEFLATE = "deflate";
+
+    /**
+     * Textual types compressed when no type is configured.
+     */
+    static final String[] DEFAULT_TYPES = new String[]{
+        "text/", "application/json", "application/javascript", "application/x-javascript", "application/xml",
+        "application/xhtml+xml", "application/rss+xml", "application/atom+xml", "image/svg+xml"
+    };
+
+    private static final byte[] GZIP_HEADER = new byte[]{ 0x1f, ( byte ) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    /**
+     * Deflater.deflate( byte[], int, int, int ), only available from Java 7, used to flush compressed data.
+     */
+    private static final Method SYNC_FLUSH_DEFLATE = syncFlushDeflate();
+
+    private static final int SYNC_FLUSH = 2;
+
+    private final String[] types;
+
+    private final long minSize;
+
+    private final int level;
+
+    private final BufferPool bufferPool;
+
+    private final BlockingQueue<Deflater> gzipDeflaters;
+
+    private final BlockingQueue<Deflater> zlibDeflaters;
+
+    /**
+     * @param types         lowercase content type prefixes of compressed responses
+     * @param minSize       minimum Content-Length of compressed responses, in bytes
+     * @param level         compression level, from 1 to 9, or -1 for the default one
+     * @param maxPooled     maximum number of idle Deflaters kept per content coding
+     * @param bufferPool    pool of the compressed output buffers
+     */
+    ResponseCompressor( String[] types, long minSize, int level, int maxPooled, BufferPool bufferPool )
+    {
+        this.types = types;
+        this.minSize = minSize;
+        this.level = level;
+        this.bufferPool = bufferPool;
+        this.gzipDeflaters = new ArrayBlockingQueue<Deflater>( Math.max( 1, maxPooled ) );
+        this.zlibDeflaters = new ArrayBlockingQueue<Deflater>( Math.max( 1, maxPooled ) );
+    }
+
+    /**
+     * @param statusCode    response status code
+     * @param headers       response headers, as received from the upstream
+     * @return              true if the response body can be compressed, provided the client accepts it
+     */
+    boolean isCompressible( int statusCode, Header[] headers )
+    {
+        if ( statusCode < 200 || statusCode == 204 || statusCode == 206 || statusCode == 304 ) {
+            return false;
+        }
+        String contentEncoding = CachePolicy.header( headers, "Content-Encoding" );
+        if ( contentEncoding != null && !"identity".equalsIgnoreCase( contentEncoding.trim() ) ) {
+            return false;
+        }
+        String cacheControl = CachePolicy.header( headers, CachePolicy.HEADER_CACHE_CONTROL );
+        if ( cacheControl != null && cacheControl.toLowerCase( Locale.US ).contains( "no-transform" ) ) {
+            return false;
+        }
+        String contentLength = CachePolicy.header( headers, "Content-Length" );
+        if ( contentLength != null ) {
+            try {
+                if ( Long.parseLong( contentLength.trim() ) < minSize ) {
+                    return false;
+                }
+            } catch ( NumberFormatException ex ) {
+                return false;
+            }
+        }
+        String contentType = CachePolicy.header( headers, "Content-Type" );
+        if ( contentType == null ) {
+            return false;
+        }
+        contentType = contentType.trim().toLowerCase( Locale.US );
+        for ( String type : types ) {
+            if ( contentType.startsWith( type ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param out       where to write the compressed content, not closed
+     * @param coding    {@link #CODING_GZIP} or {@link #CODING_DEFLATE}
+     * @return          a stream compressing into the given one, to be finished and then released
+     */
+    CompressingOutputStream compress( OutputStream out, String coding )
+    {
+        boolean gzip = CODING_GZIP.equals( coding );
+        BlockingQueue<Deflater> deflaters = gzip ? gzipDeflaters : zlibDeflaters;
+        Deflater deflater = deflaters.poll();
+        if ( deflater == null ) {
+            // gzip wraps raw deflate data, the deflate content coding is the zlib format
+            deflater = new Deflater( level, gzip );
+        }
+        return new CompressingOutputStream( out, deflater, gzip ? new CRC32() : null, deflaters, bufferPool );
+    }
+
+    private static Method syncFlushDeflate()
+    {
+        try {
+            return Deflater.class.getMethod( "deflate", byte[].class, int.class, int.class, int.class );
+        } catch ( NoSuchMethodException ex ) {
+            return null;
+        }
+    }
+
+    /**
+     * Streaming compression, the gzip header and trailer are written around the raw deflate data when gzipping.
+     *
+     * Not thread safe, the Deflater and the output buffer go back to their pools on {@link #release()}.
+     */
+    static final class CompressingOutputStream
+            extends OutputStream
+    {
+
+        private final OutputStream out;
+
+        private final Deflater deflater;
+
+        private final CRC32 crc;
+
+        private final BlockingQueue<Deflater> deflaters;
+
+        private final BufferPool bufferPool;
+
+        private final byte[] buffer;
+
+        private boolean started;
+
+        private boolean finished;
+
+        private boolean released;
+
+        private long bytesIn;
+
+        private long bytesOut;
+
+        private CompressingOutputStream( OutputStream out, Deflater deflater, CRC32 crc, BlockingQueue<Deflater> deflaters,
+                                         BufferPool bufferPool )
+        {
+            this.out = out;
+            this.deflater = deflater;
+            this.crc = crc;
+            this.deflaters = deflaters;
+            this.bufferPool = bufferPool;
+            this.buffer = bufferPool.acquire();
+        }
+
+        @Override
+        public void write( int b )
+                throws IOException
+        {
+            write( new byte[]{ ( byte ) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] bytes, int offset, int length )
+                throws IOException
+        {
+            if ( finished ) {
+                throw new IOException( "Compressed stream already finished" );
+            }
+            if ( length == 0 ) {
+                return;
+            }
+            start();
+            if ( crc != null ) {
+                crc.update( bytes, offset, length );
+            }
+            bytesIn += length;
+            deflater.setInput( bytes, offset, length );
+            while ( !deflater.needsInput() ) {
+                drain( deflater.deflate( buffer, 0, buffer.length ) );
+            }
+        }
+
+        /**
+         * Flushes pending compressed data when the runtime supports it, the compression ratio suffers from frequent
+         * flushes.
+         */
+        @Override
+        public void flush()
+                throws IOException
+        {
+            if ( started && !finished && SYNC_FLUSH_DEFLATE != null ) {
+                int count;
+                do {
+                    count = syncFlush();
+                    drain( count );
+                } while ( count == buffer.length );
+            }
+            out.flush();
+        }
+
+        /**
+         * Writes the remaining compressed data and the gzip trailer, if any, without closing the underlying stream.
+         */
+        void finish()
+                throws IOException
+        {
+            if ( finished ) {
+                return;
+            }
+            start();
+            deflater.finish();
+            while ( !deflater.finished() ) {
+                drain( deflater.deflate( buffer, 0, buffer.length ) );
+            }
+            if ( crc != null ) {
+                writeIntLE( ( int ) crc.getValue() );
+                writeIntLE( ( int ) bytesIn );
+            }
+            finished = true;
+        }
+
+        /**
+         * Gives the Deflater and the output buffer back to their pools, must be called once done, even on failure.
+         */
+        void release()
+        {
+            if ( released ) {
+                return;
+            }
+            released = true;
+            bufferPool.release( buffer );
+            deflater.reset();
+            if ( !deflaters.offer( deflater ) ) {
+                deflater.end();
+            }
+        }
+
+        /**
+         * @return number of uncompressed bytes written
+         */
+        long getBytesIn()
+        {
+            return bytesIn;
+        }
+
+        /**
+         * @return number of compressed bytes written, headers included
+         */
+        long getBytesOut()
+        {
+            return bytesOut;
+        }
+
+        private void start()
+                throws IOException
+        {
+            if ( !started ) {
+                started = true;
+                if ( crc != null ) {
+                    out.write( GZIP_HEADER );
+                    bytesOut += GZIP_HEADER.length;
+                }
+            }
+        }
+
+        private int syncFlush()
+                throws IOException
+        {
+            try {
+                return ( Integer ) SYNC_FLUSH_DEFLATE.invoke( deflater, buffer, 0, buffer.length, SYNC_FLUSH );
+            } catch ( Exception ex ) {
+                throw new IOException( "Unable to flush compressed data: " + ex.getMessage(), ex );
+            }
+        }
+
+        private void drain( int count )
+                throws IOException
+        {
+            if ( count > 0 ) {
+                out.write( buffer, 0, count );
+                bytesOut += count;
+            }
+        }
+
+        private void writeIntLE( int value )
+                throws IOException
+        {
+            out.write( value & 0xff );
+            out.write( ( value >> 8 ) & 0xff );
+            out.write( ( value >> 16 ) & 0xff );
+            out.write( ( value >> 24 ) & 0xff );
+            bytesOut += 4;
+        }
+
+    }
+
+}
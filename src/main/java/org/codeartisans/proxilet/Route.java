@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+/**
+ * Rule mapping requests whose path starts with a prefix, and optionally whose host matches, to an upstream group.
+ *
+ * The matched prefix is replaced by the rewrite prefix in the upstream request path, the remainder is kept as is.
+ */
+final class Route
+{
+
+    private final String host;
+
+    private final String pathPrefix;
+
+    private final String rewritePrefix;
+
+    private final UpstreamGroup upstreamGroup;
+
+    private final String cacheKeyPrefix;
+
+    /**
+     * @param host              host the Host header must match, case insensitively, null to match any host
+     * @param pathPrefix        prefix of the path within the servlet context, "" to match any path
+     * @param rewritePrefix     prefix of the upstream request path replacing the matched one
+     * @param upstreamGroup     upstreams serving the route
+     * @param cacheKeyPrefix    prefix of the cache keys of the route, distinguishing responses of distinct upstreams
+     */
+    Route( String host, String pathPrefix, String rewritePrefix, UpstreamGroup upstreamGroup, String cacheKeyPrefix )
+    {
+        this.host = host;
+        this.pathPrefix = pathPrefix;
+        this.rewritePrefix = rewritePrefix;
+        this.upstreamGroup = upstreamGroup;
+        this.cacheKeyPrefix = cacheKeyPrefix;
+    }
+
+    String getHost()
+    {
+        return host;
+    }
+
+    String getPathPrefix()
+    {
+        return pathPrefix;
+    }
+
+    String getRewritePrefix()
+    {
+        return rewritePrefix;
+    }
+
+    UpstreamGroup getUpstreamGroup()
+    {
+        return upstreamGroup;
+    }
+
+    String getCacheKeyPrefix()
+    {
+        return cacheKeyPrefix;
+    }
+
+    /**
+     * Append the upstream request path of a request matched by this route.
+     *
+     * @param url           where to append the path
+     * @param requestUri    the request URI
+     * @param pathStart     index of the path within the servlet context in the request URI
+     */
+    void appendRewrittenPath( StringBuilder url, String requestUri, int pathStart )
+    {
+        url.append( rewritePrefix ).append( requestUri, pathStart + pathPrefix.length(), requestUri.length() );
+    }
+
+    @Override
+    public String toString()
+    {
+        return ( host == null ? "" : host ) + pathPrefix + " => " + upstreamGroup + rewritePrefix;
+    }
+
+}
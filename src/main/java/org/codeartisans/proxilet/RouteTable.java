@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Routes compiled into prefix tries, one per host plus one for routes matching any host.
+ *
+ * Matching walks the request path once, so it costs O(path length) whatever the number of routes, and does not
+ * allocate. Prefixes only match on path segment boundaries: /api matches /api and /api/users but not /apis. The
+ * longest matching prefix wins, routes of the request host are preferred over routes matching any host.
+ */
+final class RouteTable
+{
+
+    private final List<Route> routes;
+
+    private final Node anyHost = new Node();
+
+    private final Map<String, Node> byHost = new TreeMap<String, Node>( String.CASE_INSENSITIVE_ORDER );
+
+    RouteTable( List<Route> routes )
+    {
+        this.routes = Collections.unmodifiableList( new ArrayList<Route>( routes ) );
+        for ( Route route : routes ) {
+            Node root = anyHost;
+            if ( route.getHost() != null ) {
+                root = byHost.get( route.getHost() );
+                if ( root == null ) {
+                    root = new Node();
+                    byHost.put( route.getHost(), root );
+                }
+            }
+            Node node = root;
+            String prefix = route.getPathPrefix();
+            for ( int idx = 0; idx < prefix.length(); idx++ ) {
+                node = node.addChild( prefix.charAt( idx ) );
+            }
+            if ( node.route != null ) {
+                throw new IllegalArgumentException( "Duplicate route " + route + ", conflicts with " + node.route );
+            }
+            node.route = route;
+        }
+    }
+
+    List<Route> getRoutes()
+    {
+        return routes;
+    }
+
+    /**
+     * @return the route of the given request, or null if none matches
+     */
+    Route match( HttpServletRequest httpServletRequest )
+    {
+        return match( httpServletRequest.getServerName(), httpServletRequest.getRequestURI(), pathStart( httpServletRequest ) );
+    }
+
+    /**
+     * @param host      the request host, may be null
+     * @param uri       the request URI
+     * @param pathStart index of the path within the servlet context in the URI
+     * @return          the matching route, or null if none matches
+     */
+    Route match( String host, String uri, int pathStart )
+    {
+        if ( host != null && !byHost.isEmpty() ) {
+            Node root = byHost.get( host );
+            if ( root != null ) {
+                Route route = root.match( uri, pathStart );
+                if ( route != null ) {
+                    return route;
+                }
+            }
+        }
+        return anyHost.match( uri, pathStart );
+    }
+
+    /**
+     * @return the index of the path within the servlet context in the request URI
+     */
+    static int pathStart( HttpServletRequest httpServletRequest )
+    {
+        String contextPath = httpServletRequest.getContextPath();
+        return contextPath == null ? 0 : contextPath.length();
+    }
+
+    private static final class Node
+    {
+
+        private char[] keys = new char[ 0 ];
+
+        private Node[] children = new Node[ 0 ];
+
+        private Route route;
+
+        private Node addChild( char key )
+        {
+            int idx = Arrays.binarySearch( keys, key );
+            if ( idx >= 0 ) {
+                return children[idx];
+            }
+            // Keep keys sorted for binary search, tries are only built at init time
+            int insertion = -idx - 1;
+            char[] newKeys = new char[ keys.length + 1 ];
+            Node[] newChildren = new Node[ children.length + 1 ];
+            System.arraycopy( keys, 0, newKeys, 0, insertion );
+            System.arraycopy( children, 0, newChildren, 0, insertion );
+            System.arraycopy( keys, insertion, newKeys, insertion + 1, keys.length - insertion );
+            System.arraycopy( children, insertion, newChildren, insertion + 1, children.length - insertion );
+            Node child = new Node();
+            newKeys[insertion] = key;
+            newChildren[insertion] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+
+        private Route match( String uri, int pathStart )
+        {
+            Route matched = route;
+            Node node = this;
+            int length = uri.length();
+            for ( int idx = pathStart; idx < length; idx++ ) {
+                int child = Arrays.binarySearch( node.keys, uri.charAt( idx ) );
+                if ( child < 0 ) {
+                    break;
+                }
+                node = node.children[child];
+                if ( node.route != null && ( idx + 1 == length || uri.charAt( idx + 1 ) == '/' || uri.charAt( idx ) == '/' ) ) {
+                    matched = node.route;
+                }
+            }
+            return matched;
+        }
+
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.methods.multipart.PartBase;
+import org.apache.commons.httpclient.util.EncodingUtil;
+
+/**
+ * Multipart RequestEntity that forwards parts to the upstream request as they are read from the client request.
+ *
+ * Parts are re-encoded with a new boundary but their content is piped through a bounded buffer, so memory usage does
+ * not depend on the size of the uploaded files. The upstream request is sent chunked.
+ */
+final class StreamingMultipartRequestEntity
+        implements RequestEntity
+{
+
+    private static final byte[] BOUNDARY_CHARS = EncodingUtil.getAsciiBytes(
+            "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ" );
+
+    private static final byte[] EXTRA_BYTES = EncodingUtil.getAsciiBytes( "--" );
+
+    private static final byte[] CRLF_BYTES = EncodingUtil.getAsciiBytes( "\r\n" );
+
+    private static final Random RANDOM = new Random();
+
+    private final FileItemIterator items;
+
+    private final byte[] boundary;
+
+    StreamingMultipartRequestEntity( FileItemIterator items )
+    {
+        this.items = items;
+        this.boundary = generateBoundary();
+    }
+
+    @Override
+    public boolean isRepeatable()
+    {
+        return false;
+    }
+
+    @Override
+    public void writeRequest( OutputStream out )
+            throws IOException
+    {
+        try {
+            while ( items.hasNext() ) {
+                new StreamingPart( items.next(), boundary ).send( out );
+            }
+        } catch ( FileUploadException ex ) {
+            throw new IOException( "Unable to read multipart request: " + ex.getMessage(), ex );
+        }
+        out.write( EXTRA_BYTES );
+        out.write( boundary );
+        out.write( EXTRA_BYTES );
+        out.write( CRLF_BYTES );
+        out.flush();
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        return -1;
+    }
+
+    @Override
+    public String getContentType()
+    {
+        return "multipart/form-data; boundary=" + EncodingUtil.getAsciiString( boundary );
+    }
+
+    private static byte[] generateBoundary()
+    {
+        byte[] bytes = new byte[ RANDOM.nextInt( 11 ) + 30 ];
+        for ( int idx = 0; idx < bytes.length; idx++ ) {
+            bytes[idx] = BOUNDARY_CHARS[RANDOM.nextInt( BOUNDARY_CHARS.length )];
+        }
+        return bytes;
+    }
+
+    /**
+     * Part whose content is read from a client multipart item stream.
+     */
+    private static final class StreamingPart
+            extends PartBase
+    {
+
+        private static final byte[] FILE_NAME_BYTES = EncodingUtil.getAsciiBytes( "; filename=" );
+
+        private final FileItemStream item;
+
+        private final byte[] boundary;
+
+        private StreamingPart( FileItemStream item, byte[] boundary )
+        {
+            super( item.getFieldName(),
+                   item.isFormField() ? null : ( item.getContentType() == null ? "application/octet-stream" : item.getContentType() ),
+                   null,
+                   item.isFormField() ? null : "binary" );
+            this.item = item;
+            this.boundary = boundary;
+        }
+
+        @Override
+        protected byte[] getPartBoundary()
+        {
+            return boundary;
+        }
+
+        @Override
+        public boolean isRepeatable()
+        {
+            return false;
+        }
+
+        @Override
+        protected void sendDispositionHeader( OutputStream out )
+                throws IOException
+        {
+            super.sendDispositionHeader( out );
+            String filename = item.getName();
+            if ( filename != null ) {
+                out.write( FILE_NAME_BYTES );
+                out.write( QUOTE_BYTES );
+                out.write( EncodingUtil.getAsciiBytes( filename ) );
+                out.write( QUOTE_BYTES );
+            }
+        }
+
+        @Override
+        protected void sendData( OutputStream out )
+                throws IOException
+        {
+            InputStream content = item.openStream();
+            try {
+                byte[] buffer = new byte[ StreamingRequestEntity.BUFFER_SIZE ];
+                int bytesRead;
+                while ( ( bytesRead = content.read( buffer ) ) != -1 ) {
+                    out.write( buffer, 0, bytesRead );
+                }
+            } finally {
+                content.close();
+            }
+        }
+
+        @Override
+        protected long lengthOfData()
+        {
+            return -1;
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * RequestEntity that pipes the client request body to the upstream request through a bounded buffer.
+ *
+ * The body is never held in memory as a whole. When body filters are given, the body is transformed on the fly, see
+ * {@link ProxyFilter}.
+ */
+final class StreamingRequestEntity
+        implements RequestEntity
+{
+
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream content;
+
+    private final long contentLength;
+
+    private final String contentType;
+
+    private final List<BodyFilter> filters;
+
+    StreamingRequestEntity( InputStream content, long contentLength, String contentType )
+    {
+        this( content, contentLength, contentType, Collections.<BodyFilter>emptyList() );
+    }
+
+    StreamingRequestEntity( InputStream content, long contentLength, String contentType, List<BodyFilter> filters )
+    {
+        this.content = content;
+        this.contentType = contentType;
+        this.filters = filters;
+        // Filtered body length cannot be known upfront, upstream request will be chunked
+        this.contentLength = filters.isEmpty() ? contentLength : -1;
+    }
+
+    @Override
+    public boolean isRepeatable()
+    {
+        return false;
+    }
+
+    @Override
+    public void writeRequest( OutputStream out )
+            throws IOException
+    {
+        OutputStream target = FilteringOutputStream.wrap( out, filters );
+        byte[] buffer = new byte[ BUFFER_SIZE ];
+        int bytesRead;
+        while ( ( bytesRead = content.read( buffer ) ) != -1 ) {
+            target.write( buffer, 0, bytesRead );
+        }
+        if ( target instanceof FilteringOutputStream ) {
+            ( ( FilteringOutputStream ) target ).finish();
+        }
+        out.flush();
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        return contentLength;
+    }
+
+    @Override
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+}
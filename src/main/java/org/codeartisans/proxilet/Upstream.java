@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
+
+/**
+ * A target endpoint requests can be proxied to, along with the live state used to select it.
+ *
+ * All state is updated without locking so that selecting an upstream never serializes requests.
+ */
+public final class Upstream
+{
+
+    /**
+     * Decay time of the peak-EWMA latency.
+     */
+    private static final long LATENCY_DECAY_NANOS = TimeUnit.SECONDS.toNanos( 10 );
+
+    private final String host;
+
+    private final int port;
+
+    private final boolean ssl;
+
+    private final String authority;
+
+    private final String baseUrl;
+
+    private final Header hostHeader;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private final AtomicLong latencyEwmaBits = new AtomicLong( Double.doubleToLongBits( 0 ) );
+
+    private volatile long lastLatencyUpdate = System.nanoTime();
+
+    private volatile long ejectedUntil;
+
+    private volatile boolean healthy = true;
+
+    private volatile CircuitBreaker circuitBreaker;
+
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+
+    private volatile HostConfiguration hostConfiguration;
+
+    Upstream( String host, int port, boolean ssl )
+    {
+        this.host = host;
+        this.port = port;
+        this.ssl = ssl;
+        this.authority = port == 80 ? host : host + ":" + port;
+        this.baseUrl = ( ssl ? "https://" : "http://" ) + authority;
+        this.hostHeader = new Header( "Host", authority );
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public boolean isSsl()
+    {
+        return ssl;
+    }
+
+    /**
+     * @return host and port, as used in the Host header
+     */
+    public String getAuthority()
+    {
+        return authority;
+    }
+
+    /**
+     * @return scheme, host and port, without trailing slash
+     */
+    public String getBaseUrl()
+    {
+        return baseUrl;
+    }
+
+    /**
+     * @return the Host header of upstream requests, shared by all of them
+     */
+    Header getHostHeader()
+    {
+        return hostHeader;
+    }
+
+    /**
+     * @return number of requests currently proxied to this upstream
+     */
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    /**
+     * @return peak-EWMA of the response latency, in nanoseconds, decayed to now
+     */
+    public double getLatencyEwma()
+    {
+        double ewma = Double.longBitsToDouble( latencyEwmaBits.get() );
+        long elapsed = System.nanoTime() - lastLatencyUpdate;
+        return ewma * Math.exp( -( double ) elapsed / LATENCY_DECAY_NANOS );
+    }
+
+    /**
+     * @return true if this upstream is neither ejected, failing its health checks nor behind an open circuit
+     */
+    public boolean isAvailable()
+    {
+        return healthy && ( ejectedUntil == 0 || System.nanoTime() - ejectedUntil >= 0 )
+               && ( circuitBreaker == null || circuitBreaker.isCallPermitted() );
+    }
+
+    public boolean isHealthy()
+    {
+        return healthy;
+    }
+
+    void setHealthy( boolean healthy )
+    {
+        this.healthy = healthy;
+    }
+
+    /**
+     * @return the host configuration upstream requests are executed against
+     */
+    HostConfiguration getHostConfiguration()
+    {
+        return hostConfiguration;
+    }
+
+    void setHostConfiguration( HostConfiguration hostConfiguration )
+    {
+        this.hostConfiguration = hostConfiguration;
+    }
+
+    CircuitBreaker getCircuitBreaker()
+    {
+        return circuitBreaker;
+    }
+
+    void setCircuitBreaker( CircuitBreaker circuitBreaker )
+    {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return the adaptive in-flight limit of this upstream, or null if it is not limited
+     */
+    ConcurrencyLimiter getConcurrencyLimiter()
+    {
+        return concurrencyLimiter;
+    }
+
+    void setConcurrencyLimiter( ConcurrencyLimiter concurrencyLimiter )
+    {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * @return true if the circuit breaker, if any, permits a request to this upstream
+     */
+    boolean tryAcquirePermission()
+    {
+        return circuitBreaker == null || circuitBreaker.tryAcquirePermission();
+    }
+
+    /**
+     * Give back the circuit breaker permission of a request that was not sent.
+     */
+    void releasePermission()
+    {
+        if ( circuitBreaker != null ) {
+            circuitBreaker.releasePermission();
+        }
+    }
+
+    void requestStarted()
+    {
+        inFlight.incrementAndGet();
+    }
+
+    void requestEnded()
+    {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Record the latency of a successful response, peaks are taken as is and then decay over time.
+     *
+     * @param latencyNanos  time to response headers, in nanoseconds
+     */
+    void recordSuccess( long latencyNanos )
+    {
+        consecutiveFailures.set( 0 );
+        if ( circuitBreaker != null ) {
+            circuitBreaker.onSuccess( latencyNanos );
+        }
+        if ( concurrencyLimiter != null ) {
+            concurrencyLimiter.onSuccess( latencyNanos );
+        }
+        long now = System.nanoTime();
+        long elapsed = Math.max( 0, now - lastLatencyUpdate );
+        lastLatencyUpdate = now;
+        double weight = Math.exp( -( double ) elapsed / LATENCY_DECAY_NANOS );
+        long currentBits;
+        long updatedBits;
+        do {
+            currentBits = latencyEwmaBits.get();
+            double current = Double.longBitsToDouble( currentBits );
+            double updated = latencyNanos > current ? latencyNanos : current * weight + latencyNanos * ( 1 - weight );
+            updatedBits = Double.doubleToLongBits( updated );
+        } while ( !latencyEwmaBits.compareAndSet( currentBits, updatedBits ) );
+    }
+
+    /**
+     * Record a failure, the upstream is ejected for the given time once the consecutive failures threshold is reached.
+     *
+     * @param ejectionThreshold     consecutive failures triggering ejection, 0 disables ejection
+     * @param ejectionNanos         ejection duration, in nanoseconds
+     * @return                      true if this failure ejected the upstream
+     */
+    boolean recordFailure( int ejectionThreshold, long ejectionNanos )
+    {
+        if ( circuitBreaker != null ) {
+            circuitBreaker.onFailure();
+        }
+        if ( concurrencyLimiter != null ) {
+            concurrencyLimiter.onDropped();
+        }
+        int failures = consecutiveFailures.incrementAndGet();
+        if ( ejectionThreshold > 0 && failures >= ejectionThreshold ) {
+            consecutiveFailures.set( 0 );
+            ejectedUntil = System.nanoTime() + ejectionNanos;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return baseUrl;
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+
+/**
+ * One try at getting the upstream response of an exchange, a request may be retried or hedged with several attempts.
+ *
+ * An attempt holds an in-flight slot of its upstream and a connection until it is finished. The request thread
+ * finishes the attempts it waited for, attempts it gave up on are finished by whichever comes last between their
+ * completion and their abandonment, so that a losing attempt never delays the winner.
+ */
+final class UpstreamAttempt
+        implements Callable<UpstreamAttempt>
+{
+
+    private final Upstream upstream;
+
+    private final UpstreamGroup upstreamGroup;
+
+    private final UpstreamCall call;
+
+    private final ConcurrencyLimiter limiter;
+
+    private final ProxiletMetrics metrics;
+
+    private volatile boolean completed;
+
+    private volatile boolean abandoned;
+
+    private boolean finished;
+
+    private int statusCode;
+
+    private long timeToFirstByte;
+
+    /**
+     * @param upstream          The upstream the attempt is sent to
+     * @param upstreamGroup     The group failures are recorded in
+     * @param call              The upstream call
+     * @param limiter           The concurrency limiter the attempt holds a slot of, or null
+     * @param metrics           Where outcomes are recorded
+     */
+    UpstreamAttempt( Upstream upstream, UpstreamGroup upstreamGroup, UpstreamCall call, ConcurrencyLimiter limiter,
+                     ProxiletMetrics metrics )
+    {
+        this.upstream = upstream;
+        this.upstreamGroup = upstreamGroup;
+        this.call = call;
+        this.limiter = limiter;
+        this.metrics = metrics;
+        upstream.requestStarted();
+    }
+
+    Upstream getUpstream()
+    {
+        return upstream;
+    }
+
+    UpstreamCall getCall()
+    {
+        return call;
+    }
+
+    int getStatusCode()
+    {
+        return statusCode;
+    }
+
+    /**
+     * @return time to the response headers, in nanoseconds
+     */
+    long getTimeToFirstByte()
+    {
+        return timeToFirstByte;
+    }
+
+    /**
+     * Executes the call up to the response headers, recording its outcome unless it was abandoned meanwhile. Attempts
+     * whose outcome is not recorded give their circuit breaker permission back.
+     */
+    @Override
+    public UpstreamAttempt call()
+            throws IOException
+    {
+        try {
+            if ( abandoned ) {
+                upstream.releasePermission();
+                throw new InterruptedIOException( "Upstream attempt abandoned" );
+            }
+            long start = System.nanoTime();
+            try {
+                statusCode = call.execute();
+            } catch ( IOException ex ) {
+                if ( !abandoned ) {
+                    metrics.upstreamFailed();
+                }
+                if ( abandoned || ex instanceof ConnectionPoolTimeoutException ) {
+                    // Pool exhaustion is a local condition
+                    upstream.releasePermission();
+                } else {
+                    upstreamGroup.recordFailure( upstream );
+                }
+                throw ex;
+            }
+            timeToFirstByte = System.nanoTime() - start;
+            metrics.timeToFirstByte.record( timeToFirstByte );
+            metrics.upstreamResponded( statusCode );
+            if ( statusCode >= 500 ) {
+                upstreamGroup.recordFailure( upstream );
+            } else {
+                upstream.recordSuccess( timeToFirstByte );
+            }
+            return this;
+        } finally {
+            completed = true;
+            if ( abandoned ) {
+                finish();
+            }
+        }
+    }
+
+    /**
+     * Gives the attempt up, aborting its call if it is still running. It is finished once completed.
+     */
+    void abandon()
+    {
+        abandoned = true;
+        call.abort();
+        if ( completed ) {
+            finish();
+        }
+    }
+
+    /**
+     * Releases the upstream in-flight slot and the connection, once.
+     */
+    synchronized void finish()
+    {
+        if ( !finished ) {
+            finished = true;
+            upstream.requestEnded();
+            if ( limiter != null ) {
+                limiter.release();
+            }
+            call.release();
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.httpclient.Header;
+
+/**
+ * A single upstream request/response exchange, see {@link UpstreamTransport}.
+ *
+ * A call is executed once by the request thread, it may be aborted by any thread. It must always be released.
+ */
+public interface UpstreamCall
+{
+
+    /**
+     * Sends the request and waits for the response headers.
+     *
+     * @return              the response status code
+     * @throws IOException  if no response could be received, {@link java.io.InterruptedIOException}s for timeouts
+     */
+    int execute()
+            throws IOException;
+
+    /**
+     * @return the response headers, once executed
+     */
+    Header[] getResponseHeaders();
+
+    /**
+     * @return the response body, once executed, null if the response has none
+     */
+    InputStream getResponseBody()
+            throws IOException;
+
+    /**
+     * Abort the call, the request thread then fails with an IOException.
+     */
+    void abort();
+
+    /**
+     * Release the connection used by the call, whatever happened.
+     */
+    void release();
+
+}
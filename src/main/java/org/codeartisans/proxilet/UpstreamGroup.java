@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Set of upstreams serving the same content, requests are balanced across them by an {@link UpstreamSelector}.
+ *
+ * Upstreams failing consecutively are ejected for a while (passive outlier detection) and, if a health check path is
+ * configured, upstreams are probed in the background and skipped while unhealthy (active health checks).
+ */
+final class UpstreamGroup
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( UpstreamGroup.class );
+
+    private final Upstream[] upstreams;
+
+    private final UpstreamSelector selector;
+
+    private final int ejectionThreshold;
+
+    private final long ejectionNanos;
+
+    private final AtomicInteger panicCount = new AtomicInteger();
+
+    private ScheduledExecutorService healthChecker;
+
+    UpstreamGroup( List<Upstream> upstreams, UpstreamSelector selector, int ejectionThreshold, long ejectionTime )
+    {
+        if ( upstreams.isEmpty() ) {
+            throw new IllegalArgumentException( "Upstream group may not be empty" );
+        }
+        this.upstreams = upstreams.toArray( new Upstream[ upstreams.size() ] );
+        this.selector = selector;
+        this.ejectionThreshold = ejectionThreshold;
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos( ejectionTime );
+    }
+
+    Upstream[] getUpstreams()
+    {
+        return upstreams;
+    }
+
+    /**
+     * Select the upstream to proxy a request to. If no upstream is available, they are all tried in turn rather than
+     * failing the request.
+     *
+     * @return the selected upstream
+     */
+    Upstream select()
+    {
+        Upstream upstream = selector.select( upstreams );
+        if ( upstream == null ) {
+            upstream = upstreams[( panicCount.getAndIncrement() & Integer.MAX_VALUE ) % upstreams.length];
+            LOGGER.trace( "No upstream available, trying {}", upstream );
+        }
+        return upstream;
+    }
+
+    /**
+     * Select an upstream to retry or hedge a request on, other than the one already tried unless it is the only one.
+     *
+     * @param excluded  the upstream already tried
+     * @return          the selected upstream, or null if none is available
+     */
+    Upstream selectOther( Upstream excluded )
+    {
+        if ( upstreams.length == 1 ) {
+            return upstreams[0].isAvailable() ? upstreams[0] : null;
+        }
+        Upstream[] others = new Upstream[ upstreams.length - 1 ];
+        int count = 0;
+        for ( Upstream upstream : upstreams ) {
+            if ( upstream != excluded && count < others.length ) {
+                others[count++] = upstream;
+            }
+        }
+        return selector.select( others );
+    }
+
+    void recordFailure( Upstream upstream )
+    {
+        if ( upstream.recordFailure( ejectionThreshold, ejectionNanos ) ) {
+            LOGGER.warn( "Upstream {} ejected for {}ms after {} consecutive failures",
+                         new Object[]{ upstream, TimeUnit.NANOSECONDS.toMillis( ejectionNanos ), ejectionThreshold } );
+        }
+    }
+
+    /**
+     * Start probing upstreams in the background.
+     *
+     * @param transport         transport used to probe upstreams
+     * @param healthCheckPath   path requested on each upstream, 2xx and 3xx responses mean healthy
+     * @param interval          interval between probes, in milliseconds
+     */
+    void startHealthChecks( final UpstreamTransport transport, final String healthCheckPath, long interval )
+    {
+        final int timeout = ( int ) Math.min( Integer.MAX_VALUE, interval );
+        healthChecker = new ScheduledThreadPoolExecutor( 1, new DaemonThreadFactory( "proxilet-health-check" ) );
+        healthChecker.scheduleWithFixedDelay( new Runnable()
+        {
+
+            @Override
+            public void run()
+            {
+                for ( Upstream upstream : upstreams ) {
+                    boolean healthy = probe( transport, upstream, healthCheckPath, timeout );
+                    if ( healthy != upstream.isHealthy() ) {
+                        LOGGER.warn( "Upstream {} is now {}", upstream, healthy ? "healthy" : "unhealthy" );
+                        upstream.setHealthy( healthy );
+                    }
+                }
+            }
+
+        }, 0, interval, TimeUnit.MILLISECONDS );
+    }
+
+    private static boolean probe( UpstreamTransport transport, Upstream upstream, String healthCheckPath, int timeout )
+    {
+        // Relative to the upstream, probes go through the same transport as proxied requests
+        GetMethod probe = new GetMethod( healthCheckPath );
+        probe.getParams().setSoTimeout( timeout );
+        probe.setFollowRedirects( false );
+        UpstreamCall call = transport.newCall( upstream, probe );
+        try {
+            int status = call.execute();
+            return status >= 200 && status < 400;
+        } catch ( Exception ex ) {
+            LOGGER.trace( "Health check of {} failed: {}", upstream, ex.getMessage() );
+            return false;
+        } finally {
+            call.release();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString( upstreams );
+    }
+
+    void shutdown()
+    {
+        if ( healthChecker != null ) {
+            healthChecker.shutdownNow();
+            healthChecker = null;
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+/**
+ * Strategy selecting the upstream a request is proxied to.
+ *
+ * Implementations are shared by all requests and must be thread-safe, they should avoid locking. A custom strategy can
+ * be used by setting its class name as the 'balancer' init-param, it must have a public no-arg constructor.
+ */
+public interface UpstreamSelector
+{
+
+    /**
+     * Select an upstream among the available ones, see {@link Upstream#isAvailable()}.
+     *
+     * @param upstreams     all configured upstreams, never empty
+     * @return              the selected upstream, or null if none is available
+     */
+    Upstream select( Upstream[] upstreams );
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Built-in {@link UpstreamSelector} strategies.
+ */
+final class UpstreamSelectors
+{
+
+    static final String ROUND_ROBIN = "round-robin";
+
+    static final String LEAST_IN_FLIGHT = "least-in-flight";
+
+    static final String PEAK_EWMA = "peak-ewma";
+
+    /**
+     * Create a selector from its built-in name or from the class name of a custom implementation.
+     *
+     * @param name  selector name or class name
+     * @return      a new selector
+     */
+    static UpstreamSelector forName( String name )
+    {
+        if ( name == null || ROUND_ROBIN.equals( name ) ) {
+            return new RoundRobin();
+        } else if ( LEAST_IN_FLIGHT.equals( name ) ) {
+            return new LeastInFlight();
+        } else if ( PEAK_EWMA.equals( name ) ) {
+            return new PeakEwma();
+        }
+        try {
+            return ( UpstreamSelector ) Class.forName( name, true, Thread.currentThread().getContextClassLoader() ).newInstance();
+        } catch ( Exception ex ) {
+            throw new IllegalArgumentException( "Unable to create upstream selector '" + name + "', please check init-param 'balancer' in web.xml", ex );
+        }
+    }
+
+    /**
+     * Cycles through available upstreams.
+     */
+    static final class RoundRobin
+            implements UpstreamSelector
+    {
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public Upstream select( Upstream[] upstreams )
+        {
+            int start = next.getAndIncrement() & Integer.MAX_VALUE;
+            for ( int idx = 0; idx < upstreams.length; idx++ ) {
+                Upstream upstream = upstreams[( start + idx ) % upstreams.length];
+                if ( upstream.isAvailable() ) {
+                    return upstream;
+                }
+            }
+            return null;
+        }
+
+    }
+
+    /**
+     * Picks two random available upstreams and keeps the one with the lowest cost, the power of two choices avoids
+     * both scanning every upstream and herding requests on the single least loaded one.
+     */
+    abstract static class PowerOfTwoChoices
+            implements UpstreamSelector
+    {
+
+        private final Random random = new Random();
+
+        @Override
+        public Upstream select( Upstream[] upstreams )
+        {
+            int count = upstreams.length;
+            if ( count == 1 ) {
+                return upstreams[0].isAvailable() ? upstreams[0] : null;
+            }
+            int start = random.nextInt( count );
+            Upstream first = null;
+            for ( int idx = 0; idx < count; idx++ ) {
+                Upstream upstream = upstreams[( start + idx ) % count];
+                if ( upstream.isAvailable() ) {
+                    first = upstream;
+                    start = ( start + idx + 1 ) % count;
+                    break;
+                }
+            }
+            if ( first == null ) {
+                return null;
+            }
+            int offset = random.nextInt( count - 1 );
+            for ( int idx = 0; idx < count - 1; idx++ ) {
+                Upstream upstream = upstreams[( start + ( offset + idx ) % ( count - 1 ) ) % count];
+                if ( upstream != first && upstream.isAvailable() ) {
+                    return cost( upstream ) < cost( first ) ? upstream : first;
+                }
+            }
+            return first;
+        }
+
+        protected abstract double cost( Upstream upstream );
+
+    }
+
+    /**
+     * Prefers the upstream with the fewest requests in flight.
+     */
+    static final class LeastInFlight
+            extends PowerOfTwoChoices
+    {
+
+        @Override
+        protected double cost( Upstream upstream )
+        {
+            return upstream.getInFlight();
+        }
+
+    }
+
+    /**
+     * Prefers the upstream with the lowest peak-EWMA latency weighted by its requests in flight, routing around slow
+     * upstreams as soon as they slow down.
+     */
+    static final class PeakEwma
+            extends PowerOfTwoChoices
+    {
+
+        @Override
+        protected double cost( Upstream upstream )
+        {
+            return upstream.getLatencyEwma() * ( upstream.getInFlight() + 1 );
+        }
+
+    }
+
+    private UpstreamSelectors()
+    {
+    }
+
+}
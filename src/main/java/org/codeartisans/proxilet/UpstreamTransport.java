@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * Client used to exchange with upstreams.
+ *
+ * Upstream requests are always built as commons-httpclient {@link HttpMethod}s, with their headers and request entity,
+ * transports only differ in how they are sent. Implementations are shared by all requests and must be thread-safe. A
+ * custom transport can be used by setting its class name as the 'transport' init-param, it must have a public
+ * constructor taking the servlet {@link javax.servlet.ServletConfig}.
+ */
+public interface UpstreamTransport
+{
+
+    /**
+     * @param upstream  the upstream to send the request to
+     * @param request   the request, its URI is relative to the upstream
+     * @return          a call, not executed yet
+     */
+    UpstreamCall newCall( Upstream upstream, HttpMethod request );
+
+    /**
+     * Release the transport resources, no call is made afterwards.
+     */
+    void shutdown();
+
+}
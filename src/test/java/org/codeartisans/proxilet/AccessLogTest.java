@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AccessLogTest
+{
+
+    private File directory;
+
+    @Before
+    public void createDirectory()
+            throws IOException
+    {
+        directory = File.createTempFile( "proxilet-access", "" );
+        directory.delete();
+    }
+
+    @After
+    public void deleteDirectory()
+    {
+        FileUtils.deleteQuietly( directory );
+    }
+
+    @Test
+    public void testEntriesAreWrittenAsJsonLines()
+            throws IOException
+    {
+        File file = new File( directory, "access.log" );
+        Upstream upstream = new Upstream( "localhost", 8080, false );
+        UpstreamGroup group = new UpstreamGroup( Arrays.asList( upstream ), new UpstreamSelectors.RoundRobin(), 0, 0 );
+        Route route = new Route( null, "/app", "/app", group, "/app" );
+        AccessLog accessLog = new AccessLog( file, 16, 0, 0 );
+        accessLog.log( 0, "127.0.0.1", "GET", "/app/\"quoted\"", "a=b", route, upstream, 200, 1024, 512,
+                       TimeUnit.MICROSECONDS.toNanos( 12345 ), TimeUnit.MICROSECONDS.toNanos( 10007 ), -1 );
+        accessLog.log( 0, "127.0.0.1", "GET", "/none", null, null, null, 404, 0, 0, TimeUnit.MICROSECONDS.toNanos( 50 ), -1, -1 );
+        accessLog.close();
+
+        List<String> lines = FileUtils.readLines( file, "UTF-8" );
+        Assert.assertEquals( 2, lines.size() );
+        Assert.assertEquals( "{\"time\":\"1970-01-01T00:00:00.000Z\",\"remote\":\"127.0.0.1\",\"method\":\"GET\","
+                             + "\"uri\":\"/app/\\\"quoted\\\"?a=b\",\"route\":\"/app\",\"upstream\":\"http://localhost:8080\","
+                             + "\"status\":200,\"bytesIn\":1024,\"bytesOut\":512,\"duration\":12.345,\"timeToFirstByte\":10.007}",
+                             lines.get( 0 ) );
+        Assert.assertEquals( "{\"time\":\"1970-01-01T00:00:00.000Z\",\"remote\":\"127.0.0.1\",\"method\":\"GET\","
+                             + "\"uri\":\"/none\",\"status\":404,\"bytesIn\":0,\"bytesOut\":0,\"duration\":0.050}",
+                             lines.get( 1 ) );
+        Assert.assertEquals( 2, accessLog.getWritten() );
+        Assert.assertEquals( 0, accessLog.getDropped() );
+    }
+
+    @Test
+    public void testFullRingDropsEntriesAndFilesRollOver()
+            throws IOException
+    {
+        File file = new File( directory, "access.log" );
+        AccessLog accessLog = new AccessLog( file, 2, 4096, 2 );
+        int count = 10000;
+        for ( int idx = 0; idx < count; idx++ ) {
+            accessLog.log( idx, "127.0.0.1", "GET", "/" + idx, null, null, null, 200, 0, 0, 0, -1, -1 );
+        }
+        accessLog.close();
+
+        Assert.assertEquals( count, accessLog.getWritten() + accessLog.getDropped() );
+        Assert.assertTrue( accessLog.getWritten() > 0 );
+        long lines = FileUtils.readLines( file, "UTF-8" ).size();
+        Assert.assertTrue( file.length() < 4096 );
+        for ( int idx = 1; idx <= 2; idx++ ) {
+            File rolled = new File( directory, "access.log." + idx );
+            if ( rolled.exists() ) {
+                lines += FileUtils.readLines( rolled, "UTF-8" ).size();
+            }
+        }
+        Assert.assertFalse( new File( directory, "access.log.3" ).exists() );
+        Assert.assertTrue( lines <= accessLog.getWritten() );
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BodyRelayTest
+{
+
+    @Test
+    public void testBuffersAreReused()
+            throws IOException
+    {
+        BufferPool pool = new BufferPool( 1024, 4 );
+        BodyRelay relay = new BodyRelay( pool, 0, 0 );
+        byte[] content = new byte[ 10000 ];
+        for ( int idx = 0; idx < 3; idx++ ) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Assert.assertEquals( content.length, relay.relay( new ByteArrayInputStream( content ), out ) );
+            Assert.assertEquals( content.length, out.size() );
+        }
+        Assert.assertEquals( 1, pool.getAllocations() );
+        Assert.assertEquals( 1, pool.getPooled() );
+    }
+
+    @Test
+    public void testShortBodiesUseSmallBuffers()
+            throws IOException
+    {
+        BufferPool pool = new BufferPool( 1024, 4 );
+        BufferPool smallPool = new BufferPool( 128, 4 );
+        BodyRelay relay = new BodyRelay( pool, smallPool, 0, 0 );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals( 100, relay.relay( new ByteArrayInputStream( new byte[ 100 ] ), out, 100 ) );
+        Assert.assertEquals( 100, out.size() );
+        Assert.assertEquals( 1, smallPool.getAllocations() );
+        Assert.assertEquals( 0, pool.getAllocations() );
+
+        // Unknown or larger lengths go through full size buffers
+        relay.relay( new ByteArrayInputStream( new byte[ 100 ] ), new ByteArrayOutputStream() );
+        relay.relay( new ByteArrayInputStream( new byte[ 500 ] ), new ByteArrayOutputStream(), 500 );
+        Assert.assertEquals( 1, smallPool.getAllocations() );
+        Assert.assertEquals( 1, pool.getAllocations() );
+        Assert.assertEquals( 2, relay.getAllocations() );
+    }
+
+    @Test
+    public void testFlushPolicy()
+            throws IOException
+    {
+        BufferPool pool = new BufferPool( 1024, 1 );
+
+        // Source stalling after each 100 bytes chunk
+        FlushCountingOutputStream out = new FlushCountingOutputStream();
+        new BodyRelay( pool, 0, 0 ).relay( new ChunkedInputStream( 10, 100 ), out );
+        Assert.assertEquals( 10, out.writes );
+        Assert.assertEquals( 0, out.flushes );
+
+        out = new FlushCountingOutputStream();
+        new BodyRelay( pool, 300, 0 ).relay( new ChunkedInputStream( 10, 100 ), out );
+        Assert.assertEquals( 3, out.flushes );
+
+        out = new FlushCountingOutputStream();
+        new BodyRelay( pool, 0, 60000 ).relay( new ChunkedInputStream( 10, 100 ), out );
+        Assert.assertEquals( 10, out.flushes );
+    }
+
+    private static final class ChunkedInputStream
+            extends InputStream
+    {
+
+        private int chunks;
+
+        private final int chunkSize;
+
+        private ChunkedInputStream( int chunks, int chunkSize )
+        {
+            this.chunks = chunks;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public int read()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read( byte[] buffer, int offset, int length )
+        {
+            if ( chunks == 0 ) {
+                return -1;
+            }
+            chunks--;
+            return Math.min( length, chunkSize );
+        }
+
+        @Override
+        public int available()
+        {
+            return 0;
+        }
+
+    }
+
+    private static final class FlushCountingOutputStream
+            extends ByteArrayOutputStream
+    {
+
+        private int writes;
+
+        private int flushes;
+
+        @Override
+        public synchronized void write( byte[] buffer, int offset, int length )
+        {
+            writes++;
+            super.write( buffer, offset, length );
+        }
+
+        @Override
+        public void flush()
+        {
+            flushes++;
+        }
+
+    }
+
+}
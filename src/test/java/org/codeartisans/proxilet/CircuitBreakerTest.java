@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest
+{
+
+    @Test
+    public void testOpensOnFailureRateAndClosesAfterProbes()
+            throws InterruptedException
+    {
+        CircuitBreaker breaker = new CircuitBreaker( "test", 50, 0, 1000, 4, 50, 2 );
+        breaker.onSuccess( 0 );
+        breaker.onFailure();
+        breaker.onSuccess( 0 );
+        Assert.assertEquals( CircuitBreaker.State.CLOSED, breaker.getState() );
+        breaker.onFailure();
+        Assert.assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+        Assert.assertFalse( breaker.tryAcquirePermission() );
+        Assert.assertFalse( breaker.isCallPermitted() );
+
+        Thread.sleep( 60 );
+        Assert.assertTrue( breaker.isCallPermitted() );
+        Assert.assertTrue( breaker.tryAcquirePermission() );
+        Assert.assertEquals( CircuitBreaker.State.HALF_OPEN, breaker.getState() );
+        Assert.assertTrue( breaker.tryAcquirePermission() );
+        Assert.assertFalse( breaker.tryAcquirePermission() );
+        breaker.onSuccess( 0 );
+        breaker.onSuccess( 0 );
+        Assert.assertEquals( CircuitBreaker.State.CLOSED, breaker.getState() );
+        Assert.assertTrue( breaker.tryAcquirePermission() );
+    }
+
+    @Test
+    public void testOpensOnSlowCallRateAndReopensOnFailedProbe()
+            throws InterruptedException
+    {
+        CircuitBreaker breaker = new CircuitBreaker( "test", 0, 50, 100, 2, 50, 1 );
+        breaker.onFailure();
+        breaker.onFailure();
+        Assert.assertEquals( CircuitBreaker.State.CLOSED, breaker.getState() );
+        breaker.onSuccess( TimeUnit.MILLISECONDS.toNanos( 200 ) );
+        breaker.onSuccess( TimeUnit.MILLISECONDS.toNanos( 10 ) );
+        Assert.assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+
+        Thread.sleep( 60 );
+        Assert.assertTrue( breaker.tryAcquirePermission() );
+        breaker.onSuccess( TimeUnit.MILLISECONDS.toNanos( 200 ) );
+        Assert.assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+        Assert.assertFalse( breaker.tryAcquirePermission() );
+    }
+
+    @Test
+    public void testReleasedPermissionFreesHalfOpenProbe()
+            throws InterruptedException
+    {
+        CircuitBreaker breaker = new CircuitBreaker( "test", 50, 0, 1000, 1, 50, 1 );
+        breaker.onFailure();
+        Assert.assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+
+        Thread.sleep( 60 );
+        Assert.assertTrue( breaker.tryAcquirePermission() );
+        Assert.assertFalse( breaker.tryAcquirePermission() );
+        // The probe was not sent, e.g. shed by the concurrency limiter
+        breaker.releasePermission();
+        Assert.assertTrue( breaker.tryAcquirePermission() );
+        Assert.assertFalse( breaker.tryAcquirePermission() );
+        breaker.onSuccess( 0 );
+        Assert.assertEquals( CircuitBreaker.State.CLOSED, breaker.getState() );
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest
+{
+
+    @Test
+    public void testLimitFollowsRoundTripTime()
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter( 10, 1, 100, 2.0, 0, 0 );
+        fill( limiter, 10 );
+        for ( int idx = 0; idx < 50; idx++ ) {
+            limiter.onSuccess( TimeUnit.MILLISECONDS.toNanos( 10 ) );
+        }
+        int grown = limiter.getLimit();
+        Assert.assertTrue( "Limit grew to " + grown, grown > 10 );
+
+        // The upstream queues, latency rises well above its tolerance, before the long-term average catches up
+        for ( int idx = 0; idx < 5; idx++ ) {
+            limiter.onSuccess( TimeUnit.MILLISECONDS.toNanos( 100 ) );
+        }
+        int shrunk = limiter.getLimit();
+        Assert.assertTrue( "Limit shrunk to " + shrunk, shrunk < grown );
+
+        limiter.onDropped();
+        Assert.assertTrue( limiter.getLimit() < shrunk );
+    }
+
+    @Test
+    public void testExcessRequestsAreQueuedThenRejected()
+            throws InterruptedException
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter( 2, 1, 2, 2.0, 1, 2000 );
+        Assert.assertTrue( limiter.tryAcquire() );
+        Assert.assertTrue( limiter.tryAcquire() );
+
+        final CountDownLatch waiting = new CountDownLatch( 1 );
+        final AtomicBoolean admitted = new AtomicBoolean();
+        Thread queued = new Thread( new Runnable()
+        {
+
+            @Override
+            public void run()
+            {
+                waiting.countDown();
+                admitted.set( limiter.tryAcquire() );
+            }
+
+        } );
+        queued.start();
+        waiting.await();
+        // Wait until the request is queued, the queue is then full
+        long deadline = System.currentTimeMillis() + 2000;
+        while ( limiter.getQueued() == 0 && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 5 );
+        }
+        Assert.assertFalse( limiter.tryAcquire() );
+
+        limiter.release();
+        queued.join( 2000 );
+        Assert.assertTrue( admitted.get() );
+        Assert.assertEquals( 2, limiter.getInFlight() );
+    }
+
+    private static void fill( ConcurrencyLimiter limiter, int count )
+    {
+        for ( int idx = 0; idx < count; idx++ ) {
+            Assert.assertTrue( limiter.tryAcquire() );
+        }
+    }
+
+}
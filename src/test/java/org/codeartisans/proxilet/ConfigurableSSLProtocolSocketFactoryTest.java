@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConfigurableSSLProtocolSocketFactoryTest
+{
+
+    @Test
+    public void testDefaultsExcludeLegacyProtocolsAndWeakCipherSuites()
+            throws GeneralSecurityException, IOException
+    {
+        ConfigurableSSLProtocolSocketFactory factory = new ConfigurableSSLProtocolSocketFactory( null, null, null, true, true,
+                                                                                                 null, null, 16, 60 );
+        Assert.assertTrue( factory.getProtocols().length > 0 );
+        for ( String protocol : factory.getProtocols() ) {
+            Assert.assertFalse( protocol, protocol.startsWith( "SSL" ) );
+            Assert.assertFalse( protocol, "TLSv1".equals( protocol ) || "TLSv1.1".equals( protocol ) );
+        }
+        Assert.assertTrue( factory.getCipherSuites().length > 0 );
+        for ( String cipherSuite : factory.getCipherSuites() ) {
+            Assert.assertFalse( cipherSuite, cipherSuite.contains( "_RC4_" ) || cipherSuite.contains( "_NULL_" ) );
+            Assert.assertFalse( cipherSuite, cipherSuite.contains( "_anon_" ) || cipherSuite.contains( "_3DES_" ) );
+        }
+    }
+
+    @Test
+    public void testConfiguredProtocolsAreKept()
+            throws GeneralSecurityException, IOException
+    {
+        ConfigurableSSLProtocolSocketFactory factory = new ConfigurableSSLProtocolSocketFactory( null, null, null, true, true,
+                                                                                                 new String[]{ "TLSv1.2" }, null,
+                                                                                                 16, 60 );
+        Assert.assertEquals( Arrays.asList( "TLSv1.2" ), Arrays.asList( factory.getProtocols() ) );
+    }
+
+}
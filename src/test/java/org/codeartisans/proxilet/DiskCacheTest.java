@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiskCacheTest
+{
+
+    private File directory;
+
+    @Before
+    public void createDirectory()
+            throws IOException
+    {
+        directory = File.createTempFile( "proxilet-disk", "" );
+        directory.delete();
+    }
+
+    @After
+    public void deleteDirectory()
+    {
+        FileUtils.deleteQuietly( directory );
+    }
+
+    @Test
+    public void testIndexIsRebuiltAtStartup()
+            throws IOException
+    {
+        DiskCache cache = new DiskCache( directory, 1024, 1024 );
+        cache.open();
+        cache.put( "/first", response( cache, "first body" ) );
+        cache.put( "/second", response( cache, "second body" ) );
+        // Leftover of an interrupted write
+        cache.createTempFile();
+
+        DiskCache reopened = new DiskCache( directory, 1024, 1024 );
+        reopened.open();
+        Assert.assertEquals( 2, reopened.getEntryCount() );
+        Assert.assertEquals( "first body".length() + "second body".length(), reopened.getSize() );
+        CachedResponse first = reopened.get( "/first" );
+        Assert.assertEquals( 200, first.getStatusCode() );
+        Assert.assertEquals( "max-age=60", CachePolicy.header( first.getHeaders(), "Cache-Control" ) );
+        Assert.assertEquals( "first body", IOUtils.toString( first.openBody(), "UTF-8" ) );
+        Assert.assertEquals( 4, directory.list().length );
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted()
+            throws IOException
+    {
+        DiskCache cache = new DiskCache( directory, 25, 20 );
+        cache.open();
+        cache.put( "/first", response( cache, "0123456789" ) );
+        cache.put( "/second", response( cache, "0123456789" ) );
+        cache.get( "/first" );
+        cache.put( "/third", response( cache, "0123456789" ) );
+        Assert.assertNotNull( cache.get( "/first" ) );
+        Assert.assertNull( cache.get( "/second" ) );
+        Assert.assertNotNull( cache.get( "/third" ) );
+
+        cache.put( "/large", response( cache, "012345678901234567890123456789" ) );
+        Assert.assertNull( cache.get( "/large" ) );
+        Assert.assertEquals( 4, directory.list().length );
+    }
+
+    private static CachedResponse response( DiskCache cache, String body )
+            throws IOException
+    {
+        File file = cache.createTempFile();
+        FileOutputStream out = new FileOutputStream( file );
+        try {
+            out.write( body.getBytes( "UTF-8" ) );
+        } finally {
+            out.close();
+        }
+        Header[] headers = new Header[]{ new Header( "Cache-Control", "max-age=60" ) };
+        return new CachedResponse( 200, headers, file, body.length(), System.currentTimeMillis() );
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest
+{
+
+    @Test
+    public void testBucketsCoverTheirValues()
+    {
+        long previousUpperBound = -1;
+        for ( long micros = 0; micros < 100000; micros++ ) {
+            int index = LatencyHistogram.bucketIndex( micros );
+            long upperBound = LatencyHistogram.bucketUpperBound( index );
+            Assert.assertTrue( micros <= upperBound );
+            Assert.assertTrue( upperBound >= previousUpperBound );
+            Assert.assertTrue( upperBound - micros <= micros / 4 );
+            previousUpperBound = upperBound;
+        }
+        Assert.assertTrue( LatencyHistogram.bucketIndex( Long.MAX_VALUE ) >= 0 );
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for ( int millis = 1; millis <= 100; millis++ ) {
+            histogram.record( TimeUnit.MILLISECONDS.toNanos( millis ) );
+        }
+        Assert.assertEquals( 100, histogram.getCount() );
+        Assert.assertEquals( 50.5, histogram.getMean(), 0.001 );
+        Assert.assertEquals( 100, histogram.getMax(), 0.001 );
+        Assert.assertEquals( 50, histogram.get50thPercentile(), 50 * 0.25 );
+        Assert.assertEquals( 99, histogram.get99thPercentile(), 99 * 0.25 );
+        Assert.assertEquals( 100, histogram.get999thPercentile(), 0.001 );
+
+        histogram.reset();
+        Assert.assertEquals( 0, histogram.getCount() );
+        Assert.assertEquals( 0, histogram.get99thPercentile(), 0 );
+    }
+
+}
@@ -0,0 +1,639 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
+import org.apache.commons.httpclient.methods.multipart.FilePart;
+import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
+import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.StringPart;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+/**
+ * Local end-to-end load harness: an embedded Jetty runs Proxilet in front of an upstream servlet, closed-loop clients
+ * drive it through every payload and upstream latency profile combination, and results are written as JSON.
+ *
+ * Run with {@code mvn -Ploadtest verify}, configuration is read from system properties:
+ * <ul>
+ *     <li>loadtest.payloads: comma separated payload profiles among small-json, large-gzip and multipart</li>
+ *     <li>loadtest.latencies: comma separated upstream latency profiles, none, fixed:&lt;ms&gt;,
+ *         uniform:&lt;min ms&gt;:&lt;max ms&gt; or exponential:&lt;mean ms&gt;</li>
+ *     <li>loadtest.concurrency: number of concurrent clients</li>
+ *     <li>loadtest.warmup and loadtest.duration: per scenario warmup and measurement times, in seconds</li>
+ *     <li>loadtest.largeSize and loadtest.uploadSize: large-gzip body and multipart upload sizes, in bytes</li>
+ *     <li>loadtest.initParams: comma separated name=value Proxilet init-params</li>
+ *     <li>loadtest.output: path of the JSON results file</li>
+ * </ul>
+ * The load generator shares the JVM with the proxy, heap and GC statistics include both.
+ */
+public final class LoadHarness
+{
+
+    private static final String HOST = "127.0.0.1";
+
+    private final int concurrency = Integer.getInteger( "loadtest.concurrency", 32 );
+
+    private final int warmupSeconds = Integer.getInteger( "loadtest.warmup", 5 );
+
+    private final int durationSeconds = Integer.getInteger( "loadtest.duration", 20 );
+
+    private final int uploadSize = Integer.getInteger( "loadtest.uploadSize", 256 * 1024 );
+
+    private final byte[] upload;
+
+    private Server server;
+
+    private String baseUrl;
+
+    private HttpClient client;
+
+    public static void main( String[] args )
+            throws Exception
+    {
+        List<String> payloads = split( System.getProperty( "loadtest.payloads", "small-json,large-gzip,multipart" ), "," );
+        List<String> latencies = split( System.getProperty( "loadtest.latencies", "none,exponential:10" ), "," );
+        File output = new File( System.getProperty( "loadtest.output", "target/loadtest-result.json" ) );
+
+        LoadHarness harness = new LoadHarness();
+        harness.start();
+        try {
+            List<Map<String, Object>> scenarios = new ArrayList<Map<String, Object>>();
+            for ( String latency : latencies ) {
+                UpstreamServlet.latency = LatencyProfile.parse( latency );
+                for ( String payload : payloads ) {
+                    Map<String, Object> scenario = harness.run( Payload.forName( payload ) );
+                    scenario.put( "latency", latency );
+                    scenarios.add( scenario );
+                }
+            }
+            Map<String, Object> results = new LinkedHashMap<String, Object>();
+            results.put( "timestamp", String.format( Locale.ROOT, "%tFT%<tT%<tz", new Date() ) );
+            results.put( "java", System.getProperty( "java.vm.name" ) + " " + System.getProperty( "java.version" ) );
+            results.put( "os", System.getProperty( "os.name" ) + " " + System.getProperty( "os.version" ) );
+            results.put( "cpus", Runtime.getRuntime().availableProcessors() );
+            results.put( "concurrency", harness.concurrency );
+            results.put( "warmupSeconds", harness.warmupSeconds );
+            results.put( "durationSeconds", harness.durationSeconds );
+            results.put( "scenarios", scenarios );
+            output.getAbsoluteFile().getParentFile().mkdirs();
+            FileUtils.writeStringToFile( output, toJson( results, "" ) + "\n", "UTF-8" );
+            System.out.println( "Results written to " + output.getAbsolutePath() );
+        } finally {
+            harness.stop();
+        }
+    }
+
+    private LoadHarness()
+    {
+        upload = new byte[ uploadSize ];
+        new Random( 42 ).nextBytes( upload );
+    }
+
+    private void start()
+            throws Exception
+    {
+        UpstreamServlet.largeBody = gzip( json( Integer.getInteger( "loadtest.largeSize", 512 * 1024 ) ) );
+        UpstreamServlet.smallBody = json( 512 );
+
+        server = new Server();
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setHost( HOST );
+        connector.setPort( 0 );
+        server.addConnector( connector );
+
+        WebAppContext webapp = new WebAppContext();
+        webapp.setResourceBase( "" );
+        webapp.setContextPath( "/" );
+        webapp.addServlet( UpstreamServlet.class, "/upstream/*" );
+        server.setHandler( webapp );
+        server.start();
+
+        // The proxy is added once the port is known
+        ServletHolder proxyHolder = new ServletHolder( new Proxilet() );
+        proxyHolder.setName( "loadtest" );
+        proxyHolder.setInitParameter( "targetHost", HOST );
+        proxyHolder.setInitParameter( "targetPort", String.valueOf( connector.getLocalPort() ) );
+        proxyHolder.setInitParameter( "prefixPath", "/upstream" );
+        proxyHolder.setInitParameter( "sourcePath", "/proxy" );
+        proxyHolder.setInitParameter( "maxTotalConnections", String.valueOf( concurrency ) );
+        proxyHolder.setInitParameter( "maxConnectionsPerHost", String.valueOf( concurrency ) );
+        for ( String initParam : split( System.getProperty( "loadtest.initParams", "" ), "," ) ) {
+            int separator = initParam.indexOf( '=' );
+            proxyHolder.setInitParameter( initParam.substring( 0, separator ).trim(), initParam.substring( separator + 1 ).trim() );
+        }
+        webapp.getServletHandler().addServletWithMapping( proxyHolder, "/proxy/*" );
+        proxyHolder.start();
+
+        baseUrl = "http://" + HOST + ":" + connector.getLocalPort();
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        connectionManager.getParams().setMaxTotalConnections( concurrency );
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost( concurrency );
+        client = new HttpClient( connectionManager );
+    }
+
+    private void stop()
+            throws Exception
+    {
+        ( ( MultiThreadedHttpConnectionManager ) client.getHttpConnectionManager() ).shutdown();
+        server.stop();
+    }
+
+    /**
+     * Runs one scenario: warmup, then measurement of the requests completed in the measurement window.
+     */
+    private Map<String, Object> run( Payload payload )
+            throws InterruptedException
+    {
+        System.out.println( "Running " + payload.name + " against " + UpstreamServlet.latency );
+        Client[] clients = new Client[ concurrency ];
+        Thread[] threads = new Thread[ concurrency ];
+        for ( int idx = 0; idx < concurrency; idx++ ) {
+            clients[idx] = new Client( payload );
+            threads[idx] = new Thread( clients[idx], "loadtest-client-" + idx );
+            threads[idx].start();
+        }
+        Thread.sleep( warmupSeconds * 1000L );
+
+        System.gc();
+        long[] gcBefore = gcStats();
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+        for ( Client client : clients ) {
+            client.recording = true;
+        }
+        Thread.sleep( durationSeconds * 1000L );
+        for ( Client client : clients ) {
+            client.recording = false;
+        }
+        long elapsed = System.nanoTime() - start;
+        long[] gcAfter = gcStats();
+        long heapPeak = 0;
+        long heapUsed = 0;
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if ( pool.getType() == MemoryType.HEAP ) {
+                heapPeak += pool.getPeakUsage().getUsed();
+                heapUsed += pool.getUsage().getUsed();
+            }
+        }
+
+        for ( Client client : clients ) {
+            client.running = false;
+        }
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+
+        long requests = 0;
+        long errors = 0;
+        long bytes = 0;
+        int sampleCount = 0;
+        for ( Client client : clients ) {
+            requests += client.samples.size;
+            errors += client.errors;
+            bytes += client.bytes;
+        }
+        long[] samples = new long[ ( int ) requests ];
+        for ( Client client : clients ) {
+            System.arraycopy( client.samples.values, 0, samples, sampleCount, client.samples.size );
+            sampleCount += client.samples.size;
+        }
+        Arrays.sort( samples );
+
+        Map<String, Object> latency = new LinkedHashMap<String, Object>();
+        latency.put( "mean", samples.length == 0 ? 0 : mean( samples ) / 1000000d );
+        latency.put( "p50", percentile( samples, 0.50 ) / 1000000d );
+        latency.put( "p99", percentile( samples, 0.99 ) / 1000000d );
+        latency.put( "p999", percentile( samples, 0.999 ) / 1000000d );
+        latency.put( "max", samples.length == 0 ? 0 : samples[samples.length - 1] / 1000000d );
+        Map<String, Object> heap = new LinkedHashMap<String, Object>();
+        heap.put( "usedBytes", heapUsed );
+        heap.put( "peakBytes", heapPeak );
+        heap.put( "maxBytes", Runtime.getRuntime().maxMemory() );
+        Map<String, Object> gc = new LinkedHashMap<String, Object>();
+        gc.put( "collections", gcAfter[0] - gcBefore[0] );
+        gc.put( "timeMillis", gcAfter[1] - gcBefore[1] );
+
+        Map<String, Object> scenario = new LinkedHashMap<String, Object>();
+        scenario.put( "payload", payload.name );
+        scenario.put( "requests", requests );
+        scenario.put( "errors", errors );
+        scenario.put( "throughput", requests * 1000000000d / elapsed );
+        scenario.put( "bytesReceived", bytes );
+        scenario.put( "latencyMillis", latency );
+        scenario.put( "heap", heap );
+        scenario.put( "gc", gc );
+        System.out.println( toJson( scenario, "" ) );
+        return scenario;
+    }
+
+    /**
+     * Closed-loop client, issues a new request as soon as the previous one completed.
+     */
+    private final class Client
+            implements Runnable
+    {
+
+        private final Payload payload;
+
+        private final Samples samples = new Samples();
+
+        private volatile boolean running = true;
+
+        private volatile boolean recording;
+
+        private long errors;
+
+        private long bytes;
+
+        private Client( Payload payload )
+        {
+            this.payload = payload;
+        }
+
+        @Override
+        public void run()
+        {
+            byte[] buffer = new byte[ 8192 ];
+            while ( running ) {
+                HttpMethod method = payload.newRequest( LoadHarness.this );
+                boolean success = false;
+                long read = 0;
+                long start = System.nanoTime();
+                try {
+                    int status = client.executeMethod( method );
+                    InputStream body = method.getResponseBodyAsStream();
+                    if ( body != null ) {
+                        int count;
+                        while ( ( count = body.read( buffer ) ) != -1 ) {
+                            read += count;
+                        }
+                    }
+                    success = status < 400;
+                } catch ( IOException ex ) {
+                    success = false;
+                } finally {
+                    method.releaseConnection();
+                }
+                long latency = System.nanoTime() - start;
+                if ( recording ) {
+                    if ( success ) {
+                        samples.add( latency );
+                        bytes += read;
+                    } else {
+                        errors++;
+                    }
+                }
+            }
+        }
+
+    }
+
+    private static final class Samples
+    {
+
+        private long[] values = new long[ 4096 ];
+
+        private int size;
+
+        private void add( long value )
+        {
+            if ( size == values.length ) {
+                values = Arrays.copyOf( values, size * 2 );
+            }
+            values[size++] = value;
+        }
+
+    }
+
+    private enum Payload
+    {
+
+        SMALL_JSON( "small-json" )
+        {
+
+            @Override
+            HttpMethod newRequest( LoadHarness harness )
+            {
+                return new GetMethod( harness.baseUrl + "/proxy/small" );
+            }
+
+        },
+        LARGE_GZIP( "large-gzip" )
+        {
+
+            /**
+             * The client does not accept gzip, so the proxy inflates the upstream response.
+             */
+            @Override
+            HttpMethod newRequest( LoadHarness harness )
+            {
+                return new GetMethod( harness.baseUrl + "/proxy/large" );
+            }
+
+        },
+        MULTIPART( "multipart" )
+        {
+
+            @Override
+            HttpMethod newRequest( LoadHarness harness )
+            {
+                PostMethod post = new PostMethod( harness.baseUrl + "/proxy/upload" );
+                Part[] parts = new Part[]{
+                    new StringPart( "description", "load test upload" ),
+                    new FilePart( "file", new ByteArrayPartSource( "upload.bin", harness.upload ), "application/octet-stream", null )
+                };
+                post.setRequestEntity( new MultipartRequestEntity( parts, post.getParams() ) );
+                return post;
+            }
+
+        };
+
+        private final String name;
+
+        private Payload( String name )
+        {
+            this.name = name;
+        }
+
+        abstract HttpMethod newRequest( LoadHarness harness );
+
+        static Payload forName( String name )
+        {
+            for ( Payload payload : values() ) {
+                if ( payload.name.equals( name ) ) {
+                    return payload;
+                }
+            }
+            throw new IllegalArgumentException( "Unknown payload profile: " + name );
+        }
+
+    }
+
+    /**
+     * Delay the upstream adds before responding.
+     */
+    private static final class LatencyProfile
+    {
+
+        private final String kind;
+
+        private final long first;
+
+        private final long second;
+
+        private LatencyProfile( String kind, long first, long second )
+        {
+            this.kind = kind;
+            this.first = first;
+            this.second = second;
+        }
+
+        static LatencyProfile parse( String profile )
+        {
+            String[] tokens = profile.split( ":" );
+            String kind = tokens[0];
+            if ( "none".equals( kind ) && tokens.length == 1 ) {
+                return new LatencyProfile( kind, 0, 0 );
+            } else if ( ( "fixed".equals( kind ) || "exponential".equals( kind ) ) && tokens.length == 2 ) {
+                return new LatencyProfile( kind, Long.parseLong( tokens[1] ), 0 );
+            } else if ( "uniform".equals( kind ) && tokens.length == 3 ) {
+                return new LatencyProfile( kind, Long.parseLong( tokens[1] ), Long.parseLong( tokens[2] ) );
+            }
+            throw new IllegalArgumentException( "Unknown latency profile: " + profile );
+        }
+
+        long nextDelay( Random random )
+        {
+            if ( "fixed".equals( kind ) ) {
+                return first;
+            } else if ( "uniform".equals( kind ) ) {
+                return first + ( long ) ( random.nextDouble() * ( second - first ) );
+            } else if ( "exponential".equals( kind ) ) {
+                return ( long ) ( -Math.log( 1 - random.nextDouble() ) * first );
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return kind + ( first > 0 ? ":" + first : "" ) + ( second > 0 ? ":" + second : "" );
+        }
+
+    }
+
+    @SuppressWarnings( "PublicInnerClass" )
+    public static class UpstreamServlet
+            extends HttpServlet
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final Random RANDOM = new Random();
+
+        private static volatile LatencyProfile latency = LatencyProfile.parse( "none" );
+
+        private static volatile byte[] smallBody;
+
+        private static volatile byte[] largeBody;
+
+        @Override
+        protected void service( HttpServletRequest req, HttpServletResponse resp )
+                throws ServletException, IOException
+        {
+            long delay = latency.nextDelay( RANDOM );
+            if ( delay > 0 ) {
+                try {
+                    Thread.sleep( delay );
+                } catch ( InterruptedException ex ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.service( req, resp );
+        }
+
+        @Override
+        protected void doGet( HttpServletRequest req, HttpServletResponse resp )
+                throws ServletException, IOException
+        {
+            resp.setContentType( "application/json" );
+            if ( "/large".equals( req.getPathInfo() ) ) {
+                resp.setHeader( "Content-Encoding", "gzip" );
+                resp.setContentLength( largeBody.length );
+                resp.getOutputStream().write( largeBody );
+            } else {
+                resp.setContentLength( smallBody.length );
+                resp.getOutputStream().write( smallBody );
+            }
+        }
+
+        @Override
+        protected void doPost( HttpServletRequest req, HttpServletResponse resp )
+                throws ServletException, IOException
+        {
+            long received = 0;
+            try {
+                FileItemIterator items = new ServletFileUpload().getItemIterator( req );
+                while ( items.hasNext() ) {
+                    InputStream content = items.next().openStream();
+                    try {
+                        received += IOUtils.copyLarge( content, NullOutputStream.NULL_OUTPUT_STREAM );
+                    } finally {
+                        content.close();
+                    }
+                }
+            } catch ( FileUploadException ex ) {
+                throw new ServletException( ex );
+            }
+            resp.setContentType( "application/json" );
+            resp.getWriter().write( "{\"received\":" + received + "}" );
+        }
+
+    }
+
+    private long[] gcStats()
+    {
+        long collections = 0;
+        long time = 0;
+        for ( GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans() ) {
+            collections += Math.max( 0, collector.getCollectionCount() );
+            time += Math.max( 0, collector.getCollectionTime() );
+        }
+        return new long[]{ collections, time };
+    }
+
+    private static double mean( long[] sorted )
+    {
+        double sum = 0;
+        for ( long value : sorted ) {
+            sum += value;
+        }
+        return sum / sorted.length;
+    }
+
+    private static long percentile( long[] sorted, double quantile )
+    {
+        if ( sorted.length == 0 ) {
+            return 0;
+        }
+        int rank = ( int ) Math.ceil( quantile * sorted.length );
+        return sorted[Math.max( 0, rank - 1 )];
+    }
+
+    private static byte[] json( int size )
+    {
+        StringBuilder json = new StringBuilder( size + 128 ).append( '[' );
+        for ( int idx = 0; json.length() < size; idx++ ) {
+            json.append( idx == 0 ? "" : "," ).
+                    append( "{\"id\":" ).append( idx ).
+                    append( ",\"name\":\"item " ).append( idx ).
+                    append( "\",\"tags\":[\"load\",\"test\"],\"score\":" ).append( idx % 100 ).append( '}' );
+        }
+        return json.append( ']' ).toString().getBytes();
+    }
+
+    private static byte[] gzip( byte[] content )
+            throws IOException
+    {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        OutputStream gzip = new GZIPOutputStream( gzipped );
+        gzip.write( content );
+        gzip.close();
+        return gzipped.toByteArray();
+    }
+
+    private static List<String> split( String value, String separator )
+    {
+        List<String> tokens = new ArrayList<String>();
+        for ( String token : value.split( separator ) ) {
+            if ( token.trim().length() > 0 ) {
+                tokens.add( token.trim() );
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Minimal JSON serialization of maps, lists, numbers and strings, indented for diffing.
+     */
+    @SuppressWarnings( "unchecked" )
+    private static String toJson( Object value, String indent )
+    {
+        if ( value instanceof Map ) {
+            StringBuilder json = new StringBuilder( "{" );
+            String separator = "\n";
+            for ( Map.Entry<String, Object> entry : ( ( Map<String, Object> ) value ).entrySet() ) {
+                json.append( separator ).append( indent ).append( "  " ).
+                        append( toJson( entry.getKey(), "" ) ).append( ": " ).
+                        append( toJson( entry.getValue(), indent + "  " ) );
+                separator = ",\n";
+            }
+            return json.append( '\n' ).append( indent ).append( '}' ).toString();
+        } else if ( value instanceof List ) {
+            StringBuilder json = new StringBuilder( "[" );
+            String separator = "\n";
+            for ( Object element : ( List<Object> ) value ) {
+                json.append( separator ).append( indent ).append( "  " ).append( toJson( element, indent + "  " ) );
+                separator = ",\n";
+            }
+            return json.append( '\n' ).append( indent ).append( ']' ).toString();
+        } else if ( value instanceof Double ) {
+            return String.format( Locale.ROOT, "%.3f", ( Double ) value );
+        } else if ( value instanceof Number ) {
+            return value.toString();
+        }
+        return "\"" + String.valueOf( value ).replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) + "\"";
+    }
+
+}
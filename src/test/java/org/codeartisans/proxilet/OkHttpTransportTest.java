@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OkHttpTransportTest
+{
+
+    private MockWebServer server;
+    private OkHttpTransport transport;
+    private Upstream upstream;
+
+    @Before
+    public void startServer()
+            throws IOException
+    {
+        server = new MockWebServer();
+        server.setProtocols( Arrays.asList( Protocol.H2_PRIOR_KNOWLEDGE ) );
+        server.start();
+        transport = new OkHttpTransport( 1000, 5000, 4, 60000, null, "user:password", new ProxiletMetrics() );
+        upstream = new Upstream( server.getHostName(), server.getPort(), false );
+    }
+
+    @After
+    public void stopServer()
+            throws IOException
+    {
+        transport.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void testRequestIsSentOverH2c()
+            throws Exception
+    {
+        server.enqueue( new MockResponse().setHeader( "X-Upstream", "yes" ).setBody( "response" ) );
+        PostMethod post = new PostMethod( "/path?query=1" );
+        post.addRequestHeader( "X-Client", "yes" );
+        post.setRequestEntity( new StringRequestEntity( "request", "text/plain", "UTF-8" ) );
+        UpstreamCall call = transport.newCall( upstream, post );
+        try {
+            Assert.assertEquals( 200, call.execute() );
+            boolean upstreamHeader = false;
+            for ( Header header : call.getResponseHeaders() ) {
+                upstreamHeader |= "X-Upstream".equalsIgnoreCase( header.getName() ) && "yes".equals( header.getValue() );
+            }
+            Assert.assertTrue( upstreamHeader );
+            Assert.assertEquals( "response", IOUtils.toString( call.getResponseBody(), "UTF-8" ) );
+        } finally {
+            call.release();
+        }
+
+        RecordedRequest recorded = server.takeRequest();
+        Assert.assertEquals( "POST", recorded.getMethod() );
+        Assert.assertEquals( "/path?query=1", recorded.getPath() );
+        Assert.assertEquals( "yes", recorded.getHeader( "X-Client" ) );
+        Assert.assertEquals( "Basic dXNlcjpwYXNzd29yZA==", recorded.getHeader( "Authorization" ) );
+        Assert.assertTrue( recorded.getHeader( "Content-Type" ).startsWith( "text/plain" ) );
+        Assert.assertEquals( "request", recorded.getBody().readUtf8() );
+    }
+
+    @Test
+    public void testConcurrentRequestsAreMultiplexed()
+            throws Exception
+    {
+        int concurrency = 8;
+        // Establish the connection first
+        server.enqueue( new MockResponse().setBody( "warm" ) );
+        for ( int idx = 0; idx < concurrency; idx++ ) {
+            server.enqueue( new MockResponse().setBody( "slow" ).setHeadersDelay( 200, TimeUnit.MILLISECONDS ) );
+        }
+        Assert.assertEquals( "warm", get() );
+        server.takeRequest();
+
+        ExecutorService executor = Executors.newFixedThreadPool( concurrency );
+        try {
+            List<Future<String>> responses = new ArrayList<Future<String>>();
+            for ( int idx = 0; idx < concurrency; idx++ ) {
+                responses.add( executor.submit( new Callable<String>()
+                {
+
+                    @Override
+                    public String call()
+                            throws Exception
+                    {
+                        return get();
+                    }
+
+                } ) );
+            }
+            for ( Future<String> response : responses ) {
+                Assert.assertEquals( "slow", response.get( 5, TimeUnit.SECONDS ) );
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // All requests were streams of the first connection
+        Set<Integer> sequenceNumbers = new HashSet<Integer>();
+        for ( int idx = 0; idx < concurrency; idx++ ) {
+            sequenceNumbers.add( server.takeRequest().getSequenceNumber() );
+        }
+        Assert.assertEquals( concurrency, sequenceNumbers.size() );
+        Assert.assertFalse( sequenceNumbers.contains( 0 ) );
+    }
+
+    private String get()
+            throws IOException
+    {
+        UpstreamCall call = transport.newCall( upstream, new GetMethod( "/" ) );
+        try {
+            Assert.assertEquals( 200, call.execute() );
+            return IOUtils.toString( call.getResponseBody(), "UTF-8" );
+        } finally {
+            call.release();
+        }
+    }
+
+}
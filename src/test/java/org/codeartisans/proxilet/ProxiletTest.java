@@ -13,22 +13,58 @@
  */
 package org.codeartisans.proxilet;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
+import org.apache.commons.httpclient.methods.multipart.FilePart;
+import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
+import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.StringPart;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.webapp.WebAppContext;
 
+import org.junit.AfterClass;
 import org.junit.Assert;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 public class ProxiletTest
@@ -36,13 +72,25 @@ public class ProxiletTest
 
     private static final String HOST = "127.0.0.1";
     private static final int PORT = 8958;
+    private static final String BASE_URL = "http://" + HOST + ":" + PORT;
+    private static final String GZIPPED_TEXT = "Some text that the target gzips, some text that the target gzips.";
+    private static final String PLAIN_TEXT = plainText();
     private static boolean gotGetOnTarget = false;
+    private static String lastMethodOnTarget;
+    private static final AtomicInteger cacheableHitsOnTarget = new AtomicInteger();
+    private static final AtomicInteger validatedHitsOnTarget = new AtomicInteger();
+    private static final AtomicInteger largeHitsOnTarget = new AtomicInteger();
+    private static final AtomicInteger popularHitsOnTarget = new AtomicInteger();
+    private static final AtomicInteger stalledHitsOnTarget = new AtomicInteger();
+    private static final int LARGE_LENGTH = 256 * 1024;
+    private static File cacheDirectory;
+    private static Server server;
 
-    @Test
-    public void test()
+    @BeforeClass
+    public static void startServer()
             throws Exception
     {
-        Server server = new Server();
+        server = new Server();
         SelectChannelConnector connector = new SelectChannelConnector();
         connector.setHost( HOST );
         connector.setPort( PORT );
@@ -55,39 +103,803 @@ public class ProxiletTest
         Proxilet proxilet = new Proxilet();
 
         ServletHolder servletHolder = new ServletHolder( proxilet );
+        servletHolder.setName( "reverse" );
         servletHolder.setInitParameter( "targetHost", HOST );
         servletHolder.setInitParameter( "targetPort", String.valueOf( PORT ) );
         servletHolder.setInitParameter( "prefixPath", "/target" );
         servletHolder.setInitParameter( "sourcePath", "/reverse" );
-        webapp.addServlet( servletHolder, "/reverse" );
-        webapp.addServlet( TargetServlet.class, "/target" );
+        servletHolder.setInitParameter( "readTimeout", "1000" );
+        webapp.addServlet( servletHolder, "/reverse/*" );
+
+        ServletHolder asyncServletHolder = new ServletHolder( new Proxilet() );
+        asyncServletHolder.setInitParameter( "targets", HOST + ":" + PORT + ", " + HOST + ":" + PORT );
+        asyncServletHolder.setInitParameter( "balancer", "peak-ewma" );
+        asyncServletHolder.setInitParameter( "healthCheckPath", "/target/health" );
+        asyncServletHolder.setInitParameter( "prefixPath", "/target" );
+        asyncServletHolder.setInitParameter( "sourcePath", "/async" );
+        asyncServletHolder.setInitParameter( "asyncEnabled", "true" );
+        asyncServletHolder.setInitParameter( "asyncTimeout", "1000" );
+        asyncServletHolder.setAsyncSupported( true );
+        webapp.addServlet( asyncServletHolder, "/async/*" );
+
+        ServletHolder cachingServletHolder = new ServletHolder( new Proxilet() );
+        cachingServletHolder.setInitParameter( "targetHost", HOST );
+        cachingServletHolder.setInitParameter( "targetPort", String.valueOf( PORT ) );
+        cachingServletHolder.setInitParameter( "prefixPath", "/target" );
+        cachingServletHolder.setInitParameter( "sourcePath", "/cached" );
+        cachingServletHolder.setInitParameter( "cacheEnabled", "true" );
+        cachingServletHolder.setInitParameter( "cacheMaxEntrySize", "65536" );
+        cachingServletHolder.setInitParameter( "coalescingEnabled", "true" );
+        cacheDirectory = File.createTempFile( "proxilet-test", "" );
+        cacheDirectory.delete();
+        cachingServletHolder.setInitParameter( "cacheDirectory", cacheDirectory.getAbsolutePath() );
+        cachingServletHolder.setInitParameter( "cacheDiskMaxSize", String.valueOf( 4 * LARGE_LENGTH ) );
+        webapp.addServlet( cachingServletHolder, "/cached/*" );
+
+        ServletHolder routingServletHolder = new ServletHolder( new Proxilet() );
+        routingServletHolder.setInitParameter( "routes", "/routed/cacheable-alias " + HOST + ":" + PORT + " /target/cacheable\n"
+                                                         + "localhost/routed " + HOST + ":" + PORT + " /target" );
+        webapp.addServlet( routingServletHolder, "/routed/*" );
+
+        ServletHolder compressingServletHolder = new ServletHolder( new Proxilet() );
+        compressingServletHolder.setInitParameter( "targetHost", HOST );
+        compressingServletHolder.setInitParameter( "targetPort", String.valueOf( PORT ) );
+        compressingServletHolder.setInitParameter( "prefixPath", "/target" );
+        compressingServletHolder.setInitParameter( "sourcePath", "/compressed" );
+        compressingServletHolder.setInitParameter( "compression", "true" );
+        webapp.addServlet( compressingServletHolder, "/compressed/*" );
+
+        ServletHolder hedgingServletHolder = new ServletHolder( new Proxilet() );
+        hedgingServletHolder.setName( "hedged" );
+        hedgingServletHolder.setInitParameter( "targetHost", HOST );
+        hedgingServletHolder.setInitParameter( "targetPort", String.valueOf( PORT ) );
+        hedgingServletHolder.setInitParameter( "prefixPath", "/target" );
+        hedgingServletHolder.setInitParameter( "sourcePath", "/hedged" );
+        hedgingServletHolder.setInitParameter( "hedgingEnabled", "true" );
+        hedgingServletHolder.setInitParameter( "hedgeMinDelay", "200" );
+        webapp.addServlet( hedgingServletHolder, "/hedged/*" );
+
+        ServletHolder retryingServletHolder = new ServletHolder( new Proxilet() );
+        // Nothing listens on the first target
+        retryingServletHolder.setInitParameter( "targets", HOST + ":" + ( PORT + 1 ) + ", " + HOST + ":" + PORT );
+        retryingServletHolder.setInitParameter( "prefixPath", "/target" );
+        retryingServletHolder.setInitParameter( "sourcePath", "/retried" );
+        retryingServletHolder.setInitParameter( "connectRetries", "1" );
+        webapp.addServlet( retryingServletHolder, "/retried/*" );
+
+        ServletHolder filteringServletHolder = new ServletHolder( new Proxilet() );
+        filteringServletHolder.setInitParameter( "targetHost", HOST );
+        filteringServletHolder.setInitParameter( "targetPort", String.valueOf( PORT ) );
+        filteringServletHolder.setInitParameter( "prefixPath", "/target" );
+        filteringServletHolder.setInitParameter( "sourcePath", "/filtered" );
+        filteringServletHolder.setInitParameter( "filters", "location, " + UpperCaseFilter.class.getName() );
+        webapp.addServlet( filteringServletHolder, "/filtered/*" );
+
+        ServletHolder tracingServletHolder = new ServletHolder( new Proxilet() );
+        tracingServletHolder.setName( "traced" );
+        tracingServletHolder.setInitParameter( "targetHost", HOST );
+        tracingServletHolder.setInitParameter( "targetPort", String.valueOf( PORT ) );
+        tracingServletHolder.setInitParameter( "prefixPath", "/target" );
+        tracingServletHolder.setInitParameter( "sourcePath", "/traced" );
+        tracingServletHolder.setInitParameter( "traceSampling", "1" );
+        tracingServletHolder.setInitParameter( "traceServerTiming", "true" );
+        webapp.addServlet( tracingServletHolder, "/traced/*" );
+
+        webapp.addServlet( TargetServlet.class, "/target/*" );
 
         server.setHandler( webapp );
         server.setStopAtShutdown( true );
 
         server.start();
+    }
+
+    @AfterClass
+    public static void stopServer()
+            throws Exception
+    {
+        server.stop();
+        FileUtils.deleteQuietly( cacheDirectory );
+    }
 
+    @Test
+    public void test()
+            throws Exception
+    {
         HttpClient client = new HttpClient();
-        HttpMethod get = new GetMethod( "http://" + HOST + ":" + PORT + "/reverse" );
+        HttpMethod get = new GetMethod( BASE_URL + "/reverse" );
         client.executeMethod( get );
 
-        server.stop();
-
         Assert.assertTrue( gotGetOnTarget );
     }
 
+    @Test
+    public void testRequestsAreRouted()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        GetMethod alias = new GetMethod( BASE_URL + "/routed/cacheable-alias" );
+        Assert.assertEquals( 200, client.executeMethod( alias ) );
+        Assert.assertEquals( "cacheable", alias.getResponseBodyAsString() );
+
+        // Host routes only match their host
+        GetMethod otherHost = new GetMethod( BASE_URL + "/routed/cacheable" );
+        Assert.assertEquals( 404, client.executeMethod( otherHost ) );
+        otherHost.releaseConnection();
+
+        GetMethod routedHost = new GetMethod( BASE_URL + "/routed/cacheable" );
+        routedHost.getParams().setVirtualHost( "localhost" );
+        Assert.assertEquals( 200, client.executeMethod( routedHost ) );
+        Assert.assertEquals( "cacheable", routedHost.getResponseBodyAsString() );
+    }
+
+    @Test
+    public void testHeadersAreForwardedEndToEnd()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        GetMethod get = new GetMethod( BASE_URL + "/reverse/headers" );
+        get.addRequestHeader( "Accept-Language", "fr" );
+        get.addRequestHeader( "Accept-Language", "en;q=0.5" );
+        get.addRequestHeader( "Connection", "X-Private" );
+        get.addRequestHeader( "X-Private", "secret" );
+        get.addRequestHeader( "Keep-Alive", "300" );
+        Assert.assertEquals( 200, client.executeMethod( get ) );
+        Assert.assertEquals( "Host=" + HOST + ":" + PORT + " Accept-Language=[fr, en;q=0.5] X-Private=null Keep-Alive=null",
+                             get.getResponseBodyAsString() );
+        Assert.assertEquals( 2, get.getResponseHeaders( "Set-Cookie" ).length );
+    }
+
+    @Test
+    public void testContentPostIsStreamedUntouched()
+            throws Exception
+    {
+        byte[] body = new byte[ 3 * StreamingRequestEntity.BUFFER_SIZE + 17 ];
+        for ( int idx = 0; idx < body.length; idx++ ) {
+            body[idx] = ( byte ) idx;
+        }
+        body[42] = '\n';
+        body[43] = '\r';
+
+        HttpClient client = new HttpClient();
+        PostMethod post = new PostMethod( BASE_URL + "/reverse/echo" );
+        post.setRequestEntity( new ByteArrayRequestEntity( body, "application/octet-stream" ) );
+        client.executeMethod( post );
+
+        Assert.assertEquals( 200, post.getStatusCode() );
+        Assert.assertArrayEquals( body, post.getResponseBody() );
+    }
+
+    @Test
+    public void testGwtRpcPostIsRewritten()
+            throws Exception
+    {
+        String body = "7|0|4|http://localhost:" + PORT + "/app/|29F4EA|\nlocalhost:" + PORT + "/other|";
+
+        HttpClient client = new HttpClient();
+        PostMethod post = new PostMethod( BASE_URL + "/reverse/echo" );
+        post.setRequestEntity( new ByteArrayRequestEntity( body.getBytes( "UTF-8" ), "text/x-gwt-rpc; charset=utf-8" ) );
+        client.executeMethod( post );
+
+        Assert.assertEquals( 200, post.getStatusCode() );
+        Assert.assertEquals( "7|0|4|http://" + HOST + ":" + PORT + "/target/app/|29F4EA|\n" + HOST + ":" + PORT + "/target/other|",
+                             new String( post.getResponseBody(), "UTF-8" ) );
+    }
+
+    @Test
+    public void testMultipartPostIsStreamed()
+            throws Exception
+    {
+        byte[] file = new byte[ 1024 * 1024 ];
+        for ( int idx = 0; idx < file.length; idx++ ) {
+            file[idx] = ( byte ) ( idx * 31 );
+        }
+
+        HttpClient client = new HttpClient();
+        PostMethod post = new PostMethod( BASE_URL + "/reverse/echo" );
+        Part[] parts = new Part[]{
+            new StringPart( "field", "value" ),
+            new FilePart( "upload", new ByteArrayPartSource( "data.bin", file ) )
+        };
+        post.setRequestEntity( new MultipartRequestEntity( parts, post.getParams() ) );
+        client.executeMethod( post );
+
+        Assert.assertEquals( 200, post.getStatusCode() );
+        Assert.assertEquals( "field=value\nupload(data.bin)=" + file.length + "\n", post.getResponseBodyAsString() );
+    }
+
+    @Test
+    public void testGzippedResponseIsRelayedToAcceptingClient()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        HttpMethod get = new GetMethod( BASE_URL + "/reverse/gzip" );
+        get.setRequestHeader( "Accept-Encoding", "deflate, gzip;q=0.8" );
+        client.executeMethod( get );
+
+        Assert.assertEquals( 200, get.getStatusCode() );
+        Assert.assertEquals( "gzip", get.getResponseHeader( "Content-Encoding" ).getValue() );
+        Assert.assertEquals( "Accept-Encoding", get.getResponseHeader( "Vary" ).getValue() );
+        GZIPInputStream body = new GZIPInputStream( new ByteArrayInputStream( get.getResponseBody() ) );
+        Assert.assertEquals( GZIPPED_TEXT, IOUtils.toString( body, "UTF-8" ) );
+    }
+
+    @Test
+    public void testGzippedResponseIsInflatedForOtherClients()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        HttpMethod get = new GetMethod( BASE_URL + "/reverse/gzip" );
+        get.setRequestHeader( "Accept-Encoding", "gzip;q=0, identity" );
+        client.executeMethod( get );
+
+        Assert.assertEquals( 200, get.getStatusCode() );
+        Assert.assertNull( get.getResponseHeader( "Content-Encoding" ) );
+        Assert.assertEquals( "Accept-Encoding", get.getResponseHeader( "Vary" ).getValue() );
+        Assert.assertEquals( GZIPPED_TEXT, new String( get.getResponseBody(), "UTF-8" ) );
+
+        // An explicit refusal wins over the wildcard
+        get = new GetMethod( BASE_URL + "/reverse/gzip" );
+        get.setRequestHeader( "Accept-Encoding", "*, gzip;q=0" );
+        client.executeMethod( get );
+        Assert.assertEquals( 200, get.getStatusCode() );
+        Assert.assertNull( get.getResponseHeader( "Content-Encoding" ) );
+        Assert.assertEquals( GZIPPED_TEXT, new String( get.getResponseBody(), "UTF-8" ) );
+    }
+
+    @Test
+    public void testTextualResponseIsCompressedForAcceptingClients()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        HttpMethod get = new GetMethod( BASE_URL + "/compressed/text" );
+        get.setRequestHeader( "Accept-Encoding", "gzip" );
+        client.executeMethod( get );
+        Assert.assertEquals( 200, get.getStatusCode() );
+        Assert.assertEquals( "gzip", get.getResponseHeader( "Content-Encoding" ).getValue() );
+        Assert.assertEquals( "Accept-Encoding", get.getResponseHeader( "Vary" ).getValue() );
+        byte[] compressed = get.getResponseBody();
+        Assert.assertTrue( compressed.length < PLAIN_TEXT.length() / 4 );
+        Assert.assertEquals( PLAIN_TEXT, IOUtils.toString( new GZIPInputStream( new ByteArrayInputStream( compressed ) ), "UTF-8" ) );
+
+        get = new GetMethod( BASE_URL + "/compressed/text" );
+        get.setRequestHeader( "Accept-Encoding", "gzip;q=0, deflate" );
+        client.executeMethod( get );
+        Assert.assertEquals( "deflate", get.getResponseHeader( "Content-Encoding" ).getValue() );
+        InflaterInputStream inflated = new InflaterInputStream( new ByteArrayInputStream( get.getResponseBody() ) );
+        Assert.assertEquals( PLAIN_TEXT, IOUtils.toString( inflated, "UTF-8" ) );
+
+        get = new GetMethod( BASE_URL + "/compressed/text" );
+        client.executeMethod( get );
+        Assert.assertNull( get.getResponseHeader( "Content-Encoding" ) );
+        Assert.assertEquals( "Accept-Encoding", get.getResponseHeader( "Vary" ).getValue() );
+        Assert.assertEquals( PLAIN_TEXT, new String( get.getResponseBody(), "UTF-8" ) );
+
+        // Below the minimum size
+        get = new GetMethod( BASE_URL + "/compressed/cacheable" );
+        get.setRequestHeader( "Accept-Encoding", "gzip" );
+        client.executeMethod( get );
+        Assert.assertNull( get.getResponseHeader( "Content-Encoding" ) );
+        Assert.assertEquals( "cacheable", get.getResponseBodyAsString() );
+    }
+
+    @Test
+    public void testAsyncProxying()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        HttpMethod get = new GetMethod( BASE_URL + "/async/gzip" );
+        client.executeMethod( get );
+        Assert.assertEquals( 200, get.getStatusCode() );
+        Assert.assertEquals( GZIPPED_TEXT, new String( get.getResponseBody(), "UTF-8" ) );
+
+        PostMethod post = new PostMethod( BASE_URL + "/async/echo" );
+        post.setRequestEntity( new ByteArrayRequestEntity( GZIPPED_TEXT.getBytes( "UTF-8" ), "application/json" ) );
+        client.executeMethod( post );
+        Assert.assertEquals( 200, post.getStatusCode() );
+        Assert.assertEquals( GZIPPED_TEXT, new String( post.getResponseBody(), "UTF-8" ) );
+    }
+
+    @Test
+    public void testAsyncProxyingTimeout()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        HttpMethod get = new GetMethod( BASE_URL + "/async/slow" );
+        client.executeMethod( get );
+        Assert.assertEquals( 504, get.getStatusCode() );
+    }
+
+    @Test
+    public void testReadTimeoutAnswersGatewayTimeout()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        HttpMethod get = new GetMethod( BASE_URL + "/reverse/slow" );
+        client.executeMethod( get );
+        Assert.assertEquals( 504, get.getStatusCode() );
+    }
+
+    @Test
+    public void testMetricsArePublishedOverJmx()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        HttpMethod get = new GetMethod( BASE_URL + "/reverse/gzip" );
+        get.setRequestHeader( "Accept-Encoding", "identity" );
+        client.executeMethod( get );
+        Assert.assertEquals( 200, get.getStatusCode() );
+
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName metrics = new ObjectName( "org.codeartisans.proxilet:type=Proxilet,name=\"reverse\"" );
+        Assert.assertTrue( ( Long ) mbeanServer.getAttribute( metrics, "Requests" ) > 0 );
+        Assert.assertTrue( ( Long ) mbeanServer.getAttribute( metrics, "UpstreamResponses2xx" ) > 0 );
+        Assert.assertTrue( ( Long ) mbeanServer.getAttribute( metrics, "GzipInflations" ) > 0 );
+        Assert.assertTrue( ( Long ) mbeanServer.getAttribute( metrics, "BytesOut" ) >= GZIPPED_TEXT.length() );
+        Assert.assertEquals( 200, mbeanServer.getAttribute( metrics, "PoolMaxConnections" ) );
+        ObjectName connect = new ObjectName( "org.codeartisans.proxilet:type=Latency,name=\"reverse\",phase=connect" );
+        Assert.assertTrue( ( Long ) mbeanServer.getAttribute( connect, "Count" ) > 0 );
+        ObjectName timeToFirstByte = new ObjectName( "org.codeartisans.proxilet:type=Latency,name=\"reverse\",phase=timeToFirstByte" );
+        Assert.assertTrue( ( Double ) mbeanServer.getAttribute( timeToFirstByte, "99thPercentile" ) > 0 );
+    }
+
+    @Test
+    public void testBodiesGoThroughFilters()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        PostMethod post = new PostMethod( BASE_URL + "/filtered/echo" );
+        post.setRequestEntity( new ByteArrayRequestEntity( "some content".getBytes( "UTF-8" ), "text/plain" ) );
+        client.executeMethod( post );
+        Assert.assertEquals( 200, post.getStatusCode() );
+        Assert.assertEquals( "SOME CONTENT", post.getResponseBodyAsString() );
+
+        HttpMethod get = new GetMethod( BASE_URL + "/filtered/text" );
+        client.executeMethod( get );
+        Assert.assertEquals( 200, get.getStatusCode() );
+        Assert.assertEquals( "true", get.getResponseHeader( "X-Filtered" ).getValue() );
+        Assert.assertEquals( PLAIN_TEXT.toUpperCase( Locale.US ), new String( get.getResponseBody(), "UTF-8" ) );
+    }
+
+    @Test
+    public void testLocationIsRewritten()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        HttpMethod get = new GetMethod( BASE_URL + "/filtered/redirect" );
+        get.setFollowRedirects( false );
+        get.getParams().setVirtualHost( "localhost" );
+        client.executeMethod( get );
+        Assert.assertEquals( 302, get.getStatusCode() );
+        Assert.assertEquals( "http://localhost:" + PORT + "/target/text", get.getResponseHeader( "Location" ).getValue() );
+    }
+
+    @Test
+    public void testSampledRequestsAreTraced()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        HttpMethod get = new GetMethod( BASE_URL + "/traced/text" );
+        client.executeMethod( get );
+        Assert.assertEquals( 200, get.getStatusCode() );
+        String serverTiming = get.getResponseHeader( "Server-Timing" ).getValue();
+        Assert.assertTrue( serverTiming, serverTiming.startsWith( "route;dur=" ) );
+        Assert.assertTrue( serverTiming, serverTiming.contains( ", headers;dur=" ) );
+        Assert.assertTrue( serverTiming, serverTiming.contains( ", upstream;dur=" ) );
+
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName metrics = new ObjectName( "org.codeartisans.proxilet:type=Proxilet,name=\"traced\"" );
+        // The trace is recorded once the servlet returns, possibly after the client got the response
+        String[] traces = new String[ 0 ];
+        for ( int tries = 0; tries < 50 && traces.length == 0; tries++ ) {
+            Thread.sleep( 20 );
+            traces = ( String[] ) mbeanServer.getAttribute( metrics, "SlowestTraces" );
+        }
+        Assert.assertEquals( 1, traces.length );
+        Assert.assertTrue( traces[0], traces[0].contains( " GET /traced/text 200 " ) );
+        Assert.assertTrue( traces[0], traces[0].contains( " relay=" ) );
+        Assert.assertEquals( 1L, mbeanServer.getAttribute( metrics, "TracedRequests" ) );
+    }
+
+    @Test
+    public void testSlowGetIsHedged()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        HttpMethod get = new GetMethod( BASE_URL + "/hedged/stalled" );
+        long start = System.currentTimeMillis();
+        client.executeMethod( get );
+        Assert.assertEquals( 200, get.getStatusCode() );
+        Assert.assertEquals( "stalled", get.getResponseBodyAsString() );
+        // The first attempt stalls for 2 seconds, the hedge sent after 200ms answers right away
+        Assert.assertTrue( System.currentTimeMillis() - start < 1500 );
+        Assert.assertEquals( 2, stalledHitsOnTarget.get() );
+
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName metrics = new ObjectName( "org.codeartisans.proxilet:type=Proxilet,name=\"hedged\"" );
+        Assert.assertEquals( 1L, mbeanServer.getAttribute( metrics, "HedgedRequests" ) );
+    }
+
+    @Test
+    public void testGetFailingToConnectIsRetried()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        // Round-robin sends one of them to the dead target first
+        for ( int idx = 0; idx < 2; idx++ ) {
+            HttpMethod get = new GetMethod( BASE_URL + "/retried/cacheable" );
+            client.executeMethod( get );
+            Assert.assertEquals( 200, get.getStatusCode() );
+            Assert.assertEquals( "cacheable", get.getResponseBodyAsString() );
+        }
+    }
+
+    @Test
+    public void testHeadIsForwardedAsHead()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        HttpMethod head = new HeadMethod( BASE_URL + "/reverse/big" );
+        client.executeMethod( head );
+
+        Assert.assertEquals( 200, head.getStatusCode() );
+        Assert.assertEquals( "HEAD", lastMethodOnTarget );
+        Assert.assertEquals( "1234567", head.getResponseHeader( "Content-Length" ).getValue() );
+    }
+
+    @Test
+    public void testAnyMethodIsProxied()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+
+        PutMethod put = new PutMethod( BASE_URL + "/reverse/echo" );
+        put.setRequestEntity( new ByteArrayRequestEntity( "put body".getBytes( "UTF-8" ), "text/plain" ) );
+        client.executeMethod( put );
+        Assert.assertEquals( "PUT", lastMethodOnTarget );
+        Assert.assertEquals( "put body", put.getResponseBodyAsString() );
+
+        EntityEnclosingProxyMethod patch = new EntityEnclosingProxyMethod( "PATCH", BASE_URL + "/reverse/echo" );
+        patch.setRequestEntity( new ByteArrayRequestEntity( "patch body".getBytes( "UTF-8" ), "application/json" ) );
+        client.executeMethod( patch );
+        Assert.assertEquals( "PATCH", lastMethodOnTarget );
+        Assert.assertEquals( "patch body", patch.getResponseBodyAsString() );
+
+        DeleteMethod delete = new DeleteMethod( BASE_URL + "/reverse/echo" );
+        client.executeMethod( delete );
+        Assert.assertEquals( "DELETE", lastMethodOnTarget );
+        Assert.assertEquals( 204, delete.getStatusCode() );
+    }
+
+    @Test
+    public void testFreshResponseIsServedFromCache()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        int before = cacheableHitsOnTarget.get();
+        for ( int idx = 0; idx < 3; idx++ ) {
+            HttpMethod get = new GetMethod( BASE_URL + "/cached/cacheable" );
+            client.executeMethod( get );
+            Assert.assertEquals( 200, get.getStatusCode() );
+            Assert.assertEquals( "cacheable", get.getResponseBodyAsString() );
+            if ( idx > 0 ) {
+                Assert.assertNotNull( get.getResponseHeader( "Age" ) );
+            }
+        }
+        Assert.assertEquals( before + 1, cacheableHitsOnTarget.get() );
+
+        HttpMethod noCache = new GetMethod( BASE_URL + "/cached/cacheable" );
+        noCache.setRequestHeader( "Cache-Control", "no-cache" );
+        client.executeMethod( noCache );
+        Assert.assertEquals( before + 2, cacheableHitsOnTarget.get() );
+    }
+
+    @Test
+    public void testStaleResponseIsRevalidated()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        int before = validatedHitsOnTarget.get();
+        for ( int idx = 0; idx < 3; idx++ ) {
+            HttpMethod get = new GetMethod( BASE_URL + "/cached/validated" );
+            client.executeMethod( get );
+            Assert.assertEquals( 200, get.getStatusCode() );
+            Assert.assertEquals( "validated", get.getResponseBodyAsString() );
+        }
+        // Only the first request got a full response from the target, the others were 304 revalidations
+        Assert.assertEquals( before + 1, validatedHitsOnTarget.get() );
+
+        HttpMethod conditional = new GetMethod( BASE_URL + "/cached/validated" );
+        conditional.setRequestHeader( "If-None-Match", "\"v1\"" );
+        client.executeMethod( conditional );
+        Assert.assertEquals( 304, conditional.getStatusCode() );
+    }
+
+    @Test
+    public void testLargeResponseIsServedFromDiskCache()
+            throws Exception
+    {
+        HttpClient client = new HttpClient();
+        int before = largeHitsOnTarget.get();
+        for ( int idx = 0; idx < 3; idx++ ) {
+            HttpMethod get = new GetMethod( BASE_URL + "/cached/large" );
+            client.executeMethod( get );
+            Assert.assertEquals( 200, get.getStatusCode() );
+            byte[] body = get.getResponseBody();
+            Assert.assertEquals( LARGE_LENGTH, body.length );
+            Assert.assertEquals( 'a' + ( LARGE_LENGTH - 1 ) % 26, body[LARGE_LENGTH - 1] );
+        }
+        Assert.assertEquals( before + 1, largeHitsOnTarget.get() );
+        Assert.assertEquals( 1, cacheDirectory.list( new SuffixFileFilter( ".data" ) ).length );
+    }
+
+    @Test
+    public void testIdenticalConcurrentGetsAreCoalesced()
+            throws Exception
+    {
+        int before = popularHitsOnTarget.get();
+        final int clients = 5;
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final List<String> bodies = Collections.synchronizedList( new ArrayList<String>() );
+        Thread[] threads = new Thread[ clients ];
+        for ( int idx = 0; idx < clients; idx++ ) {
+            threads[idx] = new Thread()
+            {
+
+                @Override
+                public void run()
+                {
+                    try {
+                        start.await();
+                        HttpMethod get = new GetMethod( BASE_URL + "/cached/popular" );
+                        new HttpClient().executeMethod( get );
+                        bodies.add( get.getStatusCode() + " " + get.getResponseBodyAsString() );
+                    } catch ( Exception ex ) {
+                        bodies.add( ex.toString() );
+                    }
+                }
+
+            };
+            threads[idx].start();
+        }
+        start.countDown();
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+        Assert.assertEquals( Collections.nCopies( clients, "200 popular" ), bodies );
+        // The response is not cacheable, all clients were served by a single upstream request
+        Assert.assertEquals( before + 1, popularHitsOnTarget.get() );
+    }
+
     @SuppressWarnings( "PublicInnerClass" )
+    private static String plainText()
+    {
+        StringBuilder text = new StringBuilder();
+        for ( int idx = 0; idx < 100; idx++ ) {
+            text.append( "Some text that the target does not compress, line " ).append( idx ).append( ".\n" );
+        }
+        return text.toString();
+    }
+
+    /**
+     * Upper-cases request bodies and textual response bodies.
+     */
+    public static class UpperCaseFilter
+            implements ProxyFilter
+    {
+
+        public UpperCaseFilter( ServletConfig servletConfig )
+        {
+        }
+
+        @Override
+        public BodyFilter filterRequest( HttpServletRequest clientRequest, Upstream upstream, HttpMethod upstreamRequest )
+        {
+            return new UpperCaseBodyFilter();
+        }
+
+        @Override
+        public BodyFilter filterResponse( HttpServletRequest clientRequest, Upstream upstream, int statusCode,
+                                          List<Header> responseHeaders )
+        {
+            for ( Header header : responseHeaders ) {
+                if ( header.getName().equalsIgnoreCase( "Content-Type" ) && header.getValue().startsWith( "text/plain" ) ) {
+                    responseHeaders.add( new Header( "X-Filtered", "true" ) );
+                    return new UpperCaseBodyFilter();
+                }
+            }
+            return null;
+        }
+
+    }
+
+    private static class UpperCaseBodyFilter
+            implements BodyFilter
+    {
+
+        @Override
+        public void filter( byte[] bytes, int offset, int length, OutputStream out )
+                throws IOException
+        {
+            byte[] upperCase = new byte[ length ];
+            for ( int idx = 0; idx < length; idx++ ) {
+                byte current = bytes[offset + idx];
+                upperCase[idx] = current >= 'a' && current <= 'z' ? ( byte ) ( current - 'a' + 'A' ) : current;
+            }
+            out.write( upperCase );
+        }
+
+        @Override
+        public void finish( OutputStream out )
+        {
+        }
+
+    }
+
     public static class TargetServlet
             extends HttpServlet
     {
 
         private static final long serialVersionUID = 1L;
 
+        @Override
+        protected void service( HttpServletRequest req, HttpServletResponse resp )
+                throws ServletException, IOException
+        {
+            lastMethodOnTarget = req.getMethod();
+            if ( "PATCH".equals( req.getMethod() ) ) {
+                doPut( req, resp );
+            } else {
+                super.service( req, resp );
+            }
+        }
+
+        @Override
+        protected void doHead( HttpServletRequest req, HttpServletResponse resp )
+                throws ServletException, IOException
+        {
+            resp.setContentType( "application/octet-stream" );
+            resp.setContentLength( 1234567 );
+        }
+
+        @Override
+        protected void doPut( HttpServletRequest req, HttpServletResponse resp )
+                throws ServletException, IOException
+        {
+            resp.setContentType( "text/plain" );
+            IOUtils.copy( req.getInputStream(), resp.getOutputStream() );
+        }
+
+        @Override
+        protected void doDelete( HttpServletRequest req, HttpServletResponse resp )
+                throws ServletException, IOException
+        {
+            resp.setStatus( HttpServletResponse.SC_NO_CONTENT );
+        }
+
         @Override
         protected void doGet( HttpServletRequest req, HttpServletResponse resp )
                 throws ServletException, IOException
         {
             gotGetOnTarget = true;
+            if ( "/slow".equals( req.getPathInfo() ) ) {
+                try {
+                    Thread.sleep( 3000 );
+                } catch ( InterruptedException ex ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if ( "/redirect".equals( req.getPathInfo() ) ) {
+                resp.sendRedirect( "/target/text" );
+                return;
+            }
+            if ( "/stalled".equals( req.getPathInfo() ) ) {
+                if ( stalledHitsOnTarget.incrementAndGet() == 1 ) {
+                    try {
+                        Thread.sleep( 2000 );
+                    } catch ( InterruptedException ex ) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                resp.setContentType( "text/plain" );
+                resp.getWriter().write( "stalled" );
+                return;
+            }
+            if ( "/cacheable".equals( req.getPathInfo() ) ) {
+                cacheableHitsOnTarget.incrementAndGet();
+                resp.setContentType( "text/plain" );
+                resp.setHeader( "Cache-Control", "max-age=60" );
+                resp.getWriter().write( "cacheable" );
+                return;
+            }
+            if ( "/popular".equals( req.getPathInfo() ) ) {
+                popularHitsOnTarget.incrementAndGet();
+                try {
+                    Thread.sleep( 500 );
+                } catch ( InterruptedException ex ) {
+                    Thread.currentThread().interrupt();
+                }
+                resp.setContentType( "text/plain" );
+                resp.setHeader( "Cache-Control", "no-cache" );
+                resp.getWriter().write( "popular" );
+                return;
+            }
+            if ( "/large".equals( req.getPathInfo() ) ) {
+                largeHitsOnTarget.incrementAndGet();
+                resp.setContentType( "application/octet-stream" );
+                resp.setHeader( "Cache-Control", "max-age=60" );
+                byte[] body = new byte[ LARGE_LENGTH ];
+                for ( int idx = 0; idx < LARGE_LENGTH; idx++ ) {
+                    body[idx] = ( byte ) ( 'a' + idx % 26 );
+                }
+                resp.getOutputStream().write( body );
+                return;
+            }
+            if ( "/validated".equals( req.getPathInfo() ) ) {
+                resp.setHeader( "Cache-Control", "max-age=0" );
+                resp.setHeader( "ETag", "\"v1\"" );
+                if ( "\"v1\"".equals( req.getHeader( "If-None-Match" ) ) ) {
+                    resp.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+                    return;
+                }
+                validatedHitsOnTarget.incrementAndGet();
+                resp.setContentType( "text/plain" );
+                resp.getWriter().write( "validated" );
+                return;
+            }
+            if ( "/gzip".equals( req.getPathInfo() ) ) {
+                resp.setContentType( "text/plain; charset=UTF-8" );
+                resp.setHeader( "Content-Encoding", "gzip" );
+                GZIPOutputStream gzip = new GZIPOutputStream( resp.getOutputStream() );
+                gzip.write( GZIPPED_TEXT.getBytes( "UTF-8" ) );
+                gzip.finish();
+            }
+            if ( "/text".equals( req.getPathInfo() ) ) {
+                byte[] body = PLAIN_TEXT.getBytes( "UTF-8" );
+                resp.setContentType( "text/plain; charset=UTF-8" );
+                resp.setContentLength( body.length );
+                resp.getOutputStream().write( body );
+            }
+            if ( "/headers".equals( req.getPathInfo() ) ) {
+                resp.setContentType( "text/plain" );
+                resp.addHeader( "Set-Cookie", "first=1" );
+                resp.addHeader( "Set-Cookie", "second=2" );
+                resp.getWriter().write( "Host=" + req.getHeader( "Host" )
+                                        + " Accept-Language=" + Collections.list( req.getHeaders( "Accept-Language" ) )
+                                        + " X-Private=" + req.getHeader( "X-Private" )
+                                        + " Keep-Alive=" + req.getHeader( "Keep-Alive" ) );
+            }
+        }
+
+        @Override
+        protected void doPost( HttpServletRequest req, HttpServletResponse resp )
+                throws ServletException, IOException
+        {
+            if ( ServletFileUpload.isMultipartContent( req ) ) {
+                // Describe the received parts
+                resp.setContentType( "text/plain" );
+                StringBuilder description = new StringBuilder();
+                try {
+                    FileItemIterator items = new ServletFileUpload().getItemIterator( req );
+                    while ( items.hasNext() ) {
+                        FileItemStream item = items.next();
+                        description.append( item.getFieldName() );
+                        if ( item.isFormField() ) {
+                            description.append( "=" ).append( IOUtils.toString( item.openStream() ) );
+                        } else {
+                            description.append( "(" ).append( item.getName() ).append( ")=" );
+                            description.append( IOUtils.toByteArray( item.openStream() ).length );
+                        }
+                        description.append( "\n" );
+                    }
+                } catch ( FileUploadException ex ) {
+                    throw new ServletException( ex );
+                }
+                resp.getWriter().write( description.toString() );
+                return;
+            }
+            // Echo the request body
+            resp.setContentType( "application/octet-stream" );
+            IOUtils.copy( req.getInputStream(), resp.getOutputStream() );
         }
 
     }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReplacingBodyFilterTest
+{
+
+    @Test
+    public void testReplaceLikeString()
+            throws IOException
+    {
+        assertReplaced( "localhost:8080 and localhost:8080/app", "localhost:8080", "backend:80/prefix" );
+        assertReplaced( "aaaab aab ab", "aab", "X" );
+        assertReplaced( "abababab", "abab", "-" );
+        assertReplaced( "no match at all", "localhost", "backend" );
+        assertReplaced( "trailing partial localho", "localhost", "backend" );
+        assertReplaced( "xxxx", "x", "yy" );
+    }
+
+    @Test
+    public void testReplaceAcrossRandomWrites()
+            throws IOException
+    {
+        Random random = new Random( 42 );
+        StringBuilder content = new StringBuilder();
+        for ( int idx = 0; idx < 2000; idx++ ) {
+            content.append( random.nextBoolean() ? "localhost:" : "local" ).append( random.nextInt( 10 ) );
+        }
+        String search = "localhost:8";
+        String replacement = "backend.example.com:8";
+        byte[] bytes = content.toString().getBytes( "UTF-8" );
+
+        for ( int run = 0; run < 20; run++ ) {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            FilteringOutputStream out = new FilteringOutputStream( result, new ReplacingBodyFilter( search.getBytes( "UTF-8" ), replacement.getBytes( "UTF-8" ) ) );
+            int offset = 0;
+            while ( offset < bytes.length ) {
+                int length = Math.min( bytes.length - offset, random.nextInt( 16 ) );
+                if ( length == 1 ) {
+                    out.write( bytes[offset] );
+                } else {
+                    out.write( bytes, offset, length );
+                }
+                offset += length;
+            }
+            out.close();
+            Assert.assertEquals( content.toString().replace( search, replacement ), result.toString( "UTF-8" ) );
+        }
+    }
+
+    private static void assertReplaced( String content, String search, String replacement )
+            throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        FilteringOutputStream out = new FilteringOutputStream( result, new ReplacingBodyFilter( search.getBytes( "UTF-8" ), replacement.getBytes( "UTF-8" ) ) );
+        out.write( content.getBytes( "UTF-8" ) );
+        out.finish();
+        Assert.assertEquals( content.replace( search, replacement ), result.toString( "UTF-8" ) );
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Request;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequestTracerTest
+{
+
+    @Test
+    public void testOneRequestInSamplingIsTraced()
+    {
+        RequestTracer tracer = new RequestTracer( 3, 10, 60000 );
+        int traced = 0;
+        for ( int idx = 0; idx < 9; idx++ ) {
+            if ( tracer.sample( new Request(), System.nanoTime() ) != null ) {
+                traced++;
+            }
+        }
+        Assert.assertEquals( 3, traced );
+        Assert.assertEquals( 3, tracer.getTraced() );
+    }
+
+    @Test
+    public void testSlowestTracesOfTheWindowAreRetained()
+            throws InterruptedException
+    {
+        RequestTracer tracer = new RequestTracer( 1, 2, 200 );
+        tracer.record( finished( tracer, 30 ) );
+        tracer.record( finished( tracer, 10 ) );
+        tracer.record( finished( tracer, 20 ) );
+        tracer.record( finished( tracer, 5 ) );
+        List<RequestTrace> slowest = tracer.getSlowest();
+        Assert.assertEquals( 2, slowest.size() );
+        Assert.assertTrue( slowest.get( 0 ).getDuration() >= TimeUnit.MILLISECONDS.toNanos( 30 ) );
+        Assert.assertTrue( slowest.get( 1 ).getDuration() >= TimeUnit.MILLISECONDS.toNanos( 20 ) );
+        Assert.assertTrue( slowest.get( 1 ).getDuration() < TimeUnit.MILLISECONDS.toNanos( 30 ) );
+
+        Thread.sleep( 250 );
+        // Faster than the expired ones, still retained
+        tracer.record( finished( tracer, 1 ) );
+        Assert.assertEquals( 1, tracer.getSlowest().size() );
+        Thread.sleep( 250 );
+        Assert.assertTrue( tracer.getSlowest().isEmpty() );
+    }
+
+    private static RequestTrace finished( RequestTracer tracer, long durationMillis )
+    {
+        Request request = new Request();
+        RequestTrace trace = tracer.sample( request, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos( durationMillis ) );
+        trace.mark( "upstream" );
+        trace.finish( 200, null );
+        return trace;
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RouteTableTest
+{
+
+    private static final UpstreamGroup GROUP = new UpstreamGroup( Arrays.asList( new Upstream( "backend", 80, false ) ),
+                                                                  UpstreamSelectors.forName( UpstreamSelectors.ROUND_ROBIN ), 0, 0 );
+
+    @Test
+    public void testLongestPrefixMatchesOnSegmentBoundaries()
+    {
+        Route api = new Route( null, "/api", "/v1", GROUP, "" );
+        Route users = new Route( null, "/api/users", "/users", GROUP, "" );
+        Route assets = new Route( null, "/static/", "/", GROUP, "" );
+        RouteTable table = new RouteTable( Arrays.asList( api, users, assets ) );
+
+        Assert.assertSame( api, table.match( null, "/api", 0 ) );
+        Assert.assertSame( api, table.match( null, "/api/orders/1", 0 ) );
+        Assert.assertSame( users, table.match( null, "/api/users", 0 ) );
+        Assert.assertSame( users, table.match( null, "/api/users/42", 0 ) );
+        Assert.assertSame( api, table.match( null, "/api/usersettings", 0 ) );
+        Assert.assertSame( assets, table.match( null, "/static/app.js", 0 ) );
+        Assert.assertNull( table.match( null, "/apis", 0 ) );
+        Assert.assertNull( table.match( null, "/static", 0 ) );
+        Assert.assertSame( users, table.match( null, "/context/api/users", "/context".length() ) );
+
+        StringBuilder url = new StringBuilder();
+        users.appendRewrittenPath( url, "/context/api/users/42", "/context".length() );
+        Assert.assertEquals( "/users/42", url.toString() );
+        url.setLength( 0 );
+        assets.appendRewrittenPath( url, "/static/app.js", 0 );
+        Assert.assertEquals( "/app.js", url.toString() );
+    }
+
+    @Test
+    public void testHostRoutesArePreferred()
+    {
+        Route fallback = new Route( null, "", "", GROUP, "" );
+        Route api = new Route( null, "/api", "/api", GROUP, "" );
+        Route hostApi = new Route( "api.example.com", "/api", "/", GROUP, "" );
+        RouteTable table = new RouteTable( Arrays.asList( fallback, api, hostApi ) );
+
+        Assert.assertSame( hostApi, table.match( "API.example.com", "/api/users", 0 ) );
+        Assert.assertSame( api, table.match( "www.example.com", "/api/users", 0 ) );
+        Assert.assertSame( fallback, table.match( "api.example.com", "/other", 0 ) );
+        Assert.assertSame( fallback, table.match( null, "/", 0 ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testDuplicateRoutesAreRejected()
+    {
+        new RouteTable( Arrays.asList( new Route( null, "/api", "/a", GROUP, "" ), new Route( null, "/api", "/b", GROUP, "" ) ) );
+    }
+
+}
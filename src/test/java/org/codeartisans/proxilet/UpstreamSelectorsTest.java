@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2010, Paul Merlin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.codeartisans.proxilet;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UpstreamSelectorsTest
+{
+
+    @Test
+    public void testRoundRobinSkipsEjectedUpstreams()
+    {
+        Upstream first = new Upstream( "first", 80, false );
+        Upstream second = new Upstream( "second", 8080, false );
+        Upstream third = new Upstream( "third", 443, true );
+        UpstreamGroup group = new UpstreamGroup( Arrays.asList( first, second, third ),
+                                                 UpstreamSelectors.forName( UpstreamSelectors.ROUND_ROBIN ), 2, 60000 );
+
+        Assert.assertEquals( "first", group.select().getAuthority() );
+        Assert.assertEquals( "second:8080", group.select().getAuthority() );
+        Assert.assertEquals( "https://third:443", group.select().getBaseUrl() );
+
+        group.recordFailure( second );
+        Assert.assertTrue( second.isAvailable() );
+        group.recordFailure( second );
+        Assert.assertFalse( second.isAvailable() );
+        for ( int idx = 0; idx < 10; idx++ ) {
+            Assert.assertNotSame( second, group.select() );
+        }
+    }
+
+    @Test
+    public void testUnavailableGroupStillSelects()
+    {
+        Upstream only = new Upstream( "only", 80, false );
+        only.setHealthy( false );
+        UpstreamGroup group = new UpstreamGroup( Arrays.asList( only ), UpstreamSelectors.forName( UpstreamSelectors.PEAK_EWMA ), 5, 60000 );
+        Assert.assertSame( only, group.select() );
+    }
+
+    @Test
+    public void testLeastInFlightPrefersIdleUpstream()
+    {
+        Upstream busy = new Upstream( "busy", 80, false );
+        Upstream idle = new Upstream( "idle", 80, false );
+        busy.requestStarted();
+        busy.requestStarted();
+        UpstreamSelector selector = UpstreamSelectors.forName( UpstreamSelectors.LEAST_IN_FLIGHT );
+        for ( int idx = 0; idx < 10; idx++ ) {
+            Assert.assertSame( idle, selector.select( new Upstream[]{ busy, idle } ) );
+        }
+    }
+
+    @Test
+    public void testPeakEwmaPrefersFastUpstream()
+    {
+        Upstream slow = new Upstream( "slow", 80, false );
+        Upstream fast = new Upstream( "fast", 80, false );
+        slow.recordSuccess( TimeUnit.MILLISECONDS.toNanos( 800 ) );
+        fast.recordSuccess( TimeUnit.MILLISECONDS.toNanos( 5 ) );
+        UpstreamSelector selector = UpstreamSelectors.forName( UpstreamSelectors.PEAK_EWMA );
+        for ( int idx = 0; idx < 10; idx++ ) {
+            Assert.assertSame( fast, selector.select( new Upstream[]{ slow, fast } ) );
+        }
+    }
+
+    @Test
+    public void testCustomSelector()
+    {
+        Assert.assertTrue( UpstreamSelectors.forName( FirstSelector.class.getName() ) instanceof FirstSelector );
+    }
+
+    @SuppressWarnings( "PublicInnerClass" )
+    public static class FirstSelector
+            implements UpstreamSelector
+    {
+
+        @Override
+        public Upstream select( Upstream[] upstreams )
+        {
+            return upstreams[0];
+        }
+
+    }
+
+}